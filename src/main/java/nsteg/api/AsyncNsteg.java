@@ -0,0 +1,330 @@
+package nsteg.api;
+
+import nsteg.threads.WorkerPool;
+
+import javax.validation.constraints.NotNull;
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs Nsteg jobs asynchronously, returning a CompletableFuture for each job instead of blocking the caller. Jobs wait
+ * in a bounded queue, so callers submitting faster than jobs complete are held back instead of piling up carriers in
+ * memory, and are taken from it by a fixed number of job threads, one per available core by default.
+ * <p><br>
+ * Each job has a Priority. Interactive jobs are always started before bulk jobs, and jobs of the same priority are
+ * started in the order they were submitted. A job can be given a deadline, after which its future fails with a
+ * TimeoutException, and can be cancelled through its future. Jobs that are cancelled or past their deadline before a
+ * job thread takes them are never started. Encoding and decoding do not respond to interruption, so a job that has
+ * already started runs to completion, but its result is discarded.
+ * <p><br>
+ * Job threads are kept apart from the WorkerPool, which the jobs themselves use to compress PNG bands and encode FLAC
+ * frames, so a full queue of jobs can never starve the tasks they wait on. Job threads are daemons, so an instance
+ * does not have to be shut down, but shutdown() can be used to stop it from accepting more jobs, and to let its job
+ * threads exit once the queue has been drained.
+ */
+public class AsyncNsteg {
+	/**
+	 * Order in which queued jobs are started.
+	 */
+	public enum Priority {
+		/**
+		 * Jobs a user is waiting on, usually small, which are started before any bulk job.
+		 */
+		INTERACTIVE,
+		/**
+		 * Background jobs, started only when no interactive job is queued.
+		 */
+		BULK
+	}
+
+	/**
+	 * Work run by a job thread, such as a call to one of the methods of Nsteg.
+	 *
+	 * @param <T> Type of the result of the job
+	 */
+	@FunctionalInterface
+	public interface Job<T> {
+		T run() throws Exception;
+	}
+
+	/*
+	 * Deadlines are enforced by a single timer thread shared by every instance.
+	 */
+	private static final ScheduledExecutorService timer;
+
+	static {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread t = new Thread(r, "nsteg-job-timer");
+			t.setDaemon(true);
+			return t;
+		});
+		executor.setRemoveOnCancelPolicy(true);
+		timer = executor;
+	}
+
+	private final PriorityBlockingQueue<QueuedJob<?>> queue = new PriorityBlockingQueue<>();
+	private final Semaphore queueSlots; // Free places in the queue, taken on submission and freed once a job leaves it
+	private final AtomicLong submitted = new AtomicLong();
+	private final int threads;
+	private volatile boolean shutdown = false;
+
+	/**
+	 * Creates an instance with one job thread per available core.
+	 *
+	 * @param queueCapacity Number of jobs that can wait to be started before submitting more blocks
+	 */
+	public AsyncNsteg(int queueCapacity) {
+		this(queueCapacity, WorkerPool.getSize());
+	}
+
+	/**
+	 * Creates an instance with the given number of job threads.
+	 *
+	 * @param queueCapacity Number of jobs that can wait to be started before submitting more blocks
+	 * @param threads       Number of jobs that can run at the same time
+	 * @throws IllegalArgumentException If either argument is less than 1
+	 */
+	public AsyncNsteg(int queueCapacity, int threads) {
+		if (queueCapacity < 1 || threads < 1)
+			throw new IllegalArgumentException("Queue capacity and number of threads must be at least 1");
+		queueSlots = new Semaphore(queueCapacity);
+		this.threads = threads;
+
+		for (int t = 0; t < threads; t++) {
+			Thread jobThread = new Thread(this::runJobs, "nsteg-job-" + (t + 1));
+			jobThread.setDaemon(true);
+			jobThread.start();
+		}
+	}
+
+	/**
+	 * Queues a job, waiting for a place in the queue if it is full.
+	 *
+	 * @param job      Job to run
+	 * @param priority Priority of the job
+	 * @param timeout  Time from submission after which the job fails with a TimeoutException, or 0 for no deadline
+	 * @param unit     Unit of the timeout
+	 * @param <T>      Type of the result of the job
+	 * @return Future completed with the result of the job, or with the exception it threw
+	 * @throws InterruptedException       If the current thread was interrupted while waiting for a place in the queue
+	 * @throws RejectedExecutionException If this instance has been shut down
+	 */
+	public <T> CompletableFuture<T> submit(@NotNull Job<T> job, @NotNull Priority priority, long timeout,
+										   @NotNull TimeUnit unit) throws InterruptedException {
+		checkShutdown();
+		queueSlots.acquire();
+		return enqueue(job, priority, timeout, unit);
+	}
+
+	/**
+	 * Queues a job if there is a place for it in the queue, without waiting.
+	 *
+	 * @param job      Job to run
+	 * @param priority Priority of the job
+	 * @param timeout  Time from submission after which the job fails with a TimeoutException, or 0 for no deadline
+	 * @param unit     Unit of the timeout
+	 * @param <T>      Type of the result of the job
+	 * @return Future completed with the result of the job, or with the exception it threw
+	 * @throws RejectedExecutionException If the queue is full, or this instance has been shut down
+	 */
+	public <T> CompletableFuture<T> trySubmit(@NotNull Job<T> job, @NotNull Priority priority, long timeout,
+											  @NotNull TimeUnit unit) {
+		checkShutdown();
+		if (!queueSlots.tryAcquire())
+			throw new RejectedExecutionException("Job queue is full");
+		return enqueue(job, priority, timeout, unit);
+	}
+
+	/**
+	 * Queues a job encoding payloads into an image, in place, waiting for a place in the queue if it is full.
+	 *
+	 * @see Nsteg#encode(BufferedImage, List, EncodeOptions)
+	 * @see #submit(Job, Priority, long, TimeUnit)
+	 */
+	public CompletableFuture<BufferedImage> encode(@NotNull BufferedImage carrier, @NotNull List<Payload> payloads,
+												   @NotNull EncodeOptions options, @NotNull Priority priority,
+												   long timeout, @NotNull TimeUnit unit)
+			throws InterruptedException {
+		return submit(() -> {
+			Nsteg.encode(carrier, payloads, options);
+			return carrier;
+		}, priority, timeout, unit);
+	}
+
+	/**
+	 * Queues a job encoding payloads into a carrier read from a stream, waiting for a place in the queue if it is full.
+	 * Neither stream is closed.
+	 *
+	 * @see Nsteg#encode(InputStream, List, EncodeOptions, OutputStream)
+	 * @see #submit(Job, Priority, long, TimeUnit)
+	 */
+	public CompletableFuture<Void> encode(@NotNull InputStream carrier, @NotNull List<Payload> payloads,
+										  @NotNull EncodeOptions options, @NotNull OutputStream out,
+										  @NotNull Priority priority, long timeout, @NotNull TimeUnit unit)
+			throws InterruptedException {
+		return submit(() -> {
+			Nsteg.encode(carrier, payloads, options, out);
+			return null;
+		}, priority, timeout, unit);
+	}
+
+	/**
+	 * Queues a job encoding payloads into a carrier read from a file through the CarrierCache, waiting for a place in
+	 * the queue if it is full. Jobs encoding into the same carrier file only decode it once. The stream is not closed.
+	 *
+	 * @see Nsteg#encode(String, List, EncodeOptions, OutputStream)
+	 * @see #submit(Job, Priority, long, TimeUnit)
+	 */
+	public CompletableFuture<Void> encode(@NotNull String carrierFile, @NotNull List<Payload> payloads,
+										  @NotNull EncodeOptions options, @NotNull OutputStream out,
+										  @NotNull Priority priority, long timeout, @NotNull TimeUnit unit)
+			throws InterruptedException {
+		return submit(() -> {
+			Nsteg.encode(carrierFile, payloads, options, out);
+			return null;
+		}, priority, timeout, unit);
+	}
+
+	/**
+	 * Queues a job decoding the payloads encoded into an image, waiting for a place in the queue if it is full.
+	 *
+	 * @see Nsteg#decode(BufferedImage, char[])
+	 * @see #submit(Job, Priority, long, TimeUnit)
+	 */
+	public CompletableFuture<List<Payload>> decode(@NotNull BufferedImage carrier, char[] password,
+												   @NotNull Priority priority, long timeout, @NotNull TimeUnit unit)
+			throws InterruptedException {
+		return submit(() -> Nsteg.decode(carrier, password), priority, timeout, unit);
+	}
+
+	/**
+	 * Queues a job decoding the payloads encoded into a carrier read from a stream, waiting for a place in the queue if
+	 * it is full. The stream is not closed.
+	 *
+	 * @see Nsteg#decode(InputStream, char[])
+	 * @see #submit(Job, Priority, long, TimeUnit)
+	 */
+	public CompletableFuture<List<Payload>> decode(@NotNull InputStream carrier, char[] password,
+												   @NotNull Priority priority, long timeout, @NotNull TimeUnit unit)
+			throws InterruptedException {
+		return submit(() -> Nsteg.decode(carrier, password), priority, timeout, unit);
+	}
+
+	/**
+	 * Returns the number of jobs waiting to be started.
+	 *
+	 * @return Number of queued jobs
+	 */
+	public int getQueuedJobs() {
+		return queue.size();
+	}
+
+	/**
+	 * Stops accepting jobs. Jobs already queued are still run, after which the job threads exit.
+	 */
+	public void shutdown() {
+		synchronized (queue) {
+			if (shutdown)
+				return;
+			shutdown = true;
+
+			// One end marker per job thread, which sort after every job, so each thread exits once the queue is drained
+			for (int t = 0; t < threads; t++)
+				queue.add(new QueuedJob<>(null, Priority.BULK, Long.MAX_VALUE));
+		}
+	}
+
+	private void checkShutdown() {
+		if (shutdown)
+			throw new RejectedExecutionException("Job queue has been shut down");
+	}
+
+	/*
+	 * Queues a job once a place in the queue has been taken for it. The place is given back if this instance was shut
+	 * down while the caller waited for it, and freed as soon as the job is cancelled or misses its deadline.
+	 */
+	private <T> CompletableFuture<T> enqueue(Job<T> job, Priority priority, long timeout, TimeUnit unit) {
+		QueuedJob<T> queued = new QueuedJob<>(job, priority, submitted.getAndIncrement());
+		synchronized (queue) {
+			if (shutdown) {
+				queueSlots.release();
+				checkShutdown();
+			}
+			queue.add(queued);
+		}
+
+		queued.future.whenComplete((result, e) -> {
+			if (queue.remove(queued))
+				queueSlots.release();
+		});
+		if (timeout > 0) {
+			ScheduledFuture<?> deadline = timer.schedule(() -> queued.future.completeExceptionally(
+					new TimeoutException("Job missed its deadline")), timeout, unit);
+			queued.future.whenComplete((result, e) -> deadline.cancel(false));
+		}
+		return queued.future;
+	}
+
+	/*
+	 * Loop of each job thread, which starts the next job that has not been cancelled or missed its deadline, until it
+	 * takes an end marker queued by shutdown().
+	 */
+	private void runJobs() {
+		while (true) {
+			QueuedJob<?> job;
+			try {
+				job = queue.take();
+			} catch (InterruptedException e) {
+				if (shutdown)
+					return;
+				continue;
+			}
+			if (job.job == null)
+				return;
+			queueSlots.release();
+
+			if (!job.future.isDone())
+				job.run();
+		}
+	}
+
+	private static class QueuedJob<T> implements Comparable<QueuedJob<?>> {
+		private final Job<T> job; // Null for the end markers queued by shutdown()
+		private final Priority priority;
+		private final long order; // Submission order, which breaks ties between jobs of the same priority
+		private final CompletableFuture<T> future = new CompletableFuture<>();
+
+		QueuedJob(Job<T> job, Priority priority, long order) {
+			this.job = job;
+			this.priority = priority;
+			this.order = order;
+		}
+
+		void run() {
+			try {
+				future.complete(job.run());
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+		}
+
+		@Override
+		public int compareTo(@NotNull QueuedJob<?> other) {
+			if (priority != other.priority)
+				return priority.compareTo(other.priority);
+			return Long.compare(order, other.order);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package nsteg.api;
+
+import nsteg.processors.FLACPreset;
+
+/**
+ * Options for encoding data through the Nsteg API. The defaults encode with one least significant bit, without
+ * encryption, and write carriers read from streams as PNG images or WAV files.
+ */
+public class EncodeOptions {
+	private int LSBsToUse = 1;
+	private char[] password;
+	private String format;
+	private FLACPreset flacPreset = FLACPreset.SMALL;
+	private boolean scattered = false;
+
+	/**
+	 * Sets the number of least significant bits to use in each channel or PCM byte. Using more bits lets the carrier
+	 * hold more data, but results in a greater deviation from the original.
+	 *
+	 * @param LSBsToUse Number of least significant bits to use, from 1 to 8
+	 * @return These options
+	 * @throws IllegalArgumentException If the number of bits is out of range
+	 */
+	public EncodeOptions setLSBsToUse(int LSBsToUse) {
+		if (LSBsToUse < 1 || LSBsToUse > 8)
+			throw new IllegalArgumentException("Number of least significant bits must be between 1 and 8");
+		this.LSBsToUse = LSBsToUse;
+		return this;
+	}
+
+	/**
+	 * Sets the password to encrypt the data with. The array is not copied, and may be wiped by the caller once the
+	 * data has been encoded.
+	 *
+	 * @param password Password to encrypt the data with, or null to not encrypt it
+	 * @return These options
+	 */
+	public EncodeOptions setPassword(char[] password) {
+		this.password = password;
+		return this;
+	}
+
+	/**
+	 * Sets the format to write carriers read from streams in, which must be one of Encoder.outImgFormats for images,
+	 * or Encoder.outAudFormats for audio.
+	 *
+	 * @param format File extension of the output format, or null for PNG images and WAV audio
+	 * @return These options
+	 */
+	public EncodeOptions setFormat(String format) {
+		this.format = format;
+		return this;
+	}
+
+	/**
+	 * Sets the preset to encode carriers written as FLAC with.
+	 *
+	 * @param flacPreset Preset to encode FLAC output with
+	 * @return These options
+	 */
+	public EncodeOptions setFLACPreset(FLACPreset flacPreset) {
+		this.flacPreset = flacPreset;
+		return this;
+	}
+
+	/**
+	 * Sets whether the encrypted payloads are scattered over the carrier, in an order derived from the password,
+	 * rather than written sequentially from its start. Requires a password to be set.
+	 *
+	 * @param scattered True to scatter the payloads, false to write them sequentially
+	 * @return These options
+	 */
+	public EncodeOptions setScattered(boolean scattered) {
+		this.scattered = scattered;
+		return this;
+	}
+
+	public int getLSBsToUse() {
+		return LSBsToUse;
+	}
+
+	public char[] getPassword() {
+		return password;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	public FLACPreset getFLACPreset() {
+		return flacPreset;
+	}
+
+	public boolean isScattered() {
+		return scattered;
+	}
+}
@@ -0,0 +1,631 @@
+package nsteg.api;
+
+import nsteg.decoders.Decoder;
+import nsteg.decoders.aud.AudDecoder;
+import nsteg.decoders.img.ImgDecoder;
+import nsteg.encoders.Encoder;
+import nsteg.encoders.aud.AudEncoder;
+import nsteg.encoders.img.ImgEncoder;
+import nsteg.nsteg_utils.BitByteConv;
+import nsteg.nsteg_utils.Compressor;
+import nsteg.nsteg_utils.Crypto;
+import nsteg.processors.AudioProcessor;
+import nsteg.processors.CarrierCache;
+import nsteg.processors.FLACPCMInputStream;
+import nsteg.processors.FLACStreamWriter;
+import nsteg.processors.PCMStore;
+import nsteg.processors.png.ParallelPNGWriter;
+import org.kc7bfi.jflac.metadata.StreamInfo;
+
+import javax.imageio.ImageIO;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import javax.sound.sampled.spi.AudioFileReader;
+import javax.validation.constraints.NotNull;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * Library entry point for programs embedding this one. Unlike Encoder.encode() and Decoder.decode(), which work on
+ * files and interact with the user through the console, the methods of this class work on images, PCM buffers and
+ * streams held by the caller, never prompt or print anything, and throw any error to the caller. Carriers encoded
+ * through this class are identical to those encoded through the command line interface, so either can decode them.
+ * <p><br>
+ * Every call works on its own encoder or decoder, so any number of calls can run at the same time on different
+ * threads.
+ */
+public final class Nsteg {
+	/**
+	 * Number of bytes at the start of an audio stream that are used to find a reader for it.
+	 */
+	private static final int AUDIO_PROBE_SIZE = 1 << 16;
+
+	/**
+	 * Largest payload this class can hold in memory. Larger payloads, which carriers can hold, are only decoded by
+	 * Decoder.extract(), which streams them to disk.
+	 */
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	private Nsteg() {
+	}
+
+	/**
+	 * Encodes payloads into an image, in place.
+	 *
+	 * @param carrier  Image to encode the payloads into
+	 * @param payloads Files to encode
+	 * @param options  Number of bits to use and password to encrypt with. The format is ignored
+	 * @throws NstegException If the payloads do not fit in the image, or cannot be encrypted
+	 */
+	public static void encode(@NotNull BufferedImage carrier, @NotNull List<Payload> payloads,
+							  @NotNull EncodeOptions options) throws NstegException {
+		encodePayloads(new ImgEncoder(carrier, options.getLSBsToUse()), payloads, options);
+	}
+
+	/**
+	 * Encodes payloads into signed, little endian PCM data, in place. Data is only encoded into the remaining bytes of
+	 * the buffer, and the position of the buffer is left unchanged.
+	 *
+	 * @param pcm      Buffer holding the PCM data to encode the payloads into
+	 * @param format   Format of the PCM data
+	 * @param payloads Files to encode
+	 * @param options  Number of bits to use and password to encrypt with. The format is ignored
+	 * @throws NstegException If the payloads do not fit in the PCM data, or cannot be encrypted
+	 */
+	public static void encode(@NotNull ByteBuffer pcm, @NotNull AudioFormat format, @NotNull List<Payload> payloads,
+							  @NotNull EncodeOptions options) throws NstegException {
+		encodePayloads(new AudEncoder(PCMStore.wrap(pcm), format, options.getLSBsToUse()), payloads, options);
+	}
+
+	/**
+	 * Reads an image or audio carrier from a file, encodes payloads into it, and writes the encoded carrier to a
+	 * stream, in the format set in the options. The stream is not closed. The carrier is read through the
+	 * CarrierCache, so that programs encoding into the same carrier file over and over only decode it once, and every
+	 * call encodes into a private copy of it, leaving the file untouched.
+	 *
+	 * @param carrierFile Name of an image or audio file in any supported input format
+	 * @param payloads    Files to encode
+	 * @param options     Number of bits to use, password to encrypt with, and format to write the carrier in
+	 * @param out         Stream to write the encoded carrier to
+	 * @throws NstegException If the carrier cannot be read or written, the payloads do not fit in it, or cannot be
+	 *                        encrypted
+	 * @see CarrierCache
+	 */
+	public static void encode(@NotNull String carrierFile, @NotNull List<Payload> payloads,
+							  @NotNull EncodeOptions options, @NotNull OutputStream out) throws NstegException {
+		String[] split = carrierFile.split("\\.");
+		String fileExt = split[split.length - 1];
+		try {
+			if (Encoder.inAudFormats.contains(fileExt)) {
+				String format = options.getFormat() == null ? "wav" : options.getFormat().toLowerCase();
+				if (!Encoder.outAudFormats.contains(format))
+					throw new NstegException("Audio cannot be written as " + format);
+
+				CarrierCache.DecodedAudio audio = CarrierCache.readAudio(carrierFile);
+				try (PCMStore pcm = audio.pcm) {
+					encodePayloads(new AudEncoder(pcm, audio.format, options.getLSBsToUse()), payloads, options);
+					writeAudio(pcm, audio.format, format, options, out);
+				}
+			} else if (Encoder.inImgFormats.contains(fileExt)) {
+				String format = options.getFormat() == null ? "png" : options.getFormat().toLowerCase();
+				if (!Encoder.outImgFormats.contains(format))
+					throw new NstegException("Images cannot be written as " + format);
+
+				BufferedImage img = CarrierCache.readImage(carrierFile);
+				encode(img, payloads, options);
+				writeImage(img, format, out);
+			} else
+				throw new NstegException("Carrier format not supported: " + fileExt);
+		} catch (IOException e) {
+			throw new NstegException("Error reading or writing the carrier: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Reads an image or audio carrier from a stream, encodes payloads into it, and writes the encoded carrier to
+	 * another stream, in the format set in the options. Neither stream is closed.
+	 *
+	 * @param carrier  Stream holding an image or audio file in any supported format
+	 * @param payloads Files to encode
+	 * @param options  Number of bits to use, password to encrypt with, and format to write the carrier in
+	 * @param out      Stream to write the encoded carrier to
+	 * @throws NstegException If the carrier cannot be read or written, the payloads do not fit in it, or cannot be
+	 *                        encrypted
+	 */
+	public static void encode(@NotNull InputStream carrier, @NotNull List<Payload> payloads,
+							  @NotNull EncodeOptions options, @NotNull OutputStream out) throws NstegException {
+		BufferedInputStream in = new BufferedInputStream(carrier);
+		try {
+			if (isAudio(in)) {
+				String format = options.getFormat() == null ? "wav" : options.getFormat().toLowerCase();
+				if (!Encoder.outAudFormats.contains(format))
+					throw new NstegException("Audio cannot be written as " + format);
+
+				AudioInputStream audio = openAudio(in);
+				AudioFormat audioFormat = audio.getFormat();
+				try (PCMStore pcm = AudioProcessor.loadPCM(audio, getPCMLength(audio))) {
+					encodePayloads(new AudEncoder(pcm, audioFormat, options.getLSBsToUse()), payloads, options);
+					writeAudio(pcm, audioFormat, format, options, out);
+				}
+			} else {
+				String format = options.getFormat() == null ? "png" : options.getFormat().toLowerCase();
+				if (!Encoder.outImgFormats.contains(format))
+					throw new NstegException("Images cannot be written as " + format);
+
+				BufferedImage img = readImage(in);
+				encode(img, payloads, options);
+				writeImage(img, format, out);
+			}
+		} catch (IOException e) {
+			throw new NstegException("Error reading or writing the carrier: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Decodes the payloads encoded into an image.
+	 *
+	 * @param carrier  Image holding the encoded payloads
+	 * @param password Password the payloads were encrypted with, or null if they were not encrypted
+	 * @return Decoded payloads, in the order they were encoded
+	 * @throws NstegException If the image holds no encoded payloads, or they cannot be decrypted
+	 */
+	public static List<Payload> decode(@NotNull BufferedImage carrier, char[] password) throws NstegException {
+		return decodePayloads(new ImgDecoder(carrier), password, null);
+	}
+
+	/**
+	 * Decodes the payloads encoded into signed, little endian PCM data. The position of the buffer is left unchanged.
+	 *
+	 * @param pcm      Buffer holding the encoded PCM data in its remaining bytes
+	 * @param password Password the payloads were encrypted with, or null if they were not encrypted
+	 * @return Decoded payloads, in the order they were encoded
+	 * @throws NstegException If the PCM data holds no encoded payloads, or they cannot be decrypted
+	 */
+	public static List<Payload> decode(@NotNull ByteBuffer pcm, char[] password) throws NstegException {
+		return decodePayloads(new AudDecoder(PCMStore.wrap(pcm)), password, null);
+	}
+
+	/**
+	 * Reads an image or audio carrier from a stream, and decodes the payloads encoded into it. The stream is not
+	 * closed.
+	 *
+	 * @param carrier  Stream holding an encoded image or audio file
+	 * @param password Password the payloads were encrypted with, or null if they were not encrypted
+	 * @return Decoded payloads, in the order they were encoded
+	 * @throws NstegException If the carrier cannot be read, holds no encoded payloads, or they cannot be decrypted
+	 */
+	public static List<Payload> decode(@NotNull InputStream carrier, char[] password) throws NstegException {
+		return decodeStream(carrier, decoder -> decodePayloads(decoder, password, null));
+	}
+
+	/**
+	 * Decodes a single payload from an image. Only the bits holding the payload are decrypted and decompressed, and
+	 * only the pixels up to the end of it are read, unless the image was encoded in the legacy format, which requires
+	 * decoding every payload.
+	 *
+	 * @param carrier  Image holding the encoded payloads
+	 * @param name     Name of the payload to decode
+	 * @param password Password the payloads were encrypted with, or null if they were not encrypted
+	 * @return Decoded payload
+	 * @throws NstegException If the image holds no payload with the given name, or it cannot be decrypted
+	 */
+	public static Payload extract(@NotNull BufferedImage carrier, @NotNull String name, char[] password)
+			throws NstegException {
+		return decodePayloads(new ImgDecoder(carrier), password, name).get(0);
+	}
+
+	/**
+	 * Decodes a single payload from signed, little endian PCM data, like extract(BufferedImage, String, char[]).
+	 *
+	 * @param pcm      Buffer holding the encoded PCM data in its remaining bytes
+	 * @param name     Name of the payload to decode
+	 * @param password Password the payloads were encrypted with, or null if they were not encrypted
+	 * @return Decoded payload
+	 * @throws NstegException If the PCM data holds no payload with the given name, or it cannot be decrypted
+	 */
+	public static Payload extract(@NotNull ByteBuffer pcm, @NotNull String name, char[] password)
+			throws NstegException {
+		return decodePayloads(new AudDecoder(PCMStore.wrap(pcm)), password, name).get(0);
+	}
+
+	/**
+	 * Reads an image or audio carrier from a stream, and decodes a single payload from it, like
+	 * extract(BufferedImage, String, char[]). The stream is not closed.
+	 *
+	 * @param carrier  Stream holding an encoded image or audio file
+	 * @param name     Name of the payload to decode
+	 * @param password Password the payloads were encrypted with, or null if they were not encrypted
+	 * @return Decoded payload
+	 * @throws NstegException If the carrier cannot be read, holds no payload with the given name, or it cannot be
+	 *                        decrypted
+	 */
+	public static Payload extract(@NotNull InputStream carrier, @NotNull String name, char[] password)
+			throws NstegException {
+		return decodeStream(carrier, decoder -> decodePayloads(decoder, password, name)).get(0);
+	}
+
+	/**
+	 * Lists the names of the payloads encoded into an image, which only requires decoding the header.
+	 *
+	 * @param carrier Image holding the encoded payloads
+	 * @return Names of the payloads, in the order they were encoded
+	 * @throws NstegException If the image holds no encoded payloads
+	 */
+	public static List<String> list(@NotNull BufferedImage carrier) throws NstegException {
+		return listPayloads(new ImgDecoder(carrier));
+	}
+
+	/**
+	 * Lists the names of the payloads encoded into signed, little endian PCM data.
+	 *
+	 * @param pcm Buffer holding the encoded PCM data in its remaining bytes
+	 * @return Names of the payloads, in the order they were encoded
+	 * @throws NstegException If the PCM data holds no encoded payloads
+	 */
+	public static List<String> list(@NotNull ByteBuffer pcm) throws NstegException {
+		return listPayloads(new AudDecoder(PCMStore.wrap(pcm)));
+	}
+
+	/**
+	 * Reads an image or audio carrier from a stream, and lists the names of the payloads encoded into it. The stream
+	 * is not closed.
+	 *
+	 * @param carrier Stream holding an encoded image or audio file
+	 * @return Names of the payloads, in the order they were encoded
+	 * @throws NstegException If the carrier cannot be read, or holds no encoded payloads
+	 */
+	public static List<String> list(@NotNull InputStream carrier) throws NstegException {
+		return decodeStream(carrier, Nsteg::listPayloads);
+	}
+
+	/*
+	 * Work done with the decoder of a carrier read from a stream.
+	 */
+	private interface DecoderJob<T> {
+		T run(Decoder decoder) throws NstegException;
+	}
+
+	/*
+	 * Reads an image or audio carrier from a stream, and runs a job with a decoder over it.
+	 */
+	private static <T> T decodeStream(InputStream carrier, DecoderJob<T> job) throws NstegException {
+		BufferedInputStream in = new BufferedInputStream(carrier);
+		try {
+			if (!isAudio(in))
+				return job.run(new ImgDecoder(readImage(in)));
+
+			AudioInputStream audio = openAudio(in);
+			try (PCMStore pcm = AudioProcessor.loadPCM(audio, getPCMLength(audio))) {
+				return job.run(new AudDecoder(pcm));
+			}
+		} catch (IOException e) {
+			throw new NstegException("Error reading the carrier: " + e.getMessage(), e);
+		}
+	}
+
+	/*
+	 * Compresses and optionally encrypts each payload into its own segment, and encodes the segments with the table of
+	 * contents describing them, in the same way as Encoder.encode().
+	 */
+	private static void encodePayloads(Encoder encoder, List<Payload> payloads, EncodeOptions options)
+			throws NstegException {
+		try {
+			if (payloads.size() > Encoder.MAX_FILES)
+				throw new NstegException("Too many payloads, at most " + Encoder.MAX_FILES + " can be encoded");
+
+			boolean encrypt = options.getPassword() != null;
+			if (options.isScattered() && !encrypt)
+				throw new NstegException("Payloads can only be scattered if they are encrypted");
+			String[] fileNames = new String[payloads.size()];
+			long[] fileSizes = new long[payloads.size()], segmentSizes = new long[payloads.size()];
+			byte[][] segments = new byte[payloads.size()][];
+			for (int i = 0; i < fileNames.length; i++) {
+				fileNames[i] = payloads.get(i).getName();
+				fileSizes[i] = payloads.get(i).getData().length;
+				if (fileNames[i].getBytes().length > Encoder.MAX_FILE_NAME_LENGTH)
+					throw new NstegException("Payload name is too long: " + fileNames[i]);
+
+				segments[i] = Compressor.deflate(payloads.get(i).getData());
+				segmentSizes[i] = Encoder.getSegmentSize(segments[i].length, encrypt);
+				if (segmentSizes[i] > MAX_ARRAY_SIZE)
+					throw new NstegException("Payload is too large to be encrypted in memory: " + fileNames[i]);
+			}
+
+			long requiredBits = Encoder.getRequiredBits(fileNames, fileSizes, segmentSizes, encrypt);
+			long capacity = encoder.getCapacity(options.getLSBsToUse());
+			if (requiredBits > capacity)
+				throw new NstegException("Payloads need " + requiredBits + " bits, but the carrier can only hold " +
+										 capacity + " bits");
+
+			byte[] saltBytes = encrypt ? Crypto.genSalt() : null, key = null;
+			try {
+				if (encrypt) {
+					key = Crypto.deriveKey(options.getPassword(), saltBytes);
+					for (int i = 0; i < segments.length; i++)
+						segments[i] = Encoder.sealSegment(i, fileSizes[i], segments[i], key);
+				}
+
+				Encoder.encodeTOC(encoder, fileNames, fileSizes, segmentSizes, saltBytes, options.isScattered(), 0, 0,
+								  1);
+				if (options.isScattered())
+					Encoder.scatterSegments(encoder, key);
+			} catch (GeneralSecurityException e) {
+				throw new NstegException("Encryption failed", e);
+			} finally {
+				if (key != null)
+					Arrays.fill(key, (byte) 0);
+			}
+			for (byte[] segment : segments)
+				encoder.encodeBytes(segment);
+		} finally {
+			encoder.stopThreads();
+		}
+	}
+
+	/*
+	 * Decodes the header and the payloads it describes, or only the one with the given name, decrypting and
+	 * decompressing them, in the same way as Decoder.extract().
+	 */
+	private static List<Payload> decodePayloads(Decoder decoder, char[] password, String name)
+			throws NstegException {
+		try {
+			Decoder.Header header = Decoder.readHeader(decoder);
+			if (header == null)
+				throw new NstegException("No data encoded by nsteg was found in the carrier");
+			if (header.isStriped())
+				throw new NstegException("The carrier is one of " + header.stripes + " carriers the payloads are " +
+										 "striped across, which can only be decoded together from files");
+
+			int index = -1;
+			if (name != null) {
+				if ((header = Decoder.readBlocks(decoder, header, name)) == null)
+					throw new NstegException("No payload named " + name + " is encoded in the carrier");
+				index = Arrays.asList(header.fileNames).indexOf(name);
+			}
+
+			if (header.hasTOC())
+				return decodeSegments(decoder, header, password, index);
+			return decodeLegacy(decoder, header, password, index);
+		} catch (IndexOutOfBoundsException e) { // Sizes read from a carrier without a header can run past its end
+			throw new NstegException("No data encoded by nsteg was found in the carrier", e);
+		} finally {
+			decoder.stopThreads();
+		}
+	}
+
+	/*
+	 * Decodes one payload, or all of them if index is negative, from a carrier holding a table of contents, skipping
+	 * the segments before it. Payloads appended to the carrier are decoded after the ones before them, once the table
+	 * of contents of their append block has been read.
+	 */
+	private static List<Payload> decodeSegments(Decoder decoder, Decoder.Header header, char[] password, int index)
+			throws NstegException {
+		if (header.salt != null && password == null)
+			throw new NstegException("Payloads are encrypted, but no password was given");
+
+		List<Payload> payloads = new ArrayList<>();
+		int first = index < 0 ? 0 : index, last = index < 0 ? header.fileNames.length - 1 : index;
+		if (first > last && !header.appended)
+			return payloads;
+
+		byte[] key = null;
+		try {
+			if (header.salt != null)
+				key = Crypto.deriveKey(password, header.salt);
+			if (header.scattered)
+				Decoder.scatterSegments(decoder, key);
+
+			while (true) {
+				if (first <= last) {
+					decoder.skipBits(header.getSegmentOffset(first) * Byte.SIZE);
+					decoder.prepareToRead((header.getSegmentOffset(last) + header.segmentSizes[last] -
+										   header.getSegmentOffset(first)) * Byte.SIZE);
+				}
+				for (int i = first; i <= last; i++) {
+					if (header.fileSizes[i] > MAX_ARRAY_SIZE)
+						throw new NstegException("Payload is too large to be decoded into memory: " +
+												 header.fileNames[i]);
+					ByteArrayOutputStream fileBytes = new ByteArrayOutputStream(
+							(int) Math.min(header.fileSizes[i], Encoder.SEGMENT_CHUNK_SIZE));
+					Decoder.readSegment(decoder, header, i, key, fileBytes);
+					payloads.add(new Payload(header.fileNames[i], fileBytes.toByteArray()));
+				}
+
+				if (index >= 0 || !header.appended)
+					return payloads;
+				if ((header = Decoder.readAppended(decoder, header)) == null)
+					throw new NstegException("Encoded data is corrupt");
+				first = header.blockStart;
+				last = header.fileNames.length - 1;
+			}
+		} catch (GeneralSecurityException e) {
+			throw new NstegException("Decryption failed, the password is wrong or the data was tampered with", e);
+		} catch (IOException e) {
+			throw new NstegException("Encoded data is corrupt", e);
+		} finally {
+			if (key != null)
+				Arrays.fill(key, (byte) 0);
+		}
+	}
+
+	/*
+	 * Decodes one payload, or all of them if index is negative, from a legacy carrier, which stores all of them in a
+	 * single compressed array.
+	 */
+	private static List<Payload> decodeLegacy(Decoder decoder, Decoder.Header header, char[] password, int index)
+			throws NstegException {
+		// Legacy headers hold 32 bit sizes, so the casts below are safe
+		int compSize = (int) header.compSize, uncompSize = (int) header.uncompSize;
+		decoder.prepareToRead((long) compSize * Byte.SIZE + (password != null ? Crypto.SALT_SIZE_BITS : 0));
+		byte[] saltBytes = null;
+		if (password != null)
+			saltBytes = decoder.readBytes(Crypto.SALT_SIZE_BITS / Byte.SIZE);
+		byte[] filesBytes = decoder.readBytes(compSize);
+
+		if (password != null) {
+			byte[] aad = Crypto.genAAD(BitByteConv.intToBitArray(uncompSize, Encoder.SIZE_BITS_COUNT),
+									   BitByteConv.intToBitArray(compSize, Encoder.SIZE_BITS_COUNT));
+			try {
+				filesBytes = Crypto.decrypt(filesBytes, saltBytes, aad, password);
+			} catch (GeneralSecurityException e) {
+				throw new NstegException("Decryption failed, the password is wrong or the data was tampered with", e);
+			}
+		}
+
+		try {
+			filesBytes = Compressor.inflate(filesBytes, uncompSize);
+		} catch (IOException e) {
+			throw new NstegException("Encoded data is corrupt", e);
+		}
+		if (filesBytes.length < uncompSize)
+			throw new NstegException("Encoded data is corrupt");
+
+		List<Payload> payloads = new ArrayList<>(header.fileNames.length);
+		int pos = 0;
+		for (int i = 0; i < header.fileNames.length; i++) {
+			if (index < 0 || index == i)
+				payloads.add(new Payload(header.fileNames[i],
+										 Arrays.copyOfRange(filesBytes, pos, pos + (int) header.fileSizes[i])));
+			pos += (int) header.fileSizes[i];
+		}
+		return payloads;
+	}
+
+	/*
+	 * Decodes the names of the payloads from the header, and from the tables of contents of any append blocks.
+	 */
+	private static List<String> listPayloads(Decoder decoder) throws NstegException {
+		try {
+			Decoder.Header header = Decoder.readHeader(decoder);
+			if (header == null || (header = Decoder.readBlocks(decoder, header, null)) == null)
+				throw new NstegException("No data encoded by nsteg was found in the carrier");
+			return Arrays.asList(header.fileNames);
+		} catch (IndexOutOfBoundsException e) {
+			throw new NstegException("No data encoded by nsteg was found in the carrier", e);
+		} finally {
+			decoder.stopThreads();
+		}
+	}
+
+	/*
+	 * Tells audio carriers apart from images by their first bytes, since the MP3 reader would accept almost anything.
+	 * FLAC, WAV, AIFF and MP3 files, either with an ID3 tag or starting with a frame, are recognized.
+	 */
+	private static boolean isAudio(BufferedInputStream in) throws IOException {
+		String magic = peekMagic(in);
+		return magic.equals("fLaC") || magic.equals("RIFF") || magic.equals("FORM") || magic.startsWith("ID3") ||
+			   (magic.length() > 1 && magic.charAt(0) == 0xff && (magic.charAt(1) & 0xe0) == 0xe0);
+	}
+
+	/*
+	 * Returns the first four bytes of a stream as ISO-8859-1 characters, without consuming them.
+	 */
+	private static String peekMagic(BufferedInputStream in) throws IOException {
+		byte[] magic = new byte[4];
+		in.mark(magic.length);
+		int len = 0, read;
+		while (len < magic.length && (read = in.read(magic, len, magic.length - len)) != -1)
+			len += read;
+		in.reset();
+		return new String(magic, 0, len, StandardCharsets.ISO_8859_1);
+	}
+
+	/*
+	 * Opens a stream of signed PCM data over an audio file, decoding FLAC files with FLACPCMInputStream, like
+	 * AudEncoder does, and any other format with AudioSystem.
+	 */
+	private static AudioInputStream openAudio(BufferedInputStream in) throws IOException {
+		if (peekMagic(in).equals("fLaC")) {
+			FLACPCMInputStream pcmStream = new FLACPCMInputStream(in);
+			StreamInfo info = pcmStream.getStreamInfo();
+			AudioFormat format = new AudioFormat(info.getSampleRate(), info.getBitsPerSample(), info.getChannels(),
+												 true, false);
+			long frames = pcmStream.getPCMLength() == 0 ? AudioSystem.NOT_SPECIFIED :
+						  pcmStream.getPCMLength() / format.getFrameSize();
+			return new AudioInputStream(pcmStream, format, frames);
+		}
+
+		return AudioSystem.getAudioInputStream(AudioFormat.Encoding.PCM_SIGNED, readAudio(in));
+	}
+
+	/*
+	 * Finds the audio file reader for a stream, like AudioSystem.getAudioInputStream() does. Each reader is probed on
+	 * its own copy of the start of the stream, since some of the readers added by plugins leave the stream at a
+	 * different position when they reject it, which makes the readers probed after them fail.
+	 */
+	private static AudioInputStream readAudio(InputStream in) throws IOException {
+		byte[] head = new byte[AUDIO_PROBE_SIZE];
+		int len = 0, read;
+		while (len < head.length && (read = in.read(head, len, head.length - len)) != -1)
+			len += read;
+
+		for (AudioFileReader reader : ServiceLoader.load(AudioFileReader.class)) {
+			try {
+				reader.getAudioFileFormat(new ByteArrayInputStream(head, 0, len));
+			} catch (UnsupportedAudioFileException | IOException | RuntimeException e) {
+				continue;
+			}
+
+			try {
+				return reader.getAudioInputStream(new SequenceInputStream(new ByteArrayInputStream(head, 0, len), in));
+			} catch (UnsupportedAudioFileException e) {
+				throw new IOException("Audio format not supported", e);
+			}
+		}
+		throw new IOException("Audio format not supported");
+	}
+
+	private static long getPCMLength(AudioInputStream audio) {
+		long frames = audio.getFrameLength();
+		return frames == AudioSystem.NOT_SPECIFIED ? 0 : frames * audio.getFormat().getFrameSize();
+	}
+
+	private static BufferedImage readImage(InputStream in) throws IOException {
+		BufferedImage img = ImageIO.read(in);
+		if (img == null)
+			throw new IOException("Image format not supported");
+		return img;
+	}
+
+	/*
+	 * Writes an encoded image like ImageProcessor does, with a ParallelPNGWriter for PNG images.
+	 */
+	private static void writeImage(BufferedImage img, String format, OutputStream out) throws IOException {
+		if ("png".equals(format) && ParallelPNGWriter.isSupported(img))
+			new ParallelPNGWriter().write(img, out);
+		else if (!ImageIO.write(img, format, out))
+			throw new IOException("No writer found for " + format + " images");
+	}
+
+	/*
+	 * Writes encoded PCM data like AudioProcessor does, as a WAV or FLAC file.
+	 */
+	private static void writeAudio(PCMStore pcm, AudioFormat format, String outFormat, EncodeOptions options,
+								   OutputStream out) throws IOException {
+		if ("flac".equals(outFormat)) {
+			try (FLACStreamWriter writer = new FLACStreamWriter(out, (int) format.getSampleRate(),
+																format.getChannels(), format.getSampleSizeInBits(),
+																options.getFLACPreset())) {
+				AudioProcessor.writePCM(pcm, writer);
+			}
+		} else
+			AudioSystem.write(new AudioInputStream(pcm.asInputStream(), format, pcm.size() / format.getFrameSize()),
+							  AudioFileFormat.Type.WAVE, out);
+	}
+}
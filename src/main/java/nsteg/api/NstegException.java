@@ -0,0 +1,17 @@
+package nsteg.api;
+
+/**
+ * Thrown by the Nsteg API when data cannot be encoded into or decoded from a carrier, instead of the errors being
+ * printed like the command line interface does.
+ */
+public class NstegException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public NstegException(String message) {
+		super(message);
+	}
+
+	public NstegException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,66 @@
+package nsteg.api;
+
+import javax.validation.constraints.NotNull;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A named file to be encoded into a carrier, or decoded from one. The name is stored in the carrier alongside the
+ * data, and may be any string, although the command line interface uses it as the path to write the file to.
+ */
+public class Payload {
+	private static final int READ_BUFFER_SIZE = 1 << 16;
+
+	private final String name;
+	private final byte[] data;
+
+	/**
+	 * Creates a payload holding the given data. The array is not copied.
+	 *
+	 * @param name Name of the file
+	 * @param data Contents of the file
+	 */
+	public Payload(@NotNull String name, @NotNull byte[] data) {
+		this.name = name;
+		this.data = data;
+	}
+
+	/**
+	 * Reads a channel to its end into a payload. The channel is not closed.
+	 *
+	 * @param name    Name of the file
+	 * @param channel Channel holding the contents of the file
+	 * @return Payload holding everything read from the channel
+	 * @throws IOException If reading the channel fails
+	 */
+	public static Payload read(@NotNull String name, @NotNull ReadableByteChannel channel) throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		while (channel.read(buf) != -1) {
+			buf.flip();
+			data.write(buf.array(), 0, buf.limit());
+			buf.clear();
+		}
+		return new Payload(name, data.toByteArray());
+	}
+
+	/**
+	 * Returns the name of the file.
+	 *
+	 * @return Name of the file
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the contents of the file. The array is not copied.
+	 *
+	 * @return Contents of the file
+	 */
+	public byte[] getData() {
+		return data;
+	}
+}
@@ -7,12 +7,38 @@ import nsteg.encoders.Encoder;
 import nsteg.nsteg_utils.BitByteConv;
 import nsteg.nsteg_utils.Compressor;
 import nsteg.nsteg_utils.Crypto;
+import nsteg.processors.raster.MappedImageRaster;
+import nsteg.processors.raster.PNGStreamRaster;
+import nsteg.processors.raster.RegionImageRaster;
+import nsteg.threads.WorkerPool;
 
 import javax.imageio.ImageIO;
 import javax.validation.constraints.NotNull;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.FileVisitResult;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.IntFunction;
 
 /**
  * Abstract class declaring the methods any decoder implementation must have. Also handles initializing the right
@@ -33,6 +59,9 @@ public abstract class Decoder {
 	 */
 	protected final static int LSB_BITS_COUNT = Encoder.LSB_BITS_COUNT;
 
+	// Directory decoded files are written to, the current directory if null
+	private static volatile Path outputDirectory = null;
+
 	protected static void sleep(long millis) {
 		try {
 			Thread.sleep(millis);
@@ -46,6 +75,82 @@ public abstract class Decoder {
 	// Impl specific
 	public abstract byte[] readBytes(int bytesToRead);
 
+	/**
+	 * Returns the number of least significant bits used in each channel or PCM byte, as decoded from the start of the
+	 * carrier. Carriers holding no encoded data may hold any value from 0 to 15 there.
+	 *
+	 * @return Number of least significant bits the data was encoded with
+	 */
+	public abstract int getLSBsToUse();
+
+	/**
+	 * Moves on to the next pixel or PCM byte if bits have been read from the current one, skipping the rest of it, so
+	 * that the next bits are read from the start of a pixel or PCM byte.
+	 *
+	 * @see Encoder#align()
+	 */
+	public abstract void align();
+
+	/**
+	 * Returns the number of bits held by each pixel or right channel PCM byte, which align() rounds the position up to
+	 * a multiple of.
+	 *
+	 * @return Number of bits per pixel or PCM byte
+	 */
+	public abstract int getBitsPerUnit();
+
+	/**
+	 * Hints how many bits are about to be read, once the header has been decoded and the size of the data is known.
+	 * Decoders that read their carrier in chunks can use this to read exactly the part holding the data. Does nothing
+	 * by default.
+	 *
+	 * @param bitsToRead Number of bits that are about to be read
+	 */
+	public void prepareToRead(long bitsToRead) {
+	}
+
+	/**
+	 * Returns whether the rest of the carrier can be read in the order scattered data was written in, which requires
+	 * the carrier to be readable in any order. False by default, in which case the carrier has to be opened again by
+	 * a decoder that can.
+	 *
+	 * @return True if scatter() can be called, false otherwise
+	 */
+	public boolean canScatter() {
+		return false;
+	}
+
+	/**
+	 * Reads the rest of the carrier in the order selected by the key, starting from the first pixel or PCM byte no bits
+	 * have been read from yet, which must be the position Encoder.scatter() was called at.
+	 *
+	 * @param orderKey Key selecting the order, as derived by Crypto.deriveSubkey()
+	 * @throws UnsupportedOperationException If the carrier can only be read in order, see canScatter()
+	 * @see nsteg.nsteg_utils.EmbeddingOrder
+	 */
+	public void scatter(@NotNull byte[] orderKey) {
+		throw new UnsupportedOperationException("Carrier can only be read in order");
+	}
+
+	/**
+	 * Reads the segments following the table of contents in the order they were scattered in, which is derived from
+	 * the key encrypting them.
+	 *
+	 * @param decoder Decoder to read the segments with, which has just read the table of contents
+	 * @param key     Key derived by Crypto.deriveKey() from the password and the salt of the table of contents
+	 * @throws GeneralSecurityException If the key selecting the order cannot be derived
+	 * @see Encoder#scatterSegments(Encoder, byte[])
+	 */
+	public static void scatterSegments(@NotNull Decoder decoder, @NotNull byte[] key)
+			throws GeneralSecurityException {
+		byte[] orderKey = Crypto.deriveSubkey(key, Encoder.ORDER_KEY_PURPOSE);
+		try {
+			decoder.scatter(orderKey);
+		} finally {
+			Arrays.fill(orderKey, (byte) 0);
+		}
+	}
+
 	/**
 	 * Stops all threads being used by this decoder instance. Calling this method is required to ensure that the data
 	 * has been fully read, since it waits for all the threads to finish before returning.
@@ -54,33 +159,357 @@ public abstract class Decoder {
 
 	/**
 	 * Given a filename, returns the decoder that can handle the given file extension, by checking with the supported
-	 * codecs lists in the Encoder class.
+	 * codecs lists in the Encoder class. PNG images that can be streamed are decoded by a RasterDecoder, which stops
+	 * reading the image once all the encoded data has been read. BMP and uncompressed TIFF images are memory mapped
+	 * instead of being decoded, so only the pixels holding encoded data are read. Any other image is decoded in bands of
+	 * rows through a RegionImageRaster, which also stops decoding once the encoded data has been read.
+	 * <p><br>
+	 * Carriers whose segments are scattered have to be read in any order, in which case images are only ever memory
+	 * mapped or decoded whole.
 	 *
 	 * @param encodedMediaFile File name of the media file to be used for the encoding process
+	 * @param randomAccess     True if the carrier has to be read in any order, false if it is read in order
 	 * @return Decoder instance capable of decoding data from the file passed, ready for use
 	 */
-	private static Decoder getDecoder(@NotNull String encodedMediaFile) {
+	private static Decoder getDecoder(@NotNull String encodedMediaFile, boolean randomAccess) {
 		Spinner.printWithSpinner("Loading media file containing encoded data... ");
+		Decoder decoder = openDecoder(encodedMediaFile, randomAccess);
+		Spinner.end();
 
+		if (decoder == null) // Should never happen, Main and CLIParser check inputs for validity
+			System.err.println("File format not supported.");
+		return decoder;
+	}
+
+	/*
+	 * Opens the decoder for a media file without printing anything, as described by getDecoder(), or returns null if
+	 * the media file is not of a supported type, or cannot be opened.
+	 */
+	private static Decoder openDecoder(String encodedMediaFile, boolean randomAccess) {
 		Decoder decoder = null;
 
 		String[] fileSplit = encodedMediaFile.split("\\.");
 		String fileExt = fileSplit[fileSplit.length - 1];
 		if (Encoder.outImgFormats.contains(fileExt)) {
+			if (!randomAccess && "png".equalsIgnoreCase(fileExt) && PNGStreamRaster.isStreamable(encodedMediaFile)) {
+				try {
+					decoder = new RasterDecoder(new PNGStreamRaster(encodedMediaFile));
+				} catch (IOException ignored) {
+				}
+			} else if (MappedImageRaster.isMappable(encodedMediaFile)) {
+				try {
+					decoder = new RasterDecoder(new MappedImageRaster(encodedMediaFile));
+				} catch (IOException ignored) {
+				}
+			}
+
+			if (decoder == null && !randomAccess) {
+				try {
+					decoder = new RasterDecoder(new RegionImageRaster(encodedMediaFile));
+				} catch (IOException ignored) {
+				}
+			}
+
 			try {
-				decoder = new ImgDecoder(ImageIO.read(new File(encodedMediaFile)));
+				if (decoder == null)
+					decoder = new ImgDecoder(ImageIO.read(new File(encodedMediaFile)));
 			} catch (IOException ignored) {
 			}
 		} else if (Encoder.outAudFormats.contains(fileExt))
 			decoder = new AudDecoder(encodedMediaFile); // Or MP3, but only relevant bit is it being FLAC
 
-		Spinner.end();
-
-		if (decoder == null) // Should never happen, Main and CLIParser check inputs for validity
-			System.err.println("File format not supported.");
 		return decoder;
 	}
 
+	/**
+	 * Reads and discards bits, such as the segments before the one being extracted. Decoders that can move to any
+	 * position in their carrier override this to skip the bits without decoding them.
+	 *
+	 * @param bitsToSkip Number of bits to skip
+	 */
+	public void skipBits(long bitsToSkip) {
+		while (bitsToSkip > 0) {
+			int bits = (int) Math.min(bitsToSkip, 1 << 16);
+			readBits(bits);
+			bitsToSkip -= bits;
+		}
+	}
+
+	/**
+	 * Decodes the header describing the encoded files, which follows the number of least significant bits decoded by
+	 * the decoder itself. Both the table of contents and the legacy header are understood, and told apart by the
+	 * format magic. The header is checked for values that no encoder could have written, which is what reading a
+	 * carrier holding no encoded data results in.
+	 * <p><br>
+	 * Once a table of contents has been read, the decoder is positioned at the start of the first segment, past the
+	 * padding that aligns it to a pixel or PCM byte in the current version of the format. Once a legacy header has
+	 * been read, it is positioned at the salt, if there is one, or the compressed files.
+	 *
+	 * @param decoder Decoder to decode the header with
+	 * @return Decoded header, or null if the carrier holds no valid header
+	 * @see Encoder#encodeTOC(Encoder, String[], long[], long[], byte[])
+	 */
+	public static Header readHeader(@NotNull Decoder decoder) {
+		if (decoder.getLSBsToUse() < 1 || decoder.getLSBsToUse() > Byte.SIZE)
+			return null;
+		int magic = BitByteConv.bitArrayToInt(decoder.readBits(Integer.SIZE), true);
+		if (magic == (Encoder.FORMAT_MAGIC | Encoder.FORMAT_VERSION))
+			return readTOC(decoder, true);
+		if (magic == (Encoder.FORMAT_MAGIC | Encoder.FORMAT_VERSION_UNALIGNED))
+			return readTOC(decoder, false);
+		return readLegacyHeader(decoder, magic);
+	}
+
+	private static Header readTOC(Decoder decoder, boolean aligned) {
+		int flags = BitByteConv.bitArrayToInt(decoder.readBits(Encoder.FLAGS_BITS_COUNT), false);
+		if ((flags & ~(Encoder.FLAG_ENCRYPTED | Encoder.FLAG_STRIPED | Encoder.FLAG_SCATTERED |
+					   Encoder.FLAG_APPENDED)) != 0 ||
+			(flags & (Encoder.FLAG_ENCRYPTED | Encoder.FLAG_SCATTERED)) == Encoder.FLAG_SCATTERED ||
+			((flags & Encoder.FLAG_APPENDED) != 0 && (flags & (Encoder.FLAG_STRIPED | Encoder.FLAG_SCATTERED)) != 0))
+			return null;
+		long position = Integer.SIZE + Encoder.FLAGS_BITS_COUNT; // Bits read since the number of LSBs
+		byte[] salt = null;
+		if ((flags & Encoder.FLAG_ENCRYPTED) != 0) {
+			salt = decoder.readBytes(Crypto.SALT_SIZE_BITS / Byte.SIZE);
+			position += Crypto.SALT_SIZE_BITS;
+		}
+
+		long stripeSet = 0, stripe = 0, stripes = 1;
+		if ((flags & Encoder.FLAG_STRIPED) != 0) {
+			stripeSet = ByteBuffer.wrap(decoder.readBytes(Long.BYTES)).getLong();
+			stripe = readVarint(decoder);
+			stripes = readVarint(decoder);
+			if (stripes < 2 || stripes > Encoder.MAX_STRIPES || stripe < 0 || stripe >= stripes)
+				return null;
+			position += Encoder.STRIPE_SET_BITS_COUNT +
+						(long) (Encoder.getVarintSize(stripe) + Encoder.getVarintSize(stripes)) * Byte.SIZE;
+		}
+
+		Header main = new Header(new String[0], new long[0], 0, 0, new long[0], salt,
+								 (flags & Encoder.FLAG_SCATTERED) != 0, stripeSet, (int) stripe, (int) stripes,
+								 decoder.getLSBsToUse(), false, 0, 0, 0);
+		return readEntries(decoder, main, (flags & Encoder.FLAG_APPENDED) != 0, aligned, Integer.SIZE, position);
+	}
+
+	/**
+	 * Decodes the table of contents of the append block following the segments of the last block a header lists,
+	 * which holds the files appended to the carrier by Encoder.append(). The files it lists are added to the ones
+	 * listed by the header, and the decoder is positioned at the start of the first segment of the block.
+	 *
+	 * @param decoder Decoder to decode the block with, positioned right after the last segment listed by the header
+	 * @param header  Header whose last block is followed by an append block, see Header.appended
+	 * @return Header listing the files of every block read so far, or null if the block is not valid
+	 * @see Encoder#encodeAppendedTOC(Encoder, String[], long[], long[])
+	 */
+	public static Header readAppended(@NotNull Decoder decoder, @NotNull Header header) {
+		if (!header.appended)
+			return null;
+		long position = header.getBlockEnd();
+		int flags = BitByteConv.bitArrayToInt(decoder.readBits(Encoder.FLAGS_BITS_COUNT), false);
+		if ((flags & ~Encoder.FLAG_APPENDED) != 0)
+			return null;
+		return readEntries(decoder, header, (flags & Encoder.FLAG_APPENDED) != 0, true, position,
+						   position + Encoder.FLAGS_BITS_COUNT);
+	}
+
+	/*
+	 * Reads the number of files and the entries of a table of contents, whose flags are at the given position, and
+	 * adds them to the ones of the blocks read before it. Returns null if any value is out of range.
+	 */
+	private static Header readEntries(Decoder decoder, Header previous, boolean appended, boolean aligned,
+									  long flagsPosition, long position) {
+		long numOfFiles = readVarint(decoder);
+		int blockStart = previous.fileNames.length;
+		if (numOfFiles < 0 || numOfFiles > Encoder.MAX_FILES - blockStart)
+			return null;
+		position += (long) Encoder.getVarintSize(numOfFiles) * Byte.SIZE;
+
+		int count = blockStart + (int) numOfFiles;
+		String[] fileNames = Arrays.copyOf(previous.fileNames, count);
+		long[] fileSizes = Arrays.copyOf(previous.fileSizes, count);
+		long[] segmentSizes = Arrays.copyOf(previous.segmentSizes, count);
+		long uncompSize = previous.uncompSize, compSize = previous.compSize;
+		for (int i = blockStart; i < count; i++) {
+			long fileNameLen = readVarint(decoder);
+			if (fileNameLen < 0 || fileNameLen > Encoder.MAX_FILE_NAME_LENGTH)
+				return null;
+			fileNames[i] = new String(decoder.readBytes((int) fileNameLen));
+
+			fileSizes[i] = readVarint(decoder);
+			segmentSizes[i] = readVarint(decoder);
+			if (fileSizes[i] < 0 || segmentSizes[i] < 0 ||
+				Encoder.getCompressedSize(segmentSizes[i], previous.salt != null) < 0)
+				return null;
+			uncompSize += fileSizes[i];
+			compSize += segmentSizes[i];
+			if (uncompSize < 0 || compSize < 0) // Sums past Long.MAX_VALUE
+				return null;
+			position += (Encoder.getVarintSize(fileNameLen) + fileNameLen + Encoder.getVarintSize(fileSizes[i]) +
+						 Encoder.getVarintSize(segmentSizes[i])) * Byte.SIZE;
+		}
+		if (aligned) {
+			decoder.align();
+			int bitsPerUnit = decoder.getBitsPerUnit();
+			position += (bitsPerUnit - position % bitsPerUnit) % bitsPerUnit;
+		}
+
+		return new Header(fileNames, fileSizes, uncompSize, compSize, segmentSizes, previous.salt, previous.scattered,
+						  previous.stripeSet, previous.stripe, previous.stripes, previous.LSBsToUse, appended,
+						  blockStart, flagsPosition, position);
+	}
+
+	/**
+	 * Skips over the segments of append blocks and reads their tables of contents, up to the block listing a file, or
+	 * up to the last block if no file is given, leaving the decoder at the start of the first segment of that block.
+	 * Carriers with no append blocks are left as they are.
+	 *
+	 * @param decoder  Decoder the header was read with, positioned at the start of the first segment of its last block
+	 * @param header   Header read by readHeader(), or by this method or readAppended()
+	 * @param fileName Name of the file to find, or null to read every block
+	 * @return Header whose last block lists the file, or lists the last files appended if no file is given, or null
+	 * if the file is not encoded in the carrier, or an append block is not valid
+	 */
+	public static Header readBlocks(@NotNull Decoder decoder, @NotNull Header header, String fileName) {
+		while (header != null) {
+			for (int i = header.blockStart; fileName != null && i < header.fileNames.length; i++)
+				if (header.fileNames[i].equals(fileName))
+					return header;
+			if (!header.hasTOC() || !header.appended)
+				return fileName == null ? header : null;
+
+			decoder.skipBits(header.getSegmentOffset(header.fileNames.length) * Byte.SIZE);
+			header = readAppended(decoder, header);
+		}
+		return null;
+	}
+
+	/**
+	 * Decodes a size encoded as a varint by Encoder.encodeVarint().
+	 *
+	 * @param decoder Decoder to decode the varint with
+	 * @return Decoded value, or -1 if the varint is longer than any encoder writes, or holds a negative value
+	 */
+	public static long readVarint(@NotNull Decoder decoder) {
+		long value = 0;
+		for (int b = 0; b < Encoder.VARINT_MAX_BYTES; b++) {
+			int group = BitByteConv.bitArrayToInt(decoder.readBits(Byte.SIZE), false);
+			value |= (long) (group & 0x7F) << (7 * b);
+			if ((group & 0x80) == 0)
+				return value;
+		}
+		return -1;
+	}
+
+	private static Header readLegacyHeader(Decoder decoder, int numOfFiles) {
+		if (numOfFiles < 0 || numOfFiles > Encoder.MAX_FILES)
+			return null;
+
+		String[] fileNames = new String[numOfFiles];
+		for (int s = 0; s < numOfFiles; s++) {
+			int fileNameLen = BitByteConv.bitArrayToInt(decoder.readBits(SIZE_BITS_COUNT), true);
+			if (fileNameLen < 0 || fileNameLen > Encoder.MAX_FILE_NAME_LENGTH)
+				return null;
+			fileNames[s] = new String(decoder.readBytes(fileNameLen));
+		}
+
+		long[] fileSizes = new long[numOfFiles];
+		long uncompSize = 0;
+		for (int i = 0; i < numOfFiles; i++) {
+			fileSizes[i] = BitByteConv.bitArrayToInt(decoder.readBits(SIZE_BITS_COUNT), true);
+			if (fileSizes[i] < 0)
+				return null;
+			uncompSize += fileSizes[i];
+		}
+
+		int compSize = BitByteConv.bitArrayToInt(decoder.readBits(SIZE_BITS_COUNT), false);
+		if (uncompSize > Integer.MAX_VALUE || compSize < 0)
+			return null;
+
+		return new Header(fileNames, fileSizes, uncompSize, compSize, null, null, false, 0, 0, 1,
+						  decoder.getLSBsToUse(), false, 0, 0, 0);
+	}
+
+	/**
+	 * Recovers a file from its segment, by decrypting it if it is encrypted and decompressing it. The file must be
+	 * small enough to be held in an array, larger files are recovered by readSegment() instead.
+	 *
+	 * @param header  Table of contents the segment is listed in
+	 * @param index   Position of the file in the table of contents
+	 * @param segment Segment read from the carrier
+	 * @param key     Key derived by Crypto.deriveKey() from the password and the salt of the table of contents, or
+	 *                null if the segments are not encrypted
+	 * @return Contents of the file
+	 * @throws GeneralSecurityException If the key is wrong, or the segment was tampered with
+	 * @throws IOException              If the segment cannot be decompressed
+	 * @see Encoder#sealSegment(int, long, byte[], byte[])
+	 */
+	public static byte[] openSegment(@NotNull Header header, int index, @NotNull byte[] segment, byte[] key)
+			throws GeneralSecurityException, IOException {
+		ByteBuffer in = ByteBuffer.wrap(segment);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(
+				(int) Math.min(header.fileSizes[index], Encoder.SEGMENT_CHUNK_SIZE));
+		openSegment(header, index, len -> {
+			byte[] chunk = new byte[Math.min(len, in.remaining())];
+			in.get(chunk);
+			return chunk;
+		}, key, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Recovers a file from its segment, read from the decoder one chunk at a time, decrypting each chunk if it is
+	 * encrypted and decompressing it as it is read. Only a chunk is held in memory at a time, so files of any size can
+	 * be recovered. The decoder must be positioned at the start of the segment.
+	 *
+	 * @param decoder Decoder to read the segment from
+	 * @param header  Table of contents the segment is listed in
+	 * @param index   Position of the file in the table of contents
+	 * @param key     Key derived by Crypto.deriveKey() from the password and the salt of the table of contents, or
+	 *                null if the segments are not encrypted
+	 * @param out     Stream to write the contents of the file to, which is not closed
+	 * @throws GeneralSecurityException If the key is wrong, or the segment was tampered with
+	 * @throws IOException              If the segment cannot be decompressed, or writing the file fails
+	 * @see Encoder#encodeSegment(Encoder, int, long, java.io.InputStream, long, byte[])
+	 */
+	public static void readSegment(@NotNull Decoder decoder, @NotNull Header header, int index, byte[] key,
+								   @NotNull OutputStream out) throws GeneralSecurityException, IOException {
+		openSegment(header, index, decoder::readBytes, key, out);
+	}
+
+	/*
+	 * Reads a segment in chunks from the given source, and writes the file it holds to the stream.
+	 */
+	private static void openSegment(Header header, int index, IntFunction<byte[]> source, byte[] key,
+									OutputStream out) throws GeneralSecurityException, IOException {
+		try (OutputStream inflater = Compressor.inflating(out, header.getCompressedSize(index),
+														  header.fileSizes[index])) {
+			openChunks(header, index, source, key, inflater);
+		}
+	}
+
+	/*
+	 * Reads a segment in chunks from the given source, and writes the compressed file, or piece of it, that it holds
+	 * to the stream, decrypting each chunk if a key is given.
+	 */
+	private static void openChunks(Header header, int index, IntFunction<byte[]> source, byte[] key,
+								   OutputStream out) throws GeneralSecurityException, IOException {
+		long fileSize = header.fileSizes[index], segmentSize = header.segmentSizes[index];
+		int chunkSize = Encoder.SEGMENT_CHUNK_SIZE + (key != null ? Encoder.SEGMENT_CRYPTO_OVERHEAD : 0);
+		long pos = 0;
+		int chunk = 0;
+		do {
+			int len = (int) Math.min(chunkSize, segmentSize - pos);
+			byte[] bytes = source.apply(len);
+			if (bytes.length < len)
+				throw new EOFException("Segment ends early");
+			pos += len;
+			if (key != null)
+				bytes = Crypto.decryptWithKey(bytes, Encoder.genSegmentAAD(header.stripe, index, chunk++, fileSize,
+																			segmentSize), key);
+			out.write(bytes);
+		} while (pos < segmentSize);
+	}
+
 	/**
 	 * Decodes file(s) from a media file that was encoded using this program. If the file(s) requires decryption, it
 	 * also allows the user to decrypt them, provided the data has not been tampered with. For more info on how the
@@ -89,7 +518,8 @@ public abstract class Decoder {
 	 * @param encodedMedFile Name of the media file containing the data that is to be decoded
 	 * @param decrypt        True to decrypt the file(s), false otherwise. May be null, in which case the user will
 	 *                       be asked if they want to decrypt the file(s) or not. This argument exists to allow the
-	 *                       program to be non-interactive, which is employed by CLIParser
+	 *                       program to be non-interactive, which is employed by CLIParser. Carriers holding a table
+	 *                       of contents record whether they are encrypted, so this is only used for legacy carriers
 	 * @param pass           Password to use for encryption. This field may be null, in which case the Crypto.decrypt()
 	 *                       method will prompt the user for a password. Nulling this field is the safer approach,
 	 *                       since  it means the password remains in memory for a much shorter period of time. This
@@ -97,33 +527,562 @@ public abstract class Decoder {
 	 * @see Encoder
 	 */
 	public static void decode(@NotNull String encodedMedFile, Boolean decrypt, String pass) {
-		if (decrypt == null)
-			decrypt = Crypto.offerToCrypt(false);
+		extract(encodedMedFile, null, decrypt, pass);
+	}
 
-		Decoder decoder = getDecoder(encodedMedFile);
+	/**
+	 * Decodes a single file from a media file that was encoded using this program, and writes it to disk under its
+	 * name. Only the segment holding the file is read, decrypted and decompressed, and the ones before it are skipped
+	 * over. Legacy carriers store all the files in a single compressed array, so all of them are decoded, but only the
+	 * requested one is written.
+	 *
+	 * @param encodedMedFile Name of the media file containing the data that is to be decoded
+	 * @param fileName       Name of the file to extract, as listed by list(), or null to extract every file
+	 * @param decrypt        True to decrypt the file, false otherwise. See decode()
+	 * @param pass           Password to use for decryption. See decode()
+	 */
+	public static void extract(@NotNull String encodedMedFile, String fileName, Boolean decrypt, String pass) {
+		Decoder decoder = getDecoder(encodedMedFile, false);
 		if (decoder == null)
 			return;
 
 		Spinner.printWithSpinner("Extracting metadata from image... ");
-		int numOfFiles = BitByteConv.bitArrayToInt(decoder.readBits(SIZE_BITS_COUNT), true);
+		Header header = readHeader(decoder);
+		if (header != null && header.scattered && !decoder.canScatter()) {
+			// Carriers that were being streamed are opened again, to be read in any order
+			decoder.stopThreads();
+			if ((decoder = getDecoder(encodedMedFile, true)) == null)
+				return;
+			header = readHeader(decoder);
+		}
+		Spinner.end();
+		if (header == null) {
+			decoder.stopThreads();
+			System.err.println("\nNo data encoded by this program was found in the media file.");
+			return;
+		}
 
-		String[] fileNames = new String[numOfFiles];
-		for (int s = 0; s < numOfFiles; s++) {
-			int fileNameLen = BitByteConv.bitArrayToInt(decoder.readBits(SIZE_BITS_COUNT), true);
-			byte[] fileNameBytes = decoder.readBytes(fileNameLen);
-			fileNames[s] = new String(fileNameBytes);
+		if (header.isStriped()) {
+			decoder.stopThreads();
+			System.err.println("\nThe media file is one of " + header.stripes + " media files the data is striped " +
+							   "across, all of them are needed to decode it.");
+			return;
 		}
 
-		int[] fileSizes = new int[numOfFiles];
-		int uncompFilesSize = 0;
-		for (int i = 0; i < numOfFiles; i++)
-			uncompFilesSize += fileSizes[i] = BitByteConv.bitArrayToInt(decoder.readBits(SIZE_BITS_COUNT), true);
+		int index = -1;
+		if (fileName != null) {
+			// Files appended to the carrier are listed after the segments of the files encoded before them
+			Header found = readBlocks(decoder, header, fileName);
+			if (found == null) {
+				decoder.stopThreads();
+				System.err.println("\nThe file \"" + fileName + "\" is not encoded in the media file.");
+				return;
+			}
+			header = found;
+			index = Arrays.asList(header.fileNames).indexOf(fileName);
+		}
 
-		// Read compressed size of the file(s) contained in the media file
-		byte[] compFilesSizeBits = decoder.readBits(SIZE_BITS_COUNT);
-		byte[] uncompFilesSizeBits = BitByteConv.intToBitArray(uncompFilesSize, Integer.SIZE);
+		if (header.hasTOC())
+			extractSegments(decoder, header, index, pass);
+		else
+			extractLegacy(decoder, header, index, decrypt, pass);
+	}
 
-		int compFilesSize = BitByteConv.bitArrayToInt(compFilesSizeBits, false);
+	/**
+	 * Checks whether a media file holds data encoded by this program, by decoding nothing but its header. Images are
+	 * streamed, mapped or decoded in bands of rows, and audio files are mapped or decoded a window at a time, so only
+	 * the start of the media file is ever read, however large it is. Only carriers holding a table of contents are
+	 * recognized, since their format magic and version tell them apart from media files holding no encoded data,
+	 * along with a valid number of LSBs, flags, and file counts, name lengths and sizes. Nothing is printed.
+	 * <p><br>
+	 * Files appended to the carrier are not listed by the header returned, since their table of contents follows the
+	 * segments of the files before them, which would have to be read through. Header.appended tells whether there are
+	 * any.
+	 *
+	 * @param mediaFile Name of the media file to probe
+	 * @return Header of the encoded data, or null if the media file holds none, or cannot be read
+	 */
+	public static Header probe(@NotNull String mediaFile) {
+		Decoder decoder = openDecoder(mediaFile, false);
+		if (decoder == null)
+			return null;
+
+		try {
+			Header header = readHeader(decoder);
+			return header != null && header.hasTOC() ? header : null;
+		} catch (RuntimeException e) {
+			return null; // Media files too small to hold a header, or unreadable past their start
+		} finally {
+			decoder.stopThreads();
+		}
+	}
+
+	/**
+	 * Decodes the header of a media file along with the tables of contents of all its append blocks, skipping over
+	 * the segments in between, for appending more files to it. Nothing is printed.
+	 *
+	 * @param mediaFile Name of the media file to read
+	 * @return Header listing every encoded file, whose last block is the one more files are appended after, or null
+	 * if the media file holds no table of contents, or cannot be read
+	 * @see Encoder#append(String, String[], String)
+	 */
+	public static Header probeBlocks(@NotNull String mediaFile) {
+		Decoder decoder = openDecoder(mediaFile, false);
+		if (decoder == null)
+			return null;
+
+		try {
+			Header header = readHeader(decoder);
+			return header != null && header.hasTOC() ? readBlocks(decoder, header, null) : null;
+		} catch (RuntimeException e) {
+			return null;
+		} finally {
+			decoder.stopThreads();
+		}
+	}
+
+	/**
+	 * Checks that a key decrypts the segments of a media file, by decrypting the first chunk of its first segment,
+	 * so that files appended to it are not encrypted with a key that was derived from the wrong password.
+	 *
+	 * @param mediaFile Name of the media file, holding encrypted segments that are not scattered
+	 * @param key       Key derived by Crypto.deriveKey() from the password and the salt of the table of contents
+	 * @return True if the key decrypts the first chunk, or there are no segments to check it against, false otherwise
+	 */
+	public static boolean checkKey(@NotNull String mediaFile, @NotNull byte[] key) {
+		Decoder decoder = openDecoder(mediaFile, false);
+		if (decoder == null)
+			return false;
+
+		try {
+			Header header = readHeader(decoder);
+			if (header == null || header.salt == null)
+				return false;
+			if (header.fileNames.length == 0)
+				return true;
+
+			int len = (int) Math.min(Encoder.SEGMENT_CHUNK_SIZE + Encoder.SEGMENT_CRYPTO_OVERHEAD,
+									 header.segmentSizes[0]);
+			Crypto.decryptWithKey(decoder.readBytes(len), Encoder.genSegmentAAD(0, 0, 0, header.fileSizes[0],
+																				header.segmentSizes[0]), key);
+			return true;
+		} catch (GeneralSecurityException | RuntimeException e) {
+			return false;
+		} finally {
+			decoder.stopThreads();
+		}
+	}
+
+	/**
+	 * Probes every media file of a supported output format in a directory and its subdirectories, and prints the path
+	 * of each one holding encoded data, along with the number of files encoded in it and their sizes. Media files are
+	 * probed on the WorkerPool while the directory tree is still being walked, and reported in the order they were
+	 * found. Directories and files that cannot be read are skipped.
+	 *
+	 * @param directory Directory to scan
+	 * @return Number of media files holding encoded data, or -1 if the directory does not exist or cannot be walked
+	 * @see #probe(String)
+	 */
+	public static int scan(@NotNull String directory) {
+		if (!Files.isDirectory(Paths.get(directory)))
+			return -1;
+
+		ArrayDeque<Path> paths = new ArrayDeque<>();
+		ArrayDeque<FutureTask<Header>> probes = new ArrayDeque<>();
+		int[] counts = new int[2]; // Media files probed, and media files holding encoded data
+		try {
+			Files.walkFileTree(Paths.get(directory), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					String[] split = file.getFileName().toString().split("\\.");
+					String fileExt = split[split.length - 1];
+					if (!attrs.isRegularFile() || split.length < 2 ||
+						!(Encoder.outImgFormats.contains(fileExt) || Encoder.outAudFormats.contains(fileExt)))
+						return FileVisitResult.CONTINUE;
+
+					paths.add(file);
+					probes.add(WorkerPool.submit(() -> probe(file.toString())));
+					// Probes are submitted ahead of the one being reported, but never too far ahead
+					while (probes.size() > WorkerPool.getSize() * 4)
+						reportProbe(paths.remove(), probes.remove(), counts);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			System.err.println("Error scanning directory: " + e.getMessage());
+			return -1;
+		} finally {
+			while (!probes.isEmpty())
+				reportProbe(paths.remove(), probes.remove(), counts);
+		}
+
+		System.out.println("\nScanned " + counts[0] + " media file(s), " + counts[1] + " of which hold data " +
+						   "encoded by this program.");
+		return counts[1];
+	}
+
+	/*
+	 * Waits for the probe of a media file, and prints its header if it holds encoded data.
+	 */
+	private static void reportProbe(Path file, FutureTask<Header> probe, int[] counts) {
+		Header header;
+		try {
+			header = WorkerPool.join(probe);
+		} catch (ExecutionException | InterruptedException e) {
+			header = null;
+		}
+
+		counts[0]++;
+		if (header == null)
+			return;
+		counts[1]++;
+		System.out.println(file + "\t" + header.fileNames.length + " file(s), " + header.uncompSize + " bytes (" +
+						   header.compSize + " encoded)" + (header.salt != null ? ", encrypted" : "") +
+						   (header.scattered ? ", scattered" : "") + (header.appended ? ", files appended" : "") +
+						   (header.isStriped() ? ", stripe " + (header.stripe + 1) + " of " + header.stripes : ""));
+	}
+
+	/**
+	 * Prints the names and sizes of the files encoded in a media file, which only requires decoding its header, along
+	 * with the tables of contents of any append blocks, whose segments are skipped.
+	 *
+	 * @param encodedMedFile Name of the media file containing the data that is to be listed
+	 */
+	public static void list(@NotNull String encodedMedFile) {
+		Decoder decoder = getDecoder(encodedMedFile, false);
+		if (decoder == null)
+			return;
+
+		Header header = readHeader(decoder);
+		if (header != null)
+			header = readBlocks(decoder, header, null);
+		decoder.stopThreads();
+		if (header == null) {
+			System.err.println("\nNo data encoded by this program was found in the media file.");
+			return;
+		}
+
+		System.out.println();
+		for (int i = 0; i < header.fileNames.length; i++)
+			System.out.println(header.fileNames[i] + "\t" + header.fileSizes[i] + " bytes" +
+							   (header.hasTOC() ? " (" + header.segmentSizes[i] + " encoded)" : ""));
+		if (!header.hasTOC())
+			System.out.println("Legacy format, extracting any file decodes all of them");
+		else if (header.salt != null)
+			System.out.println(header.scattered ? "Encrypted, scattered" : "Encrypted");
+		if (header.isStriped())
+			System.out.println("Stripe " + (header.stripe + 1) + " of " + header.stripes + ", all of them are " +
+							   "needed to decode the files");
+	}
+
+	/**
+	 * Decodes the files striped across several media files by Encoder.encodeStriped(), or a single one of them, and
+	 * writes them to disk under their names. The media files may be given in any order, but all of them must be given.
+	 * Each media file is loaded and has its pieces of the files read and decrypted on its own thread, into a temporary
+	 * file, after which the pieces of each file are joined and decompressed in order.
+	 *
+	 * @param encodedMedFiles Names of the media files the data is striped across
+	 * @param fileName        Name of the file to extract, as listed by list(), or null to extract every file
+	 * @param pass            Password to use for decryption. See decode()
+	 * @see Encoder#encodeStriped(String[], String[], String[], int, Boolean, String)
+	 */
+	public static void extractStriped(@NotNull String[] encodedMedFiles, String fileName, String pass) {
+		int stripes = encodedMedFiles.length;
+		Decoder[] decoders = new Decoder[stripes];
+		Header[] headers = new Header[stripes];
+		List<FutureTask<Void>> loads = new ArrayList<>(stripes);
+		for (int k = 0; k < stripes; k++) {
+			int carrier = k;
+			loads.add(WorkerPool.submit(() -> {
+				decoders[carrier] = getDecoder(encodedMedFiles[carrier], false);
+				if (decoders[carrier] != null)
+					headers[carrier] = readHeader(decoders[carrier]);
+				if (headers[carrier] != null && headers[carrier].scattered && !decoders[carrier].canScatter()) {
+					decoders[carrier].stopThreads();
+					decoders[carrier] = getDecoder(encodedMedFiles[carrier], true);
+					headers[carrier] = decoders[carrier] != null ? readHeader(decoders[carrier]) : null;
+				}
+				return null;
+			}));
+		}
+		for (FutureTask<Void> load : loads) {
+			try {
+				WorkerPool.join(load);
+			} catch (ExecutionException | InterruptedException ignored) {
+				// Leaves the header of the carrier null, which is reported below
+			}
+		}
+
+		// Orders the carriers by their position in the stripe set
+		Decoder[] stripeDecoders = new Decoder[stripes];
+		Header[] stripeHeaders = new Header[stripes];
+		String error = null;
+		for (int k = 0; k < stripes && error == null; k++) {
+			Header header = headers[k];
+			if (header == null)
+				error = "No data encoded by this program was found in \"" + encodedMedFiles[k] + "\".";
+			else if (!header.isStriped() || header.stripes != stripes || header.stripeSet != headers[0].stripeSet ||
+					 !Arrays.equals(header.fileNames, headers[0].fileNames) ||
+					 !Arrays.equals(header.fileSizes, headers[0].fileSizes) ||
+					 !Arrays.equals(header.salt, headers[0].salt) || header.scattered != headers[0].scattered ||
+					 stripeHeaders[header.stripe] != null)
+				error = "The media files are not all the media files the data is striped across.";
+			else {
+				stripeDecoders[header.stripe] = decoders[k];
+				stripeHeaders[header.stripe] = header;
+			}
+		}
+
+		int index = -1;
+		if (error == null && fileName != null &&
+			(index = Arrays.asList(headers[0].fileNames).indexOf(fileName)) < 0)
+			error = "The file \"" + fileName + "\" is not encoded in the media files.";
+		if (error != null) {
+			for (Decoder decoder : decoders)
+				if (decoder != null)
+					decoder.stopThreads();
+			System.err.println("\n" + error);
+			return;
+		}
+
+		Header header = stripeHeaders[0];
+		int first = index < 0 ? 0 : index, last = index < 0 ? header.fileNames.length - 1 : index;
+		Path[] pieces = new Path[stripes];
+		byte[] key = null;
+		try {
+			if (header.salt != null) {
+				char[] password = pass == null ? Crypto.readPassword(false) : pass.toCharArray();
+				Spinner.printWithSpinner("Deriving key... ");
+				try {
+					key = Crypto.deriveKey(password, header.salt);
+				} finally {
+					Arrays.fill(password, '\0'); // Wipe from memory
+				}
+			}
+
+			Spinner.printWithSpinner("Extracting file data from " + stripes + " media files... ");
+			byte[] segmentKey = key;
+			List<FutureTask<Void>> jobs = new ArrayList<>(stripes);
+			for (int k = 0; k < stripes; k++) {
+				Decoder decoder = stripeDecoders[k];
+				Header stripeHeader = stripeHeaders[k];
+				pieces[k] = Files.createTempFile("nsteg-stripe", null);
+				Path piece = pieces[k];
+				jobs.add(WorkerPool.submit(() -> {
+					if (stripeHeader.scattered)
+						scatterSegments(decoder, segmentKey);
+					decoder.skipBits(stripeHeader.getSegmentOffset(first) * Byte.SIZE);
+					decoder.prepareToRead((stripeHeader.getSegmentOffset(last) + stripeHeader.segmentSizes[last] -
+										   stripeHeader.getSegmentOffset(first)) * Byte.SIZE);
+					try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(piece))) {
+						for (int i = first; i <= last; i++)
+							openChunks(stripeHeader, i, decoder::readBytes, segmentKey, out);
+					}
+					return null;
+				}));
+			}
+			for (FutureTask<Void> job : jobs)
+				WorkerPool.join(job);
+
+			// Each stripe holds its piece of every file in order, so its pieces are read back one after the other
+			InputStream[] pieceIns = new InputStream[stripes];
+			try {
+				for (int k = 0; k < stripes; k++)
+					pieceIns[k] = new BufferedInputStream(Files.newInputStream(pieces[k]));
+				for (int i = first; i <= last; i++) {
+					long compSize = 0;
+					for (Header stripeHeader : stripeHeaders)
+						compSize += stripeHeader.getCompressedSize(i);
+					try (OutputStream inflater = Compressor.inflating(
+							openOutput(header.fileNames[i]), compSize,
+							header.fileSizes[i])) {
+						for (int k = 0; k < stripes; k++)
+							copyFully(pieceIns[k], inflater, stripeHeaders[k].getCompressedSize(i));
+					}
+				}
+			} finally {
+				for (InputStream in : pieceIns)
+					if (in != null)
+						in.close();
+			}
+
+			Spinner.end();
+			printWritten(header, index);
+		} catch (GeneralSecurityException e) {
+			Spinner.end();
+			System.err.println("Decryption failed");
+		} catch (ExecutionException e) {
+			Spinner.end();
+			System.err.println(e.getCause() instanceof GeneralSecurityException ? "Decryption failed" :
+							   "Could not decompress data or write it to disk.");
+		} catch (IOException | InterruptedException e) {
+			Spinner.end();
+			System.err.println("Could not decompress data or write it to disk.");
+		} finally {
+			for (Decoder decoder : stripeDecoders)
+				decoder.stopThreads();
+			if (key != null)
+				Arrays.fill(key, (byte) 0);
+			for (Path piece : pieces) {
+				try {
+					if (piece != null)
+						Files.deleteIfExists(piece);
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets the directory decoded files are written to, under their names. Names that are absolute, or that lead out of
+	 * the directory, are never written to. See resolveOutput().
+	 *
+	 * @param directory Directory to write decoded files to, or null for the current directory
+	 */
+	public static void setOutputDirectory(Path directory) {
+		outputDirectory = directory;
+	}
+
+	/**
+	 * Resolves the name of a decoded file to the path it is written to, in the output directory. Names are read from
+	 * the carrier, which may have been crafted to overwrite files anywhere, so names that are absolute, or that lead
+	 * out of the output directory once normalized, are rejected.
+	 *
+	 * @param fileName Name of the decoded file, as stored in the carrier
+	 * @return Path to write the file to, or null if the name is rejected
+	 */
+	public static Path resolveOutput(@NotNull String fileName) {
+		Path name;
+		try {
+			name = Paths.get(fileName).normalize();
+		} catch (InvalidPathException e) {
+			return null;
+		}
+		if (name.isAbsolute() || name.getRoot() != null || name.startsWith("..") || name.toString().isEmpty())
+			return null;
+
+		Path directory = outputDirectory;
+		return directory == null ? name : directory.resolve(name);
+	}
+
+	/*
+	 * Opens a decoded file for writing in the output directory, creating the directories it is in, for files that
+	 * were encoded from a directory. Files whose name is rejected by resolveOutput() are reported and skipped, by
+	 * handing out a stream that drops their data, so that the files after them are still decoded.
+	 */
+	private static OutputStream openOutput(String fileName) throws IOException {
+		Path path = resolveOutput(fileName);
+		if (path == null) {
+			reportRejected(fileName);
+			return new OutputStream() {
+				@Override
+				public void write(int b) {
+				}
+
+				@Override
+				public void write(@NotNull byte[] b, int off, int len) {
+				}
+			};
+		}
+
+		if (path.getParent() != null)
+			Files.createDirectories(path.getParent());
+		return new BufferedOutputStream(Files.newOutputStream(path));
+	}
+
+	private static void reportRejected(String fileName) {
+		System.err.println("Skipping \"" + fileName + "\", since its name is absolute or leads out of the output " +
+						   "directory");
+	}
+
+	private static void copyFully(InputStream in, OutputStream out, long bytesToCopy) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		byte[] buffer = new byte[(int) Math.min(bytesToCopy, Encoder.SEGMENT_CHUNK_SIZE)];
+		while (bytesToCopy > 0) {
+			int len = (int) Math.min(bytesToCopy, buffer.length);
+			data.readFully(buffer, 0, len);
+			out.write(buffer, 0, len);
+			bytesToCopy -= len;
+		}
+	}
+
+	/*
+	 * Extracts one file, or all of them if index is negative, from a carrier holding a table of contents, writing each
+	 * file to disk as soon as its segment has been read.
+	 */
+	private static void extractSegments(Decoder decoder, Header header, int index, String pass) {
+		byte[] key = null;
+		try {
+			if (header.salt != null) {
+				char[] password = pass == null ? Crypto.readPassword(false) : pass.toCharArray();
+				Spinner.printWithSpinner("Deriving key... ");
+				try {
+					key = Crypto.deriveKey(password, header.salt);
+				} finally {
+					Arrays.fill(password, '\0'); // Wipe from memory
+				}
+			}
+
+			Spinner.printWithSpinner("Extracting file data from image... ");
+			if (header.scattered)
+				scatterSegments(decoder, key);
+			int first = index < 0 ? 0 : index, last = index < 0 ? header.fileNames.length - 1 : index;
+			while (true) {
+				if (first <= last) {
+					decoder.skipBits(header.getSegmentOffset(first) * Byte.SIZE);
+					decoder.prepareToRead((header.getSegmentOffset(last) + header.segmentSizes[last] -
+										   header.getSegmentOffset(first)) * Byte.SIZE);
+				}
+				for (int i = first; i <= last; i++) {
+					try (OutputStream fos = openOutput(header.fileNames[i])) {
+						readSegment(decoder, header, i, key, fos);
+					}
+				}
+
+				// Every file is extracted, so the files appended after them are extracted next
+				if (index >= 0 || !header.appended)
+					break;
+				if ((header = readAppended(decoder, header)) == null)
+					throw new IOException("Append block is corrupt");
+				first = header.blockStart;
+				last = header.fileNames.length - 1;
+			}
+
+			Spinner.end();
+			printWritten(header, index);
+		} catch (GeneralSecurityException e) {
+			Spinner.end();
+			System.err.println("Decryption failed");
+		} catch (IOException e) {
+			Spinner.end();
+			System.err.println("Could not decompress data or write it to disk.");
+		} finally {
+			decoder.stopThreads();
+			if (key != null)
+				Arrays.fill(key, (byte) 0);
+		}
+	}
+
+	/*
+	 * Extracts one file, or all of them if index is negative, from a legacy carrier, which means decoding all of them.
+	 */
+	private static void extractLegacy(Decoder decoder, Header header, int index, Boolean decrypt, String pass) {
+		if (decrypt == null)
+			decrypt = Crypto.offerToCrypt(false);
+
+		// Legacy headers hold 32 bit sizes, so the casts below are safe
+		String[] fileNames = header.fileNames;
+		long[] fileSizes = header.fileSizes;
+		int numOfFiles = fileNames.length, compFilesSize = (int) header.compSize;
+		byte[] compFilesSizeBits = BitByteConv.intToBitArray(compFilesSize, SIZE_BITS_COUNT);
+		byte[] uncompFilesSizeBits = BitByteConv.intToBitArray((int) header.uncompSize, Integer.SIZE);
+
+		decoder.prepareToRead((long) compFilesSize * Byte.SIZE + (decrypt ? Crypto.SALT_SIZE_BITS : 0));
 
 		byte[] saltBytes = null;
 		if (decrypt)
@@ -138,30 +1097,195 @@ public abstract class Decoder {
 			filesBytes = Crypto.decrypt(filesBytes, saltBytes, Crypto.genAAD(uncompFilesSizeBits, compFilesSizeBits),
 										pass);
 
-		filesBytes = Compressor.decompress(filesBytes, uncompFilesSize);
+		filesBytes = Compressor.decompress(filesBytes, (int) header.uncompSize);
 
 		try {
 			Spinner.printWithSpinner("Writing decoded data to disk... ");
 			// Separate files from the continuous byte array, and write them to disk
 			int byteCount = 0;
 			for (int i = 0; i < numOfFiles; i++) {
-				FileOutputStream fos = new FileOutputStream(fileNames[i]);
-
-				byte[] fileBytes = new byte[fileSizes[i]];
-				System.arraycopy(filesBytes, byteCount, fileBytes, 0, fileBytes.length);
-				byteCount += fileBytes.length;
-
-				fos.write(fileBytes);
-				fos.close();
+				if (index < 0 || index == i) {
+					Path path = resolveOutput(fileNames[i]);
+					if (path == null)
+						reportRejected(fileNames[i]);
+					else {
+						try (OutputStream fos = Files.newOutputStream(path)) {
+							fos.write(filesBytes, byteCount, (int) fileSizes[i]);
+						}
+					}
+				}
+				byteCount += (int) fileSizes[i];
 			}
 
 			Spinner.end();
-			System.out.print("\nData written successfully into file(s): ");
-			for (int i = 0; i < numOfFiles; i++)
-				System.out.print("\"" + fileNames[i] + "\" ");
-			System.out.println("\nDone!\n");
+			printWritten(header, index);
 		} catch (IOException e) {
 			System.err.println("Could not write data to disk.");
 		}
 	}
+
+	private static void printWritten(Header header, int index) {
+		System.out.print("\nData written successfully into file(s): ");
+		for (int i = 0; i < header.fileNames.length; i++)
+			if (index < 0 || index == i)
+				System.out.print("\"" + header.fileNames[i] + "\" ");
+		System.out.println("\nDone!\n");
+	}
+
+	/**
+	 * Header describing the files encoded in a carrier, as decoded by readHeader().
+	 */
+	public static class Header {
+		/**
+		 * Names of the encoded files, in the order they were encoded.
+		 */
+		public final String[] fileNames;
+
+		/**
+		 * Uncompressed sizes of the encoded files.
+		 */
+		public final long[] fileSizes;
+
+		/**
+		 * Combined uncompressed size of the encoded files.
+		 */
+		public final long uncompSize;
+
+		/**
+		 * Size of the compressed, and possibly encrypted, files in the carrier.
+		 */
+		public final long compSize;
+
+		/**
+		 * Sizes of the segments holding each file, or null for legacy carriers, which hold no table of contents.
+		 */
+		public final long[] segmentSizes;
+
+		/**
+		 * Salt the key encrypting the segments was derived with, or null if they are not encrypted. Always null for
+		 * legacy carriers, which do not record whether they are encrypted.
+		 */
+		public final byte[] salt;
+
+		/**
+		 * Whether the segments are scattered over the carrier in an order derived from the encryption key, rather
+		 * than following the table of contents.
+		 */
+		public final boolean scattered;
+
+		/**
+		 * ID shared by all the carriers of the stripe set the carrier belongs to, or 0 if it is not striped.
+		 */
+		public final long stripeSet;
+
+		/**
+		 * Position of the carrier in its stripe set, or 0 if it is not striped.
+		 */
+		public final int stripe;
+
+		/**
+		 * Number of carriers in the stripe set of the carrier, or 1 if it is not striped.
+		 */
+		public final int stripes;
+
+		/**
+		 * Number of least significant bits used in each channel or PCM byte.
+		 */
+		public final int LSBsToUse;
+
+		/**
+		 * Whether an append block follows the segments of the last block read, listing files appended to the carrier
+		 * that this header does not list yet. See readAppended().
+		 */
+		public final boolean appended;
+
+		/**
+		 * Position in the table of contents of the first file of the last block read, which is 0 unless append
+		 * blocks have been read.
+		 */
+		public final int blockStart;
+
+		/**
+		 * Position of the flags of the last block read, in bits from the end of the number of LSBs.
+		 */
+		public final long flagsPosition;
+
+		/**
+		 * Position of the first segment of the last block read, in bits from the end of the number of LSBs.
+		 */
+		public final long segmentsPosition;
+
+		Header(String[] fileNames, long[] fileSizes, long uncompSize, long compSize, long[] segmentSizes,
+			   byte[] salt, boolean scattered, long stripeSet, int stripe, int stripes, int LSBsToUse, boolean appended,
+			   int blockStart, long flagsPosition, long segmentsPosition) {
+			this.fileNames = fileNames;
+			this.fileSizes = fileSizes;
+			this.uncompSize = uncompSize;
+			this.compSize = compSize;
+			this.segmentSizes = segmentSizes;
+			this.salt = salt;
+			this.scattered = scattered;
+			this.stripeSet = stripeSet;
+			this.stripe = stripe;
+			this.stripes = stripes;
+			this.LSBsToUse = LSBsToUse;
+			this.appended = appended;
+			this.blockStart = blockStart;
+			this.flagsPosition = flagsPosition;
+			this.segmentsPosition = segmentsPosition;
+		}
+
+		/**
+		 * Determines whether the carrier is one of several the files are striped across, in which case all of them
+		 * are needed to decode any file.
+		 *
+		 * @return True if the carrier belongs to a stripe set, false otherwise
+		 */
+		public boolean isStriped() {
+			return stripes > 1;
+		}
+
+		/**
+		 * Returns the size of the compressed file, or piece of it, held in the segment of a file.
+		 *
+		 * @param index Position of the file in the table of contents
+		 * @return Size of the compressed file or piece, in bytes
+		 */
+		public long getCompressedSize(int index) {
+			return Encoder.getCompressedSize(segmentSizes[index], salt != null);
+		}
+
+		/**
+		 * Determines whether the carrier holds a table of contents, so its files can be extracted individually.
+		 *
+		 * @return True if the carrier holds a table of contents, false if it uses the legacy format
+		 */
+		public boolean hasTOC() {
+			return segmentSizes != null;
+		}
+
+		/**
+		 * Returns the offset of the segment holding a file from the start of the first segment of the last block
+		 * read, which is the first segment of the carrier unless append blocks have been read.
+		 *
+		 * @param index Position of the file in the table of contents, which must be listed by the last block read, or
+		 *              the number of files to get the size of all the segments of the block
+		 * @return Offset of the segment, in bytes
+		 */
+		public long getSegmentOffset(int index) {
+			long offset = 0;
+			for (int i = blockStart; i < index; i++)
+				offset += segmentSizes[i];
+			return offset;
+		}
+
+		/**
+		 * Returns the position right after the last segment of the last block read, where an append block starts.
+		 *
+		 * @return Position after the last segment, in bits from the end of the number of LSBs
+		 */
+		public long getBlockEnd() {
+			return segmentsPosition + getSegmentOffset(fileNames.length) * Byte.SIZE;
+		}
+	}
 }
@@ -0,0 +1,172 @@
+package nsteg.decoders;
+
+import nsteg.nsteg_utils.BitByteConv;
+import nsteg.nsteg_utils.EmbeddingOrder;
+import nsteg.processors.raster.ChannelRaster;
+
+import javax.validation.constraints.NotNull;
+import java.io.IOException;
+
+/**
+ * Decodes data from a ChannelRaster that was encoded by RasterEncoder or ImgEncoder, which share the same layout. Bits
+ * are read sequentially, and only the pixels holding the requested bits are ever accessed, so rasters that read their
+ * carrier lazily (like streamed PNG files) never read past the end of the encoded data. Data scattered by the encoder
+ * can only be read from rasters that can be accessed in any order.
+ *
+ * @see nsteg.encoders.RasterEncoder
+ * @see ChannelRaster
+ */
+public class RasterDecoder extends Decoder {
+	private ChannelRaster raster;
+	private int numOfChannels, LSBsToUse = 1;
+
+	private long px = 0; // Pixel currently being decoded from, before being mapped through the embedding order
+	private EmbeddingOrder order = EmbeddingOrder.SEQUENTIAL;
+	private int pxBit = 0; // Position of the next bit to read in the current pixel
+	private int[] chanVals; // Channel values of the current pixel
+	private long chanValsPx = -1; // Pixel whose channel values are held in chanVals
+
+	/**
+	 * Initializes a RasterDecoder instance with the given raster, and decodes the number of LSBs that were used when
+	 * encoding it.
+	 *
+	 * @param raster Raster with data to be decoded
+	 */
+	public RasterDecoder(@NotNull ChannelRaster raster) {
+		this.raster = raster;
+		numOfChannels = raster.getNumOfChannels();
+		chanVals = new int[numOfChannels];
+
+		LSBsToUse = BitByteConv.bitArrayToInt(readBits(LSB_BITS_COUNT), false);
+		if (pxBit > 0) { // Data starts at the first pixel after the ones holding the LSB count
+			px++;
+			pxBit = 0;
+		}
+	}
+
+	private int readBit() {
+		if (chanValsPx != px) {
+			for (int c = 0; c < numOfChannels; c++)
+				chanVals[c] = raster.getChannel(order.map(px), c);
+			chanValsPx = px;
+		}
+
+		int bit = (chanVals[pxBit % numOfChannels] >> (pxBit / numOfChannels)) & 1;
+
+		if (++pxBit == numOfChannels * LSBsToUse) {
+			px++;
+			pxBit = 0;
+		}
+
+		return bit;
+	}
+
+	/**
+	 * Decodes bits from the least significant bit(s) of each channel in the raster.
+	 *
+	 * @param bitsToRead Desired number of bits to decode and return
+	 * @return Array of bits with requested number of bits
+	 */
+	public byte[] readBits(int bitsToRead) {
+		byte[] bits = new byte[bitsToRead];
+		for (int i = 0; i < bitsToRead; i++)
+			bits[i] = (byte) readBit();
+		return bits;
+	}
+
+	/**
+	 * Moves past the pixels holding the skipped bits without reading them.
+	 *
+	 * @param bitsToSkip Number of bits to skip
+	 */
+	@Override
+	public void skipBits(long bitsToSkip) {
+		int bitsPerPixel = numOfChannels * LSBsToUse;
+		long bit = pxBit + bitsToSkip;
+		px += bit / bitsPerPixel;
+		pxBit = (int) (bit % bitsPerPixel);
+	}
+
+	// See abstract method declaration
+	public int getLSBsToUse() {
+		return LSBsToUse;
+	}
+
+	// See abstract method declaration
+	@Override
+	public int getBitsPerUnit() {
+		return numOfChannels * LSBsToUse;
+	}
+
+	/**
+	 * Moves on to the next pixel, if bits have been read from the current one. See Decoder.align().
+	 */
+	@Override
+	public void align() {
+		if (pxBit > 0) {
+			px++;
+			pxBit = 0;
+		}
+	}
+
+	// See Decoder.canScatter()
+	@Override
+	public boolean canScatter() {
+		return raster.isRandomAccess();
+	}
+
+	/**
+	 * Reads the rest of the raster in the order the encoder scattered the data in, from the first pixel no bits have
+	 * been read from yet. See Decoder.scatter().
+	 *
+	 * @param orderKey Key selecting the order, as derived by Crypto.deriveSubkey()
+	 */
+	@Override
+	public void scatter(@NotNull byte[] orderKey) {
+		if (!canScatter())
+			throw new UnsupportedOperationException("Raster can only be accessed in increasing order");
+		order = new EmbeddingOrder(orderKey, px + (pxBit > 0 ? 1 : 0), raster.getPixelCount());
+	}
+
+	/**
+	 * Passes the range of pixels holding the next bitsToRead bits on to the raster, so that it can read them in one
+	 * go. Scattered data is spread over the whole raster, so no range is passed on for it.
+	 *
+	 * @param bitsToRead Number of bits that are about to be read
+	 */
+	@Override
+	public void prepareToRead(long bitsToRead) {
+		if (!order.isSequential())
+			return;
+		int bitsPerPixel = numOfChannels * LSBsToUse;
+		raster.prefetch(px, px + (pxBit + bitsToRead + bitsPerPixel - 1) / bitsPerPixel);
+	}
+
+	/**
+	 * Decodes bytes from the raster, each of which was encoded most significant bit first.
+	 *
+	 * @param bytesToRead Number of bytes to decode from the raster
+	 * @return Array of decoded bytes
+	 */
+	public byte[] readBytes(int bytesToRead) {
+		byte[] bytes = new byte[bytesToRead];
+		for (int i = 0; i < bytesToRead; i++) {
+			int b = 0;
+			for (int bit = 0; bit < Byte.SIZE; bit++)
+				b = (b << 1) | readBit();
+			bytes[i] = (byte) b;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Closes the raster, which stops any further reading of the carrier.
+	 */
+	public void stopThreads() {
+		try {
+			raster.close();
+		} catch (IOException e) {
+			System.err.println("Error reading media file: " + e.getMessage());
+		}
+	}
+}
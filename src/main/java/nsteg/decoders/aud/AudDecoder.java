@@ -1,17 +1,23 @@
 package nsteg.decoders.aud;
 
 import nsteg.decoders.Decoder;
-import nsteg.encoders.aud.FLACData;
 import nsteg.nsteg_utils.BitByteConv;
+import nsteg.nsteg_utils.EmbeddingOrder;
 import nsteg.processors.AudioProcessor;
+import nsteg.processors.FLACPCMInputStream;
+import nsteg.processors.PCMStore;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import javax.validation.constraints.NotNull;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 
 /**
  * This class is responsible for decoding data that was previously encoded into an audio file using AudEncoder.
@@ -22,29 +28,64 @@ import java.io.IOException;
  * It reads bits from the least significant bit(s) of each right channel byte. The number of least significant bits
  * used to originally encode the data is decoded when initializing this class. For more information on how the data
  * is encoded, see the Encoder class.
+ * <p><br>
+ * 16 bit PCM WAV files are memory mapped rather than loaded, so only the PCM bytes holding encoded data are read.
+ * Any other audio stream, be it FLAC, MP3 or WAV, is decoded as PCM bytes are needed, so decoding stops once the
+ * encoded data has been read, and only a small window of PCM data is held in memory. Extracting data therefore takes
+ * time proportional to the size of the data, not the length of the audio file. Either way, the PCM data is held off
+ * the heap, in a PCMStore.
+ * <p><br>
+ * Data scattered by the encoder can be anywhere in the PCM data, so once scatter() is called, the rest of the PCM data
+ * decoded lazily is loaded into a PCMStore, and every right channel byte is mapped through the embedding order.
  *
  * @see nsteg.encoders.Encoder
  */
 public class AudDecoder extends Decoder {
-	// Holds the PCM data of the audio file
-	private byte[] encodedBytes;
+	/**
+	 * Size of the window of PCM data held in memory when the PCM data is decoded lazily. Must be even, so that right
+	 * channel bytes are at the same position in every window.
+	 */
+	private static final int PCM_WINDOW_SIZE = 1 << 16;
+
+	// Holds the PCM data of the audio file, or the current window of it if it is decoded lazily
+	private PCMStore encodedBytes = PCMStore.allocate(0);
+	private long encodedBytesLen = 0; // Number of PCM bytes in encodedBytes
+	private long windowStart = 0; // Position of the first PCM byte of encodedBytes in the PCM data
+	private byte[] readBuffer; // Buffer the PCM stream is read into before it is copied to the window
 
-	// Used to keep track of where the decoding process is at in the PCM byte array
-	private int currLSB = 0, currPCMByte = 0;
+	// Source of the PCM data that has not been decoded yet, or null if all the PCM data is in encodedBytes
+	private InputStream pcmStream;
+
+	// Used to keep track of where the decoding process is at in the PCM byte array, relative to windowStart
+	private int currLSB = 0;
+	private long currPCMByte = 0;
+	private EmbeddingOrder order = EmbeddingOrder.SEQUENTIAL;
 
 	// Number of least significant bits to read from each right channel byte of PCM data
 	private int LSBsToUse = 1;
 
 	/**
-	 * Creates a new instance of AudDecoder, which reads the PCM data from an audio file and stores it in a byte array.
-	 * The number of least significant bits used during encoding is also read.
+	 * Creates a new instance of AudDecoder, which opens the PCM data of an audio file for reading. The number of least
+	 * significant bits used during encoding is also read.
 	 *
 	 * @param audioFileName Name of the audio file to decode the PCM byte array from
 	 */
 	public AudDecoder(@NotNull String audioFileName) {
 		if (audioFileName.endsWith("flac")) {
-			FLACData data = AudioProcessor.loadFLACFile(audioFileName);
-			this.encodedBytes = data.pcm;
+			try {
+				initLazy(new FLACPCMInputStream(new FileInputStream(audioFileName)));
+			} catch (IOException e) {
+				System.err.println("Error opening FLAC audio file.");
+				return;
+			}
+		} else if (audioFileName.endsWith("wav") && AudioProcessor.isMappableWAV(audioFileName)) {
+			try {
+				this.encodedBytes = AudioProcessor.mapWAVFile(audioFileName, null);
+				this.encodedBytesLen = encodedBytes.size();
+			} catch (IOException e) {
+				System.err.println("Error opening audio stream.");
+				return;
+			}
 		} else {
 			AudioInputStream rawStream;
 			try {
@@ -53,9 +94,7 @@ public class AudDecoder extends Decoder {
 				System.err.println("Error opening audio stream.");
 				return;
 			}
-			AudioInputStream decodedStream = AudioSystem.getAudioInputStream(AudioFormat.Encoding.PCM_SIGNED,
-																			 rawStream);
-			this.encodedBytes = AudioProcessor.loadAudioFile(decodedStream);
+			initLazy(AudioSystem.getAudioInputStream(AudioFormat.Encoding.PCM_SIGNED, rawStream));
 		}
 
 		LSBsToUse = BitByteConv.bitArrayToInt(readBits(LSB_BITS_COUNT), false);
@@ -69,10 +108,31 @@ public class AudDecoder extends Decoder {
 	 * @param audioStream Audio file stream, in PCM_SIGNED encoding format
 	 */
 	public AudDecoder(@NotNull AudioInputStream audioStream) {
-		this.encodedBytes = AudioProcessor.loadAudioFile(audioStream);
+		initLazy(audioStream);
 		LSBsToUse = BitByteConv.bitArrayToInt(readBits(LSB_BITS_COUNT), false);
 	}
 
+	/**
+	 * Creates a new instance of AudDecoder that decodes data from PCM data the caller already holds, for use by
+	 * programs embedding this one.
+	 *
+	 * @param pcm Store holding the PCM data to decode from, in PCM_SIGNED encoding
+	 */
+	public AudDecoder(@NotNull PCMStore pcm) {
+		this.encodedBytes = pcm;
+		this.encodedBytesLen = pcm.size();
+		LSBsToUse = BitByteConv.bitArrayToInt(readBits(LSB_BITS_COUNT), false);
+	}
+
+	/*
+	 * Sets up an empty window over a stream of PCM data, which hasPCMByte() fills as the data is read.
+	 */
+	private void initLazy(InputStream pcmStream) {
+		this.pcmStream = pcmStream;
+		this.encodedBytes = PCMStore.allocate(PCM_WINDOW_SIZE);
+		this.readBuffer = new byte[PCM_WINDOW_SIZE];
+	}
+
 	/**
 	 * Decodes a specific number of bits from the PCM audio data, and returns them as an array. Only right channel
 	 * bytes are read from, since the encoder does not touch left channel bytes.
@@ -84,8 +144,10 @@ public class AudDecoder extends Decoder {
 		byte[] bits = new byte[bitsToRead];
 		int bitPos = 0;
 
-		for (; currPCMByte < encodedBytes.length && bitPos < bitsToRead; ) {
-			byte[] byteBits = BitByteConv.intToBitArray(encodedBytes[currPCMByte], Byte.SIZE);
+		for (; hasPCMByte() && bitPos < bitsToRead; ) {
+			// Right channel bytes are every other byte, and the order maps their positions in the whole PCM data
+			long pcmByte = 2 * order.map((windowStart + currPCMByte) / 2) - windowStart;
+			byte[] byteBits = BitByteConv.intToBitArray(encodedBytes.get(pcmByte), Byte.SIZE);
 
 			// Read the least significant bits until enough have been read, or no more left to read in current byte
 			for (; currLSB < LSBsToUse && bitPos < bitsToRead; currLSB++)
@@ -100,6 +162,101 @@ public class AudDecoder extends Decoder {
 		return bits;
 	}
 
+	/*
+	 * Determines whether there is a PCM byte at the current position, moving the window forward if the PCM data is
+	 * decoded lazily and the current window has been fully read, or skipped past.
+	 */
+	private boolean hasPCMByte() {
+		while (currPCMByte >= encodedBytesLen && pcmStream != null) {
+			currPCMByte -= encodedBytesLen;
+			windowStart += encodedBytesLen;
+			int len = 0, read;
+			try {
+				while (len < readBuffer.length &&
+					   (read = pcmStream.read(readBuffer, len, readBuffer.length - len)) != -1)
+					len += read;
+			} catch (IOException e) {
+				System.err.println("Error decoding audio file.");
+			}
+			encodedBytes.put(0, readBuffer, 0, len);
+			encodedBytesLen = len;
+
+			if (len < readBuffer.length)
+				stopThreads(); // End of the PCM data, nothing more to read
+		}
+		return currPCMByte < encodedBytesLen;
+	}
+
+	/**
+	 * Moves past the right channel bytes holding the skipped bits without reading them. PCM data decoded lazily still
+	 * has to be decoded up to the new position, but is not read bit by bit.
+	 *
+	 * @param bitsToSkip Number of bits to skip
+	 */
+	@Override
+	public void skipBits(long bitsToSkip) {
+		long bit = currLSB + bitsToSkip;
+		currPCMByte += bit / LSBsToUse * 2;
+		currLSB = (int) (bit % LSBsToUse);
+	}
+
+	// See abstract method declaration
+	public int getLSBsToUse() {
+		return LSBsToUse;
+	}
+
+	// See abstract method declaration
+	@Override
+	public int getBitsPerUnit() {
+		return LSBsToUse;
+	}
+
+	/**
+	 * Moves on to the next right channel byte, if bits have been read from the current one. See Decoder.align().
+	 */
+	@Override
+	public void align() {
+		if (currLSB > 0) {
+			currLSB = 0;
+			currPCMByte += 2;
+		}
+	}
+
+	// See Decoder.canScatter(), the rest of lazily decoded PCM data is loaded by scatter()
+	@Override
+	public boolean canScatter() {
+		return true;
+	}
+
+	/**
+	 * Reads the rest of the right channel bytes in the order the encoder scattered the data in, from the first one no
+	 * bits have been read from yet. PCM data decoded lazily is loaded from the start of the current window to the end.
+	 * See Decoder.scatter().
+	 *
+	 * @param orderKey Key selecting the order, as derived by Crypto.deriveSubkey()
+	 */
+	@Override
+	public void scatter(@NotNull byte[] orderKey) {
+		hasPCMByte(); // Moves the window up to the current position
+		if (pcmStream != null) {
+			byte[] window = new byte[(int) encodedBytesLen];
+			encodedBytes.get(0, window, 0, window.length);
+			try {
+				PCMStore pcm = AudioProcessor.loadPCM(new SequenceInputStream(new ByteArrayInputStream(window),
+																			  pcmStream), 0);
+				encodedBytes.close();
+				encodedBytes = pcm;
+				encodedBytesLen = pcm.size();
+			} catch (IOException e) {
+				System.err.println("Error decoding audio file.");
+			}
+			stopThreads();
+		}
+
+		order = new EmbeddingOrder(orderKey, (windowStart + currPCMByte) / 2 + (currLSB > 0 ? 1 : 0),
+								   (windowStart + encodedBytesLen + 1) / 2);
+	}
+
 	/**
 	 * Decodes a specific number of bytes from the PCM audio data, and returns it as an array. Uses
 	 * readBits(int bitsToRead) internally, to read each byte as eight bits.
@@ -116,8 +273,22 @@ public class AudDecoder extends Decoder {
 		return byteArr;
 	}
 
+	/**
+	 * Stops decoding PCM data if it is decoded lazily, or unmaps the PCM data otherwise. No threads are used.
+	 */
 	@Override
 	public void stopThreads() {
-		// Not applicable
+		if (pcmStream == null) {
+			try {
+				encodedBytes.close();
+			} catch (IOException ignored) {
+			}
+			return;
+		}
+		try {
+			pcmStream.close();
+		} catch (IOException ignored) {
+		}
+		pcmStream = null;
 	}
 }
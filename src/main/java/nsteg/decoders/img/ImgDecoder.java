@@ -3,6 +3,7 @@ package nsteg.decoders.img;
 import nsteg.decoders.Decoder;
 import nsteg.encoders.img.ImgEndState;
 import nsteg.nsteg_utils.BitByteConv;
+import nsteg.nsteg_utils.EmbeddingOrder;
 
 import javax.validation.constraints.NotNull;
 import java.awt.image.BufferedImage;
@@ -23,6 +24,9 @@ import java.util.ArrayDeque;
  * channel, values are reset to start encoding at the third pixel, as if no data had been written yet. If the image has
  * four channels (ARGB), only the first pixel is used for encoding, and data encoding starts at the second pixel, which
  * means no space is wasted.
+ * <p><br>
+ * Data scattered by the encoder is read the same way, with every pixel mapped through the embedding order once
+ * scatter() has been called.
  *
  * @see nsteg.encoders.Encoder
  */
@@ -30,11 +34,12 @@ public class ImgDecoder extends Decoder {
 	private ImgDecoderThread[] decThreads = new ImgDecoderThread[Runtime.getRuntime().availableProcessors()];
 
 	private BufferedImage img; // Image to read (A)RGB data from
-	private int x = 0, y = 0; // Current pixel coords where bits are being decoded from
+	private int x = 0, y = 0; // Current pixel coords where bits are being decoded from, before being mapped
 	private int width; // Image width
+	private EmbeddingOrder order = EmbeddingOrder.SEQUENTIAL;
 
-	private static int LSBsToUse; // Number of LSBs to read from each channel
-	private static int numOfChannels;
+	private int LSBsToUse = 1; // Number of LSBs to read from each channel
+	private int numOfChannels;
 
 	/*
 	 * Bits read from pixels are loaded to the buffer. A buffer is used because it is faster to read all the bits
@@ -52,7 +57,6 @@ public class ImgDecoder extends Decoder {
 	 */
 	public ImgDecoder(@NotNull BufferedImage encImg) {
 		img = encImg;
-		LSBsToUse = 1;
 		numOfChannels = img.getColorModel().hasAlpha() ? 4 : 3;
 
 		width = img.getWidth();
@@ -97,7 +101,7 @@ public class ImgDecoder extends Decoder {
 	public byte[] readBits(int bitsToRead) {
 		while (true) {
 			while (buffer.size() < bitsToRead && x < width) {
-				extractDataFromPixel(buffer, img.getRGB(x, y));
+				extractDataFromPixel(buffer, getRGB(x, y), LSBsToUse, numOfChannels);
 				if (++x == width) {
 					x = 0;
 					y++;
@@ -109,15 +113,91 @@ public class ImgDecoder extends Decoder {
 		}
 	}
 
+	/**
+	 * Moves past the pixels holding the skipped bits without reading them, keeping any bits of the pixel the skip ends
+	 * in that come after it in the buffer.
+	 *
+	 * @param bitsToSkip Number of bits to skip
+	 */
+	@Override
+	public void skipBits(long bitsToSkip) {
+		for (; bitsToSkip > 0 && !buffer.isEmpty(); bitsToSkip--)
+			buffer.removeFirst();
+
+		int bitsPerPixel = numOfChannels * LSBsToUse;
+		long pixel = (long) y * width + x + bitsToSkip / bitsPerPixel;
+		x = (int) (pixel % width);
+		y = (int) (pixel / width);
+
+		int bitsInPixel = (int) (bitsToSkip % bitsPerPixel);
+		if (bitsInPixel > 0) {
+			extractDataFromPixel(buffer, getRGB(x, y), LSBsToUse, numOfChannels);
+			for (int b = 0; b < bitsInPixel; b++)
+				buffer.removeFirst();
+			if (++x == width) {
+				x = 0;
+				y++;
+			}
+		}
+	}
+
+	// See abstract method declaration
+	public int getLSBsToUse() {
+		return LSBsToUse;
+	}
+
+	// See abstract method declaration
+	@Override
+	public int getBitsPerUnit() {
+		return numOfChannels * LSBsToUse;
+	}
+
+	/**
+	 * Discards the bits left in the buffer, which belong to the pixel the last bits were read from, so that the next
+	 * bits are read from the next pixel. See Decoder.align().
+	 */
+	@Override
+	public void align() {
+		buffer.clear();
+	}
+
+	/*
+	 * Returns the color of the pixel holding the bits of the pixel at the given sequential coordinates.
+	 */
+	private int getRGB(int x, int y) {
+		long px = order.map((long) y * width + x);
+		return img.getRGB((int) (px % width), (int) (px / width));
+	}
+
+	// See Decoder.canScatter(), images in memory can be read in any order
+	@Override
+	public boolean canScatter() {
+		return true;
+	}
+
+	/**
+	 * Reads the rest of the image in the order the encoder scattered the data in, from the first pixel no bits have
+	 * been read from yet. See Decoder.scatter().
+	 *
+	 * @param orderKey Key selecting the order, as derived by Crypto.deriveSubkey()
+	 */
+	@Override
+	public void scatter(@NotNull byte[] orderKey) {
+		// Bits of the current pixel that are left in the buffer were read before the order changed, as they were written
+		long start = (long) y * width + x;
+		order = new EmbeddingOrder(orderKey, start, (long) width * img.getHeight());
+		for (ImgDecoderThread t : decThreads)
+			t.setOrder(order);
+	}
+
 	/**
 	 * Reads bits from the image, converts them to bytes and writes them to a byte array, which will be returned. This
 	 * method will utilize ImgDecoderThread in order to rapidly decode the file from the image. An array of the size
 	 * of size 'bytesToRead' is created, and each thread is told where to write to in the array, in order to
 	 * re-assemble the file properly.
 	 * <p><br>
-	 * When this method returns, the array may not be complete, since it does not wait for the threads to finish. To
-	 * ensure that the byte array is complete, call the stopThreads() method after all the necessary data has been
-	 * read.
+	 * This method waits for the threads to finish before returning, so that the bytes read can be used right away,
+	 * such as the file names in the header, which are read between calls to readBits().
 	 *
 	 * @param bytesToRead Number of bytes to decode from the image
 	 * @return Array of decoded bytes
@@ -127,7 +207,7 @@ public class ImgDecoder extends Decoder {
 
 		int currByte = 0;
 		int remainingBytes = bytesToRead;
-		int approxBytesPerThread = bytesToRead / decThreads.length;
+		int approxBytesPerThread = Math.max(1, bytesToRead / decThreads.length);
 		while (remainingBytes > 0) {
 			// Number of bytes that the thread should write to the file byte array
 			approxBytesPerThread = approxBytesPerThread < remainingBytes ? approxBytesPerThread : remainingBytes;
@@ -148,10 +228,13 @@ public class ImgDecoder extends Decoder {
 					 * belong to the file, so those can be ignored.
 					 */
 					if (endState.endLSB > 0) {
-						extractDataFromPixel(buffer, img.getRGB(x, y));
+						extractDataFromPixel(buffer, getRGB(x, y), LSBsToUse, numOfChannels);
 						while (buffer.size() > (numOfChannels * LSBsToUse) - endState.endLSB)
 							buffer.removeFirst();
-						x++;
+						if (++x == width) {
+							x = 0;
+							y++;
+						}
 					}
 
 					break;
@@ -162,6 +245,10 @@ public class ImgDecoder extends Decoder {
 			remainingBytes -= approxBytesPerThread;
 		}
 
+		for (ImgDecoderThread t : decThreads)
+			while (t.isActive())
+				sleep(1);
+
 		return extractedBytes;
 	}
 
@@ -184,9 +271,12 @@ public class ImgDecoder extends Decoder {
 	 * Retrieves bits from the file that was encoded in the image by reading and storing the least significant bit(s)
 	 * of each channel from the pixel (A)RGB value passed. The LSBs read are stored in the specified ArrayDeque.
 	 *
-	 * @param orig 32-bit argb int representing the colors the values of the 4 color channels
+	 * @param buffer        Deque to add the bits read to
+	 * @param orig          32-bit argb int representing the colors the values of the 4 color channels
+	 * @param LSBsToUse     Number of least significant bits to read from each channel
+	 * @param numOfChannels Number of channels in the image, 4 if the alpha channel holds data, 3 otherwise
 	 */
-	static void extractDataFromPixel(@NotNull ArrayDeque<Byte> buffer, int orig) {
+	static void extractDataFromPixel(@NotNull ArrayDeque<Byte> buffer, int orig, int LSBsToUse, int numOfChannels) {
 		byte[] aBits = BitByteConv.intToBitArray((orig >> 24) & 0xff, Byte.SIZE); // Get alpha channel value
 		byte[] rBits = BitByteConv.intToBitArray((orig >> 16) & 0xff, Byte.SIZE); // Get red channel value
 		byte[] gBits = BitByteConv.intToBitArray((orig >> 8) & 0xff, Byte.SIZE); // Get green channel value
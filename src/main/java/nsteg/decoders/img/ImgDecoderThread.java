@@ -79,7 +79,9 @@ public class ImgDecoderThread extends ImgThread {
 				while (currByte < endByte) {
 					// Read bits from the image
 					while (buffer.size() < BLOCK_SIZE) {
-						ImgDecoder.extractDataFromPixel(buffer, img.getRGB(x++, y));
+						long px = order.map((long) y * width + x++);
+						ImgDecoder.extractDataFromPixel(buffer, img.getRGB((int) (px % width), (int) (px / width)),
+														LSBsToUse, numOfChannels);
 						if (x == width) {
 							x = 0;
 							y++;
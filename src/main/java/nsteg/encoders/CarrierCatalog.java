@@ -0,0 +1,400 @@
+package nsteg.encoders;
+
+import nsteg.nsteg_utils.FileType;
+import nsteg.processors.FLACPCMInputStream;
+import nsteg.threads.WorkerPool;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import javax.validation.constraints.NotNull;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import static nsteg.encoders.Encoder.LSB_BITS_COUNT;
+
+/**
+ * Catalog of the media files in a directory and its subdirectories that data can be encoded into, which records the
+ * dimensions and channels of each image, the channels and frame count of each audio file, and the capacity of each
+ * media file at every number of LSBs. The catalog is kept in an index file in the directory, so that it only has to
+ * be built once: updating it measures nothing but the media files whose size or modification time changed, or that
+ * were added since, and drops the ones that were removed.
+ * <p><br>
+ * Measuring a media file reads no more than its metadata, except for MP3 files, and FLAC files that do not declare
+ * their length, which are decoded once to count their frames. Media files are measured on the WorkerPool while the
+ * directory tree is still being walked.
+ * <p><br>
+ * The capacities at each number of LSBs are also kept sorted in memory, so that select() finds the smallest media file
+ * that can hold a given number of bits with a binary search, however many media files are cataloged.
+ */
+public class CarrierCatalog {
+	/**
+	 * Name of the index file, which is kept in the cataloged directory.
+	 */
+	public static final String INDEX_FILE_NAME = ".nsteg-catalog";
+
+	private static final int INDEX_MAGIC = 0x4E535443; // "NSTC"
+	private static final int INDEX_VERSION = 1;
+	private static final int MAX_LSBS = 8;
+
+	private final Path directory;
+	private final List<Entry> entries;
+	private final int measured;
+
+	// Indexes of the entries sorted by their capacity at each number of LSBs, along with those capacities
+	private final int[][] order = new int[MAX_LSBS][];
+	private final long[][] sortedCapacities = new long[MAX_LSBS][];
+
+	private CarrierCatalog(Path directory, List<Entry> entries, int measured) {
+		this.directory = directory;
+		this.entries = Collections.unmodifiableList(entries);
+		this.measured = measured;
+
+		for (int l = 0; l < MAX_LSBS; l++) {
+			int LSBs = l;
+			Integer[] sorted = new Integer[entries.size()];
+			for (int i = 0; i < sorted.length; i++)
+				sorted[i] = i;
+			Arrays.sort(sorted, Comparator.comparingLong(i -> entries.get(i).capacities[LSBs]));
+
+			order[l] = new int[sorted.length];
+			sortedCapacities[l] = new long[sorted.length];
+			for (int i = 0; i < sorted.length; i++) {
+				order[l][i] = sorted[i];
+				sortedCapacities[l][i] = entries.get(sorted[i]).capacities[l];
+			}
+		}
+	}
+
+	/**
+	 * Loads the catalog of a directory from its index file, and brings it up to date with the media files of a
+	 * supported input format in the directory and its subdirectories, after which the index file is rewritten if
+	 * anything changed. A missing or unreadable index file is rebuilt from scratch. Media files that cannot be read
+	 * are left out of the catalog.
+	 *
+	 * @param directory Directory to catalog
+	 * @return Up to date catalog of the directory
+	 * @throws IOException If the directory cannot be walked, or the index file cannot be written
+	 */
+	public static CarrierCatalog update(@NotNull String directory) throws IOException {
+		Path dir = Paths.get(directory);
+		if (!Files.isDirectory(dir))
+			throw new NotDirectoryException(directory);
+
+		Path indexFile = dir.resolve(INDEX_FILE_NAME);
+		Map<String, Entry> indexed = readIndex(indexFile);
+
+		List<Entry> entries = new ArrayList<>();
+		List<FutureTask<Entry>> measures = new ArrayList<>();
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				String[] split = file.getFileName().toString().split("\\.");
+				String fileExt = split[split.length - 1];
+				if (!attrs.isRegularFile() || split.length < 2 ||
+					!(Encoder.inImgFormats.contains(fileExt) || Encoder.inAudFormats.contains(fileExt)))
+					return FileVisitResult.CONTINUE;
+
+				String name = dir.relativize(file).toString().replace(File.separatorChar, '/');
+				long size = attrs.size(), modified = attrs.lastModifiedTime().toMillis();
+				Entry entry = indexed.get(name);
+				if (entry != null && entry.size == size && entry.modified == modified)
+					entries.add(entry);
+				else
+					measures.add(WorkerPool.submit(() -> measure(file, name, size, modified)));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		for (FutureTask<Entry> measure : measures) {
+			try {
+				Entry entry = WorkerPool.join(measure);
+				if (entry != null)
+					entries.add(entry);
+			} catch (ExecutionException | InterruptedException ignored) {
+				// Media files that cannot be measured are left out, as if they were unreadable
+			}
+		}
+
+		entries.sort(Comparator.comparing(e -> e.name));
+		if (!measures.isEmpty() || entries.size() != indexed.size())
+			writeIndex(indexFile, entries);
+		return new CarrierCatalog(dir, entries, measures.size());
+	}
+
+	/**
+	 * Returns the smallest cataloged media file that can hold the given number of bits at the given number of LSBs,
+	 * which wastes the least capacity, and so changes the fewest bits of the media file for its size.
+	 *
+	 * @param requiredBits Number of bits to encode, as returned by Encoder.getRequiredBits()
+	 * @param LSBsToUse    Number of least significant bits to use, 1 to 8
+	 * @return Entry of the best fitting media file, or null if none of them can hold the bits
+	 */
+	public Entry select(long requiredBits, int LSBsToUse) {
+		if (LSBsToUse < 1 || LSBsToUse > MAX_LSBS)
+			throw new IllegalArgumentException("LSBs must be between 1 and " + MAX_LSBS);
+
+		long[] capacities = sortedCapacities[LSBsToUse - 1];
+		int low = 0, high = capacities.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (capacities[mid] < requiredBits)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low < capacities.length ? entries.get(order[LSBsToUse - 1][low]) : null;
+	}
+
+	/**
+	 * Returns the path of a cataloged media file, which can be passed to the encoder.
+	 *
+	 * @param entry Entry of the media file
+	 * @return Path of the media file
+	 */
+	public Path resolve(@NotNull Entry entry) {
+		return directory.resolve(entry.name);
+	}
+
+	/**
+	 * Returns the entries of every cataloged media file, sorted by name.
+	 *
+	 * @return Unmodifiable list of the entries
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Returns the number of media files that were measured by the update that built this catalog, because they were
+	 * new or had changed, whether or not they could be read.
+	 *
+	 * @return Number of measured media files
+	 */
+	public int getMeasuredCount() {
+		return measured;
+	}
+
+	/*
+	 * Measures a media file, returning null if it cannot be read.
+	 */
+	private static Entry measure(Path file, String name, long size, long modified) {
+		String[] split = name.split("\\.");
+		String fileExt = split[split.length - 1];
+
+		try {
+			if (Encoder.inImgFormats.contains(fileExt))
+				return measureImage(file, name, size, modified);
+			else if ("flac".equalsIgnoreCase(fileExt))
+				return measureFLAC(file, name, size, modified);
+			else
+				return measureAudio(file, name, size, modified);
+		} catch (IOException | UnsupportedAudioFileException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Reads the dimensions of an image, and the channels ImgEncoder would use, from its metadata alone.
+	 */
+	private static Entry measureImage(Path file, String name, long size, long modified) throws IOException {
+		try (ImageInputStream input = ImageIO.createImageInputStream(file.toFile())) {
+			if (input == null)
+				return null;
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext())
+				return null;
+
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				int width = reader.getWidth(0), height = reader.getHeight(0);
+				// Same image type ImageIO.read() would decode the image to, as RegionImageRaster does
+				int channels = reader.getImageTypes(0).next().getColorModel().hasAlpha() ? 4 : 3;
+				return new Entry(name, size, modified, FileType.IMAGE, width, height, channels, 0, 0);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/*
+	 * Reads the frame count of a FLAC file from its STREAMINFO block, decoding it only if the block leaves it unknown.
+	 */
+	private static Entry measureFLAC(Path file, String name, long size, long modified) throws IOException {
+		try (FLACPCMInputStream pcm = new FLACPCMInputStream(new FileInputStream(file.toFile()))) {
+			int channels = pcm.getStreamInfo().getChannels();
+			int frameSize = channels * ((pcm.getStreamInfo().getBitsPerSample() + 7) / 8);
+			long pcmLength = pcm.getPCMLength();
+			if (pcmLength <= 0)
+				pcmLength = countBytes(pcm);
+			return new Entry(name, size, modified, FileType.AUDIO, 0, 0, channels, pcmLength / frameSize, frameSize);
+		}
+	}
+
+	/*
+	 * Reads the frame count of a WAV or MP3 file, in the PCM format AudEncoder decodes it to. MP3 files do not declare
+	 * it, so they are decoded to count their frames.
+	 */
+	private static Entry measureAudio(Path file, String name, long size, long modified)
+			throws IOException, UnsupportedAudioFileException {
+		try (AudioInputStream raw = AudioSystem.getAudioInputStream(file.toFile());
+			 AudioInputStream pcm = AudioSystem.getAudioInputStream(AudioFormat.Encoding.PCM_SIGNED, raw)) {
+			int channels = pcm.getFormat().getChannels(), frameSize = pcm.getFormat().getFrameSize();
+			long frames = pcm.getFrameLength();
+			if (frames == AudioSystem.NOT_SPECIFIED)
+				frames = countBytes(pcm) / frameSize;
+			return new Entry(name, size, modified, FileType.AUDIO, 0, 0, channels, frames, frameSize);
+		}
+	}
+
+	/*
+	 * Reads a stream to its end, returning the number of bytes read.
+	 */
+	private static long countBytes(InputStream in) throws IOException {
+		byte[] buffer = new byte[1 << 16];
+		long count = 0;
+		int read;
+		while ((read = in.read(buffer)) != -1)
+			count += read;
+		return count;
+	}
+
+	/*
+	 * Reads the entries of an index file, by name. Returns no entries if the file is missing or cannot be read, so that
+	 * the catalog is rebuilt.
+	 */
+	private static Map<String, Entry> readIndex(Path indexFile) {
+		Map<String, Entry> entries = new HashMap<>();
+		if (!Files.isRegularFile(indexFile))
+			return entries;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+			if (in.readInt() != INDEX_MAGIC || in.readByte() != INDEX_VERSION)
+				return entries;
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				long size = in.readLong(), modified = in.readLong();
+				FileType type = FileType.values()[in.readByte()];
+				int width = in.readInt(), height = in.readInt(), channels = in.readUnsignedByte();
+				long frames = in.readLong();
+				int frameSize = in.readUnsignedShort();
+				Entry entry = new Entry(name, size, modified, type, width, height, channels, frames, frameSize);
+				for (int l = 0; l < MAX_LSBS; l++)
+					entry.capacities[l] = in.readLong();
+				entries.put(name, entry);
+			}
+		} catch (IOException | RuntimeException e) {
+			entries.clear();
+		}
+		return entries;
+	}
+
+	/*
+	 * Writes the entries to a temporary file, which then replaces the index file, so that an interrupted update never
+	 * leaves a truncated index behind.
+	 */
+	private static void writeIndex(Path indexFile, List<Entry> entries) throws IOException {
+		Path tempFile = indexFile.resolveSibling(INDEX_FILE_NAME + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+			out.writeInt(INDEX_MAGIC);
+			out.writeByte(INDEX_VERSION);
+			out.writeInt(entries.size());
+			for (Entry entry : entries) {
+				out.writeUTF(entry.name);
+				out.writeLong(entry.size);
+				out.writeLong(entry.modified);
+				out.writeByte(entry.type.ordinal());
+				out.writeInt(entry.width);
+				out.writeInt(entry.height);
+				out.writeByte(entry.channels);
+				out.writeLong(entry.frames);
+				out.writeShort(entry.frameSize);
+				for (long capacity : entry.capacities)
+					out.writeLong(capacity);
+			}
+		}
+		Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Measurements of a cataloged media file.
+	 */
+	public static class Entry {
+		/**
+		 * Path of the media file, relative to the cataloged directory, with '/' as the separator.
+		 */
+		public final String name;
+		/**
+		 * Size and modification time of the media file when it was measured, in bytes and milliseconds since the
+		 * epoch.
+		 */
+		public final long size, modified;
+		/**
+		 * Whether the media file is an image or an audio file.
+		 */
+		public final FileType type;
+		/**
+		 * Dimensions of an image, or 0 for an audio file.
+		 */
+		public final int width, height;
+		/**
+		 * Channels of an image ImgEncoder would use, 3 or 4, or channels of an audio file.
+		 */
+		public final int channels;
+		/**
+		 * Number of frames of an audio file, and number of PCM bytes in each of them, or 0 for an image.
+		 */
+		public final long frames;
+		public final int frameSize;
+
+		private final long[] capacities = new long[MAX_LSBS];
+
+		private Entry(String name, long size, long modified, FileType type, int width, int height, int channels,
+					  long frames, int frameSize) {
+			this.name = name;
+			this.size = size;
+			this.modified = modified;
+			this.type = type;
+			this.width = width;
+			this.height = height;
+			this.channels = channels;
+			this.frames = frames;
+			this.frameSize = frameSize;
+
+			// Same capacities as the encoders report, which are linear in the number of LSBs
+			for (int l = 1; l <= MAX_LSBS; l++) {
+				if (type == FileType.IMAGE) {
+					long dataPixels = (long) width * height - (channels == 3 ? 2 : 1);
+					capacities[l - 1] = Math.max(0, dataPixels * channels * l + LSB_BITS_COUNT);
+				} else
+					capacities[l - 1] = Math.max(0, ((frames * frameSize + 1) / 2 - LSB_BITS_COUNT) * l + LSB_BITS_COUNT);
+			}
+		}
+
+		/**
+		 * Returns the number of bits the media file can hold, header included, as the encoder's getCapacity() does.
+		 *
+		 * @param LSBsToUse Number of least significant bits to use, 1 to 8
+		 * @return Capacity of the media file in bits
+		 */
+		public long getCapacity(int LSBsToUse) {
+			return capacities[LSBsToUse - 1];
+		}
+	}
+}
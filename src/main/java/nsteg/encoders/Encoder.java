@@ -1,82 +1,230 @@
 package nsteg.encoders;
 
 import nsteg.nsteg_utils.Spinner;
+import nsteg.decoders.Decoder;
 import nsteg.encoders.aud.AudEncoder;
 import nsteg.encoders.img.ImgEncoder;
 import nsteg.nsteg_utils.BitByteConv;
 import nsteg.nsteg_utils.Compressor;
 import nsteg.nsteg_utils.Crypto;
 import nsteg.processors.AudioProcessor;
+import nsteg.processors.CarrierCache;
+import nsteg.processors.FLACPreset;
 import nsteg.processors.ImageProcessor;
+import nsteg.processors.png.ParallelPNGWriter;
+import nsteg.processors.raster.MappedImageRaster;
+import nsteg.processors.raster.PNGStreamRaster;
+import nsteg.threads.WorkerPool;
 
 import javax.imageio.ImageIO;
 import javax.validation.constraints.NotNull;
-import java.io.File;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.stream.Stream;
 
 /**
  * Abstract class defining methods that any encoder should have present, in order to make the design a bit more
  * flexible. Also carries out the encoding process, when Main or CLIParser request it, through the encode() method.
- * If multiple files are to be encoded, they will all be copied into one byte array, to minimize operations.
+ * Each file is compressed, and optionally encrypted, on its own, into a segment, so that a single file can be
+ * extracted without reading, decrypting or decompressing any of the others.
  * <p><br>
  * The encoding order is as follows:
- * [# of least significant bits used (4 bits)] - [Number of files encoded (32 bits)] -
- * [File name lengths (32 bits) and file names (Variable size) in following format: fnamelen, fname, fnamelen...] -
- * [Individual file sizes (32 bits each)] -
- * [Compressed size of the continuous byte array containing all files to be encoded (32 bits)] -
- * [Hash salt (if encryption was used) (64 bits)] - [File(s) (Variable size)]
+ * [# of least significant bits used (4 bits)] - [Format magic and version (32 bits)] - [Flags (8 bits)] -
+ * [Hash salt (if encryption was used) (64 bits)] - [Number of files encoded (varint)] -
+ * [Table of contents, holding for each file: name length (varint), name (Variable size), uncompressed size
+ * (varint) and segment size (varint)] - [Padding up to the next pixel or PCM byte (Variable size)] - [Segments, in
+ * the order of the table of contents (Variable size)]
+ * <p><br>
+ * The padding leaves the rest of the pixel or right channel PCM byte holding the last bits of the table of contents
+ * unchanged, so that the segments start on a whole pixel or PCM byte. Encoders can then hand each of their threads a
+ * range of whole pixels or PCM bytes to encode, which no other thread ever writes to, so encoding in parallel needs
+ * no locking. Carriers of version 2 of the format have no padding, and are still read by the Decoder.
+ * <p><br>
+ * Varints hold a value of up to 63 bits in 7 bit groups, least significant group first, one group per byte, with the
+ * most significant bit of each byte set if another byte follows. Small values take a single byte, and files of any
+ * size can be described, so a carrier large enough can hold payloads of many gigabytes.
+ * <p><br>
+ * Each segment holds its file compressed with raw deflate, unless that would make it larger. Encrypted segments are
+ * split into chunks of SEGMENT_CHUNK_SIZE bytes of compressed data, the last of which may be shorter, so that no more
+ * than a chunk has to be held in memory to encrypt or decrypt a file. Each chunk starts with its own IV and ends with
+ * its own authentication tag, and is authenticated together with its position in the segment, the position of the
+ * segment in the table of contents, and the sizes of the file and segment. Since segments are stored back to back,
+ * the offset of each one is the sum of the sizes of the ones before it.
+ * <p><br>
+ * A payload too large for a single carrier can be striped across several carriers by encodeStriped(), images and
+ * audio files alike. Each compressed file is split into one piece per carrier, sized in proportion to the capacity
+ * of the carrier, and each carrier holds a piece of every file as its segment for that file. Striped carriers have
+ * the FLAG_STRIPED flag set, and hold a stripe header right after the salt: [Stripe set ID (64 bits)] - [Position of
+ * the carrier in the set (varint)] - [Number of carriers in the set (varint)]. Their table of contents lists every
+ * file, with its full uncompressed size but the size of the piece held by the carrier as its segment size. Every
+ * carrier is encoded and decoded on its own thread, and pieces are encrypted with the position of their carrier in
+ * their associated data, so that they cannot be swapped between carriers.
+ * <p><br>
+ * Encrypted segments can also be scattered over the carrier rather than written sequentially, in which case the
+ * FLAG_SCATTERED flag is set. The header and table of contents are still written sequentially, and the segments are
+ * written to the remaining pixels or right channel bytes, from the first one the table of contents does not use, in an
+ * order given by an EmbeddingOrder keyed by a key derived from the encryption key. The order is a permutation computed
+ * one unit at a time, so scattering needs no memory proportional to the size of the carrier, and threads still encode
+ * disjoint ranges of the data in parallel.
+ * <p><br>
+ * Files can be appended to a carrier by append(), without re-encoding the files already in it. They are encoded as an
+ * append block, which starts right where the last segment ends: [Flags (8 bits)] - [Number of files appended (varint)]
+ * - [Table of contents of the appended files] - [Padding up to the next pixel or PCM byte] - [Segments of the appended
+ * files]. The FLAG_APPENDED flag of the header, or of the append block before it, tells that a block follows, and is
+ * the only bit of the existing data that changes. Appended segments are encrypted with the key of the carrier, and are
+ * numbered after the files before them in their associated data. Scattered and striped carriers cannot be appended to.
+ * <p><br>
+ * Carriers encoded before the table of contents was introduced hold the number of files right after the number of
+ * least significant bits, in place of the format magic, followed by the file name lengths and names, the file
+ * sizes, the size of all the files compressed into a single array (32 bits), the hash salt if encryption was used,
+ * and finally the compressed array. The Decoder still reads this layout.
  */
 public abstract class Encoder {
 	/**
 	 * Contains the formats that can be read by ImageIO. Any other image formats are likely not supported natively.
 	 */
-	public static LinkedList<String> inImgFormats = new LinkedList<>();
+	public final static List<String> inImgFormats =
+			Collections.unmodifiableList(Arrays.asList(ImageIO.getReaderFileSuffixes()));
 	/**
 	 * Contains the formats that can be written by ImageIO, and that are lossless. Any other image formats is likely
 	 * not supported natively or is lossy, and therefore no good for holding data.
 	 */
-	public static LinkedList<String> outImgFormats = new LinkedList<>();
+	public final static List<String> outImgFormats =
+			Collections.unmodifiableList(Arrays.asList("png", "bmp", "tif", "tiff"));
 
 	/**
 	 * Holds the formats that can be read by AudioSystem. Any other audio format is not supported natively.
 	 */
-	public static LinkedList<String> inAudFormats = new LinkedList<>();
+	public final static List<String> inAudFormats =
+			Collections.unmodifiableList(Arrays.asList("mp3", "wav", "flac", "alac"));
 	/**
 	 * Holds the formats that can be written by AudioSystem, and that are lossless. Any other audio format is either
 	 * not supported natively or is lossy, and therefore no good for holding data.
 	 */
-	public static LinkedList<String> outAudFormats = new LinkedList<>();
+	public final static List<String> outAudFormats = Collections.unmodifiableList(Arrays.asList("wav", "flac"));
 
-	/*
-	 * Specifies valid image and audio formats. Can be modified if other lossless codecs are implemented.
+	/**
+	 * Number of bits used by the legacy format to hold the compressed/uncompressed size of the files.
 	 */
-	static {
-		String[] inImgSuffixes = ImageIO.getReaderFileSuffixes();
-		inImgFormats.addAll(Arrays.asList(inImgSuffixes));
+	public final static int SIZE_BITS_COUNT = Integer.SIZE;
 
-		String[] outImgSuffixes = {"png", "bmp", "tif", "tiff"};
-		outImgFormats.addAll(Arrays.asList(outImgSuffixes));
+	/**
+	 * Number of bits used to hold the number of least significant bits used during the encoding process.
+	 */
+	public final static int LSB_BITS_COUNT = 4;
 
-		String[] inAudSuffixes = {"mp3", "wav", "flac", "alac"};
-		inAudFormats.addAll(Arrays.asList(inAudSuffixes));
+	/**
+	 * Maximum number of files that can be encoded into a single carrier. Decoders treat headers holding more files as
+	 * a sign that the carrier holds no encoded data.
+	 */
+	public final static int MAX_FILES = 1 << 16;
 
-		String[] outAudSuffixes = {"wav", "flac"};
-		outAudFormats.addAll(Arrays.asList(outAudSuffixes));
-	}
+	/**
+	 * Maximum length of the name of an encoded file, in bytes, enforced for the same reason as MAX_FILES.
+	 */
+	public final static int MAX_FILE_NAME_LENGTH = 1 << 12;
 
 	/**
-	 * Number of bits used to hold the compressed/uncompressed size of the file being encoded.
+	 * Marks a carrier as holding a table of contents. The last byte holds the version of the format, and the first
+	 * three spell "NST", which makes the value far larger than MAX_FILES, so it can never be mistaken for the number
+	 * of files stored in its place by the legacy format.
 	 */
-	public final static int SIZE_BITS_COUNT = Integer.SIZE;
+	public final static int FORMAT_MAGIC = 0x4E535400;
 
 	/**
-	 * Number of bits used to hold the number of least significant bits used during the encoding process.
+	 * Version of the format written by this encoder, whose segments start on a whole pixel or PCM byte.
 	 */
-	public final static int LSB_BITS_COUNT = 4;
+	public final static int FORMAT_VERSION = 3;
+
+	/**
+	 * Version of the format whose segments directly follow the table of contents, from any bit of a pixel or PCM byte.
+	 * Still read by the Decoder, and kept in the associated data of encrypted chunks, whose layout has not changed.
+	 */
+	public final static int FORMAT_VERSION_UNALIGNED = 2;
+
+	/**
+	 * Maximum number of bits of padding after the table of contents, which is all the LSBs of a pixel with four
+	 * channels using every bit, but one.
+	 */
+	public final static int MAX_PADDING_BITS = 4 * Byte.SIZE - 1;
+
+	/**
+	 * Number of bits used to hold the format flags.
+	 */
+	public final static int FLAGS_BITS_COUNT = Byte.SIZE;
+
+	/**
+	 * Flag set when the segments are encrypted, in which case the salt follows the flags.
+	 */
+	public final static int FLAG_ENCRYPTED = 1;
+
+	/**
+	 * Flag set when the files are striped across several carriers, in which case the stripe header follows the salt.
+	 */
+	public final static int FLAG_STRIPED = 2;
+
+	/**
+	 * Flag set when the segments are scattered over the carrier in a keyed order, which requires them to be encrypted.
+	 */
+	public final static int FLAG_SCATTERED = 4;
+
+	/**
+	 * Flag set when an append block, holding files appended to the carrier by append(), follows the last segment. Append
+	 * blocks have flags of their own, in which this is the only flag that can be set.
+	 */
+	public final static int FLAG_APPENDED = 8;
+
+	/**
+	 * Purpose the key selecting the order of scattered segments is derived from the encryption key for.
+	 */
+	public final static String ORDER_KEY_PURPOSE = "nsteg embedding order";
+
+	/**
+	 * Maximum number of carriers a set of files can be striped across.
+	 */
+	public final static int MAX_STRIPES = 1 << 8;
+
+	/**
+	 * Number of bits used to hold the ID shared by all the carriers of a stripe set.
+	 */
+	public final static int STRIPE_SET_BITS_COUNT = Long.SIZE;
+
+	/**
+	 * Number of bytes encryption adds to each chunk of a segment, for its IV and authentication tag.
+	 */
+	public final static int SEGMENT_CRYPTO_OVERHEAD = Crypto.AES_IV_SIZE + Crypto.GCM_AAD_SIZE / Byte.SIZE;
+
+	/**
+	 * Number of bytes of compressed data in each chunk of an encrypted segment, except for the last one.
+	 */
+	public final static int SEGMENT_CHUNK_SIZE = 1 << 20;
+
+	/**
+	 * Maximum number of bytes a varint can take up, which is enough to hold any value up to Long.MAX_VALUE.
+	 */
+	public final static int VARINT_MAX_BYTES = 9;
+
+	/**
+	 * Size of the files above which they are compressed into a temporary file rather than into memory.
+	 */
+	private final static long IN_MEMORY_FILE_SIZE = 1 << 26;
 
 	protected static void sleep(long millis) {
 		try {
@@ -95,54 +243,397 @@ public abstract class Encoder {
 	public abstract void stopThreads();
 
 	/**
-	 * Determines if the file to be hidden actually fits in the media file chosen by the user. If it does not fit,
+	 * Gives up on the carrier being encoded, for when the data will not be encoded after all: stops the threads of the
+	 * encoder, if it has any, releases the carrier, and deletes any output that was partially written. Must be called
+	 * instead of stopThreads() on every encoder that is not completed, so that no thread is left running.
+	 */
+	public abstract void discard();
+
+	/**
+	 * Moves on to the next pixel or PCM byte if bits have been written to the current one, leaving the rest of it
+	 * unchanged, so that the next bits are written from the start of a pixel or PCM byte.
+	 */
+	public abstract void align();
+
+	/**
+	 * Moves past bits without writing them, leaving the least significant bits that hold them unchanged, such as the
+	 * data already encoded in a carrier that more files are appended to.
+	 *
+	 * @param bitsToSkip Number of bits to skip
+	 */
+	public abstract void skipBits(long bitsToSkip);
+
+	/**
+	 * Returns whether the data encoded from now on can be scattered over the carrier, which requires the carrier to be
+	 * writable in any order. False by default.
+	 *
+	 * @return True if scatter() can be called, false otherwise
+	 */
+	public boolean canScatter() {
+		return false;
+	}
+
+	/**
+	 * Scatters the data encoded from now on over the rest of the carrier, in the order selected by the key, starting
+	 * from the first pixel or PCM byte no bits have been written to yet. Bits are still handed to the encoder in the
+	 * same order, and the order only decides where they end up, so the decoder reads them back by calling
+	 * Decoder.scatter() with the same key at the same position.
+	 *
+	 * @param orderKey Key selecting the order, as derived by Crypto.deriveSubkey()
+	 * @throws UnsupportedOperationException If the carrier can only be written in order, see canScatter()
+	 * @see nsteg.nsteg_utils.EmbeddingOrder
+	 */
+	public void scatter(@NotNull byte[] orderKey) {
+		throw new UnsupportedOperationException("Carrier can only be written in order");
+	}
+
+	/**
+	 * Scatters the segments encoded from now on, in the order derived from the key encrypting them.
+	 *
+	 * @param encoder Encoder to scatter the segments of, which has just encoded the table of contents
+	 * @param key     Key derived by Crypto.deriveKey() to encrypt the segments with
+	 * @throws GeneralSecurityException If the key selecting the order cannot be derived
+	 */
+	public static void scatterSegments(@NotNull Encoder encoder, @NotNull byte[] key) throws GeneralSecurityException {
+		byte[] orderKey = Crypto.deriveSubkey(key, ORDER_KEY_PURPOSE);
+		try {
+			encoder.scatter(orderKey);
+		} finally {
+			Arrays.fill(orderKey, (byte) 0);
+		}
+	}
+
+	/**
+	 * Returns the number of bits that can be encoded into the carrier, including the bits used by the header.
+	 *
+	 * @param LSBsToUse Number of least significant bits to use during the encoding process
+	 * @return Capacity of the carrier, in bits
+	 */
+	public abstract long getCapacity(int LSBsToUse);
+
+	/**
+	 * Determines if the files to be hidden actually fit in the media file chosen by the user. If they do not fit,
 	 * errors are printed and the encoding process will stop.
 	 *
-	 * @param fileSizeInBits  Size of the file to be hidden, in bits. Aside from the space required to encode the data
-	 *                        itself, one 32 bit chunks are required to encode the compressed size of of the data
-	 * @param numOfFiles      Number of files that are to be encoded. This is relevant because each file has its
-	 *                        length stored, which occupies 32 bits, as well as its name, whose length also
-	 *                        occupies 32 bits. This value is also encoded, using 32 bits
-	 * @param fileNameLengths Combined lengths of the names of the files that are to be encoded. This number
-	 *                        represents the number of bytes that are required to store all the file names, not bits
-	 * @param LSBsToUse       Number of least significant bits to use during the encoding process. This value will be
-	 *                        encoded, using 4 bits
-	 * @param encrypted       True if encryption is to be used, false otherwise. If true, the AAD data, IV and salt
-	 *                        must be written. The number of bits they use can be seen in the Crypto class
-	 * @return True if the file will fit inside the media file, false otherwise
-	 */
-	protected abstract boolean doesFileFit(int fileSizeInBits, int numOfFiles, int fileNameLengths, int LSBsToUse,
-										   boolean encrypted);
-
-	/**
-	 * Initializes and returns the encoder implementation capable of handling the media file entered by the user.
+	 * @param requiredBits Number of bits needed to encode the files, as returned by getRequiredBits()
+	 * @param LSBsToUse    Number of least significant bits to use during the encoding process
+	 * @return True if the files will fit inside the media file, false otherwise
+	 */
+	protected abstract boolean doesFileFit(long requiredBits, int LSBsToUse);
+
+	/**
+	 * Returns the number of bits needed to encode files into a carrier, header and table of contents included.
+	 *
+	 * @param fileNames    Names of the files that are to be encoded
+	 * @param fileSizes    Uncompressed sizes of the files
+	 * @param segmentSizes Sizes of the segments holding the files, as returned by getSegmentSize()
+	 * @param encrypted    True if the files are to be encrypted, false otherwise
+	 * @return Number of bits the carrier must be able to hold
+	 */
+	public static long getRequiredBits(@NotNull String[] fileNames, @NotNull long[] fileSizes,
+									   @NotNull long[] segmentSizes, boolean encrypted) {
+		long requiredBits = LSB_BITS_COUNT + Integer.SIZE + FLAGS_BITS_COUNT + MAX_PADDING_BITS +
+							(long) getVarintSize(fileNames.length) * Byte.SIZE;
+		for (int i = 0; i < fileNames.length; i++) {
+			int fileNameLength = fileNames[i].getBytes().length;
+			requiredBits += (getVarintSize(fileNameLength) + fileNameLength + getVarintSize(fileSizes[i]) +
+							 getVarintSize(segmentSizes[i]) + segmentSizes[i]) * Byte.SIZE;
+		}
+		if (encrypted)
+			requiredBits += Crypto.SALT_SIZE_BITS;
+		return requiredBits;
+	}
+
+	/**
+	 * Returns the size of the segment holding a compressed file, which is larger than the file if it is encrypted, by
+	 * the IV and authentication tag of each of its chunks.
+	 *
+	 * @param compSize  Size of the compressed file
+	 * @param encrypted True if the segment is encrypted, false otherwise
+	 * @return Size of the segment
+	 */
+	public static long getSegmentSize(long compSize, boolean encrypted) {
+		if (!encrypted)
+			return compSize;
+		long chunks = Math.max(1, (compSize + SEGMENT_CHUNK_SIZE - 1) / SEGMENT_CHUNK_SIZE);
+		return compSize + chunks * SEGMENT_CRYPTO_OVERHEAD;
+	}
+
+	/**
+	 * Returns the size of the compressed file held in a segment, which is the inverse of getSegmentSize().
+	 *
+	 * @param segmentSize Size of the segment
+	 * @param encrypted   True if the segment is encrypted, false otherwise
+	 * @return Size of the compressed file, which is negative if no encrypted segment can be of the given size
+	 */
+	public static long getCompressedSize(long segmentSize, boolean encrypted) {
+		if (!encrypted)
+			return segmentSize;
+		long chunkSize = SEGMENT_CHUNK_SIZE + SEGMENT_CRYPTO_OVERHEAD;
+		long chunks = Math.max(1, (segmentSize + chunkSize - 1) / chunkSize);
+		return segmentSize - chunks * SEGMENT_CRYPTO_OVERHEAD;
+	}
+
+	/**
+	 * Returns the number of bytes a value takes up once encoded as a varint by encodeVarint().
+	 *
+	 * @param value Value to encode, which must not be negative
+	 * @return Size of the varint, from 1 to VARINT_MAX_BYTES
+	 */
+	public static int getVarintSize(long value) {
+		int size = 1;
+		while ((value >>>= 7) != 0)
+			size++;
+		return size;
+	}
+
+	/**
+	 * Encodes a size as a varint. See the class documentation for the layout.
+	 *
+	 * @param encoder Encoder to encode the varint with
+	 * @param value   Value to encode
+	 * @throws IllegalArgumentException If the value is negative
+	 */
+	public static void encodeVarint(@NotNull Encoder encoder, long value) {
+		if (value < 0)
+			throw new IllegalArgumentException("Sizes cannot be negative: " + value);
+
+		byte[] bits = new byte[getVarintSize(value) * Byte.SIZE];
+		for (int b = 0; b < bits.length; b += Byte.SIZE) {
+			int group = (int) (value & 0x7F) | (b + Byte.SIZE < bits.length ? 0x80 : 0);
+			System.arraycopy(BitByteConv.intToBitArray(group, Byte.SIZE), 0, bits, b, Byte.SIZE);
+			value >>>= 7;
+		}
+		encoder.encodeBits(bits);
+	}
+
+	/**
+	 * Generates the associated data authenticating a chunk of an encrypted segment, which ties it to its position in
+	 * the segment, to the entry of the segment in the table of contents, and to the carrier of a stripe set holding it,
+	 * so that chunks and segments cannot be swapped, moved, truncated or resized without decryption failing.
+	 *
+	 * @param stripe      Position of the carrier in its stripe set, or 0 if it is not striped
+	 * @param index       Position of the file in the table of contents
+	 * @param chunk       Position of the chunk in the segment
+	 * @param fileSize    Uncompressed size of the file
+	 * @param segmentSize Size of the segment, including the IV and authentication tag of each chunk
+	 * @return Array to be used as AAD
+	 */
+	public static byte[] genSegmentAAD(int stripe, int index, int chunk, long fileSize, long segmentSize) {
+		return ByteBuffer.allocate(Integer.BYTES * 4 + Long.BYTES * 2).putInt(FORMAT_MAGIC | FORMAT_VERSION_UNALIGNED)
+						 .putInt(stripe).putInt(index).putInt(chunk).putLong(fileSize).putLong(segmentSize).array();
+	}
+
+	/**
+	 * Turns a compressed file into its segment, by encrypting it if a key is given. The segment must be small enough
+	 * to be held in an array, larger files are encoded by encodeSegment() instead.
+	 *
+	 * @param index    Position of the file in the table of contents
+	 * @param fileSize Uncompressed size of the file
+	 * @param compFile File, as compressed by Compressor.deflate()
+	 * @param key      Key derived by Crypto.deriveKey() to encrypt the segment with, or null to not encrypt it
+	 * @return Segment to encode
+	 * @throws GeneralSecurityException If the segment cannot be encrypted
+	 */
+	public static byte[] sealSegment(int index, long fileSize, @NotNull byte[] compFile, byte[] key)
+			throws GeneralSecurityException {
+		if (key == null)
+			return compFile;
+
+		long segmentSize = getSegmentSize(compFile.length, true);
+		ByteBuffer segment = ByteBuffer.allocate((int) segmentSize);
+		int pos = 0, chunk = 0;
+		do {
+			int len = Math.min(SEGMENT_CHUNK_SIZE, compFile.length - pos);
+			segment.put(Crypto.encryptWithKey(Arrays.copyOfRange(compFile, pos, pos + len),
+											  genSegmentAAD(0, index, chunk++, fileSize, segmentSize), key));
+			pos += len;
+		} while (pos < compFile.length);
+		return segment.array();
+	}
+
+	/**
+	 * Encodes the segment holding a compressed file, read from a stream one chunk at a time, encrypting each chunk if
+	 * a key is given. Only a chunk is held in memory at a time, so files of any size can be encoded.
+	 *
+	 * @param encoder  Encoder to encode the segment with
+	 * @param stripe   Position of the carrier in its stripe set, or 0 if it is not striped
+	 * @param index    Position of the file in the table of contents
+	 * @param fileSize Uncompressed size of the file
+	 * @param compFile Stream holding the compressed file, or the piece of it held by the carrier, which is not closed
+	 * @param compSize Size of the compressed file, or of the piece
+	 * @param key      Key derived by Crypto.deriveKey() to encrypt the segment with, or null to not encrypt it
+	 * @throws IOException              If the stream ends before compSize bytes have been read from it
+	 * @throws GeneralSecurityException If the segment cannot be encrypted
+	 */
+	public static void encodeSegment(@NotNull Encoder encoder, int stripe, int index, long fileSize,
+									 @NotNull InputStream compFile, long compSize, byte[] key)
+			throws IOException, GeneralSecurityException {
+		DataInputStream in = new DataInputStream(compFile);
+		long segmentSize = getSegmentSize(compSize, key != null);
+		long pos = 0;
+		int chunk = 0;
+		do {
+			// Encoders may still be reading the array once encodeBytes() returns, so every chunk gets its own
+			byte[] bytes = new byte[(int) Math.min(SEGMENT_CHUNK_SIZE, compSize - pos)];
+			in.readFully(bytes);
+			pos += bytes.length;
+			if (key != null)
+				bytes = Crypto.encryptWithKey(bytes, genSegmentAAD(stripe, index, chunk++, fileSize, segmentSize), key);
+			if (bytes.length > 0)
+				encoder.encodeBytes(bytes);
+		} while (pos < compSize);
+	}
+
+	/**
+	 * Encodes the header and table of contents describing the segments, which follow the number of least significant
+	 * bits encoded by the encoder itself. See the class documentation for the layout.
+	 *
+	 * @param encoder      Encoder to encode the table of contents with
+	 * @param fileNames    Names of the files being encoded
+	 * @param fileSizes    Uncompressed sizes of the files being encoded
+	 * @param segmentSizes Sizes of the segments of the files, which are encoded right after the table of contents
+	 * @param saltBytes    Salt used to derive the encryption key, or null if the segments are not encrypted
+	 */
+	public static void encodeTOC(@NotNull Encoder encoder, @NotNull String[] fileNames, @NotNull long[] fileSizes,
+								 @NotNull long[] segmentSizes, byte[] saltBytes) {
+		encodeTOC(encoder, fileNames, fileSizes, segmentSizes, saltBytes, false, 0, 0, 1);
+	}
+
+	/**
+	 * Encodes the header and table of contents of a carrier belonging to a stripe set, along with its stripe header.
+	 * See the class documentation for the layout.
+	 *
+	 * @param encoder      Encoder to encode the table of contents with
+	 * @param fileNames    Names of the files being encoded
+	 * @param fileSizes    Uncompressed sizes of the files being encoded
+	 * @param segmentSizes Sizes of the pieces of the files held by the carrier
+	 * @param saltBytes    Salt used to derive the encryption key, or null if the segments are not encrypted
+	 * @param scattered    True if the segments will be scattered by scatterSegments(), which requires a salt
+	 * @param stripeSet    ID shared by all the carriers of the stripe set
+	 * @param stripe       Position of the carrier in the stripe set
+	 * @param stripes      Number of carriers in the stripe set, or 1 to encode a carrier that is not striped
+	 */
+	public static void encodeTOC(@NotNull Encoder encoder, @NotNull String[] fileNames, @NotNull long[] fileSizes,
+								 @NotNull long[] segmentSizes, byte[] saltBytes, boolean scattered, long stripeSet,
+								 int stripe, int stripes) {
+		int flags = (saltBytes != null ? FLAG_ENCRYPTED : 0) | (stripes > 1 ? FLAG_STRIPED : 0) |
+					(scattered && saltBytes != null ? FLAG_SCATTERED : 0);
+		encoder.encodeBits(BitByteConv.intToBitArray(FORMAT_MAGIC | FORMAT_VERSION, Integer.SIZE));
+		encoder.encodeBits(BitByteConv.intToBitArray(flags, FLAGS_BITS_COUNT));
+		if (saltBytes != null)
+			encoder.encodeBytes(saltBytes);
+		if (stripes > 1) {
+			encoder.encodeBytes(ByteBuffer.allocate(Long.BYTES).putLong(stripeSet).array());
+			encodeVarint(encoder, stripe);
+			encodeVarint(encoder, stripes);
+		}
+
+		encodeEntries(encoder, fileNames, fileSizes, segmentSizes);
+	}
+
+	/**
+	 * Encodes the flags and table of contents of an append block, which holds files appended to a carrier, right after
+	 * the last segment of the carrier. See the class documentation for the layout.
+	 *
+	 * @param encoder      Encoder to encode the block with, positioned right after the last segment
+	 * @param fileNames    Names of the files being appended
+	 * @param fileSizes    Uncompressed sizes of the files being appended
+	 * @param segmentSizes Sizes of the segments of the files, which are encoded right after the table of contents
+	 * @see #append(String, String[], String)
+	 */
+	public static void encodeAppendedTOC(@NotNull Encoder encoder, @NotNull String[] fileNames,
+										 @NotNull long[] fileSizes, @NotNull long[] segmentSizes) {
+		encoder.encodeBits(BitByteConv.intToBitArray(0, FLAGS_BITS_COUNT)); // Set once another block is appended
+		encodeEntries(encoder, fileNames, fileSizes, segmentSizes);
+	}
+
+	/*
+	 * Encodes the number of files and their entries in a table of contents, followed by the padding up to the first
+	 * segment.
+	 */
+	private static void encodeEntries(Encoder encoder, String[] fileNames, long[] fileSizes, long[] segmentSizes) {
+		encodeVarint(encoder, fileNames.length);
+		for (int i = 0; i < fileNames.length; i++) {
+			byte[] fileNameBytes = fileNames[i].getBytes();
+			encodeVarint(encoder, fileNameBytes.length);
+			encoder.encodeBytes(fileNameBytes);
+			encodeVarint(encoder, fileSizes[i]);
+			encodeVarint(encoder, segmentSizes[i]);
+		}
+		encoder.align();
+	}
+
+	/**
+	 * Initializes and returns the encoder implementation capable of handling the media file entered by the user. If
+	 * both the input and output files are PNG images that can be streamed, a RasterEncoder is returned, which writes
+	 * the output file while the data is being encoded, instead of decoding the whole image into memory first. BMP
+	 * and uncompressed TIFF carriers written to the same format are copied and encoded into in place, through a
+	 * MappedImageRaster, and the same goes for 16 bit PCM WAV carriers written to WAV, through a mapped AudEncoder.
+	 * <p><br>
+	 * Runs on worker threads, so it prints no progress of its own, which is left to the thread waiting for it.
 	 *
 	 * @param file      Name of media file to be used for encoding
+	 * @param outFile   Name of the media file that will hold the encoded data
 	 * @param LSBsToUse Number of least significant bits to use during the encoding process
 	 * @return Initialized encoder, ready to start encoding data
 	 */
-	private static Encoder getEncoder(@NotNull String file, int LSBsToUse) {
-		Spinner.printWithSpinner("Loading media file to encode file into... ");
-
+	private static Encoder getEncoder(@NotNull String file, @NotNull String outFile, int LSBsToUse,
+									  boolean randomAccess) {
 		String[] split = file.split("\\.");
 		String fileExt = split[split.length - 1];
 
+		split = outFile.split("\\.");
+		String outFileExt = split[split.length - 1];
+
 		Encoder encoder = null;
 
 		if (inImgFormats.contains(fileExt)) {
+			if (!randomAccess && "png".equalsIgnoreCase(fileExt) && "png".equalsIgnoreCase(outFileExt) &&
+				PNGStreamRaster.isStreamable(file)) {
+				try {
+					encoder = new RasterEncoder(new PNGStreamRaster(file, outFile), LSBsToUse);
+				} catch (IOException ignored) {
+				}
+			} else if (isSameFormat(fileExt, outFileExt) && MappedImageRaster.isMappable(file)) {
+				try {
+					encoder = new RasterEncoder(new MappedImageRaster(file, outFile), LSBsToUse);
+				} catch (IOException ignored) {
+				}
+			}
+
 			try {
-				encoder = new ImgEncoder(ImageIO.read(new File(file)), LSBsToUse);
+				if (encoder == null)
+					encoder = new ImgEncoder(CarrierCache.readImage(file), LSBsToUse);
 			} catch (IOException ignored) {
 			}
-		} else if (inAudFormats.contains(fileExt))
-			encoder = new AudEncoder(file, LSBsToUse);
-		else
+		} else if (inAudFormats.contains(fileExt)) {
+			if ("wav".equalsIgnoreCase(fileExt) && "wav".equalsIgnoreCase(outFileExt) &&
+				AudioProcessor.isMappableWAV(file)) {
+				try {
+					encoder = new AudEncoder(file, outFile, LSBsToUse);
+				} catch (IOException ignored) {
+				}
+			}
+
+			if (encoder == null)
+				encoder = new AudEncoder(file, LSBsToUse);
+		} else
 			System.err.println("File format not supported.");
 
-		Spinner.end();
 		return encoder;
 	}
 
+	/*
+	 * Determines whether two file extensions refer to the same BMP or TIFF format, which is required to encode into a
+	 * copy of the carrier.
+	 */
+	private static boolean isSameFormat(String fileExt, String outFileExt) {
+		fileExt = fileExt.toLowerCase().replace("tiff", "tif");
+		outFileExt = outFileExt.toLowerCase().replace("tiff", "tif");
+		return fileExt.equals(outFileExt) && ("bmp".equals(fileExt) || "tif".equals(fileExt));
+	}
+
 	/**
 	 * Encodes any number file(s) into a media file, by inserting the bits of the file(s) into the least significant
 	 * bits of the media file. For images, the least significant bits used are those from the RGB or ARGB channels, in
@@ -151,12 +642,18 @@ public abstract class Encoder {
 	 * derived by scrypt, which is generated by a user chosen password, and a random salt. The file(s) is/are always
 	 * compressed before any encryption happens.
 	 * <p><br>
-	 * Instead of encoding each file individually, the files are loaded into a byte array, which contains all the
-	 * files. Since the sizes of each file are encoded too, the files can be separated during the decoding phase.
+	 * Each file is read and compressed as a stream, into memory or, for large files, into a temporary file, and each
+	 * segment is encrypted and encoded one chunk at a time, so the size of the files is only limited by the capacity
+	 * of the carrier.
+	 * <p><br>
+	 * The media file is decoded and the key derived on worker threads, while the files are loaded and compressed, so
+	 * encoding takes about as long as the slowest of these, rather than all of them in turn. The user is asked whether
+	 * to encrypt, and for the password, before any of them starts.
 	 *
 	 * @param origMediaPath Path and name to image into which to encode the data
 	 * @param filesToEncode Array of strings containing the filenames of the files to be encoded, complete with their
-	 *                      respective file extensions
+	 *                      respective file extensions. Directories are encoded with every file they hold, see
+	 *                      expandDirectories()
 	 * @param outMediaName  Path and name of the desired output image (copy of the original + file data)
 	 * @param LSBsToUse     Number of least significant bits to use in each color channel. Using more bits will result
 	 *                      in a greater visual deviation from the original. Range is 1-8. Recommended is 1-3
@@ -170,96 +667,738 @@ public abstract class Encoder {
 	 */
 	public static void encode(@NotNull String origMediaPath, @NotNull String[] filesToEncode,
 							  @NotNull String outMediaName, int LSBsToUse, Boolean encrypt, String pass) {
-		int[] fileSizes = new int[filesToEncode.length];
-		byte[] dataBytes = loadFiles(filesToEncode, fileSizes);
-		if (dataBytes == null)
+		encode(origMediaPath, filesToEncode, outMediaName, LSBsToUse, encrypt, pass, false);
+	}
+
+	/**
+	 * Encodes any number of files into a media file, like encode(), optionally scattering the encrypted segments over
+	 * the media file in an order derived from the password instead of writing them sequentially. See the class
+	 * documentation. Scattering requires encryption, and media files that would otherwise be streamed are loaded
+	 * instead, so that they can be written in any order.
+	 *
+	 * @param origMediaPath Path and name to image into which to encode the data
+	 * @param filesToEncode Array of strings containing the filenames of the files or directories to be encoded
+	 * @param outMediaName  Path and name of the desired output image
+	 * @param LSBsToUse     Number of least significant bits to use in each color channel. See encode()
+	 * @param encrypt       True to encrypt the file(s), false otherwise. See encode()
+	 * @param pass          Password to use for encryption. See encode()
+	 * @param scatter       True to scatter the segments over the media file, false to write them sequentially
+	 */
+	public static void encode(@NotNull String origMediaPath, @NotNull String[] filesToEncode,
+							  @NotNull String outMediaName, int LSBsToUse, Boolean encrypt, String pass,
+							  boolean scatter) {
+		List<String> names = new ArrayList<>();
+		filesToEncode = expandDirectories(filesToEncode, names);
+		if (filesToEncode == null)
+			return;
+		String[] fileNames = names.toArray(new String[0]);
+		if (encrypt == null)
+			encrypt = Crypto.offerToCrypt(true);
+		if (scatter && !encrypt) {
+			System.err.println("Data can only be scattered over the media file if it is encrypted");
+			return;
+		}
+
+		// The password is read before any other stage starts, so that its prompt is not mixed with their progress
+		byte[] saltBytes = encrypt ? Crypto.genSalt() : null;
+		char[] password = !encrypt ? null : pass == null ? Crypto.readPassword(true) : pass.toCharArray();
+
+		// The media file is decoded, and the key derived, by worker threads while the files are loaded and compressed,
+		// since none of them depends on the others. Neither worker prints anything, and the calling thread reports
+		// the progress of each stage while waiting for it
+		FutureTask<Encoder> load = WorkerPool.submit(() -> getEncoder(origMediaPath, outMediaName, LSBsToUse,
+																	  scatter));
+		FutureTask<byte[]> derivation = password == null ? null : WorkerPool.submit(() -> {
+			try {
+				return Crypto.deriveKey(password, saltBytes);
+			} finally {
+				Arrays.fill(password, '\0'); // Wipe from memory
+			}
+		});
+
+		long[] fileSizes = new long[filesToEncode.length];
+		PayloadStore[] compFiles = loadFiles(filesToEncode, fileSizes);
+		Spinner.printWithSpinner("Loading media file to encode file into... ");
+		Encoder encoder = joinQuietly(load);
+		byte[] key = null;
+		if (derivation != null) {
+			Spinner.printWithSpinner("Deriving key... ");
+			key = joinQuietly(derivation);
+		}
+		Spinner.end();
+		if (derivation != null && key == null)
+			System.err.println("Encryption failed");
+		if (compFiles == null || encoder == null || (encrypt && key == null)) {
+			discard(encoder);
+			if (compFiles != null)
+				closeAll(compFiles);
+			if (key != null)
+				Arrays.fill(key, (byte) 0);
+			return;
+		}
+
+		// Size of the segments, accounting for the IV and authentication tag of each chunk, if encryption is to be used
+		long[] compSizes = getCompressedSizes(compFiles, fileSizes);
+		long[] segmentSizes = new long[filesToEncode.length];
+		for (int i = 0; i < segmentSizes.length; i++)
+			segmentSizes[i] = getSegmentSize(compSizes[i], encrypt);
+
+		if (!encoder.doesFileFit(getRequiredBits(fileNames, fileSizes, segmentSizes, encrypt), LSBsToUse)) {
+			discard(encoder);
+			closeAll(compFiles);
+			if (key != null)
+				Arrays.fill(key, (byte) 0);
+			return;
+		}
+
+		if (!scatter)
+			startStreaming(encoder, outMediaName);
+
+		Spinner.printWithSpinner("Encoding metadata... ");
+		encodeTOC(encoder, fileNames, fileSizes, segmentSizes, saltBytes, scatter, 0, 0, 1);
+
+		Spinner.printWithSpinner("Encoding data to media file... ");
+		try {
+			if (scatter)
+				scatterSegments(encoder, key);
+			for (int i = 0; i < compFiles.length; i++) {
+				try (InputStream compFile = compFiles[i].openStream()) {
+					encodeSegment(encoder, 0, i, fileSizes[i], compFile, compSizes[i], key);
+				}
+			}
+		} catch (IOException | GeneralSecurityException e) {
+			Spinner.end();
+			System.err.println(e instanceof IOException ? "Error loading file(s) to be hidden" : "Encryption failed");
+			discard(encoder);
+			return;
+		} finally {
+			if (key != null)
+				Arrays.fill(key, (byte) 0);
+			closeAll(compFiles);
+		}
+		encoder.stopThreads();
+		writeOutput(encoder, outMediaName);
+
+		System.out.println("Done!\n");
+	}
+
+	/**
+	 * Encodes any number of files into several media files at once, by striping them across the media files, so that
+	 * files too large for any single media file can be encoded without using more least significant bits. The media
+	 * files are loaded, encoded and written in parallel, each on its own thread, and may be any mix of images and
+	 * audio files. All of them are needed to decode the files. See the class documentation for the layout.
+	 *
+	 * @param origMediaPaths Paths and names of the media files to encode the files into, in the order of the stripes
+	 * @param filesToEncode  Array of strings containing the filenames of the files or directories to be encoded
+	 * @param outMediaNames  Paths and names of the output media files, in the same order as origMediaPaths
+	 * @param LSBsToUse      Number of least significant bits to use in each channel or PCM byte, of every media file
+	 * @param encrypt        True to encrypt the file(s), false otherwise. See encode()
+	 * @param pass           Password to use for encryption. See encode()
+	 * @param scatter        True to scatter the pieces over each media file, which requires encryption. See encode()
+	 */
+	public static void encodeStriped(@NotNull String[] origMediaPaths, @NotNull String[] filesToEncode,
+									 @NotNull String[] outMediaNames, int LSBsToUse, Boolean encrypt, String pass,
+									 boolean scatter) {
+		int stripes = origMediaPaths.length;
+		if (stripes < 2 || stripes > MAX_STRIPES || outMediaNames.length != stripes) {
+			System.err.println("Files can only be striped across 2 to " + MAX_STRIPES + " media files, each with " +
+							   "its own output file");
 			return;
+		}
+		List<String> names = new ArrayList<>();
+		String[] files = expandDirectories(filesToEncode, names);
+		if (files == null)
+			return;
+		String[] fileNames = names.toArray(new String[0]);
 
-		double origByteSize = dataBytes.length;
-		dataBytes = Compressor.compress(dataBytes);
+		long[] fileSizes = new long[files.length];
+		PayloadStore[] compFiles = loadFiles(files, fileSizes);
+		if (compFiles == null)
+			return;
 
+		long[] compSizes = getCompressedSizes(compFiles, fileSizes);
 		if (encrypt == null)
 			encrypt = Crypto.offerToCrypt(true);
+		if (scatter && !encrypt) {
+			System.err.println("Data can only be scattered over the media files if it is encrypted");
+			closeAll(compFiles);
+			return;
+		}
 
-		// Size of all the files being encoded, before compression
-		byte[] uncompFileSizeBits = BitByteConv.intToBitArray((int) origByteSize, SIZE_BITS_COUNT);
+		// Decoding the carriers takes longest, so they are all loaded at once, while the calling thread reports progress
+		Spinner.printWithSpinner("Loading media files to encode file into... ");
+		List<FutureTask<Encoder>> loads = new ArrayList<>(stripes);
+		for (int k = 0; k < stripes; k++) {
+			int stripe = k;
+			loads.add(WorkerPool.submit(() -> getEncoder(origMediaPaths[stripe], outMediaNames[stripe], LSBsToUse,
+																	 scatter)));
+		}
+		Encoder[] encoders = new Encoder[stripes];
+		long[] capacities = new long[stripes];
+		boolean loaded = true;
+		for (int k = 0; k < stripes; k++) {
+			try {
+				encoders[k] = WorkerPool.join(loads.get(k));
+			} catch (ExecutionException | InterruptedException ignored) {
+			}
+			if (encoders[k] == null)
+				loaded = false;
+			else
+				capacities[k] = encoders[k].getCapacity(LSBsToUse);
+		}
+		Spinner.end();
 
-		// Compressed size of the file(s), accounting for the InitVector and AAD data bits, if encryption is to be used
-		int compSize = dataBytes.length + (encrypt ? Crypto.AES_IV_SIZE + Crypto.GCM_AAD_SIZE / Byte.SIZE : 0);
-		byte[] compFileSizeBits = BitByteConv.intToBitArray(compSize, Integer.SIZE);
+		long[][] pieceSizes = splitStripes(compSizes, capacities);
+		long[][] segmentSizes = new long[stripes][files.length];
+		boolean fits = loaded;
+		for (int k = 0; k < stripes && fits; k++) {
+			for (int i = 0; i < files.length; i++)
+				segmentSizes[k][i] = getSegmentSize(pieceSizes[k][i], encrypt);
+			long requiredBits = getRequiredBits(fileNames, fileSizes, segmentSizes[k], encrypt) +
+								STRIPE_SET_BITS_COUNT + (getVarintSize(k) + getVarintSize(stripes)) * Byte.SIZE;
+			fits = encoders[k].doesFileFit(requiredBits, LSBsToUse);
+		}
 
-		int fileNameLengths = 0;
-		for (String s : filesToEncode)
-			fileNameLengths += s.length();
+		byte[] saltBytes = encrypt ? Crypto.genSalt() : null, key = null;
+		if (!fits || (encrypt && (key = deriveKey(pass, saltBytes)) == null)) {
+			for (Encoder encoder : encoders)
+				discard(encoder);
+			closeAll(compFiles);
+			return;
+		}
 
-		Encoder encoder = getEncoder(origMediaPath, LSBsToUse);
-		if (encoder == null || !encoder.doesFileFit(dataBytes.length * Byte.SIZE, filesToEncode.length,
-													fileNameLengths, LSBsToUse, encrypt))
+		long stripeSet = new SecureRandom().nextLong();
+		byte[] segmentKey = key;
+		Spinner.printWithSpinner("Encoding data to " + stripes + " media files... ");
+		List<FutureTask<Void>> jobs = new ArrayList<>(stripes);
+		for (int k = 0; k < stripes; k++) {
+			int stripe = k;
+			Encoder encoder = encoders[k];
+			if (!scatter)
+				startStreaming(encoder, outMediaNames[k]);
+			jobs.add(WorkerPool.submit(() -> {
+				try {
+					encodeTOC(encoder, fileNames, fileSizes, segmentSizes[stripe], saltBytes, scatter, stripeSet,
+							  stripe, stripes);
+					if (scatter)
+						scatterSegments(encoder, segmentKey);
+					for (int i = 0; i < files.length; i++) {
+						try (InputStream compFile = compFiles[i].openStream()) {
+							// The piece held by this carrier follows the pieces held by the carriers before it
+							long pieceStart = 0;
+							for (int j = 0; j < stripe; j++)
+								pieceStart += pieceSizes[j][i];
+							skipFully(compFile, pieceStart);
+							encodeSegment(encoder, stripe, i, fileSizes[i], compFile, pieceSizes[stripe][i],
+										  segmentKey);
+						}
+					}
+				} catch (IOException | GeneralSecurityException e) {
+					discard(encoder);
+					throw e;
+				}
+				encoder.stopThreads();
+				writeOutput(encoder, outMediaNames[stripe]);
+				return null;
+			}));
+		}
+
+		try {
+			for (FutureTask<Void> job : jobs)
+				WorkerPool.join(job);
+			System.out.println("Done!\n");
+		} catch (ExecutionException | InterruptedException e) {
+			Spinner.end();
+			System.err.println(e.getCause() instanceof GeneralSecurityException ? "Encryption failed" :
+							   "Error loading file(s) to be hidden");
+		} finally {
+			if (key != null)
+				Arrays.fill(key, (byte) 0);
+			closeAll(compFiles);
+		}
+	}
+
+	/**
+	 * Appends files to a media file already holding files encoded by this program, without re-encoding those. The
+	 * existing segments are neither read, decrypted nor recompressed: the new files are encoded as an append block
+	 * right after the last segment, and the flags of the last block are then set to FLAG_APPENDED, which is the only
+	 * change made to the existing data. See the class documentation for the layout.
+	 * <p><br>
+	 * BMP, uncompressed TIFF and 16 bit PCM WAV media files are memory mapped and written in place, so only the pixels
+	 * or PCM bytes holding the new block and the flags are written, and appending takes time proportional to the size
+	 * of the new files, however large the media file. Other media files are loaded, written out whole to a temporary
+	 * file once done, and then replaced by it in a single move. Either way, the flags are only set once the block is
+	 * complete, so a failed append leaves the files encoded before it readable.
+	 * <p><br>
+	 * The new files are encrypted if the existing ones are, with the same key, so the password must be the one they
+	 * were encrypted with, which is checked against the first segment. Media files whose segments are scattered or
+	 * striped, and media files encoded before the table of contents was introduced, cannot be appended to.
+	 *
+	 * @param mediaFile     Media file to append files to, which is modified in place
+	 * @param filesToAppend Names of the files or directories to append, none of whose files may already be encoded in
+	 *                      the media file
+	 * @param pass          Password the existing files are encrypted with, if they are. See encode()
+	 */
+	public static void append(@NotNull String mediaFile, @NotNull String[] filesToAppend, String pass) {
+		List<String> names = new ArrayList<>();
+		filesToAppend = expandDirectories(filesToAppend, names);
+		if (filesToAppend == null)
 			return;
+		String[] fileNames = names.toArray(new String[0]);
 
-		byte[] saltBytes = null;
-		if (encrypt) {
-			// Encrypt the data, and use the uncompressed and compressed sizes of the file(s) as AAD
-			byte[][] saltAndDataBits = Crypto.encrypt(dataBytes, Crypto.genAAD(uncompFileSizeBits, compFileSizeBits),
-													  pass);
-			saltBytes = saltAndDataBits[0]; // Salt bytes, which are the last part of the header to be encoded
-			dataBytes = saltAndDataBits[1]; // Encrypted data, with IV and AAD
+		Spinner.printWithSpinner("Reading the table of contents of the media file... ");
+		Decoder.Header header = Decoder.probeBlocks(mediaFile);
+		Spinner.end();
+		if (header == null) {
+			System.err.println("No table of contents was found in the media file, so no files can be appended to it");
+			return;
+		}
+		if (header.scattered || header.isStriped()) {
+			System.err.println("Files cannot be appended to media files whose data is scattered or striped");
+			return;
+		}
+		if (header.fileNames.length + filesToAppend.length > MAX_FILES) {
+			System.err.println("A media file can hold at most " + MAX_FILES + " files");
+			return;
+		}
+		for (String name : fileNames) {
+			if (Arrays.asList(header.fileNames).contains(name)) {
+				System.err.println("The file \"" + name + "\" is already encoded in the media file");
+				return;
+			}
 		}
 
-		Spinner.printWithSpinner("Encoding metadata... ");
-		encoder.encodeBits(BitByteConv.intToBitArray(filesToEncode.length, SIZE_BITS_COUNT));
-		for (String fileName : filesToEncode) {
-			encoder.encodeBits(BitByteConv.intToBitArray(fileName.length(), SIZE_BITS_COUNT));
-			encoder.encodeBytes(fileName.getBytes());
+		byte[] key = null;
+		if (header.salt != null) {
+			char[] password = pass == null ? Crypto.readPassword(false) : pass.toCharArray();
+			Spinner.printWithSpinner("Deriving key... ");
+			try {
+				key = Crypto.deriveKey(password, header.salt);
+			} catch (GeneralSecurityException ignored) {
+				// Reported below, along with a wrong password
+			} finally {
+				Arrays.fill(password, '\0'); // Wipe from memory
+			}
+			Spinner.end();
+			if (key == null || !Decoder.checkKey(mediaFile, key)) {
+				System.err.println("Decryption failed, the password is not the one the media file was encrypted with");
+				return;
+			}
 		}
-		for (int fileSize : fileSizes)
-			encoder.encodeBits(BitByteConv.intToBitArray(fileSize, SIZE_BITS_COUNT));
-		encoder.encodeBits(compFileSizeBits);
 
-		if (encrypt)
-			encoder.encodeBytes(saltBytes);
+		long[] fileSizes = new long[filesToAppend.length];
+		PayloadStore[] compFiles = loadFiles(filesToAppend, fileSizes);
+		if (compFiles == null) {
+			if (key != null)
+				Arrays.fill(key, (byte) 0);
+			return;
+		}
+		long[] compSizes = getCompressedSizes(compFiles, fileSizes);
+		long[] segmentSizes = new long[filesToAppend.length];
+		for (int i = 0; i < segmentSizes.length; i++)
+			segmentSizes[i] = getSegmentSize(compSizes[i], key != null);
+
+		// The block takes as many bits as a table of contents, less the format magic and the salt
+		int LSBsToUse = header.LSBsToUse;
+		long requiredBits = header.getBlockEnd() + getRequiredBits(fileNames, fileSizes, segmentSizes, false) -
+							Integer.SIZE;
+		Encoder encoder = getAppendEncoder(mediaFile, LSBsToUse);
+		if (encoder == null || !encoder.doesFileFit(requiredBits, LSBsToUse)) {
+			discard(encoder);
+			closeAll(compFiles);
+			if (key != null)
+				Arrays.fill(key, (byte) 0);
+			return;
+		}
 
+		boolean inPlace = encoder instanceof RasterEncoder ||
+						  (encoder instanceof AudEncoder && ((AudEncoder) encoder).isMapped());
+		byte[] flags = BitByteConv.intToBitArray((header.blockStart == 0 && key != null ? FLAG_ENCRYPTED : 0) |
+												 FLAG_APPENDED, FLAGS_BITS_COUNT);
 		Spinner.printWithSpinner("Encoding data to media file... ");
-		encoder.encodeBytes(dataBytes);
+		try {
+			if (inPlace)
+				encoder.skipBits(header.getBlockEnd());
+			else {
+				// Loaded media files are only written once the block is complete, so the flags are set on the way
+				encoder.skipBits(header.flagsPosition);
+				encoder.encodeBits(flags);
+				encoder.skipBits(header.getBlockEnd() - header.flagsPosition - FLAGS_BITS_COUNT);
+			}
+
+			encodeAppendedTOC(encoder, fileNames, fileSizes, segmentSizes);
+			for (int i = 0; i < compFiles.length; i++) {
+				try (InputStream compFile = compFiles[i].openStream()) {
+					encodeSegment(encoder, 0, header.fileNames.length + i, fileSizes[i], compFile, compSizes[i], key);
+				}
+			}
+		} catch (IOException | GeneralSecurityException e) {
+			Spinner.end();
+			System.err.println(e instanceof IOException ? "Error loading file(s) to be hidden" : "Encryption failed");
+			discard(encoder);
+			return;
+		} finally {
+			if (key != null)
+				Arrays.fill(key, (byte) 0);
+			closeAll(compFiles);
+		}
 		encoder.stopThreads();
 
+		if (inPlace) {
+			if (hasFailed(encoder))
+				return;
+			// The block is complete, so the flags of the block before it can now point to it
+			encoder = getAppendEncoder(mediaFile, LSBsToUse);
+			if (encoder == null) {
+				System.err.println("Error writing encoded media file");
+				return;
+			}
+			encoder.skipBits(header.flagsPosition);
+			encoder.encodeBits(flags);
+			encoder.stopThreads();
+			writeOutput(encoder, mediaFile);
+		} else if (!replaceMediaFile(encoder, mediaFile))
+			return;
+
+		System.out.println("Done!\n");
+	}
+
+	/*
+	 * Writes a loaded media file that files were appended to into a temporary file in the same directory, which then
+	 * replaces the media file, so that the media file is left as it was if writing fails. Returns whether the media
+	 * file was replaced.
+	 */
+	private static boolean replaceMediaFile(Encoder encoder, String mediaFile) {
+		Spinner.end();
+		System.out.println();
+		Spinner.printWithSpinner("Writing encoded media file to disk... ");
+
+		Path media = Paths.get(mediaFile).toAbsolutePath();
+		String name = media.getFileName().toString();
+		Path tempFile = null;
+		try {
+			// The extension of the media file is kept, since it determines the format it is written in
+			tempFile = Files.createTempFile(media.getParent(), name, name.substring(name.lastIndexOf('.')));
+			if (encoder instanceof ImgEncoder)
+				ImageProcessor.writeImage(((ImgEncoder) encoder).getImg(), tempFile.toString(),
+										  new ParallelPNGWriter());
+			else
+				AudioProcessor.writeAudio(tempFile.toString(), (AudEncoder) encoder);
+
+			try {
+				Files.move(tempFile, media, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile, media, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			Spinner.end();
+			System.err.println("Error writing encoded media file, which was left unchanged");
+			return false;
+		} finally {
+			if (encoder instanceof AudEncoder)
+				((AudEncoder) encoder).release();
+			try {
+				if (tempFile != null)
+					Files.deleteIfExists(tempFile);
+			} catch (IOException ignored) {
+			}
+		}
+
+		Spinner.end();
+		System.out.println("Data encoded successfully into \"" + mediaFile + "\"");
+		return true;
+	}
+
+	/*
+	 * Opens the encoder appending files to a media file. BMP, uncompressed TIFF and 16 bit PCM WAV media files are
+	 * mapped and encoded into in place, and any other media file is loaded, to be written out whole once done.
+	 */
+	private static Encoder getAppendEncoder(String mediaFile, int LSBsToUse) {
+		String[] split = mediaFile.split("\\.");
+		String fileExt = split[split.length - 1];
+
+		Encoder encoder = null;
+		if (outImgFormats.contains(fileExt)) {
+			if (MappedImageRaster.isMappable(mediaFile)) {
+				try {
+					encoder = new RasterEncoder(new MappedImageRaster(mediaFile, true), LSBsToUse);
+				} catch (IOException ignored) {
+				}
+			}
+
+			try {
+				if (encoder == null)
+					encoder = new ImgEncoder(CarrierCache.readImage(mediaFile), LSBsToUse);
+			} catch (IOException ignored) {
+			}
+		} else if (outAudFormats.contains(fileExt)) {
+			if ("wav".equalsIgnoreCase(fileExt) && AudioProcessor.isMappableWAV(mediaFile)) {
+				try {
+					encoder = new AudEncoder(mediaFile, null, LSBsToUse);
+				} catch (IOException ignored) {
+				}
+			}
+
+			if (encoder == null)
+				encoder = new AudEncoder(mediaFile, LSBsToUse);
+		}
+		return encoder;
+	}
+
+	/*
+	 * Returns whether an encoder writing its carrier in place failed to write it when stopThreads() was called.
+	 */
+	private static boolean hasFailed(Encoder encoder) {
+		return encoder instanceof RasterEncoder ? ((RasterEncoder) encoder).hasFailed() :
+			   encoder instanceof AudEncoder && ((AudEncoder) encoder).hasFailed();
+	}
+
+	/*
+	 * Splits each compressed file into one piece per carrier, sized in proportion to the capacity of the carrier, with
+	 * the last carrier holding whatever rounding leaves over.
+	 */
+	private static long[][] splitStripes(long[] compSizes, long[] capacities) {
+		double totalCapacity = 0;
+		for (long capacity : capacities)
+			totalCapacity += capacity;
+
+		long[][] pieceSizes = new long[capacities.length][compSizes.length];
+		for (int i = 0; i < compSizes.length; i++) {
+			long left = compSizes[i];
+			for (int k = 0; k < capacities.length - 1; k++) {
+				pieceSizes[k][i] = Math.min(left, (long) (compSizes[i] * (capacities[k] / totalCapacity)));
+				left -= pieceSizes[k][i];
+			}
+			pieceSizes[capacities.length - 1][i] = left;
+		}
+		return pieceSizes;
+	}
+
+	private static void skipFully(InputStream in, long bytesToSkip) throws IOException {
+		while (bytesToSkip > 0) {
+			long skipped = in.skip(bytesToSkip);
+			if (skipped <= 0)
+				throw new EOFException("File ends before the piece to encode");
+			bytesToSkip -= skipped;
+		}
+	}
+
+	/*
+	 * Returns the size of each compressed file, which is the size of the file itself if it is encoded uncompressed,
+	 * and prints how much compression shrunk the files by.
+	 */
+	private static long[] getCompressedSizes(PayloadStore[] compFiles, long[] fileSizes) {
+		long[] compSizes = new long[compFiles.length];
+		long origByteSize = 0, compByteSize = 0;
+		for (int i = 0; i < compFiles.length; i++) {
+			compSizes[i] = compFiles[i].size();
+			origByteSize += fileSizes[i];
+			compByteSize += compSizes[i];
+		}
+		Compressor.printCompression(origByteSize, compByteSize);
+		return compSizes;
+	}
+
+	/*
+	 * Reads the password, unless one was given, and derives the key encrypting the segments from it. The key is
+	 * derived once, and each chunk of each segment is encrypted with it under its own IV. Returns null if the key
+	 * could not be derived.
+	 */
+	private static byte[] deriveKey(String pass, byte[] saltBytes) {
+		return deriveKey(pass == null ? Crypto.readPassword(true) : pass.toCharArray(), saltBytes);
+	}
+
+	/*
+	 * Derives the key encrypting the segments from a password that was already read, which is then wiped. Returns null
+	 * if the key could not be derived.
+	 */
+	private static byte[] deriveKey(char[] password, byte[] saltBytes) {
+		Spinner.printWithSpinner("Deriving key... ");
+		try {
+			byte[] key = Crypto.deriveKey(password, saltBytes);
+			Spinner.end();
+			return key;
+		} catch (GeneralSecurityException e) {
+			Spinner.end();
+			System.err.println("Encryption failed");
+			return null;
+		} finally {
+			Arrays.fill(password, '\0'); // Wipe from memory
+		}
+	}
+
+	/*
+	 * Starts writing FLAC output files while data is being encoded, for carriers that are neither memory mapped nor
+	 * written as they are encoded already.
+	 */
+	private static void startStreaming(Encoder encoder, String outMediaName) {
+		if (encoder instanceof AudEncoder && !((AudEncoder) encoder).isMapped() &&
+			outMediaName.toLowerCase().endsWith(".flac")) {
+			try {
+				((AudEncoder) encoder).streamTo(outMediaName, FLACPreset.SMALL);
+			} catch (IOException ignored) {
+				// Written once encoding is done instead
+			}
+		}
+	}
+
+	/*
+	 * Writes the encoded carrier to disk, unless it was written while being encoded, once stopThreads() has returned.
+	 */
+	private static void writeOutput(Encoder encoder, String outMediaName) {
 		if (encoder instanceof ImgEncoder)
 			ImageProcessor.writeEncodedImageToDisk(((ImgEncoder) encoder).getImg(), outMediaName);
-		else if (encoder instanceof AudEncoder)
+		else if (encoder instanceof AudEncoder && !((AudEncoder) encoder).isMapped() &&
+				 !((AudEncoder) encoder).isStreamed()) {
 			AudioProcessor.writePCMToDisk(outMediaName, (AudEncoder) encoder);
-
-		System.out.println("Done!\n");
+			((AudEncoder) encoder).release();
+		} else if ((encoder instanceof RasterEncoder && !((RasterEncoder) encoder).hasFailed()) ||
+				 (encoder instanceof AudEncoder && !((AudEncoder) encoder).hasFailed())) {
+			// Output file was written while encoding, and is complete once stopThreads() returns
+			Spinner.end();
+			System.out.println();
+			System.out.println("Data encoded successfully into \"" + outMediaName + "\"");
+		}
 	}
 
 	/**
-	 * Loads any number of files into a continuous byte array. This array is the one that will be compressed, encrypted
-	 * and encoded into the target media file.
+	 * Compresses any number of files, each of which will be optionally encrypted, and encoded into the target media
+	 * file as its own segment. Files are read as streams and compressed into memory, or into a temporary file if they
+	 * are larger than IN_MEMORY_FILE_SIZE, so they never have to fit in an array. Files are loaded in parallel by the
+	 * worker pool, so that many small files, such as the contents of a directory, load at the speed of the disk.
 	 *
 	 * @param filesToEncode Array of strings containing all the filenames of the files that will be encoded in the
 	 *                      media file
-	 * @param fileSizes     Array of the same size as filesToEncode. The sizes of all the files will be written in this
-	 *                      array, as the method loads them in
-	 * @return Byte array containing all the files to encode
+	 * @param fileSizes     Array to store the size of each file in, in the same order as filesToEncode
+	 * @return Array holding each file, compressed unless compression would make it larger, in the same order as
+	 * filesToEncode. Null if a file could not be read
 	 */
-	private static byte[] loadFiles(String[] filesToEncode, int[] fileSizes) {
-		byte[] dataBytes = {};
-		try {
-			Spinner.printWithSpinner("Loading file(s) to encode... ");
-			byte[] tmpDataBytes, tmp;
-			for (int i = 0; i < filesToEncode.length; i++) {
-				tmp = Files.readAllBytes(Paths.get(filesToEncode[i].trim()));
-				fileSizes[i] = tmp.length;
+	private static PayloadStore[] loadFiles(String[] filesToEncode, long[] fileSizes) {
+		PayloadStore[] compFiles = new PayloadStore[filesToEncode.length];
+		Spinner.printWithSpinner("Loading and compressing file(s) to encode... ");
 
-				tmpDataBytes = new byte[dataBytes.length + tmp.length];
-				System.arraycopy(dataBytes, 0, tmpDataBytes, 0, dataBytes.length);
-				System.arraycopy(tmp, 0, tmpDataBytes, dataBytes.length, tmp.length);
+		// Files are independent of each other, so they are read and compressed in parallel, each into its own store
+		List<FutureTask<Void>> loads = new ArrayList<>(filesToEncode.length);
+		for (int i = 0; i < filesToEncode.length; i++) {
+			int index = i;
+			loads.add(WorkerPool.submit(() -> {
+				Path file = Paths.get(filesToEncode[index].trim());
+				fileSizes[index] = Files.size(file);
+				compFiles[index] = PayloadStore.load(file, fileSizes[index], fileSizes[index] > IN_MEMORY_FILE_SIZE);
+				fileSizes[index] = compFiles[index].fileSize();
+				return null;
+			}));
+		}
 
-				dataBytes = tmpDataBytes;
+		// Every load is waited on, even once one has failed, so that none of the stores is left open
+		boolean loaded = true;
+		for (FutureTask<Void> load : loads) {
+			try {
+				WorkerPool.join(load);
+			} catch (ExecutionException | InterruptedException e) {
+				loaded = false;
 			}
-		} catch (IOException e) {
+		}
+		Spinner.end();
+		if (!loaded) {
 			System.err.println("Error loading file(s) to be hidden");
+			closeAll(compFiles);
 			return null;
 		}
-		return dataBytes;
+		return compFiles;
+	}
+
+	/**
+	 * Replaces every directory among the files to encode with the regular files it holds, recursively, in a stable
+	 * order, and determines the name each file is encoded under. Files found in a directory are named by their path
+	 * relative to the parent of the directory, so that decoding them recreates the directory. Other files keep the
+	 * path they were given as, unless it is absolute or leads out of the current directory, in which case they are
+	 * named by their file name alone. Names are separated by '/' on every platform, and are never rejected by
+	 * Decoder.resolveOutput().
+	 *
+	 * @param filesToEncode Names of the files and directories to encode
+	 * @param names         List to add the name each file is encoded under to, in the order of the files returned
+	 * @return Paths of the files to encode, to read them from, or null if a directory could not be read, or holds too
+	 * many files, in which case the error has been printed
+	 */
+	public static String[] expandDirectories(@NotNull String[] filesToEncode, @NotNull List<String> names) {
+		List<String> files = new ArrayList<>(filesToEncode.length);
+		for (String file : filesToEncode) {
+			Path dir = Paths.get(file.trim());
+			if (!Files.isDirectory(dir)) {
+				files.add(file);
+				names.add(getEncodedName(dir));
+				continue;
+			}
+
+			// The root directory has no name, so its files are named by their path relative to it
+			Path base = dir.toAbsolutePath().normalize().getFileName();
+			try (Stream<Path> walk = Files.walk(dir)) {
+				walk.filter(Files::isRegularFile).sorted().forEach(path -> {
+					files.add(path.toString());
+					names.add(toName(base == null ? dir.relativize(path) : base.resolve(dir.relativize(path))));
+				});
+			} catch (IOException | UncheckedIOException e) {
+				System.err.println("The directory \"" + file + "\" cannot be read");
+				return null;
+			}
+		}
+
+		if (files.size() > MAX_FILES) {
+			System.err.println("A media file can hold at most " + MAX_FILES + " files");
+			return null;
+		}
+		return files.toArray(new String[0]);
+	}
+
+	/*
+	 * Returns the name a file given by its path is encoded under: the path itself if it is relative and stays within
+	 * the current directory, or its file name otherwise.
+	 */
+	private static String getEncodedName(Path file) {
+		Path name = file.normalize();
+		if (name.isAbsolute() || name.getRoot() != null || name.startsWith("..") || name.toString().isEmpty())
+			name = file.toAbsolutePath().normalize().getFileName();
+		return name == null ? file.toString() : toName(name);
+	}
+
+	/*
+	 * Joins the elements of a relative path with '/', whatever the separator of the platform.
+	 */
+	private static String toName(Path path) {
+		StringBuilder name = new StringBuilder();
+		for (Path element : path)
+			name.append(name.length() > 0 ? "/" : "").append(element);
+		return name.toString();
+	}
+
+	/*
+	 * Waits for a task submitted to the worker pool, returning null if it failed. Tasks submitted by this class report
+	 * their own errors.
+	 */
+	private static <T> T joinQuietly(FutureTask<T> task) {
+		try {
+			return WorkerPool.join(task);
+		} catch (ExecutionException | InterruptedException e) {
+			return null;
+		}
+	}
+
+	private static void closeAll(PayloadStore[] stores) {
+		for (PayloadStore store : stores) {
+			try {
+				if (store != null)
+					store.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/*
+	 * Discards an encoder that may not have been created.
+	 */
+	private static void discard(Encoder encoder) {
+		if (encoder != null)
+			encoder.discard();
 	}
 }
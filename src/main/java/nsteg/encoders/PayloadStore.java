@@ -0,0 +1,100 @@
+package nsteg.encoders;
+
+import nsteg.nsteg_utils.Compressor;
+import nsteg.processors.PCMStore;
+
+import javax.validation.constraints.NotNull;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A file to encode, as loaded by the Encoder. It holds the file compressed, either in memory or in a temporary file,
+ * using the off-heap segments of a PCMStore, which are not specific to PCM data and let compressed files exceed the
+ * size of an array. If compression does not make the file any smaller, the file itself is encoded instead: a file
+ * loaded into memory keeps the bytes it was compressed from, so exactly the data that was measured is encoded, and
+ * only a file compressed into a temporary file is read again from disk.
+ */
+final class PayloadStore implements Closeable {
+	private final Path file;
+	private final long fileSize, size;
+	private final PCMStore data; // Data to encode, or null if it is read from the file
+
+	private PayloadStore(Path file, long fileSize, long size, PCMStore data) {
+		this.file = file;
+		this.fileSize = fileSize;
+		this.size = size;
+		this.data = data;
+	}
+
+	/**
+	 * Compresses a file into memory or, if asked to, into a temporary file. Files compressed into memory are read whole
+	 * with a single read into an array of their size.
+	 *
+	 * @param file       File to load
+	 * @param fileSize   Size of the file
+	 * @param fileBacked True to compress the file into a temporary file, false to compress it into memory
+	 * @return Store holding the file
+	 * @throws IOException If the file cannot be read, or the temporary file cannot be created
+	 */
+	static PayloadStore load(@NotNull Path file, long fileSize, boolean fileBacked) throws IOException {
+		byte[] bytes = fileBacked ? null : Files.readAllBytes(file);
+		if (bytes != null)
+			fileSize = bytes.length;
+
+		PCMStore compFile;
+		try (InputStream in = Compressor.deflating(bytes != null ? new ByteArrayInputStream(bytes) :
+												   new BufferedInputStream(Files.newInputStream(file)))) {
+			// Compressed files are at most as large as the file itself, unless they end up being discarded
+			compFile = PCMStore.load(in, Math.max(1, fileSize), fileBacked);
+		}
+
+		if (compFile.size() >= fileSize) {
+			compFile.close();
+			return new PayloadStore(file, fileSize, fileSize, bytes != null ? PCMStore.wrap(ByteBuffer.wrap(bytes)) :
+															  null);
+		}
+		return new PayloadStore(file, fileSize, compFile.size(), compFile);
+	}
+
+	/**
+	 * Returns the size of the file. For a file loaded into memory, this is the number of bytes read from it, which
+	 * may differ from the size it was loaded with if it changed in between.
+	 *
+	 * @return Uncompressed size of the file
+	 */
+	long fileSize() {
+		return fileSize;
+	}
+
+	/**
+	 * Returns the number of bytes encoded for the file, which is its size if it is encoded uncompressed.
+	 *
+	 * @return Size of the data to encode
+	 */
+	long size() {
+		return size;
+	}
+
+	/**
+	 * Opens a stream of the data to encode for the file. Each call returns a new stream, starting at the beginning of
+	 * the data.
+	 *
+	 * @return Stream of the data to encode, which must be closed
+	 * @throws IOException If the file cannot be opened
+	 */
+	InputStream openStream() throws IOException {
+		return data != null ? data.asInputStream() : new BufferedInputStream(Files.newInputStream(file));
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (data != null)
+			data.close();
+	}
+}
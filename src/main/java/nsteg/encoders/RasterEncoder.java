@@ -0,0 +1,207 @@
+package nsteg.encoders;
+
+import nsteg.nsteg_utils.BitByteConv;
+import nsteg.nsteg_utils.EmbeddingOrder;
+import nsteg.processors.raster.ChannelRaster;
+
+import javax.validation.constraints.NotNull;
+import java.io.IOException;
+
+/**
+ * Encodes data into a ChannelRaster, using exactly the same layout as ImgEncoder, so that carriers encoded by either
+ * class can be decoded by ImgDecoder or RasterDecoder. Since rasters work directly on the carrier file, this encoder
+ * is used for carriers that can be modified without being fully decoded into memory, such as streamed PNG files.
+ * <p><br>
+ * Bits are written sequentially, filling the least significant bit of every channel in a pixel before moving on to
+ * the next least significant bit, and only moving on to the next pixel once all LSBs in use are filled. The number of
+ * LSBs is encoded in the first pixels using a single LSB, and data encoding starts at the first pixel after those.
+ * Data can be scattered over rasters that can be accessed in any order, in which case every pixel is mapped through
+ * the embedding order before the raster is accessed.
+ *
+ * @see ChannelRaster
+ * @see nsteg.encoders.img.ImgEncoder
+ */
+public class RasterEncoder extends Encoder {
+	private ChannelRaster raster;
+	private int numOfChannels, LSBsToUse = 1;
+
+	private long px = 0; // Pixel currently being encoded into, before being mapped through the embedding order
+	private EmbeddingOrder order = EmbeddingOrder.SEQUENTIAL;
+	private int pxBit = 0; // Position of the next bit to write in the current pixel
+	private int[] chanVals; // Channel values of the current pixel, written to the raster once the pixel is full
+
+	private boolean failed = false;
+
+	/**
+	 * Initializes a RasterEncoder instance with the given raster, and encodes the number of LSBs that will be used in
+	 * each channel into it.
+	 *
+	 * @param raster    Raster to encode data into
+	 * @param LSBsToUse Number of least significant bits to use in each channel
+	 */
+	public RasterEncoder(@NotNull ChannelRaster raster, int LSBsToUse) {
+		this.raster = raster;
+		numOfChannels = raster.getNumOfChannels();
+		chanVals = new int[numOfChannels];
+
+		encodeBits(BitByteConv.intToBitArray(LSBsToUse, LSB_BITS_COUNT));
+		if (pxBit > 0) // Leave the rest of the last pixel holding the LSB count unused, as ImgEncoder does
+			nextPixel();
+		this.LSBsToUse = LSBsToUse;
+	}
+
+	private void writeBit(int bit) {
+		if (pxBit == 0)
+			loadPixel();
+
+		int chan = pxBit % numOfChannels, lsb = pxBit / numOfChannels;
+		chanVals[chan] = (chanVals[chan] & ~(1 << lsb)) | (bit << lsb);
+
+		if (++pxBit == numOfChannels * LSBsToUse)
+			nextPixel();
+	}
+
+	private void loadPixel() {
+		for (int c = 0; c < numOfChannels; c++)
+			chanVals[c] = raster.getChannel(order.map(px), c);
+	}
+
+	private void nextPixel() {
+		for (int c = 0; c < numOfChannels; c++)
+			raster.setChannel(order.map(px), c, chanVals[c]);
+		px++;
+		pxBit = 0;
+	}
+
+	/**
+	 * Encodes an array of bits into the raster.
+	 *
+	 * @param bits Array containing only bits, that are to be encoded in the raster
+	 */
+	public void encodeBits(@NotNull byte[] bits) {
+		for (byte b : bits)
+			writeBit(b);
+	}
+
+	/**
+	 * Encodes an array of bytes into the raster, most significant bit first.
+	 *
+	 * @param bytes Array of bytes to be encoded in the raster
+	 */
+	public void encodeBytes(@NotNull byte[] bytes) {
+		for (byte b : bytes)
+			for (int i = Byte.SIZE - 1; i >= 0; i--)
+				writeBit((b >> i) & 1);
+	}
+
+	/**
+	 * Writes the current pixel and moves on to the next one, if bits have been written to it. See Encoder.align().
+	 */
+	@Override
+	public void align() {
+		if (pxBit > 0)
+			nextPixel();
+	}
+
+	/**
+	 * Moves past the pixels holding the skipped bits without writing them. The pixel partially written before the
+	 * skip is written once the skip moves past it, and the pixel the skip ends in is read, as writeBit() would have.
+	 * See Encoder.skipBits().
+	 *
+	 * @param bitsToSkip Number of bits to skip
+	 */
+	@Override
+	public void skipBits(long bitsToSkip) {
+		int bitsPerPixel = numOfChannels * LSBsToUse;
+		if (pxBit > 0) {
+			if (pxBit + bitsToSkip < bitsPerPixel) {
+				pxBit += (int) bitsToSkip;
+				return;
+			}
+			bitsToSkip -= bitsPerPixel - pxBit;
+			nextPixel();
+		}
+
+		px += bitsToSkip / bitsPerPixel;
+		pxBit = (int) (bitsToSkip % bitsPerPixel);
+		if (pxBit > 0)
+			loadPixel();
+	}
+
+	// See Encoder.canScatter()
+	@Override
+	public boolean canScatter() {
+		return raster.isRandomAccess();
+	}
+
+	/**
+	 * Scatters the data encoded from now on over the rest of the raster, from the first pixel no bits have been
+	 * written to yet. See Encoder.scatter().
+	 *
+	 * @param orderKey Key selecting the order, as derived by Crypto.deriveSubkey()
+	 */
+	@Override
+	public void scatter(@NotNull byte[] orderKey) {
+		if (!canScatter())
+			throw new UnsupportedOperationException("Raster can only be accessed in increasing order");
+		order = new EmbeddingOrder(orderKey, px + (pxBit > 0 ? 1 : 0), raster.getPixelCount());
+	}
+
+	/**
+	 * Writes the partially filled pixel, if any, and closes the raster. Once this method returns, the carrier
+	 * containing the encoded data is complete.
+	 */
+	public void stopThreads() {
+		if (pxBit > 0)
+			nextPixel();
+
+		try {
+			raster.close();
+		} catch (IOException e) {
+			failed = true;
+			System.err.println("Error writing encoded media file: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Closes the raster without completing the carrier being written, for when the data will not be encoded after
+	 * all. Any partially written output is deleted.
+	 */
+	public void discard() {
+		try {
+			raster.discard();
+		} catch (IOException ignored) {
+		}
+	}
+
+	/**
+	 * Returns whether the carrier could not be written when stopThreads() was called.
+	 *
+	 * @return True if writing the carrier failed, false otherwise
+	 */
+	public boolean hasFailed() {
+		return failed;
+	}
+
+	// See abstract method declaration
+	public long getCapacity(int LSBsToUse) {
+		// The number of LSBs is encoded in one bit per channel, in the first pixel(s), which hold no other data
+		long dataPixels = raster.getPixelCount() - (numOfChannels == 3 ? 2 : 1);
+		return dataPixels * numOfChannels * LSBsToUse + LSB_BITS_COUNT;
+	}
+
+	// See abstract method declaration
+	public boolean doesFileFit(long requiredBits, int LSBsToUse) {
+		long maxCapacity = getCapacity(LSBsToUse);
+
+		if (requiredBits > maxCapacity) {
+			System.err.println("Not enough space in media file, consider allowing more bits or using a larger file");
+			System.err.println("Required capacity: " + requiredBits);
+			System.err.println("Bits that can be encoded: " + maxCapacity);
+			System.out.println();
+			return false;
+		}
+
+		return true;
+	}
+}
@@ -2,8 +2,13 @@ package nsteg.encoders.aud;
 
 import nsteg.encoders.Encoder;
 import nsteg.nsteg_utils.BitByteConv;
-import nsteg.nsteg_utils.Crypto;
+import nsteg.nsteg_utils.EmbeddingOrder;
 import nsteg.processors.AudioProcessor;
+import nsteg.processors.CarrierCache;
+import nsteg.processors.FLACPreset;
+import nsteg.processors.FLACStreamWriter;
+import nsteg.processors.PCMStore;
+import nsteg.threads.WorkerPool;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
@@ -12,11 +17,17 @@ import javax.sound.sampled.UnsupportedAudioFileException;
 import javax.validation.constraints.NotNull;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * This class handles the encoding of data into the PCM bytes of an audio file. The encoding process works as follows.
- * The PCM data from the audio file is decoded and stored in a byte array. The PCM byte array is then sent to the
- * worker threads, so that it can be worked on in parallel. From there encodeBits() and encodeBytes() take care of the
+ * The PCM data from the audio file is decoded and stored off the heap, in a PCMStore, so that long carriers need
+ * neither a large heap nor are limited to 2 GiB of PCM data. From there encodeBits() and encodeBytes() take care of the
  * encoding of any relevant data, although the number of least significant bits being used is encoded in the
  * constructor of this class.
  * <p><br>
@@ -24,47 +35,101 @@ import java.io.IOException;
  * array are left untouched. This is because modifying the left channel byte even a bit causes very noticeable
  * distortions to the sound, whereas the right channel is more generous with how much can be modified without it being
  * perceivable. This program assumes stereo audio files are being used, since they are the most popular.
+ * <p><br>
+ * WAV carriers that are written back to WAV can instead be encoded in place, in which case the carrier is copied to
+ * the output file and its PCM data is memory mapped, so no PCM data is loaded into memory or written out again.
+ * Carriers written to FLAC can instead be streamed to the output file, so that the PCM data preceding the encoding
+ * position is compressed and written while the rest of the data is still being encoded.
+ * <p><br>
+ * Bytes are encoded in parallel on the WorkerPool, each task writing a range of whole right channel bytes that no
+ * other task writes to, so no locking is needed. Bytes that share a right channel byte with the bits written before or
+ * after them are written by the calling thread instead, which never amounts to more than a few bytes per call, since
+ * the table of contents is padded to a whole PCM byte.
+ * <p><br>
+ * Data can also be scattered over the right channel bytes, in which case each byte is mapped through the embedding
+ * order as it is written. Since scattered data can land anywhere in the PCM data, scattered carriers cannot be
+ * streamed.
  */
 public class AudEncoder extends Encoder {
-	private byte[] audBytes; // PCM data of the audio file that is to be used to encode data
+	private PCMStore audBytes = PCMStore.allocate(0); // PCM data of the audio file that is to be used to encode data
+	private boolean mapped = false;
+	private String outFileName; // Output file, only set if the carrier is memory mapped or streamed
+
+	// Streamed FLAC output, and number of PCM bytes written to it so far
+	private FLACStreamWriter flacWriter;
+	private long flushedBytes = 0;
+	private byte[] flushBuffer;
+	private boolean failed = false;
+
+	private static final int STREAM_CHUNK_SIZE = 1 << 20; // PCM bytes to accumulate before passing them to the writer
+	private static final int MIN_TASK_SIZE = 1 << 14; // Fewest bytes worth encoding on a task of their own
 
 	// Encoding position trackers, so that data can be written continuously
-	private int currLSB = 0, currByte = 0;
+	private int currLSB = 0;
+	private long currByte = 0; // Before being mapped through the embedding order
 	private int LSBsToUse = 1;
+	private EmbeddingOrder order = EmbeddingOrder.SEQUENTIAL;
 
 	// Stored for re-encoding the audio file from the PCM bytes once the data encoding is done
 	private int channels, sampleRate, bitsPerSample;
 
 	/**
-	 * Creates a new instance of AudEncoder, which loads the requested file into a PCM byte array. Some metadata is
-	 * also read from the audio file for later encoding, to ensure the sound quality is as consistent as can be.
+	 * Creates a new instance of AudEncoder, which loads the PCM data of the requested file into a PCMStore. Some
+	 * metadata is also read from the audio file for later encoding, to ensure the sound quality is as consistent as
+	 * can be. The PCM data is a private copy taken from the CarrierCache, so a file that was already decoded is not
+	 * decoded again.
 	 *
 	 * @param audioFileName Name of the audio file that is to be used for encoding
 	 * @param LSBsToUse     Number of least significant bits to use in the right channel (left is untouched)
 	 */
 	public AudEncoder(@NotNull String audioFileName, int LSBsToUse) {
-		if (audioFileName.endsWith("flac")) {
-			FLACData data = AudioProcessor.loadFLACFile(audioFileName);
-			this.channels = data.channels;
-			this.bitsPerSample = data.bitsPerSample;
-			this.sampleRate = data.sampleRate;
-			this.audBytes = data.pcm;
-
-			encodeBits(BitByteConv.intToBitArray(LSBsToUse, LSB_BITS_COUNT));
-			this.LSBsToUse = LSBsToUse;
-		} else {
-			AudioInputStream rawStream;
-			try {
-				rawStream = AudioSystem.getAudioInputStream(new File(audioFileName));
-			} catch (UnsupportedAudioFileException | IOException e) {
-				System.err.println("Error opening the audio stream.");
-				return;
-			}
+		CarrierCache.DecodedAudio audio;
+		try {
+			audio = CarrierCache.readAudio(audioFileName);
+		} catch (IOException e) {
+			System.err.println("Error decoding the audio file.");
+			return;
+		}
 
-			AudioInputStream decodedStream = AudioSystem.getAudioInputStream(AudioFormat.Encoding.PCM_SIGNED,
-																			 rawStream);
-			initWithStream(decodedStream, LSBsToUse);
+		this.channels = audio.format.getChannels();
+		this.bitsPerSample = audio.format.getSampleSizeInBits();
+		this.sampleRate = (int) audio.format.getSampleRate();
+		this.audBytes = audio.pcm;
+
+		encodeBits(BitByteConv.intToBitArray(LSBsToUse, LSB_BITS_COUNT));
+		this.LSBsToUse = LSBsToUse;
+	}
+
+	/**
+	 * Creates a new instance of AudEncoder that encodes data in place into a copy of a 16 bit PCM WAV file. The copy
+	 * is made by the OS, and its PCM data is memory mapped, so the output file is complete once stopThreads() returns
+	 * and does not need to be written with AudioProcessor. Without an output file, the WAV file itself is mapped and
+	 * encoded into, which is how files are appended to a carrier, and discard() leaves it in place.
+	 *
+	 * @param audioFileName Name of the WAV file that is to be used for encoding
+	 * @param outFileName   Name of the WAV file that will hold the encoded data, or null to encode into the WAV file
+	 *                      itself
+	 * @param LSBsToUse     Number of least significant bits to use in the right channel (left is untouched)
+	 * @throws IOException If either file cannot be opened, or the WAV file cannot be mapped
+	 * @see AudioProcessor#mapWAVFile(String, String)
+	 */
+	public AudEncoder(@NotNull String audioFileName, String outFileName, int LSBsToUse) throws IOException {
+		try {
+			AudioFormat format = AudioSystem.getAudioFileFormat(new File(audioFileName)).getFormat();
+			this.channels = format.getChannels();
+			this.bitsPerSample = format.getSampleSizeInBits();
+			this.sampleRate = (int) format.getSampleRate();
+		} catch (UnsupportedAudioFileException e) {
+			throw new IOException(e);
 		}
+
+		this.audBytes = outFileName != null ? AudioProcessor.mapWAVFile(audioFileName, outFileName) :
+						AudioProcessor.mapWAVFile(audioFileName, true);
+		this.mapped = true;
+		this.outFileName = outFileName;
+
+		encodeBits(BitByteConv.intToBitArray(LSBsToUse, LSB_BITS_COUNT));
+		this.LSBsToUse = LSBsToUse;
 	}
 
 	/**
@@ -79,6 +144,25 @@ public class AudEncoder extends Encoder {
 		initWithStream(audioStream, LSBsToUse);
 	}
 
+	/**
+	 * Creates a new instance of AudEncoder that encodes data into PCM data the caller already holds, for use by
+	 * programs embedding this one. The data is encoded in place, so the store holds the encoded PCM data once the data
+	 * has been encoded.
+	 *
+	 * @param pcm       Store holding the PCM data to encode into, in PCM_SIGNED encoding
+	 * @param format    Format of the PCM data
+	 * @param LSBsToUse Number of least significant bits to use in the right channel (left is untouched)
+	 */
+	public AudEncoder(@NotNull PCMStore pcm, @NotNull AudioFormat format, int LSBsToUse) {
+		this.channels = format.getChannels();
+		this.bitsPerSample = format.getSampleSizeInBits();
+		this.sampleRate = (int) format.getSampleRate();
+		this.audBytes = pcm;
+
+		encodeBits(BitByteConv.intToBitArray(LSBsToUse, LSB_BITS_COUNT));
+		this.LSBsToUse = LSBsToUse;
+	}
+
 	/*
 	 * Initializes some metadata variables for later use when re-encoding the PCM byte data to the user requested
 	 * format, as well as reading the PCM byte data from the audio stream.
@@ -88,21 +172,89 @@ public class AudEncoder extends Encoder {
 		this.bitsPerSample = audioStream.getFormat().getSampleSizeInBits();
 		this.sampleRate = (int) audioStream.getFormat().getSampleRate();
 
-		this.audBytes = AudioProcessor.loadAudioFile(audioStream);
+		long frames = audioStream.getFrameLength();
+		try {
+			this.audBytes = AudioProcessor.loadPCM(audioStream, frames == AudioSystem.NOT_SPECIFIED ? 0 :
+																frames * audioStream.getFormat().getFrameSize());
+		} catch (IOException e) {
+			System.err.println("Error reading audio file into memory");
+			return;
+		}
 
 		encodeBits(BitByteConv.intToBitArray(LSBsToUse, LSB_BITS_COUNT));
 		this.LSBsToUse = LSBsToUse;
 	}
 
 	/**
-	 * Returns the PCM byte array that this AudEncoder instance is working on.
+	 * Returns the store holding the PCM data that this AudEncoder instance is working on.
 	 *
-	 * @return PCM byte array containing original PCM data, with any changes made by this class to the byte array
+	 * @return Store containing the original PCM data, with any changes made by this class
 	 */
-	public byte[] getEncodedPCM() {
+	public PCMStore getPCMStore() {
 		return audBytes;
 	}
 
+	/**
+	 * Returns a copy of the PCM data that this AudEncoder instance is working on, which is only possible for PCM data
+	 * shorter than 2 GiB. Meant for tests and benchmarks, getPCMStore() should be used otherwise.
+	 *
+	 * @return PCM byte array containing original PCM data, with any changes made by this class
+	 */
+	public byte[] getEncodedPCM() {
+		byte[] pcm = new byte[Math.toIntExact(audBytes.size())];
+		audBytes.get(0, pcm, 0, pcm.length);
+		return pcm;
+	}
+
+	/**
+	 * Returns whether data is being encoded in place into a memory mapped WAV file, in which case the output file is
+	 * written once stopThreads() returns.
+	 *
+	 * @return True if the carrier is memory mapped, false otherwise
+	 */
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	/**
+	 * Starts writing the carrier to a FLAC file while data is being encoded into it. PCM data is passed to the FLAC
+	 * writer as soon as the encoding position moves past it, so that it is compressed on the WorkerPool while the
+	 * remaining data is encoded, and the output file is complete once stopThreads() returns. Should be called right
+	 * before data starts being encoded, once it is known that the data fits in the carrier.
+	 *
+	 * @param outFileName Name of the FLAC file that will hold the encoded data
+	 * @param preset      Preset to encode the FLAC file with
+	 * @throws IOException If the FLAC file cannot be created, or the carrier is memory mapped
+	 */
+	public void streamTo(@NotNull String outFileName, @NotNull FLACPreset preset) throws IOException {
+		if (mapped)
+			throw new IOException("Memory mapped carriers cannot be streamed");
+
+		this.flacWriter = new FLACStreamWriter(outFileName, sampleRate, channels, bitsPerSample, preset);
+		this.flushBuffer = new byte[STREAM_CHUNK_SIZE];
+		this.outFileName = outFileName;
+	}
+
+	/**
+	 * Returns whether the carrier is being streamed to a FLAC file, in which case the output file is written once
+	 * stopThreads() returns.
+	 *
+	 * @return True if the carrier is being streamed, false otherwise
+	 * @see #streamTo(String, FLACPreset)
+	 */
+	public boolean isStreamed() {
+		return outFileName != null && !mapped;
+	}
+
+	/**
+	 * Returns whether the output file could not be written, which can only happen if the carrier is being streamed.
+	 *
+	 * @return True if writing the output file failed, false otherwise
+	 */
+	public boolean hasFailed() {
+		return failed;
+	}
+
 	/**
 	 * Returns the number of channels that the audio file being worked with has.
 	 *
@@ -130,6 +282,31 @@ public class AudEncoder extends Encoder {
 		return bitsPerSample;
 	}
 
+	/**
+	 * Releases the PCM data and deletes the output file of a memory mapped carrier, for when the data will not be
+	 * encoded after all. Carriers that were loaded have not written anything yet, so their PCM data is just released.
+	 */
+	public void discard() {
+		release();
+		if (!mapped || outFileName == null)
+			return;
+		try {
+			Files.deleteIfExists(Paths.get(outFileName));
+		} catch (IOException ignored) {
+		}
+	}
+
+	/**
+	 * Releases the PCM data, deleting the temporary file backing it, if any. Must only be called once the output
+	 * file has been written. Carriers that are memory mapped or streamed are released by stopThreads().
+	 */
+	public void release() {
+		try {
+			audBytes.close();
+		} catch (IOException ignored) {
+		}
+	}
+
 	/**
 	 * Encodes the specified bits to the PCM byte array, by writing to the least significant bits of the right channel
 	 * (the program assumes a stereo audio file), which barely cause any distortion. All left channel bytes are
@@ -140,40 +317,163 @@ public class AudEncoder extends Encoder {
 	public void encodeBits(@NotNull byte[] bits) {
 		int currBitPos = 0;
 		while (currBitPos < bits.length) {
-			byte[] byteBits = BitByteConv.intToBitArray(audBytes[currByte], Byte.SIZE);
+			long pcmByte = 2 * order.map(currByte / 2); // Right channel bytes are every other byte
+			byte[] byteBits = BitByteConv.intToBitArray(audBytes.get(pcmByte), Byte.SIZE);
 
 			// Write bits to the least significant bit(s), until no more bits can be written to current byte, or all
 			// bits have been written
 			for (; currLSB < LSBsToUse && currBitPos < bits.length; currLSB++)
 				byteBits[byteBits.length - 1 - currLSB] = bits[currBitPos++];
-			audBytes[currByte] = (byte) BitByteConv.bitArrayToInt(byteBits, true);
+			audBytes.put(pcmByte, (byte) BitByteConv.bitArrayToInt(byteBits, true));
 
 			if (currLSB == LSBsToUse) {
 				currLSB = 0;
 				currByte += 2; // Skip left channel, go directly to the next right channel PCM byte
 			}
 		}
+
+		if (flacWriter != null && currByte - flushedBytes >= STREAM_CHUNK_SIZE)
+			flushPCM(currByte);
+	}
+
+	/*
+	 * Passes the PCM bytes up to the specified position to the FLAC writer. Bytes before the encoding position can no
+	 * longer change, so they can be written out.
+	 */
+	private void flushPCM(long end) {
+		if (failed)
+			return;
+
+		try {
+			while (flushedBytes < end) {
+				int len = (int) Math.min(flushBuffer.length, end - flushedBytes);
+				audBytes.get(flushedBytes, flushBuffer, 0, len);
+				flacWriter.writePCM(flushBuffer, 0, len);
+				flushedBytes += len;
+			}
+		} catch (IOException e) {
+			failed = true;
+			System.err.println("Error writing encoded FLAC file: " + e.getMessage());
+		}
 	}
 
 	/**
-	 * Encodes the specified bytes to the PCM byte array. This method uses encodeBits(byte[] bits) internally.
+	 * Encodes the specified bytes to the PCM byte array. The bytes filling whole right channel bytes are split into
+	 * ranges encoded in parallel, and any bytes before or after them are encoded with encodeBits(byte[] bits).
 	 *
 	 * @param bytesToEncode Array of bytes to be encoded
 	 */
 	public void encodeBytes(@NotNull byte[] bytesToEncode) {
-		for (byte b : bytesToEncode)
-			encodeBits(BitByteConv.intToBitArray(b, Byte.SIZE));
+		// Bytes sharing a right channel byte with the bits before them are written by this thread
+		int currByteToEncode = 0;
+		while (currByteToEncode < bytesToEncode.length && currLSB != 0)
+			encodeBits(BitByteConv.intToBitArray(bytesToEncode[currByteToEncode++], Byte.SIZE));
+
+		// Each task encodes a whole number of right channel bytes, the fewest bytes that fill them being alignBytes
+		int alignBytes = LSBsToUse / Math.min(Integer.lowestOneBit(LSBsToUse), Byte.SIZE);
+		int alignedBytes = (bytesToEncode.length - currByteToEncode) / alignBytes * alignBytes;
+		int tasks = Math.max(1, Math.min(WorkerPool.getSize(), alignedBytes / MIN_TASK_SIZE));
+		int bytesPerTask = (alignedBytes / tasks + alignBytes - 1) / alignBytes * alignBytes;
+
+		List<FutureTask<Void>> pending = new ArrayList<>(tasks);
+		for (int off = currByteToEncode; off < currByteToEncode + alignedBytes; off += bytesPerTask) {
+			int start = off, len = Math.min(bytesPerTask, currByteToEncode + alignedBytes - off);
+			long startUnit = currByte / 2 + (long) (off - currByteToEncode) * Byte.SIZE / LSBsToUse;
+			pending.add(WorkerPool.submit(() -> {
+				encodeAligned(bytesToEncode, start, len, startUnit);
+				return null;
+			}));
+		}
+		try {
+			for (FutureTask<Void> task : pending)
+				WorkerPool.join(task);
+		} catch (ExecutionException | InterruptedException e) {
+			throw new IllegalStateException("Encoding into the PCM data failed", e);
+		}
+		currByte += 2 * ((long) alignedBytes * Byte.SIZE / LSBsToUse);
+		currByteToEncode += alignedBytes;
+
+		// The last bytes only fill part of a right channel byte, which is written by this thread
+		for (; currByteToEncode < bytesToEncode.length; currByteToEncode++)
+			encodeBits(BitByteConv.intToBitArray(bytesToEncode[currByteToEncode], Byte.SIZE));
+
+		if (flacWriter != null && currByte - flushedBytes >= STREAM_CHUNK_SIZE)
+			flushPCM(currByte);
+	}
+
+	/*
+	 * Encodes bytes into consecutive right channel bytes, starting with the given one, which must be written from its
+	 * first LSB. The bits are written in the same order as encodeBits() writes them, first bit in the lowest LSB.
+	 */
+	private void encodeAligned(byte[] bytes, int off, int len, long unit) {
+		int mask = (1 << LSBsToUse) - 1, pending = 0, pendingBits = 0;
+		for (int i = off; i < off + len; i++) {
+			pending = (pending << Byte.SIZE) | (bytes[i] & 0xFF);
+			pendingBits += Byte.SIZE;
+			while (pendingBits >= LSBsToUse) {
+				pendingBits -= LSBsToUse;
+				int bits = Integer.reverse((pending >>> pendingBits) & mask) >>> (Integer.SIZE - LSBsToUse);
+				long pcmByte = 2 * order.map(unit++);
+				audBytes.put(pcmByte, (byte) ((audBytes.get(pcmByte) & ~mask) | bits));
+			}
+			pending &= (1 << pendingBits) - 1;
+		}
+	}
+
+	/**
+	 * Moves on to the next right channel byte, if bits have been written to the current one. See Encoder.align().
+	 */
+	@Override
+	public void align() {
+		if (currLSB > 0) {
+			currLSB = 0;
+			currByte += 2;
+		}
+	}
+
+	/**
+	 * Moves past the right channel bytes holding the skipped bits without writing them. See Encoder.skipBits().
+	 *
+	 * @param bitsToSkip Number of bits to skip
+	 */
+	@Override
+	public void skipBits(long bitsToSkip) {
+		long bit = currLSB + bitsToSkip;
+		currByte += bit / LSBsToUse * 2;
+		currLSB = (int) (bit % LSBsToUse);
+
+		if (flacWriter != null && currByte - flushedBytes >= STREAM_CHUNK_SIZE)
+			flushPCM(currByte);
+	}
+
+	// See Encoder.canScatter(), PCM data being streamed to a FLAC file can only be written in order
+	@Override
+	public boolean canScatter() {
+		return flacWriter == null;
+	}
+
+	/**
+	 * Scatters the data encoded from now on over the rest of the right channel bytes, from the first one no bits have
+	 * been written to yet. See Encoder.scatter().
+	 *
+	 * @param orderKey Key selecting the order, as derived by Crypto.deriveSubkey()
+	 */
+	@Override
+	public void scatter(@NotNull byte[] orderKey) {
+		if (!canScatter())
+			throw new UnsupportedOperationException("Streamed carriers can only be written in order");
+		order = new EmbeddingOrder(orderKey, currByte / 2 + (currLSB > 0 ? 1 : 0), (audBytes.size() + 1) / 2);
 	}
 
 	// See abstract method for docs
-	public boolean doesFileFit(int fileSizeInBits, int numOfFiles, int fileNameLengths, int LSBsToUse, boolean
-			encrypted) {
-		long requiredBits = LSB_BITS_COUNT + SIZE_BITS_COUNT + fileSizeInBits + SIZE_BITS_COUNT +
-							(SIZE_BITS_COUNT * numOfFiles) * 2 + fileNameLengths * Byte.SIZE;
-		if (encrypted)
-			requiredBits += Crypto.GCM_AAD_SIZE + Crypto.AES_IV_SIZE + Crypto.SALT_SIZE_BITS;
+	public long getCapacity(int LSBsToUse) {
+		// Every other PCM byte holds data, except the first few, which hold the number of LSBs in one bit each
+		return ((audBytes.size() + 1) / 2 - LSB_BITS_COUNT) * LSBsToUse + LSB_BITS_COUNT;
+	}
 
-		long maxCapacity = (((long) audBytes.length * Byte.SIZE) / 2) * LSBsToUse;
+	// See abstract method for docs
+	public boolean doesFileFit(long requiredBits, int LSBsToUse) {
+		long maxCapacity = getCapacity(LSBsToUse);
 
 		if (requiredBits > maxCapacity) {
 			System.err.println("Audio file not long enough, consider allowing more bits or using another audio file");
@@ -186,8 +486,30 @@ public class AudEncoder extends Encoder {
 		return true;
 	}
 
+	/**
+	 * Writes the modified PCM data back to the output file if the carrier is memory mapped, or writes the remaining PCM
+	 * data and completes the output file if the carrier is being streamed, releasing the PCM data in both cases.
+	 * Otherwise there is nothing to do, since no threads are used.
+	 */
 	@Override
 	public void stopThreads() {
-		// Not applicable
+		if (mapped) {
+			try {
+				audBytes.close();
+			} catch (IOException e) {
+				failed = true;
+				System.err.println("Error writing encoded WAV file: " + e.getMessage());
+			}
+		} else if (flacWriter != null) {
+			flushPCM(audBytes.size());
+			try {
+				flacWriter.close();
+			} catch (IOException e) {
+				failed = true;
+				System.err.println("Error writing encoded FLAC file: " + e.getMessage());
+			}
+			flacWriter = null;
+			release();
+		}
 	}
 }
@@ -2,7 +2,7 @@ package nsteg.encoders.img;
 
 import nsteg.encoders.Encoder;
 import nsteg.nsteg_utils.BitByteConv;
-import nsteg.nsteg_utils.Crypto;
+import nsteg.nsteg_utils.EmbeddingOrder;
 
 import javax.validation.constraints.NotNull;
 import java.awt.image.BufferedImage;
@@ -18,6 +18,15 @@ import java.awt.image.BufferedImage;
  * channel, values are reset to start encoding at the third pixel, as if no data had been written yet. If the image has
  * four channels (ARGB), only the first pixel is used for encoding, and data encoding starts at the second pixel, which
  * means no space is wasted.
+ * <p><br>
+ * Threads are only ever handed whole pixels to encode, so no two threads write to the same pixel, and none of them
+ * needs to lock anything. Bytes that share a pixel with the bits written before or after them are written by the
+ * calling thread instead, which never amounts to more than a few bytes per call, since the table of contents is padded
+ * to a whole pixel.
+ * <p><br>
+ * Once scatter() has been called, pixels keep being handed to the threads in sequential ranges, and each pixel is
+ * mapped to the one actually holding its bits as it is written, so scattered data is encoded as fast, and by as many
+ * threads, as sequential data.
  *
  * @see Encoder
  */
@@ -26,7 +35,9 @@ public class ImgEncoder extends Encoder {
 	private ImgEncoderThread[] encThreads = new ImgEncoderThread[Runtime.getRuntime().availableProcessors()];
 
 	private BufferedImage img; // Image to read (A)RGB data from and to write (A)RGB modified data to
-	private int x = 0, y = 0; // Current pixel coordinates
+	private int x = 0, y = 0; // Current pixel coordinates, before being mapped through the embedding order
+	private EmbeddingOrder order = EmbeddingOrder.SEQUENTIAL;
+	private int bitsPerPixel, alignBytes; // Bits held by each pixel, and fewest bytes filling a whole number of pixels
 
 	/**
 	 * Initializes an ImgEncoder instance with the given image, determines the number of channels in the image,
@@ -45,6 +56,9 @@ public class ImgEncoder extends Encoder {
 		initThreads(numOfChannels, LSBsToUse);
 		bitModder.setLSBsToUse(LSBsToUse);
 
+		bitsPerPixel = numOfChannels * LSBsToUse;
+		alignBytes = bitsPerPixel / Math.min(Integer.lowestOneBit(bitsPerPixel), Byte.SIZE);
+
 		// Use two pixels for LSBsToUse encoding, so restart encoding at 3rd pixel, if image only has three channels
 		if (numOfChannels == 3) {
 			x = 2;
@@ -54,14 +68,16 @@ public class ImgEncoder extends Encoder {
 	}
 
 	// See abstract method declaration
-	public boolean doesFileFit(int fileSizeInBits, int numOfFiles, int fileNameLengths, int LSBsToUse, boolean
-			encrypted) {
-		long requiredBits = LSB_BITS_COUNT + SIZE_BITS_COUNT + fileSizeInBits + SIZE_BITS_COUNT +
-							(SIZE_BITS_COUNT * numOfFiles) * 2 + fileNameLengths * Byte.SIZE;
-		if (encrypted)
-			requiredBits += Crypto.GCM_AAD_SIZE + Crypto.AES_IV_SIZE + Crypto.SALT_SIZE_BITS;
+	public long getCapacity(int LSBsToUse) {
+		int numOfChannels = img.getColorModel().hasAlpha() ? 4 : 3;
+		// The number of LSBs is encoded in one bit per channel, in the first pixel(s), which hold no other data
+		long dataPixels = (long) img.getWidth() * img.getHeight() - (numOfChannels == 3 ? 2 : 1);
+		return dataPixels * numOfChannels * LSBsToUse + LSB_BITS_COUNT;
+	}
 
-		int maxCapacity = img.getWidth() * img.getHeight() * (img.getColorModel().hasAlpha() ? 4 : 3) * LSBsToUse;
+	// See abstract method declaration
+	public boolean doesFileFit(long requiredBits, int LSBsToUse) {
+		long maxCapacity = getCapacity(LSBsToUse);
 
 		if (requiredBits > maxCapacity) {
 			System.err.println("Not enough space in image, consider allowing more bits or using a larger image");
@@ -87,17 +103,18 @@ public class ImgEncoder extends Encoder {
 	/**
 	 * Encodes an array of bits into the image. This is done by writing the data bits to the least significant bit(s)
 	 * of the (A)RGB channels of each pixel of the image, sequentially. The number of LSBs used in each channel is
-	 * specified when instantiating the object this method is called from. Through the use of the threaded encoder,
-	 * a job is submitted to an available thread, and the end positions of the encoding process are returned. The job
-	 * will be carried out in parallel.
+	 * specified when instantiating the object this method is called from. The bits are written by the calling thread,
+	 * which can do so while the threads are still encoding bytes, since their jobs only ever cover the whole pixels
+	 * before the current one.
 	 *
 	 * @param bitsToEncode Array containing only bits, that are to be encoded in the image
 	 */
-
 	public void encodeBits(@NotNull byte[] bitsToEncode) {
 		bitModder.resetCurrBit();
 		while (bitModder.getCurrBit() < bitsToEncode.length) {
-			img.setRGB(x, y, bitModder.insertDataToPixel(img.getRGB(x, y), bitsToEncode));
+			long px = order.map((long) y * img.getWidth() + x);
+			int pxX = (int) (px % img.getWidth()), pxY = (int) (px / img.getWidth());
+			img.setRGB(pxX, pxY, bitModder.insertDataToPixel(img.getRGB(pxX, pxY), bitsToEncode));
 
 			// If all data has been read from the pixel, move to next one
 			if (bitModder.getCurrLSB() == bitModder.getLSBsToUse()) {
@@ -120,37 +137,97 @@ public class ImgEncoder extends Encoder {
 	 * @param bytesToEncode Array of bytes to be encoded in the image
 	 */
 	public void encodeBytes(@NotNull byte[] bytesToEncode) {
+		// Bytes sharing a pixel with the bits before them are written by this thread, up to the next whole pixel
 		int currByte = 0;
-		int remainingBytes = bytesToEncode.length;
-		int approxBytesPerThread = bytesToEncode.length / encThreads.length;
-		while (remainingBytes > 0) {
-			// Number of bytes that the thread should write to the file byte array
-			approxBytesPerThread = approxBytesPerThread < remainingBytes ? approxBytesPerThread : remainingBytes;
+		while (currByte < bytesToEncode.length && !isAligned())
+			encodeBits(BitByteConv.intToBitArray(bytesToEncode[currByte++], Byte.SIZE));
 
+		// Each job covers a whole number of pixels, so that it ends where the next one starts
+		int endByte = currByte + (bytesToEncode.length - currByte) / alignBytes * alignBytes;
+		int bytesPerThread = Math.max(alignBytes, (endByte - currByte) / encThreads.length / alignBytes * alignBytes);
+		while (currByte < endByte) {
+			int bytesToWrite = Math.min(bytesPerThread, endByte - currByte);
 			for (int t = 0; t < encThreads.length; t = (t + 1) % encThreads.length) {
 				if (!encThreads[t].isActive()) {
-					ImgEndState endState = encThreads[t].submitJob(
-							bytesToEncode, currByte, approxBytesPerThread, x, y, bitModder.getCurrLSB(),
-							bitModder.getNextChanToWrite()
-					);
-
-					/*
-					 * The job submission will return where the job will end encoding, so that the next thread knows
-					 * where to start. The bit modder is updated too, in the event that more bits should be written
-					 * after this method finishes.
-					 */
-					x = endState.endX;
-					y = endState.endY;
-					bitModder.setCurrLSB(endState.endLSB);
-					bitModder.setNextChanToWrite(endState.endChan);
+					encThreads[t].submitJob(bytesToEncode, currByte, bytesToWrite, x, y);
 					break;
 				} else if (t + 1 == encThreads.length)
 					sleep(5);
 			}
 
-			currByte += approxBytesPerThread;
-			remainingBytes -= approxBytesPerThread;
+			long px = (long) y * img.getWidth() + x + (long) bytesToWrite * Byte.SIZE / bitsPerPixel;
+			x = (int) (px % img.getWidth());
+			y = (int) (px / img.getWidth());
+			currByte += bytesToWrite;
 		}
+
+		// The last bytes only fill part of a pixel, which is written by this thread, as no job covers it
+		for (; currByte < bytesToEncode.length; currByte++)
+			encodeBits(BitByteConv.intToBitArray(bytesToEncode[currByte], Byte.SIZE));
+	}
+
+	/*
+	 * Returns whether the next bit is written to the first LSB of the first channel of a pixel.
+	 */
+	private boolean isAligned() {
+		return bitModder.getCurrLSB() == 0 && bitModder.getNextChanToWrite() == 0;
+	}
+
+	/**
+	 * Moves on to the next pixel if bits have been written to the current one. See Encoder.align().
+	 */
+	@Override
+	public void align() {
+		if (isAligned())
+			return;
+		bitModder.setCurrLSB(0);
+		bitModder.setNextChanToWrite(0);
+		if (++x == img.getWidth()) {
+			x = 0;
+			y++;
+		}
+	}
+
+	/**
+	 * Moves past the pixels holding the skipped bits without writing them. See Encoder.skipBits().
+	 *
+	 * @param bitsToSkip Number of bits to skip
+	 */
+	@Override
+	public void skipBits(long bitsToSkip) {
+		int numOfChannels = bitsPerPixel / bitModder.getLSBsToUse();
+		long bit = (long) bitModder.getCurrLSB() * numOfChannels + bitModder.getNextChanToWrite() + bitsToSkip;
+		long px = (long) y * img.getWidth() + x + bit / bitsPerPixel;
+		x = (int) (px % img.getWidth());
+		y = (int) (px / img.getWidth());
+
+		int bitInPixel = (int) (bit % bitsPerPixel);
+		bitModder.setCurrLSB(bitInPixel / numOfChannels);
+		bitModder.setNextChanToWrite(bitInPixel % numOfChannels);
+	}
+
+	// See Encoder.canScatter(), images in memory can be written in any order
+	@Override
+	public boolean canScatter() {
+		return true;
+	}
+
+	/**
+	 * Scatters the data encoded from now on over the rest of the image, from the first pixel no bits have been
+	 * written to yet. See Encoder.scatter().
+	 *
+	 * @param orderKey Key selecting the order, as derived by Crypto.deriveSubkey()
+	 */
+	@Override
+	public void scatter(@NotNull byte[] orderKey) {
+		for (ImgEncoderThread t : encThreads)
+			while (t.isActive())
+				sleep(1);
+
+		long start = (long) y * img.getWidth() + x + (isAligned() ? 0 : 1);
+		order = new EmbeddingOrder(orderKey, start, (long) img.getWidth() * img.getHeight());
+		for (ImgEncoderThread t : encThreads)
+			t.setOrder(order);
 	}
 
 	/**
@@ -162,7 +239,7 @@ public class ImgEncoder extends Encoder {
 	 */
 	private void initThreads(int numOfChannels, int LSBsToUse) {
 		for (int i = 0; i < encThreads.length; i++) {
-			encThreads[i] = new ImgEncoderThread(img, numOfChannels, i);
+			encThreads[i] = new ImgEncoderThread(img, numOfChannels);
 			encThreads[i].start();
 			encThreads[i].setLSBsToUse(LSBsToUse);
 		}
@@ -175,4 +252,9 @@ public class ImgEncoder extends Encoder {
 	public void stopThreads() {
 		for (ImgEncoderThread t : encThreads) t.stopThread();
 	}
+
+	// See abstract method declaration
+	public void discard() {
+		stopThreads(); // Nothing is written before the image is written out whole, so there is nothing to delete
+	}
 }
\ No newline at end of file
@@ -1,10 +1,10 @@
 package nsteg.encoders.img;
 
 /**
- * Container for ImgEncoder and its various ImgEncoderThread instances to communicate encoding position data.
+ * Container for ImgDecoder and its various ImgDecoderThread instances to communicate decoding position data.
  *
- * @see ImgEncoderThread
- * @see ImgEncoder
+ * @see nsteg.decoders.img.ImgDecoderThread
+ * @see nsteg.decoders.img.ImgDecoder
  */
 public class ImgEndState {
 	public int endX, endY, endLSB, endChan;
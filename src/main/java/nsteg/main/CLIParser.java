@@ -1,16 +1,51 @@
 package nsteg.main;
 
+import nsteg.api.EncodeOptions;
+import nsteg.api.Nsteg;
+import nsteg.api.NstegException;
+import nsteg.api.Payload;
 import nsteg.decoders.Decoder;
+import nsteg.encoders.CarrierCatalog;
 import nsteg.encoders.Encoder;
 import nsteg.nsteg_utils.FileType;
+import nsteg.processors.AudioProcessor;
 
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Class for parsing command line arguments, basically non-interactive mode.
+ * <p><br>
+ * Any of the media input file, the media output file and the files to hide may be given as "-", to read it from
+ * standard input or write it to standard output, so that nsteg can be used in a pipeline. When either standard stream
+ * is used, the carrier and payloads are passed through the Nsteg library API in memory, without temporary files, and
+ * nothing but the data is written to standard output. Piped carriers and payloads must therefore fit in the heap.
+ * <p><br>
+ * Several media input files, and as many media output files, may be given as comma separated lists, in which case the
+ * files to hide are striped across all of them. Striped media files are decoded by giving all of them to --mif.
  */
 public class CLIParser {
+	/**
+	 * File name standing for standard input or standard output.
+	 */
+	private static final String STDIO = "-";
+
+	/**
+	 * Name the data read from standard input is stored under, unless another one is given with --name.
+	 */
+	private static final String DEFAULT_STDIN_NAME = "stdin";
+
 	private static FileType fileType;
 
 	/**
@@ -26,6 +61,16 @@ public class CLIParser {
 			encode(args);
 		else if (args.length >= 5 && "-d".equals(args[0]))
 			decode(args);
+		else if (args.length >= 3 && "-l".equals(args[0]))
+			list(args);
+		else if (args.length >= 5 && "-x".equals(args[0]))
+			decode(args);
+		else if (args.length >= 3 && "-s".equals(args[0]))
+			scan(args);
+		else if (args.length >= 3 && "-c".equals(args[0]))
+			catalog(args);
+		else if (args.length >= 5 && "-a".equals(args[0]))
+			append(args);
 		else {
 			System.err.println(
 					"Input is not valid. For help on running the program from the command line, use the --help flag"
@@ -53,11 +98,17 @@ public class CLIParser {
 		System.out.println("Modes:");
 		System.out.println("\t-e: Encode (Hide file(s) in a media file)");
 		System.out.println("\t-d: Decode (Extract file(s) from a media file)");
+		System.out.println("\t-l: List (Show the file(s) hidden in a media file)");
+		System.out.println("\t-x: Extract (Extract a single file from a media file)");
+		System.out.println("\t-s: Scan (Find the media files holding hidden files in a directory)");
+		System.out.println("\t-c: Catalog (Index a directory of media files, and pick one to use)");
+		System.out.println("\t-a: Append (Hide more file(s) in a media file already holding some)");
 		System.out.println("--------------------------------------------------------------------------------");
 		System.out.println("Encode arguments:");
 		System.out.println(
 				"\t--mif: Media input file. This is the image or audio file that will be \n" +
-				"\t       used to hide the data.\n" +
+				"\t       used to hide the data. To stripe the data across several media\n" +
+				"\t       files, delimit them with commas, and give as many to --mof.\n" +
 				"\t       Supported image codecs: " + supportedInImgFormats + "\n" +
 				"\t       Supported audio codecs: " + supportedInAudFormats + "\n"
 						  );
@@ -65,7 +116,10 @@ public class CLIParser {
 				"\t--hf:  File(s) to hide. To encode (hide) multiple files, delimit the\n" +
 				"\t       files with commas, and do not use spaces between filenames or \n" +
 				"\t       commas. Eg: \"test.txt,test.pdf,test.ppt\". The file names will\n" +
-				"\t       be stored alongside the data, and used during the decoding process.\n"
+				"\t       be stored alongside the data, and used during the decoding process.\n" +
+				"\t       Directories are hidden with every file in them, recursively, each\n" +
+				"\t       named by its path from the directory's parent, which decoding\n" +
+				"\t       recreates. Absolute paths are stored as their file name only.\n"
 						  );
 		System.out.println(
 				"\t--mof: Media output file. The media file with the encoded data will be\n" +
@@ -79,25 +133,80 @@ public class CLIParser {
 				"\t       number will allow more data to fit, but cause more distortion.\n" +
 				"\t       Valid range is 1-8, both inclusive.\n"
 						  );
+		System.out.println(
+				"\t--name: Name to store the file read from standard input under, when\n" +
+				"\t        \"-\" is one of the files to hide. Defaults to \"stdin\".\n"
+						  );
+		System.out.println(
+				"\t--fmt:  Format to write the media output file in, when it is written\n" +
+				"\t        to standard output. Defaults to png for images and wav for audio.\n"
+						  );
 		System.out.println("Decode arguments:");
 		System.out.println(
 				"\t--mif: Media input file. This is the image or audio file from which\n" +
-				"\t       nsteg will attempt to decode files.\n" +
+				"\t       nsteg will attempt to decode files. Data striped across several\n" +
+				"\t       media files is decoded by giving all of them, delimited by commas.\n" +
 				"\t       Supported image codecs: " + supportedOutImgFormats + "\n" +
 				"\t       Supported audio codecs: " + supportedOutAudFormats + "\n"
 						  );
+		System.out.println(
+				"\t--stdout: Name of one of the encoded files, which is written to\n" +
+				"\t          standard output instead of being saved to disk.\n"
+						  );
+		System.out.println("List arguments:");
+		System.out.println("\t--mif: Media input file, as for decoding.\n");
+		System.out.println("Extract arguments:");
+		System.out.println(
+				"\t--mif:  Media input file, as for decoding.\n" +
+				"\t--name: Name of the file to extract, as shown by -l. Only this file is\n" +
+				"\t        decoded, and it is saved to disk under its name.\n"
+						  );
+		System.out.println("Scan arguments:");
+		System.out.println(
+				"\t--dir: Directory to scan, along with its subdirectories. Only the start\n" +
+				"\t       of each media file is read, and many are read at once.\n"
+						  );
+		System.out.println("Catalog arguments:");
+		System.out.println(
+				"\t--dir: Directory of media input files to catalog. The catalog is kept\n" +
+				"\t       in it, and only new or changed media files are measured again.\n" +
+				"\t--hf:  Optional files to hide, for which the best fitting media file\n" +
+				"\t       is picked, at --lsb LSBs or else at the fewest LSBs possible.\n"
+						  );
+		System.out.println("Append arguments:");
+		System.out.println(
+				"\t--mif: Media input file, as for decoding, which the files are appended\n" +
+				"\t       to in place. The files already hidden in it are left as they are.\n" +
+				"\t--hf:  File(s) to append, as for encoding. If the hidden files are\n" +
+				"\t       encrypted, so are these, with the same passphrase (see --pass).\n"
+						  );
 		System.out.println("Optional arguments:");
 		System.out.println(
 				"\t--enc:  Valid values are \"true\" and \"false\". Used to determine whether\n" +
 				"\t        encryption will be used when encoding. If this flag is not used,\n" +
 				"\t        the program will ask the user if the data should be encrypted.\n"
 						  );
+		System.out.println(
+				"\t--scatter: Valid values are \"true\" and \"false\". Scatters the encrypted\n" +
+				"\t        data over the media file in an order derived from the passphrase,\n" +
+				"\t        instead of writing it from the start. Requires encryption.\n"
+						  );
+		System.out.println(
+				"\t--pcmcache: Directory to keep the decoded PCM data of MP3 and FLAC\n" +
+				"\t        media input files in, so that encoding into the same audio\n" +
+				"\t        again maps it from there instead of decoding it.\n"
+						  );
 		System.out.println(
 				"\t--pass: Passphrase to encrypt the data with, if encryption is used.\n" +
 				"\t        Setting this field carries a security risk, since the password\n" +
 				"\t        remains in memory longer than if this field was not set, in \n" +
 				"\t        which case the program will prompt it right before it is\n" +
-				"\t        necessary, and wipe it from memory once the encryption is done."
+				"\t        necessary, and wipe it from memory once the encryption is done.\n" +
+				"\t        Required for encryption when standard input or output is used.\n"
+						  );
+		System.out.println(
+				"Any of --mif, --mof and the files in --hf may be \"-\", to read from\n" +
+				"standard input or write to standard output."
 						  );
 		System.out.println("--------------------------------------------------------------------------------");
 		System.out.println(
@@ -110,10 +219,39 @@ public class CLIParser {
 				"\t\"java -jar nsteg-vX.Y-release.jar -d --mif outtest.png\n" +
 				"\t --hf test.txt,test.pdf\"\n"
 						  );
+		System.out.println(
+				"Sample listing, extraction and scanning use:\n" +
+				"\t\"java -jar nsteg-vX.Y-release.jar -l --mif outtest.png\"\n" +
+				"\t\"java -jar nsteg-vX.Y-release.jar -x --mif outtest.png --name test.pdf\n" +
+				"\t --enc false\"\n" +
+				"\t\"java -jar nsteg-vX.Y-release.jar -s --dir archive\"\n"
+						  );
+		System.out.println(
+				"Sample carrier selection use:\n" +
+				"\t\"java -jar nsteg-vX.Y-release.jar -c --dir carriers --hf test.pdf\n" +
+				"\t --lsb 2 --enc true\"\n"
+						  );
+		System.out.println(
+				"Sample appending use:\n" +
+				"\t\"java -jar nsteg-vX.Y-release.jar -a --mif outtest.png --hf notes.txt\"\n"
+						  );
 		System.out.println(
 				"Sample encryption use:\n" +
 				"\t\"java -jar nsteg-vX.Y-release.jar -e --mif test.jpg --hf test.txt\n" +
-				"\t --mof outtest.png --lsb 2 --enc true --pass thebestpassword\""
+				"\t --mof outtest.png --lsb 2 --enc true --pass thebestpassword\"\n"
+						  );
+		System.out.println(
+				"Sample striping use:\n" +
+				"\t\"java -jar nsteg-vX.Y-release.jar -e --mif a.png,b.wav --hf big.iso\n" +
+				"\t --mof outa.png,outb.wav --lsb 2\"\n" +
+				"\t\"java -jar nsteg-vX.Y-release.jar -d --mif outa.png,outb.wav\"\n"
+						  );
+		System.out.println(
+				"Sample pipeline use:\n" +
+				"\t\"tar c docs | java -jar nsteg-vX.Y-release.jar -e --mif test.jpg\n" +
+				"\t --hf - --name docs.tar --mof - --lsb 2 > outtest.png\"\n" +
+				"\tWhen \"-\" is used, the media file and every file to hide or decode are\n" +
+				"\theld in memory, so they must fit in the Java heap (see -Xmx)."
 						  );
 	}
 
@@ -124,12 +262,19 @@ public class CLIParser {
 	 * @param args Arguments to parse
 	 */
 	private static void encode(String[] args) {
-		String mediaInputFile = "", mediaOutputFile = "", pass = null;
-		String[] filesToHide = {};
+		String mediaInputFile = "", mediaOutputFile = "", pass = null, stdinName = DEFAULT_STDIN_NAME, format = null;
+		String[] filesToHide = {}, stripedInputFiles = null, stripedOutputFiles = null;
 		int LSBsToUse = 0;
 		Boolean encrypt = null;
+		boolean scatter = false;
 		for (int i = 1; i < args.length; i += 2) {
-			if ("--mif".equals(args[i]) && Files.exists(Paths.get(args[i + 1]))) {
+			if ("--mif".equals(args[i]) && args[i + 1].contains(","))
+				stripedInputFiles = parseStripedFiles(args[i + 1], Encoder.inImgFormats, Encoder.inAudFormats, true, 2);
+			else if ("--mof".equals(args[i]) && args[i + 1].contains(","))
+				stripedOutputFiles = parseStripedFiles(args[i + 1], Encoder.outImgFormats, Encoder.outAudFormats, false, 4);
+			else if ("--mif".equals(args[i]) && STDIO.equals(args[i + 1]))
+				mediaInputFile = STDIO;
+			else if ("--mif".equals(args[i]) && Files.exists(Paths.get(args[i + 1]))) {
 				String[] fNameSplit = args[i + 1].split("\\.");
 				String fileExt = fNameSplit[fNameSplit.length - 1];
 				fileType = FileType.getFileType(fileExt);
@@ -145,11 +290,13 @@ public class CLIParser {
 				filesToHide = args[i + 1].split(",");
 
 				for (String fName : filesToHide)
-					if (!Files.exists(Paths.get(fName))) {
+					if (!STDIO.equals(fName) && !Files.exists(Paths.get(fName))) {
 						System.err.println("The file \"" + fName + "\" does not exits... Exiting.");
 						System.exit(3);
 					}
-			} else if ("--mof".equals(args[i])) {
+			} else if ("--mof".equals(args[i]) && STDIO.equals(args[i + 1]))
+				mediaOutputFile = STDIO;
+			else if ("--mof".equals(args[i])) {
 				String[] fNameSplit = args[i + 1].split("\\.");
 				String fileExt = fNameSplit[fNameSplit.length - 1];
 				if ((fileType == FileType.AUDIO && !Encoder.outAudFormats.contains(fileExt))
@@ -176,15 +323,41 @@ public class CLIParser {
 				encrypt = Boolean.valueOf(args[i + 1]);
 			else if ("--pass".equals(args[i]) && encrypt != null && encrypt)
 				pass = args[i + 1];
-			else {
+			else if ("--name".equals(args[i]))
+				stdinName = args[i + 1];
+			else if ("--fmt".equals(args[i]))
+				format = args[i + 1];
+			else if ("--scatter".equals(args[i]))
+				scatter = Boolean.parseBoolean(args[i + 1]);
+			else if ("--pcmcache".equals(args[i])) {
+				try {
+					AudioProcessor.setSidecarDirectory(Paths.get(args[i + 1]));
+				} catch (IOException e) {
+					System.err.println("PCM cache directory cannot be created: " + e.getMessage() + ". Exiting.");
+					System.exit(21);
+				}
+			} else {
 				System.err.println("Unknown option \"" + args[i] + "\". Exiting.");
 				System.exit(7);
 			}
 		}
 
-		if (mediaInputFile.length() > 0 && mediaOutputFile.length() > 0 && filesToHide.length > 0 && LSBsToUse > 0) {
-			System.out.println();
-			Encoder.encode(mediaInputFile, filesToHide, mediaOutputFile, LSBsToUse, encrypt, pass);
+		if (scatter && encrypt != null && !encrypt) {
+			System.err.println("Data can only be scattered if it is encrypted, please use --enc true. Exiting.");
+			System.exit(18);
+		}
+
+		if ((stripedInputFiles != null || stripedOutputFiles != null) && filesToHide.length > 0 && LSBsToUse > 0) {
+			encodeStriped(stripedInputFiles, filesToHide, stripedOutputFiles, LSBsToUse, encrypt, pass, scatter);
+		} else if (mediaInputFile.length() > 0 && mediaOutputFile.length() > 0 && filesToHide.length > 0 &&
+				   LSBsToUse > 0) {
+			if (usesStdio(mediaInputFile, mediaOutputFile, filesToHide))
+				encodeStreams(mediaInputFile, filesToHide, stdinName, mediaOutputFile, format, LSBsToUse, encrypt,
+							  pass, scatter);
+			else {
+				System.out.println();
+				Encoder.encode(mediaInputFile, filesToHide, mediaOutputFile, LSBsToUse, encrypt, pass, scatter);
+			}
 		} else {
 			System.err.println("Arguments missing. For help, please use the --help flag. Exiting.");
 			System.exit(8);
@@ -198,11 +371,17 @@ public class CLIParser {
 	 * @param args Arguments to parse
 	 */
 	private static void decode(String[] args) {
-		String encodedInputFile = "", pass = null;
+		String encodedInputFile = "", pass = null, outFile = null, fileName = null;
+		String[] stripedInputFiles = null;
 		Boolean encrypt = null;
+		boolean extract = "-x".equals(args[0]);
 
 		for (int i = 1; i < args.length; i += 2) {
-			if ("--mif".equals(args[i]) && Files.exists(Paths.get(args[i + 1]))) {
+			if ("--mif".equals(args[i]) && args[i + 1].contains(","))
+				stripedInputFiles = parseStripedFiles(args[i + 1], Encoder.outImgFormats, Encoder.outAudFormats, true, 9);
+			else if ("--mif".equals(args[i]) && STDIO.equals(args[i + 1]))
+				encodedInputFile = STDIO;
+			else if ("--mif".equals(args[i]) && Files.exists(Paths.get(args[i + 1]))) {
 				String[] fNameSplit = args[i + 1].split("\\.");
 				String fileExt = fNameSplit[fNameSplit.length - 1];
 				fileType = FileType.getFileType(fileExt);
@@ -218,18 +397,387 @@ public class CLIParser {
 				encrypt = Boolean.valueOf(args[i + 1]);
 			else if ("--pass".equals(args[i]) && encrypt != null && encrypt)
 				pass = args[i + 1];
+			else if ("--stdout".equals(args[i]) && !extract)
+				outFile = args[i + 1];
+			else if ("--name".equals(args[i]) && extract)
+				fileName = args[i + 1];
 			else {
 				System.err.println("Unknown option \"" + args[i] + "\". Exiting.");
 				System.exit(10);
 			}
 		}
 
-		if (encodedInputFile.length() > 0) {
+		if (stripedInputFiles != null && (!extract || fileName != null)) {
+			if (outFile != null) {
+				System.err.println("Files striped across several media files cannot be written to standard output. " +
+								   "Exiting.");
+				System.exit(17);
+			}
 			System.out.println();
-			Decoder.decode(encodedInputFile, encrypt, pass);
+			Decoder.extractStriped(stripedInputFiles, fileName, pass);
+		} else if (encodedInputFile.length() > 0 && (!extract || fileName != null)) {
+			if (outFile != null || STDIO.equals(encodedInputFile))
+				decodeStreams(encodedInputFile, outFile, fileName, encrypt, pass);
+			else {
+				System.out.println();
+				Decoder.extract(encodedInputFile, fileName, encrypt, pass);
+			}
 		} else {
 			System.err.println("Arguments missing. For help, please use the --help flag. Exiting.");
 			System.exit(11);
 		}
 	}
+
+	/**
+	 * Parses the required arguments from the ones provided by Main, and then lists the files encoded in the media
+	 * file.
+	 *
+	 * @param args Arguments to parse
+	 */
+	private static void list(String[] args) {
+		if (!"--mif".equals(args[1])) {
+			System.err.println("Unknown option \"" + args[1] + "\". Exiting.");
+			System.exit(10);
+		}
+
+		if (STDIO.equals(args[2])) {
+			try {
+				for (String name : Nsteg.list(System.in))
+					System.out.println(name);
+			} catch (NstegException e) {
+				System.err.println(e.getMessage() + ". Exiting.");
+				System.exit(15);
+			}
+		} else if (Files.exists(Paths.get(args[2])))
+			Decoder.list(args[2]);
+		else {
+			System.err.println("Input media file is invalid, please see supported file types. Exiting.");
+			System.exit(9);
+		}
+	}
+
+	/**
+	 * Parses the media file to append files to, the files to append and the password, if any, and appends the files.
+	 *
+	 * @param args Arguments to parse
+	 */
+	private static void append(String[] args) {
+		String mediaFile = null, pass = null;
+		String[] filesToAppend = {};
+		for (int i = 1; i < args.length - 1; i += 2) {
+			if ("--mif".equals(args[i]) && Files.exists(Paths.get(args[i + 1]))) {
+				String[] fNameSplit = args[i + 1].split("\\.");
+				String fileExt = fNameSplit[fNameSplit.length - 1];
+				if (!Encoder.outImgFormats.contains(fileExt) && !Encoder.outAudFormats.contains(fileExt)) {
+					System.err.println("Input media file is invalid, please see supported file types. Exiting.");
+					System.exit(9);
+				}
+				mediaFile = args[i + 1];
+			} else if ("--hf".equals(args[i])) {
+				filesToAppend = args[i + 1].split(",");
+
+				for (String fName : filesToAppend)
+					if (!Files.exists(Paths.get(fName))) {
+						System.err.println("The file \"" + fName + "\" does not exits... Exiting.");
+						System.exit(3);
+					}
+			} else if ("--pass".equals(args[i]))
+				pass = args[i + 1];
+			else {
+				System.err.println("Unknown option \"" + args[i] + "\". Exiting.");
+				System.exit(10);
+			}
+		}
+
+		if (mediaFile == null || filesToAppend.length == 0) {
+			System.err.println("Arguments missing. For help, please use the --help flag. Exiting.");
+			System.exit(11);
+		}
+		System.out.println();
+		Encoder.append(mediaFile, filesToAppend, pass);
+	}
+
+	/**
+	 * Parses the directory to scan for media files holding encoded data, and scans it.
+	 *
+	 * @param args Arguments to parse
+	 */
+	private static void scan(String[] args) {
+		if (!"--dir".equals(args[1])) {
+			System.err.println("Unknown option \"" + args[1] + "\". Exiting.");
+			System.exit(10);
+		}
+
+		if (Decoder.scan(args[2]) < 0) {
+			System.err.println("Directory to scan is invalid. Exiting.");
+			System.exit(19);
+		}
+	}
+
+	/**
+	 * Parses the directory of media files to catalog, and optionally the files to hide along with the number of LSBs
+	 * and whether encryption is used, then brings the catalog of the directory up to date, and prints the media file
+	 * that best fits the files to hide. Their uncompressed sizes are used, since compression never makes a file
+	 * larger, so the media file picked can always hold them.
+	 *
+	 * @param args Arguments to parse
+	 */
+	private static void catalog(String[] args) {
+		String directory = null;
+		String[] filesToHide = {};
+		int LSBsToUse = 0;
+		boolean encrypt = false;
+		for (int i = 1; i < args.length - 1; i += 2) {
+			if ("--dir".equals(args[i]))
+				directory = args[i + 1];
+			else if ("--hf".equals(args[i])) {
+				filesToHide = args[i + 1].split(",");
+
+				for (String fName : filesToHide)
+					if (!Files.exists(Paths.get(fName))) {
+						System.err.println("The file \"" + fName + "\" does not exits... Exiting.");
+						System.exit(3);
+					}
+			} else if ("--lsb".equals(args[i])) {
+				try {
+					LSBsToUse = Integer.parseInt(args[i + 1]);
+				} catch (Exception e) {
+					System.err.println("LSB must be a numeric value. Exiting.");
+					System.exit(5);
+				}
+
+				if (LSBsToUse < 1 || LSBsToUse > 8) {
+					System.err.println("LSB must be between 1-8. Exiting.");
+					System.exit(6);
+				}
+			} else if ("--enc".equals(args[i]))
+				encrypt = Boolean.parseBoolean(args[i + 1]);
+			else {
+				System.err.println("Unknown option \"" + args[i] + "\". Exiting.");
+				System.exit(10);
+			}
+		}
+
+		CarrierCatalog catalog = null;
+		try {
+			if (directory != null)
+				catalog = CarrierCatalog.update(directory);
+		} catch (IOException e) {
+			System.err.println("Error cataloging directory: " + e.getMessage());
+		}
+		if (catalog == null) {
+			System.err.println("Directory to catalog is invalid. Exiting.");
+			System.exit(19);
+		}
+		System.out.println("Cataloged " + catalog.getEntries().size() + " media file(s), " +
+						   catalog.getMeasuredCount() + " of which were measured.");
+		if (filesToHide.length == 0)
+			return;
+
+		List<String> names = new ArrayList<>();
+		filesToHide = Encoder.expandDirectories(filesToHide, names);
+		if (filesToHide == null)
+			System.exit(3);
+		long[] fileSizes = new long[filesToHide.length], segmentSizes = new long[filesToHide.length];
+		for (int i = 0; i < filesToHide.length; i++) {
+			try {
+				fileSizes[i] = Files.size(Paths.get(filesToHide[i]));
+			} catch (IOException e) {
+				System.err.println("The file \"" + filesToHide[i] + "\" cannot be read... Exiting.");
+				System.exit(3);
+			}
+			segmentSizes[i] = Encoder.getSegmentSize(fileSizes[i], encrypt);
+		}
+		long requiredBits = Encoder.getRequiredBits(names.toArray(new String[0]), fileSizes, segmentSizes, encrypt);
+
+		for (int LSBs = Math.max(1, LSBsToUse); LSBs <= (LSBsToUse > 0 ? LSBsToUse : 8); LSBs++) {
+			CarrierCatalog.Entry entry = catalog.select(requiredBits, LSBs);
+			if (entry != null) {
+				System.out.println("Best fitting media file: " + catalog.resolve(entry) + " at " + LSBs +
+								   " LSB(s), using " + requiredBits + " of " + entry.getCapacity(LSBs) + " bits.");
+				return;
+			}
+		}
+
+		System.err.println("No cataloged media file can hold " + requiredBits + " bits. Exiting.");
+		System.exit(20);
+	}
+
+	/**
+	 * Splits a comma separated list of media files to stripe data across, and checks that each of them is of a
+	 * supported type, and exists if it is a media input file.
+	 */
+	private static String[] parseStripedFiles(String arg, List<String> imgFormats, List<String> audFormats,
+											  boolean mustExist, int exitCode) {
+		String[] mediaFiles = arg.split(",");
+		for (String mediaFile : mediaFiles) {
+			if (STDIO.equals(mediaFile)) {
+				System.err.println("Files striped across several media files cannot be read from standard input or " +
+								   "written to standard output. Exiting.");
+				System.exit(17);
+			}
+
+			String[] fNameSplit = mediaFile.split("\\.");
+			String fileExt = fNameSplit[fNameSplit.length - 1];
+			FileType type = FileType.getFileType(fileExt);
+			if ((mustExist && !Files.exists(Paths.get(mediaFile))) || type == FileType.UNKNOWN
+				|| (type == FileType.IMAGE && !imgFormats.contains(fileExt))
+				|| (type == FileType.AUDIO && !audFormats.contains(fileExt))) {
+				System.err.println("The media file \"" + mediaFile + "\" is invalid, please see supported file " +
+								   "types. Exiting.");
+				System.exit(exitCode);
+			}
+		}
+		return mediaFiles;
+	}
+
+	/**
+	 * Stripes the files to hide across several media files, each of which has its own media output file, of the same
+	 * type.
+	 */
+	private static void encodeStriped(String[] mediaInputFiles, String[] filesToHide, String[] mediaOutputFiles,
+									  int LSBsToUse, Boolean encrypt, String pass, boolean scatter) {
+		if (mediaInputFiles == null || mediaOutputFiles == null || mediaInputFiles.length != mediaOutputFiles.length) {
+			System.err.println("As many media output files as media input files must be given to stripe data " +
+							   "across. Exiting.");
+			System.exit(16);
+		}
+
+		for (int k = 0; k < mediaInputFiles.length; k++) {
+			String[] inSplit = mediaInputFiles[k].split("\\."), outSplit = mediaOutputFiles[k].split("\\.");
+			if (FileType.getFileType(inSplit[inSplit.length - 1]) !=
+				FileType.getFileType(outSplit[outSplit.length - 1])) {
+				System.err.println("Input type mismatch. Please ensure you encode from an image to an image " +
+								   "or from an audio file to an audio file. Exiting.");
+				System.exit(4);
+			}
+		}
+		for (String fName : filesToHide)
+			if (STDIO.equals(fName)) {
+				System.err.println("Files striped across several media files cannot be read from standard input or " +
+								   "written to standard output. Exiting.");
+				System.exit(17);
+			}
+
+		System.out.println();
+		Encoder.encodeStriped(mediaInputFiles, filesToHide, mediaOutputFiles, LSBsToUse, encrypt, pass, scatter);
+	}
+
+	private static boolean usesStdio(String mediaInputFile, String mediaOutputFile, String[] filesToHide) {
+		if (STDIO.equals(mediaInputFile) || STDIO.equals(mediaOutputFile))
+			return true;
+		for (String fName : filesToHide)
+			if (STDIO.equals(fName))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Returns the password to encrypt or decrypt with when standard input or output is used, which has to be given
+	 * on the command line, since prompting for it would read from or write to the data streams. Encryption is not
+	 * used unless asked for with --enc, since the user cannot be asked either.
+	 */
+	private static char[] getStreamPassword(Boolean encrypt, String pass) {
+		if (encrypt == null || !encrypt)
+			return null;
+		if (pass == null) {
+			System.err.println("A passphrase must be given with --pass when standard input or output is used. " +
+							   "Exiting.");
+			System.exit(12);
+		}
+		return pass.toCharArray();
+	}
+
+	/**
+	 * Encodes files into a carrier through the Nsteg library API, reading the carrier or one of the files from standard
+	 * input, and writing the encoded carrier to a file or standard output.
+	 */
+	private static void encodeStreams(String mediaInputFile, String[] filesToHide, String stdinName,
+									  String mediaOutputFile, String format, int LSBsToUse, Boolean encrypt,
+									  String pass, boolean scatter) {
+		int stdinUses = STDIO.equals(mediaInputFile) ? 1 : 0;
+		for (String fName : filesToHide)
+			if (STDIO.equals(fName))
+				stdinUses++;
+		if (stdinUses > 1) {
+			System.err.println("Only one of the media input file and the files to hide can be read from standard " +
+							   "input. Exiting.");
+			System.exit(13);
+		}
+
+		if (!STDIO.equals(mediaOutputFile)) {
+			String[] fNameSplit = mediaOutputFile.split("\\.");
+			format = fNameSplit[fNameSplit.length - 1];
+		}
+		EncodeOptions options = new EncodeOptions().setLSBsToUse(LSBsToUse).setFormat(format)
+												   .setPassword(getStreamPassword(encrypt, pass)).setScattered(scatter);
+
+		try {
+			List<String> names = new ArrayList<>();
+			String[] files = Encoder.expandDirectories(filesToHide, names);
+			if (files == null)
+				System.exit(14);
+			List<Payload> payloads = new ArrayList<>();
+			for (int i = 0; i < files.length; i++) {
+				if (STDIO.equals(files[i]))
+					payloads.add(Payload.read(stdinName, Channels.newChannel(System.in)));
+				else
+					payloads.add(new Payload(names.get(i), Files.readAllBytes(Paths.get(files[i].trim()))));
+			}
+
+			try (InputStream in = STDIO.equals(mediaInputFile) ? System.in : new FileInputStream(mediaInputFile);
+				 OutputStream out = new BufferedOutputStream(STDIO.equals(mediaOutputFile) ? System.out :
+															 new FileOutputStream(mediaOutputFile), 1 << 16)) {
+				Nsteg.encode(in, payloads, options, out);
+			}
+		} catch (IOException e) {
+			System.err.println("Error reading or writing files: " + e.getMessage() + ". Exiting.");
+			System.exit(14);
+		} catch (NstegException e) {
+			System.err.println(e.getMessage() + ". Exiting.");
+			System.exit(15);
+		}
+	}
+
+	/**
+	 * Decodes the files in a carrier through the Nsteg library API, reading the carrier from a file or standard input.
+	 * A file to write to standard output, or to extract to disk, is decoded on its own, and otherwise all the files are
+	 * written to disk under their stored names.
+	 */
+	private static void decodeStreams(String encodedInputFile, String outFile, String fileName, Boolean encrypt,
+									  String pass) {
+		char[] password = getStreamPassword(encrypt, pass);
+		String name = outFile != null ? outFile : fileName;
+		try {
+			List<Payload> payloads;
+			try (InputStream in = STDIO.equals(encodedInputFile) ? System.in : new FileInputStream(encodedInputFile)) {
+				payloads = name == null ? Nsteg.decode(in, password) :
+						   Collections.singletonList(Nsteg.extract(in, name, password));
+			}
+
+			if (outFile == null) {
+				for (Payload payload : payloads) {
+					Path path = Decoder.resolveOutput(payload.getName());
+					if (path == null) {
+						System.err.println("Skipping \"" + payload.getName() + "\", since its name is absolute or " +
+										   "leads out of the current directory.");
+						continue;
+					}
+					if (path.getParent() != null)
+						Files.createDirectories(path.getParent());
+					Files.write(path, payload.getData());
+				}
+				return;
+			}
+
+			System.out.write(payloads.get(0).getData());
+			System.out.flush();
+		} catch (IOException e) {
+			System.err.println("Error reading or writing files: " + e.getMessage() + ". Exiting.");
+			System.exit(14);
+		} catch (NstegException e) {
+			System.err.println(e.getMessage() + ". Exiting.");
+			System.exit(15);
+		}
+	}
 }
@@ -3,11 +3,17 @@ package nsteg.nsteg_utils;
 import javax.validation.constraints.NotNull;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
+import java.util.zip.InflaterOutputStream;
 
 public class Compressor {
 
@@ -20,22 +26,44 @@ public class Compressor {
 	 */
 	public static byte[] compress(@NotNull byte[] bytes) {
 		Spinner.printWithSpinner("Compressing data... ");
-
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DeflaterOutputStream dos = new DeflaterOutputStream(baos, new Deflater(Deflater.BEST_COMPRESSION, true));
-		try {
-			dos.write(bytes);
-			dos.close();
-		} catch (IOException e) {
-			System.err.println("Compression failed");
-		}
+		byte[] compBytes = deflate(bytes);
 
 		Spinner.end();
+		printCompression(bytes.length, compBytes.length);
+
+		return compBytes;
+	}
+
+	/**
+	 * Prints how much data was shrunk by compression.
+	 *
+	 * @param uncompSize Size of the data before compression
+	 * @param compSize   Size of the data after compression
+	 */
+	public static void printCompression(long uncompSize, long compSize) {
 		System.out.println(
 				"Compressed data by " + String.format(
-						"%.2f", ((bytes.length - baos.size()) / (double) bytes.length) * 100.0
+						"%.2f", ((uncompSize - compSize) / (double) uncompSize) * 100.0
 				) + "%"
 		);
+	}
+
+	/**
+	 * Compresses an array of bytes, in the same way as compress(), but without printing anything.
+	 *
+	 * @param bytes Array of bytes to be compressed
+	 * @return Original array or compressed array, whichever is smaller
+	 */
+	public static byte[] deflate(@NotNull byte[] bytes) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		try (DeflaterOutputStream dos = new DeflaterOutputStream(baos, deflater)) {
+			dos.write(bytes);
+		} catch (IOException ignored) {
+			// Never thrown by a ByteArrayOutputStream
+		} finally {
+			deflater.end();
+		}
 
 		return baos.size() < bytes.length ? baos.toByteArray() : bytes;
 	}
@@ -56,19 +84,110 @@ public class Compressor {
 		Spinner.end();
 		Spinner.printWithSpinner("\nDecompressing data... ");
 
-		ByteArrayInputStream bais = new ByteArrayInputStream(compBytes);
-		InflaterInputStream iis = new InflaterInputStream(bais, new Inflater(true));
-
-		byte[] uncompBytes = new byte[uncompSize];
 		try {
-			int pos = 0;
-			while (pos < uncompSize)
-				uncompBytes[pos++] = (byte) iis.read();
-			iis.close();
+			return inflate(compBytes, uncompSize);
 		} catch (IOException e) {
 			System.err.println("Decompression failed");
+			return new byte[uncompSize];
 		}
+	}
+
+	/**
+	 * Decompresses an array, in the same way as decompress(), but without printing anything, and throwing any error to
+	 * the caller instead.
+	 *
+	 * @param compBytes  Bytes to be decompressed, if they were compressed in the first place
+	 * @param uncompSize Size of the uncompressed data
+	 * @return Array containing uncompressed data
+	 * @throws IOException If the data is corrupt, or holds fewer bytes than expected
+	 */
+	public static byte[] inflate(@NotNull byte[] compBytes, int uncompSize) throws IOException {
+		if (compBytes.length >= uncompSize)
+			return compBytes;
+
+		Inflater inflater = new Inflater(true);
+		try (InflaterInputStream iis = new InflaterInputStream(new ByteArrayInputStream(compBytes), inflater)) {
+			byte[] uncompBytes = new byte[uncompSize];
+			int pos = 0, read;
+			while (pos < uncompSize && (read = iis.read(uncompBytes, pos, uncompSize - pos)) != -1)
+				pos += read;
+			if (pos < uncompSize)
+				throw new EOFException("Compressed data ends early");
+			return uncompBytes;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Returns a stream reading the data in a stream compressed with raw deflate, in the same way as deflate(), so that
+	 * data too large to be held in an array can be compressed. Closing the returned stream closes the given one.
+	 *
+	 * @param in Stream holding the data to compress
+	 * @return Stream of the compressed data
+	 */
+	public static InputStream deflating(@NotNull InputStream in) {
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		return new DeflaterInputStream(in, deflater) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns a stream decompressing whatever is written to it into another stream, in the same way as inflate(), so
+	 * that data too large to be held in an array can be decompressed as it is read. Data that was stored uncompressed,
+	 * which is the case when it is at least as large as its uncompressed size, is passed through as is. Writing more
+	 * than uncompSize bytes to out fails, and so does closing the returned stream before all of them were written.
+	 * Closing the returned stream does not close the given one.
+	 *
+	 * @param out        Stream to write the uncompressed data to
+	 * @param compSize   Size of the data that will be written to the returned stream
+	 * @param uncompSize Size of the uncompressed data
+	 * @return Stream to write the compressed data to
+	 */
+	public static OutputStream inflating(@NotNull OutputStream out, long compSize, long uncompSize) {
+		OutputStream counted = new FilterOutputStream(out) {
+			private long written = 0;
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[]{(byte) b}, 0, 1);
+			}
+
+			@Override
+			public void write(@NotNull byte[] b, int off, int len) throws IOException {
+				if ((written += len) > uncompSize)
+					throw new IOException("Compressed data holds more bytes than expected");
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+				if (written < uncompSize)
+					throw new EOFException("Compressed data ends early");
+			}
+		};
+		if (compSize >= uncompSize)
+			return counted;
 
-		return uncompBytes;
+		Inflater inflater = new Inflater(true);
+		return new InflaterOutputStream(counted, inflater) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					inflater.end();
+				}
+			}
+		};
 	}
 }
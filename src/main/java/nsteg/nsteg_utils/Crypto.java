@@ -3,27 +3,47 @@ package nsteg.nsteg_utils;
 import com.lambdaworks.crypto.SCrypt;
 
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import javax.validation.constraints.NotNull;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Scanner;
 
 public class Crypto {
-	private static Scanner in = new Scanner(System.in);
-
 	final public static int AES_IV_SIZE = 12; // 12 bytes, recommended for GCM
 	final public static int GCM_AAD_SIZE = 16 * Byte.SIZE; // 128 bits
 	final public static int SALT_SIZE_BITS = 8 * Byte.SIZE; // 64 bits
 
 	final private static int keyLen = 32; // 256 bit AES key
 
+	/*
+	 * Holds the scanner used to prompt the user, so that System.in is only touched once a prompt is actually needed,
+	 * and never by jobs that pass their passwords in.
+	 */
+	private static class Console {
+		private static final Scanner in = new Scanner(System.in);
+	}
+
+	/*
+	 * Prints a prompt and reads the user's answer. Prompts of jobs running at the same time are serialized, so that
+	 * each answer goes to the job that asked for it.
+	 */
+	private static String prompt(@NotNull String prompt) {
+		synchronized (Console.in) {
+			System.out.print(prompt);
+			return Console.in.nextLine();
+		}
+	}
+
 	public static boolean offerToCrypt(boolean encrypt) {
-		System.out.print("Do you wish to " + (encrypt ? "encrypt" : "decrypt") + " this data? Y/N: ");
-		return "y".equalsIgnoreCase(in.nextLine());
+		return "y".equalsIgnoreCase(prompt("Do you wish to " + (encrypt ? "encrypt" : "decrypt") + " this data? Y/N: "));
 	}
 
 	/**
@@ -57,51 +77,49 @@ public class Crypto {
 	 * @return Two dimensional byte array of size two, containing the salt bytes and the encrypted bytes, respectively
 	 */
 	public static byte[][] encrypt(@NotNull byte[] bytesToEncrypt, @NotNull byte[] aad, String pass) {
-		byte[][] saltAndCiphertext = new byte[2][];
-		saltAndCiphertext[1] = bytesToEncrypt;
-
+		byte[] passBytes;
 		if (pass == null)
-			System.out.print("Enter the password to use: ");
+			passBytes = prompt("Enter the password to use: ").getBytes();
+		else
+			passBytes = pass.getBytes();
 
-		Cipher cipher;
-		byte[] encData;
-		byte[] iv = new byte[AES_IV_SIZE];
+		Spinner.printWithSpinner("Encrypting data... ");
 		try {
-			SecureRandom secureRandom = new SecureRandom();
-			secureRandom.nextBytes(iv);
-
-			saltAndCiphertext[0] = new byte[SALT_SIZE_BITS / Byte.SIZE]; // 64 bit salt
-			secureRandom.nextBytes(saltAndCiphertext[0]);
-
-			byte[] passBytes;
-			if (pass == null)
-				passBytes = in.nextLine().getBytes();
-			else
-				passBytes = pass.getBytes();
-
-			Spinner.printWithSpinner("Encrypting data... ");
-			byte[] key = SCrypt.scrypt(passBytes, saltAndCiphertext[0], (int) Math.pow(2, 18), 8, 8, keyLen);
-			Arrays.fill(passBytes, (byte) 0); // Wipe from memory
-
-			cipher = Cipher.getInstance("AES/GCM/NoPadding");
-			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(GCM_AAD_SIZE, iv));
-			Arrays.fill(key, (byte) 0); // Wipe from memory
-
-			cipher.updateAAD(aad); // Add associated data, to prevent tampering with encrypted data
-			encData = cipher.doFinal(bytesToEncrypt); // Encrypt
+			return seal(bytesToEncrypt, aad, passBytes);
 		} catch (GeneralSecurityException e) {
 			System.err.println("Encryption failed");
-			return saltAndCiphertext;
+			return new byte[][]{new byte[SALT_SIZE_BITS / Byte.SIZE], bytesToEncrypt};
 		}
+	}
 
-		// Write IV and ciphertext to byte array, and encode that
-		ByteBuffer byteBuffer = ByteBuffer.allocate(iv.length + encData.length);
-		byteBuffer.put(iv);
-		byteBuffer.put(encData);
-
-		saltAndCiphertext[1] = byteBuffer.array();
+	/**
+	 * Encrypts an array of bytes in the same way as encrypt(byte[], byte[], String), but without any prompts or
+	 * output, for use by programs embedding this one. The password array is left untouched, and may be wiped by the
+	 * caller once this method returns.
+	 *
+	 * @param bytesToEncrypt Byte array to encrypt
+	 * @param aad            Associated data array (16 bytes) to prevent data tampering
+	 * @param password       Password to use for encryption
+	 * @return Two dimensional byte array of size two, containing the salt bytes and the encrypted bytes, respectively
+	 * @throws GeneralSecurityException If the data cannot be encrypted
+	 */
+	public static byte[][] encrypt(@NotNull byte[] bytesToEncrypt, @NotNull byte[] aad, @NotNull char[] password)
+			throws GeneralSecurityException {
+		return seal(bytesToEncrypt, aad, toBytes(password));
+	}
 
-		return saltAndCiphertext;
+	/*
+	 * Derives the key from the password bytes, wiping them, and encrypts the data with it.
+	 */
+	private static byte[][] seal(byte[] bytesToEncrypt, byte[] aad, byte[] passBytes)
+			throws GeneralSecurityException {
+		byte[] salt = genSalt();
+		byte[] key = deriveKey(passBytes, salt);
+		try {
+			return new byte[][]{salt, encryptWithKey(bytesToEncrypt, aad, key)};
+		} finally {
+			Arrays.fill(key, (byte) 0); // Wipe from memory
+		}
 	}
 
 	/**
@@ -119,6 +137,160 @@ public class Crypto {
 	 */
 	public static byte[] decrypt(@NotNull byte[] bytesToDecrypt, @NotNull byte[] salt, @NotNull byte[] aad,
 								 String pass) {
+		byte[] passBytes;
+		System.out.println();
+		if (pass == null)
+			passBytes = prompt("Enter password: ").getBytes();
+		else
+			passBytes = pass.getBytes();
+
+		Spinner.printWithSpinner("Decrypting data... ");
+		try {
+			return open(bytesToDecrypt, salt, aad, passBytes);
+		} catch (GeneralSecurityException e) {
+			System.err.println("Decryption failed");
+			return bytesToDecrypt;
+		}
+	}
+
+	/**
+	 * Decrypts an array of bytes in the same way as decrypt(byte[], byte[], byte[], String), but without any prompts
+	 * or output, for use by programs embedding this one. The password array is left untouched, and may be wiped by
+	 * the caller once this method returns.
+	 *
+	 * @param bytesToDecrypt Array of encrypted bytes to be decrypted
+	 * @param salt           Salt used to hash the password
+	 * @param aad            Associated data used to verify the encrypted data was not tampered with
+	 * @param password       Password to use for decryption
+	 * @return Decrypted array of bytes
+	 * @throws GeneralSecurityException If the password is wrong, or the data was tampered with
+	 */
+	public static byte[] decrypt(@NotNull byte[] bytesToDecrypt, @NotNull byte[] salt, @NotNull byte[] aad,
+								 @NotNull char[] password) throws GeneralSecurityException {
+		return open(bytesToDecrypt, salt, aad, toBytes(password));
+	}
+
+	/*
+	 * Derives the key from the password bytes, wiping them, and decrypts the data with it.
+	 */
+	private static byte[] open(byte[] bytesToDecrypt, byte[] salt, byte[] aad, byte[] passBytes)
+			throws GeneralSecurityException {
+		if (bytesToDecrypt.length < AES_IV_SIZE) {
+			Arrays.fill(passBytes, (byte) 0); // Wipe from memory
+			throw new GeneralSecurityException("Encrypted data is too short");
+		}
+
+		byte[] key = deriveKey(passBytes, salt);
+		try {
+			return decryptWithKey(bytesToDecrypt, aad, key);
+		} finally {
+			Arrays.fill(key, (byte) 0); // Wipe from memory
+		}
+	}
+
+	/**
+	 * Prompts the user for a password, for callers that derive a key once and use it for several encryptions, instead
+	 * of letting encrypt() or decrypt() prompt for it.
+	 *
+	 * @param encrypt True if the password will be used to encrypt data, false to decrypt it
+	 * @return Password entered by the user
+	 */
+	public static char[] readPassword(boolean encrypt) {
+		return prompt(encrypt ? "Enter the password to use: " : "Enter password: ").toCharArray();
+	}
+
+	/**
+	 * Generates a random 64 bit salt, to derive a key with.
+	 *
+	 * @return Salt bytes
+	 */
+	public static byte[] genSalt() {
+		byte[] salt = new byte[SALT_SIZE_BITS / Byte.SIZE];
+		new SecureRandom().nextBytes(salt);
+		return salt;
+	}
+
+	/**
+	 * Derives a 256 bit AES key from a password with scrypt, like encrypt() and decrypt() do, so that the same key can
+	 * be used for any number of calls to encryptWithKey() and decryptWithKey(). The password array is left untouched.
+	 *
+	 * @param password Password to derive the key from
+	 * @param salt     Salt to derive the key with
+	 * @return Key bytes, which should be wiped by the caller once no longer needed
+	 * @throws GeneralSecurityException If scrypt is not available
+	 */
+	public static byte[] deriveKey(@NotNull char[] password, @NotNull byte[] salt) throws GeneralSecurityException {
+		return deriveKey(toBytes(password), salt);
+	}
+
+	/*
+	 * Derives the key from the password bytes, wiping them.
+	 */
+	private static byte[] deriveKey(byte[] passBytes, byte[] salt) throws GeneralSecurityException {
+		try {
+			return SCrypt.scrypt(passBytes, salt, (int) Math.pow(2, 18), 8, 8, keyLen);
+		} finally {
+			Arrays.fill(passBytes, (byte) 0); // Wipe from memory
+		}
+	}
+
+	/**
+	 * Derives a key for another purpose than encryption from a key derived by deriveKey(), with HMAC-SHA512, so that
+	 * no scrypt derivation has to be run again for it, and the key encrypting the data cannot be recovered from it.
+	 *
+	 * @param key     Key derived by deriveKey()
+	 * @param purpose Label of what the key is used for, which gives every purpose an unrelated key
+	 * @return 64 bytes of key material, which should be wiped by the caller once no longer needed
+	 * @throws GeneralSecurityException If HMAC-SHA512 is not available
+	 */
+	public static byte[] deriveSubkey(@NotNull byte[] key, @NotNull String purpose) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA512");
+		mac.init(new SecretKeySpec(key, "HmacSHA512"));
+		return mac.doFinal(purpose.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Encrypts an array of bytes with AES-256 in GCM mode, using a key derived by deriveKey() and a random IV. The IV
+	 * is written in front of the encrypted data, which is followed by the authentication tag.
+	 *
+	 * @param bytesToEncrypt Byte array to encrypt
+	 * @param aad            Associated data array to prevent data tampering
+	 * @param key            Key to encrypt with
+	 * @return IV, encrypted data and authentication tag
+	 * @throws GeneralSecurityException If the data cannot be encrypted
+	 */
+	public static byte[] encryptWithKey(@NotNull byte[] bytesToEncrypt, @NotNull byte[] aad, @NotNull byte[] key)
+			throws GeneralSecurityException {
+		byte[] iv = new byte[AES_IV_SIZE];
+		new SecureRandom().nextBytes(iv);
+
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(GCM_AAD_SIZE, iv));
+
+		cipher.updateAAD(aad); // Add associated data, to prevent tampering with encrypted data
+		byte[] encData = cipher.doFinal(bytesToEncrypt); // Encrypt
+
+		// Write IV and ciphertext to byte array, and encode that
+		ByteBuffer byteBuffer = ByteBuffer.allocate(iv.length + encData.length);
+		byteBuffer.put(iv);
+		byteBuffer.put(encData);
+		return byteBuffer.array();
+	}
+
+	/**
+	 * Decrypts an array of bytes encrypted by encryptWithKey().
+	 *
+	 * @param bytesToDecrypt IV, encrypted data and authentication tag
+	 * @param aad            Associated data used to verify the encrypted data was not tampered with
+	 * @param key            Key the data was encrypted with
+	 * @return Decrypted array of bytes
+	 * @throws GeneralSecurityException If the key is wrong, or the data was tampered with
+	 */
+	public static byte[] decryptWithKey(@NotNull byte[] bytesToDecrypt, @NotNull byte[] aad, @NotNull byte[] key)
+			throws GeneralSecurityException {
+		if (bytesToDecrypt.length < AES_IV_SIZE)
+			throw new GeneralSecurityException("Encrypted data is too short");
+
 		ByteBuffer byteBuffer = ByteBuffer.wrap(bytesToDecrypt);
 		byte[] iv = new byte[AES_IV_SIZE];
 		byteBuffer.get(iv);
@@ -126,33 +298,23 @@ public class Crypto {
 		byte[] cipherText = new byte[byteBuffer.remaining()];
 		byteBuffer.get(cipherText);
 
-		Cipher cipher;
-		byte[] unencData;
-		try {
-			cipher = Cipher.getInstance("AES/GCM/NoPadding");
-
-			byte[] passBytes;
-			System.out.println();
-			if (pass == null) {
-				System.out.print("Enter password: ");
-				passBytes = in.nextLine().getBytes();
-			} else
-				passBytes = pass.getBytes();
-
-			Spinner.printWithSpinner("Decrypting data... ");
-			byte[] key = SCrypt.scrypt(passBytes, salt, (int) Math.pow(2, 18), 8, 8, keyLen);
-			Arrays.fill(passBytes, (byte) 0); // Wipe from memory
-
-			cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(GCM_AAD_SIZE, iv));
-			Arrays.fill(key, (byte) 0); // Wipe from memory
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(GCM_AAD_SIZE, iv));
 
-			cipher.updateAAD(aad); // Verify data was not tampered with
-			unencData = cipher.doFinal(cipherText); // Decrypt
-		} catch (GeneralSecurityException e) {
-			System.err.println("Decryption failed");
-			return bytesToDecrypt;
-		}
+		cipher.updateAAD(aad); // Verify data was not tampered with
+		return cipher.doFinal(cipherText); // Decrypt
+	}
 
-		return unencData;
+	/*
+	 * Encodes a password in the platform charset, like String.getBytes() does for the passwords read from the user,
+	 * so that the same password derives the same key either way.
+	 */
+	private static byte[] toBytes(char[] password) {
+		ByteBuffer encoded = Charset.defaultCharset().encode(CharBuffer.wrap(password));
+		byte[] passBytes = new byte[encoded.remaining()];
+		encoded.get(passBytes);
+		if (encoded.hasArray())
+			Arrays.fill(encoded.array(), (byte) 0); // Wipe from memory
+		return passBytes;
 	}
 }
@@ -0,0 +1,125 @@
+package nsteg.nsteg_utils;
+
+import javax.validation.constraints.NotNull;
+import java.nio.ByteBuffer;
+
+/**
+ * Keyed permutation of the units of a carrier (pixels of an image, or right channel PCM bytes of an audio file), which
+ * decides where each unit of data is embedded when the data is scattered across the carrier rather than written
+ * sequentially. Encoders and decoders keep working on sequential unit indexes, and only map each one to the unit it is
+ * actually written to or read from through map(), so that threads can still be handed disjoint ranges of indexes.
+ * <p><br>
+ * The permutation is a balanced Feistel network over the smallest even number of bits that can hold every index in the
+ * range, with cycle-walking to stay inside the range: indexes that land outside of it are encrypted again until they
+ * fall back in, which takes fewer than four rounds of the network on average, since the range covers at least a
+ * quarter of the values the network works on. Mapping an index therefore takes constant time and memory, whatever the
+ * size of the carrier, and no table of the order is ever built.
+ * <p><br>
+ * Only the units in the range given to the constructor are permuted, among themselves. Units before the range, such as
+ * the ones holding the header, and units after it map to themselves.
+ */
+public final class EmbeddingOrder {
+	/**
+	 * Order that maps every unit to itself, for data written sequentially.
+	 */
+	public static final EmbeddingOrder SEQUENTIAL = new EmbeddingOrder();
+
+	/**
+	 * Number of rounds of the Feistel network. Four rounds make a strong pseudo-random permutation given a
+	 * pseudo-random round function, and the extra rounds make up for the round function being a simple mixer.
+	 */
+	private static final int ROUNDS = 8;
+
+	/**
+	 * Number of bytes of key material the round keys are taken from.
+	 */
+	public static final int KEY_SIZE = ROUNDS * Long.BYTES;
+
+	private final long start, size;
+	private final int halfBits;
+	private final long halfMask;
+	private final long[] roundKeys;
+
+	private EmbeddingOrder() {
+		start = size = 0;
+		halfBits = 0;
+		halfMask = 0;
+		roundKeys = new long[0];
+	}
+
+	/**
+	 * Creates the permutation of the units from start, inclusive, to end, exclusive, selected by the given key.
+	 *
+	 * @param key   Key selecting the permutation, of at least KEY_SIZE bytes, such as one derived by
+	 *              Crypto.deriveSubkey()
+	 * @param start Index of the first unit to permute
+	 * @param end   Index of the unit after the last one to permute
+	 * @throws IllegalArgumentException If the key is too short, or the range is invalid
+	 */
+	public EmbeddingOrder(@NotNull byte[] key, long start, long end) {
+		if (key.length < KEY_SIZE)
+			throw new IllegalArgumentException("Embedding order key must be at least " + KEY_SIZE + " bytes");
+		if (start < 0 || end < start)
+			throw new IllegalArgumentException("Invalid range of units to permute");
+
+		this.start = start;
+		this.size = end - start;
+
+		int bits = Math.max(2, Long.SIZE - Long.numberOfLeadingZeros(Math.max(1, size - 1)));
+		halfBits = (bits + 1) / 2;
+		halfMask = (1L << halfBits) - 1;
+
+		ByteBuffer keyBytes = ByteBuffer.wrap(key);
+		roundKeys = new long[ROUNDS];
+		for (int r = 0; r < ROUNDS; r++)
+			roundKeys[r] = keyBytes.getLong();
+	}
+
+	/**
+	 * Returns whether this order maps every unit to itself.
+	 *
+	 * @return True if data is written sequentially, false if it is scattered
+	 */
+	public boolean isSequential() {
+		return size < 2;
+	}
+
+	/**
+	 * Returns the index of the unit the unit at the given sequential index is written to or read from.
+	 *
+	 * @param unit Sequential index of the unit
+	 * @return Index of the unit actually holding its data
+	 */
+	public long map(long unit) {
+		long offset = unit - start;
+		if (offset < 0 || offset >= size || size < 2)
+			return unit;
+
+		do
+			offset = permute(offset);
+		while (offset >= size);
+		return start + offset;
+	}
+
+	/*
+	 * One pass through the Feistel network, which permutes all values of 2 * halfBits bits.
+	 */
+	private long permute(long value) {
+		long left = value >>> halfBits, right = value & halfMask;
+		for (int r = 0; r < ROUNDS; r++) {
+			long next = left ^ (mix(right ^ roundKeys[r]) & halfMask);
+			left = right;
+			right = next;
+		}
+		return (left << halfBits) | right;
+	}
+
+	/*
+	 * Round function, the finalizer of the SplitMix64 generator, which spreads every input bit over every output bit.
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -5,22 +5,26 @@ import javax.validation.constraints.NotNull;
 /**
  * Simple spinning icon made out of characters. Used while program is running long computations, so the user feels
  * like the program is running something vs just being stuck. Pretty meaningless, but hey, looks good!
+ * <p><br>
+ * Each thread has its own spinner, so that several encoding or decoding jobs running at the same time, each on its
+ * own thread, do not stop or restart each other's spinners.
  */
-public class Spinner extends Thread {
-	private static Thread t;
+public class Spinner implements Runnable {
+	private static final ThreadLocal<Spinner> spinners = ThreadLocal.withInitial(Spinner::new);
 
 	private char[] chars = {'|', '/', '-', '\\'};
-	private static boolean spinning = false;
-	private static boolean deleted;
+
+	private Thread t;
+	private volatile boolean spinning = false;
+	private volatile boolean deleted;
 
 	@Override
 	public void run() {
-		spinning = true;
 		for (int i = 0; spinning; i++) {
 			System.out.print(chars[i % chars.length]);
 			deleted = false;
 			try {
-				sleep(500);
+				Thread.sleep(500);
 			} catch (InterruptedException ignored) {
 			}
 			System.out.print("\b \b");
@@ -28,8 +32,17 @@ public class Spinner extends Thread {
 		}
 	}
 
+	/**
+	 * Stops the spinner of the calling thread, if it is running.
+	 */
 	public static void end() {
+		spinners.get().stop();
+	}
+
+	private void stop() {
 		spinning = false;
+		if (t == null) // Never started
+			return;
 		try {
 			t.join();
 			if (!deleted)
@@ -39,24 +52,27 @@ public class Spinner extends Thread {
 		}
 	}
 
-	private static void spin() {
-		if (t == null || !Spinner.spinning) {
-			t = new Thread(new Spinner());
+	private void spin() {
+		if (t == null || !spinning) {
+			spinning = true; // Set before starting, so that an end() call right after spin() is not missed
+			t = new Thread(this);
 			t.setDaemon(true);
 			t.start();
 		} else
-			Spinner.end();
+			stop();
 	}
 
 	/**
-	 * If a spinner is running, stops it. Then prints the passed string, and starts the spinner again.
+	 * If the spinner of the calling thread is running, stops it. Then prints the passed string, and starts the spinner
+	 * again.
 	 *
 	 * @param str String to be printed before starting the spinner
 	 */
 	public static void printWithSpinner(@NotNull String str) {
-		if (spinning)
-			end();
+		Spinner spinner = spinners.get();
+		if (spinner.spinning)
+			spinner.stop();
 		System.out.print(str);
-		spin();
+		spinner.spin();
 	}
 }
@@ -1,27 +1,58 @@
 package nsteg.processors;
 
-import net.sourceforge.javaflacencoder.*;
 import nsteg.nsteg_utils.Spinner;
 import nsteg.encoders.aud.AudEncoder;
 import nsteg.encoders.aud.FLACData;
-import org.kc7bfi.jflac.FLACDecoder;
-import org.kc7bfi.jflac.PCMProcessor;
 import org.kc7bfi.jflac.metadata.StreamInfo;
-import org.kc7bfi.jflac.util.ByteData;
-import org.kc7bfi.jflac.util.WavWriter;
 
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
 import javax.validation.constraints.NotNull;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static java.nio.file.StandardOpenOption.*;
 
 /**
  * This class handles reading audio files from disk and loading them into a PCM byte array, as well as writing PCM byte
- * arrays to audio files on disk.
+ * arrays to audio files on disk. 16 bit PCM WAV files can also be memory mapped, so that their PCM data is read and
+ * modified in place, without loading it into memory. The encoder keeps PCM data off the heap, in a PCMStore.
  */
 public class AudioProcessor {
+	private static final int WAVE_FORMAT_PCM = 1, WAVE_FORMAT_EXTENSIBLE = 0xfffe;
+
+	/**
+	 * PCM data longer than this, or of unknown length, is loaded into a temporary file rather than direct memory.
+	 */
+	private static final long FILE_BACKED_PCM_SIZE = 1L << 28;
+
+	/**
+	 * Number of PCM bytes copied out of a PCMStore at a time when writing it to an audio file.
+	 */
+	private static final int WRITE_CHUNK_SIZE = 1 << 20;
+
+	/**
+	 * Format magic and version of PCM sidecar files, and size of their header.
+	 */
+	private static final int SIDECAR_MAGIC = 0x4E535450, SIDECAR_VERSION = 1, SIDECAR_HEADER_SIZE = 40;
+
+	/**
+	 * Directory holding the decoded PCM data of compressed audio files, or null if it is not kept.
+	 */
+	private static volatile Path sidecarDirectory = null;
 
 	/**
 	 * Returns a copy of the array that is passed as the argument, but that is twice as big as the passed array.
@@ -88,9 +119,25 @@ public class AudioProcessor {
 		return trimArray(buffer, bytesRead);
 	}
 
+	/**
+	 * Loads a stream of PCM data into off-heap storage. Streams of known length up to 256 MiB are held in direct
+	 * memory, and longer ones in a temporary file, which lets the OS page PCM data out instead of requiring it to fit
+	 * in memory.
+	 *
+	 * @param pcmStream      Stream of PCM data to load, which is not closed
+	 * @param expectedLength Number of PCM bytes in the stream, or a value below 1 if unknown
+	 * @return Store holding the PCM data
+	 * @throws IOException If the stream cannot be read
+	 */
+	public static PCMStore loadPCM(@NotNull InputStream pcmStream, long expectedLength) throws IOException {
+		boolean fileBacked = expectedLength <= 0 || expectedLength > FILE_BACKED_PCM_SIZE;
+		return PCMStore.load(pcmStream, expectedLength, fileBacked);
+	}
+
 	/**
 	 * Loads the PCM data from a FLAC audio file into FLACData object, which is later returned. Some of the relevant
-	 * encoding metadata is returned as well, alongside the decoded PCM bytes.
+	 * encoding metadata is returned as well, alongside the decoded PCM bytes. The PCM array is sized from the total
+	 * number of samples declared in the STREAMINFO block, and frames are decoded straight into it.
 	 *
 	 * @param audioFileName Name of the FLAC audio file to decode (including audio file extension)
 	 * @return FLACData object containing the data from the FLAC audio file
@@ -98,45 +145,344 @@ public class AudioProcessor {
 	public static FLACData loadFLACFile(@NotNull String audioFileName) {
 		FLACData data = new FLACData();
 
-		FLACDecoder decoder;
+		FLACPCMInputStream pcmStream;
 		try {
-			decoder = new FLACDecoder(new FileInputStream(audioFileName));
-		} catch (FileNotFoundException e) {
+			pcmStream = new FLACPCMInputStream(new FileInputStream(audioFileName));
+		} catch (IOException e) {
 			System.err.println("Error opening FLAC audio file.");
 			return data;
 		}
 
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		WavWriter writer = new WavWriter(buffer);
+		StreamInfo streamInfo = pcmStream.getStreamInfo();
+		data.bitsPerSample = streamInfo.getBitsPerSample();
+		data.channels = streamInfo.getChannels();
+		data.sampleRate = streamInfo.getSampleRate();
+
+		try {
+			data.pcm = readPCM(pcmStream, pcmStream.getPCMLength());
+		} catch (IOException e) {
+			System.err.println("Error decoding FLAC audio file.");
+			data.pcm = new byte[0];
+		}
+
+		try {
+			pcmStream.close();
+		} catch (IOException ignored) {
+		}
+
+		return data;
+	}
+
+	/*
+	 * Reads a stream of PCM data into an array of the expected length. If the length is unknown, or the stream turns
+	 * out to be longer, the array is grown as loadAudioFile() does.
+	 */
+	private static byte[] readPCM(InputStream pcmStream, long expectedLength) throws IOException {
+		byte[] pcm = new byte[(int) Math.min(expectedLength > 0 ? expectedLength : 1 << 20, Integer.MAX_VALUE - 8)];
+		int len = 0, read;
+		while ((read = pcmStream.read(pcm, len, pcm.length - len)) != -1) {
+			len += read;
+			if (len == pcm.length) {
+				int next = pcmStream.read();
+				if (next == -1)
+					break;
+				pcm = resize(pcm, len + 1);
+				pcm[len++] = (byte) next;
+			}
+		}
+
+		return len == pcm.length ? pcm : trimArray(pcm, len);
+	}
+
+	/**
+	 * Sets the directory in which the decoded PCM data of MP3 and FLAC files is kept, in sidecar files named after a
+	 * hash of the contents of the file they were decoded from. Once a file has been decoded, decodeAudioFile() maps
+	 * its sidecar instead of decoding it again, even if it was renamed or copied. The directory is created if needed.
+	 * Sidecar files are never deleted by this program, so the directory can be cleared at any time.
+	 *
+	 * @param directory Directory to keep sidecar files in, or null to neither read nor write them
+	 * @throws IOException If the directory cannot be created
+	 */
+	public static void setSidecarDirectory(Path directory) throws IOException {
+		if (directory != null)
+			Files.createDirectories(directory);
+		sidecarDirectory = directory;
+	}
+
+	/**
+	 * Returns the directory in which the decoded PCM data of MP3 and FLAC files is kept.
+	 *
+	 * @return Directory holding sidecar files, or null if they are not kept
+	 */
+	public static Path getSidecarDirectory() {
+		return sidecarDirectory;
+	}
+
+	/**
+	 * Decodes an audio file to signed PCM data. WAV and MP3 files are decoded through AudioSystem, and FLAC files
+	 * through FLACPCMInputStream. If a sidecar directory is set, MP3 and FLAC files are only decoded the first time
+	 * their contents are seen, into a sidecar file, and their sidecar file is memory mapped from then on. Sidecar
+	 * files are mapped privately, so that data can be encoded into the PCM data without ever changing them.
+	 *
+	 * @param audioFile Name of the audio file to decode
+	 * @return Decoded PCM data, whose store must be closed once done with
+	 * @throws IOException If the file cannot be read, or is not a supported audio file
+	 * @see #setSidecarDirectory(Path)
+	 */
+	public static CarrierCache.DecodedAudio decodeAudioFile(@NotNull String audioFile) throws IOException {
+		Path path = Paths.get(audioFile), directory = sidecarDirectory;
+		if (directory == null || audioFile.toLowerCase().endsWith("wav")) {
+			try (AudioInputStream pcmStream = openPCMStream(path)) {
+				long frames = pcmStream.getFrameLength();
+				PCMStore pcm = loadPCM(pcmStream, frames == AudioSystem.NOT_SPECIFIED ? 0 :
+												  frames * pcmStream.getFormat().getFrameSize());
+				return new CarrierCache.DecodedAudio(pcm, pcmStream.getFormat());
+			}
+		}
 
-		// More or less as per Decoder sample in library
-		decoder.addPCMProcessor(new PCMProcessor() {
-			@Override
-			public void processStreamInfo(StreamInfo streamInfo) {
-				data.bitsPerSample = streamInfo.getBitsPerSample();
-				data.channels = streamInfo.getChannels();
-				data.sampleRate = streamInfo.getSampleRate();
+		Path sidecar = directory.resolve(hashFile(path) + ".pcm");
+		if (Files.isRegularFile(sidecar)) {
+			try {
+				return mapSidecar(sidecar);
+			} catch (IOException e) {
+				Files.deleteIfExists(sidecar); // Truncated or from another version, so decoded again
 			}
+		}
 
-			@Override
-			public void processPCM(ByteData byteData) {
-				try {
-					writer.writePCM(byteData);
-				} catch (IOException e) {
-					System.err.println("Error while writing the PCM data from the FLAC audio file to the buffer.");
-				}
+		Path tempFile = Files.createTempFile(directory, sidecar.getFileName().toString(), ".tmp");
+		try {
+			try (AudioInputStream pcmStream = openPCMStream(path)) {
+				writeSidecar(pcmStream, tempFile);
 			}
-		});
+			try {
+				Files.move(tempFile, sidecar, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile, sidecar, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+		return mapSidecar(sidecar);
+	}
+
+	/*
+	 * Opens a stream of the signed PCM data of an audio file.
+	 */
+	private static AudioInputStream openPCMStream(Path path) throws IOException {
+		if (path.toString().toLowerCase().endsWith("flac")) {
+			FLACPCMInputStream pcmStream = new FLACPCMInputStream(new FileInputStream(path.toFile()));
+			StreamInfo info = pcmStream.getStreamInfo();
+			AudioFormat format = new AudioFormat(info.getSampleRate(), info.getBitsPerSample(), info.getChannels(),
+												 true, false);
+			long pcmLength = pcmStream.getPCMLength();
+			return new AudioInputStream(pcmStream, format, pcmLength > 0 ? pcmLength / format.getFrameSize() :
+														   AudioSystem.NOT_SPECIFIED);
+		}
+
+		try {
+			return AudioSystem.getAudioInputStream(AudioFormat.Encoding.PCM_SIGNED,
+												   AudioSystem.getAudioInputStream(path.toFile()));
+		} catch (UnsupportedAudioFileException e) {
+			throw new IOException(e);
+		}
+	}
 
+	/*
+	 * Hashes the contents of a file with SHA-256, which is much faster than decoding it.
+	 */
+	private static String hashFile(Path path) throws IOException {
+		MessageDigest digest;
 		try {
-			decoder.decode();
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		try (FileChannel ch = FileChannel.open(path, READ)) {
+			ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16);
+			while (ch.read(buf) != -1) {
+				buf.flip();
+				digest.update(buf);
+				buf.clear();
+			}
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest())
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+	/*
+	 * Writes a sidecar file: a header describing the PCM format, then the PCM data. The length of the PCM data is
+	 * only filled in once all of it has been written, so an interrupted write is never mistaken for a complete one.
+	 */
+	private static void writeSidecar(AudioInputStream pcmStream, Path sidecar) throws IOException {
+		try (FileChannel ch = FileChannel.open(sidecar, WRITE, TRUNCATE_EXISTING)) {
+			OutputStream out = new BufferedOutputStream(Channels.newOutputStream(ch.position(SIDECAR_HEADER_SIZE)),
+														1 << 16);
+			byte[] buf = new byte[1 << 16];
+			long pcmLength = 0;
+			int read;
+			while ((read = pcmStream.read(buf)) != -1) {
+				out.write(buf, 0, read);
+				pcmLength += read;
+			}
+			out.flush();
+
+			AudioFormat format = pcmStream.getFormat();
+			ByteBuffer header = ByteBuffer.allocate(SIDECAR_HEADER_SIZE);
+			header.putInt(SIDECAR_MAGIC).putInt(SIDECAR_VERSION).putFloat(format.getSampleRate())
+				  .putInt(format.getSampleSizeInBits()).putInt(format.getChannels()).putInt(format.getFrameSize())
+				  .putFloat(format.getFrameRate()).putInt(format.isBigEndian() ? 1 : 0).putLong(pcmLength).flip();
+			while (header.hasRemaining())
+				ch.write(header, header.position());
+		}
+	}
+
+	/*
+	 * Maps the PCM data of a sidecar file privately, so that changes made to it are never written back to the file.
+	 */
+	private static CarrierCache.DecodedAudio mapSidecar(Path sidecar) throws IOException {
+		FileChannel ch = FileChannel.open(sidecar, READ, WRITE); // Private mappings require write access
+		try {
+			ByteBuffer header = ByteBuffer.allocate(SIDECAR_HEADER_SIZE);
+			readFully(ch, header, 0, SIDECAR_HEADER_SIZE);
+			header.flip();
+			if (header.getInt() != SIDECAR_MAGIC || header.getInt() != SIDECAR_VERSION)
+				throw new IOException("Not a PCM sidecar file");
+
+			float sampleRate = header.getFloat();
+			int bits = header.getInt(), channels = header.getInt(), frameSize = header.getInt();
+			float frameRate = header.getFloat();
+			boolean bigEndian = header.getInt() != 0;
+			long pcmLength = header.getLong();
+			if (pcmLength != ch.size() - SIDECAR_HEADER_SIZE)
+				throw new IOException("PCM sidecar file is incomplete");
+
+			AudioFormat format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, sampleRate, bits, channels,
+												 frameSize, frameRate, bigEndian);
+			return new CarrierCache.DecodedAudio(PCMStore.map(ch, SIDECAR_HEADER_SIZE, pcmLength,
+															  FileChannel.MapMode.PRIVATE), format);
+		} catch (IOException | RuntimeException e) {
+			ch.close();
+			throw e instanceof IOException ? (IOException) e : new IOException(e);
+		}
+	}
+
+	/**
+	 * Determines whether a WAV file can be memory mapped by mapWAVFile(), which requires it to hold 16 bit PCM data.
+	 * The PCM data in such files is exactly what loadAudioFile() reads, so carriers encoded in place can be decoded
+	 * either way.
+	 *
+	 * @param fileName Name of the WAV file to check
+	 * @return True if the file can be mapped, false otherwise
+	 */
+	public static boolean isMappableWAV(@NotNull String fileName) {
+		try (FileChannel ch = FileChannel.open(Paths.get(fileName), READ)) {
+			findWAVDataChunk(ch);
+			return true;
 		} catch (IOException e) {
-			System.err.println("Error decoding FLAC audio file.");
+			return false;
 		}
+	}
 
-		data.pcm = buffer.toByteArray();
+	/**
+	 * Memory maps the PCM data of a WAV file. If an output file is given, the WAV file is first copied to it by the
+	 * OS, and the PCM data of the copy is mapped for writing, so that data can be encoded into it in place. Otherwise
+	 * the WAV file is mapped read-only. The whole data chunk is mapped, however large, since PCMStore is not limited
+	 * to 2 GiB like a single buffer.
+	 *
+	 * @param inFile  Name of the WAV file to map
+	 * @param outFile Name of the file to copy the WAV file to before mapping it, or null to map the input read-only
+	 * @return Store holding the PCM data of the WAV file, which must be closed once done with
+	 * @throws IOException If either file cannot be opened, or the WAV file does not hold 16 bit PCM data
+	 */
+	public static PCMStore mapWAVFile(@NotNull String inFile, String outFile) throws IOException {
+		if (outFile == null)
+			return mapWAVFile(inFile, false);
 
-		return data;
+		Path in = Paths.get(inFile), out = Paths.get(outFile);
+		if (Files.exists(out) && Files.isSameFile(in, out))
+			throw new IOException("Output file must be different from the carrier");
+
+		try (FileChannel src = FileChannel.open(in, READ)) {
+			FileChannel dst = FileChannel.open(out, CREATE, TRUNCATE_EXISTING, READ, WRITE);
+			try {
+				long[] dataChunk = findWAVDataChunk(src);
+				long pos = 0, size = src.size();
+				while (pos < size)
+					pos += src.transferTo(pos, size - pos, dst);
+				return PCMStore.map(dst, dataChunk[0], dataChunk[1], FileChannel.MapMode.READ_WRITE);
+			} catch (IOException e) {
+				dst.close();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Memory maps the PCM data of a WAV file itself, for reading only, or for writing in place, in which case nothing
+	 * is copied and only the PCM bytes written to are modified, for appending files to a carrier.
+	 *
+	 * @param fileName Name of the WAV file to map
+	 * @param writable True to map the PCM data for writing, false to map it for reading only
+	 * @return Store holding the PCM data of the WAV file, which must be closed once done with
+	 * @throws IOException If the file cannot be opened, or does not hold 16 bit PCM data
+	 */
+	public static PCMStore mapWAVFile(@NotNull String fileName, boolean writable) throws IOException {
+		FileChannel ch = writable ? FileChannel.open(Paths.get(fileName), READ, WRITE) :
+						 FileChannel.open(Paths.get(fileName), READ);
+		try {
+			long[] dataChunk = findWAVDataChunk(ch);
+			return PCMStore.map(ch, dataChunk[0], dataChunk[1],
+								writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY);
+		} catch (IOException e) {
+			ch.close();
+			throw e;
+		}
+	}
+
+	/*
+	 * Walks the chunks of a WAV file, checking that its format chunk describes 16 bit PCM data, and returns the offset
+	 * and the mappable length of its data chunk.
+	 */
+	private static long[] findWAVDataChunk(FileChannel ch) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(ch, buf, 0, 12);
+		if (buf.getInt(0) != 0x46464952 || buf.getInt(8) != 0x45564157) // "RIFF" and "WAVE"
+			throw new IOException("Not a WAV file");
+
+		boolean pcm16 = false;
+		long pos = 12, size = ch.size();
+		while (pos + 8 <= size) {
+			readFully(ch, buf, pos, 8);
+			int id = buf.getInt(0);
+			long len = buf.getInt(4) & 0xffffffffL;
+
+			if (id == 0x20746d66) { // "fmt "
+				readFully(ch, buf, pos + 8, (int) Math.min(len, buf.capacity()));
+				int format = buf.getShort(0) & 0xffff, bitsPerSample = buf.getShort(14);
+				if (format == WAVE_FORMAT_EXTENSIBLE && len >= 40)
+					format = buf.getShort(24) & 0xffff; // First bytes of the sub format GUID
+				pcm16 = format == WAVE_FORMAT_PCM && bitsPerSample == 16;
+			} else if (id == 0x61746164) { // "data"
+				if (!pcm16)
+					throw new IOException("Only 16 bit PCM WAV files can be mapped");
+				// Streamed files may not have the data size filled in, in which case data spans the rest of the file
+				long dataLen = Math.min(len, size - pos - 8);
+				return new long[]{pos + 8, dataLen & ~3L};
+			}
+			pos += 8 + len + (len & 1);
+		}
+		throw new IOException("WAV file has no data chunk");
+	}
+
+	private static void readFully(FileChannel ch, ByteBuffer buf, long pos, int len) throws IOException {
+		buf.clear().limit(len);
+		while (buf.hasRemaining())
+			if (ch.read(buf, pos + buf.position()) < 0)
+				throw new IOException("Unexpected end of file");
 	}
 
 	/**
@@ -154,25 +500,58 @@ public class AudioProcessor {
 		Spinner.printWithSpinner("Writing encoded audio file to disk... ");
 
 		if ("wav".equalsIgnoreCase(fileExt))
-			writePCMToWAV(outName, audEncoder.getEncodedPCM(), audEncoder.getChannels(), audEncoder.getSampleRate());
+			writePCMToWAV(outName, audEncoder.getPCMStore(), audEncoder.getChannels(), audEncoder.getSampleRate());
 		else if ("flac".equalsIgnoreCase(fileExt))
-			writePCMToFLAC(outName, audEncoder.getEncodedPCM(), audEncoder.getBitsPerSample(),
+			writePCMToFLAC(outName, audEncoder.getPCMStore(), audEncoder.getBitsPerSample(),
 						   audEncoder.getChannels(), audEncoder.getSampleRate());
 	}
 
 	/**
-	 * Writes an array of PCM data to a WAV container.
+	 * Writes the PCM data of an encoder to a file like writePCMToDisk(), but without printing anything, leaving errors
+	 * to the caller.
+	 *
+	 * @param outName    File name for the audio file, whose extension determines the codec
+	 * @param audEncoder AudEncoder instance with which the file was encoded to the audio file
+	 * @throws IOException If the file cannot be written, or its extension is neither wav nor flac
+	 */
+	public static void writeAudio(@NotNull String outName, @NotNull AudEncoder audEncoder) throws IOException {
+		String[] fileNameSplit = outName.split("\\.");
+		String fileExt = fileNameSplit[fileNameSplit.length - 1];
+
+		if ("wav".equalsIgnoreCase(fileExt))
+			writeWAV(outName, audEncoder.getPCMStore(), audEncoder.getChannels(), audEncoder.getSampleRate());
+		else if ("flac".equalsIgnoreCase(fileExt))
+			writeFLAC(outName, audEncoder.getPCMStore(), audEncoder.getBitsPerSample(), audEncoder.getChannels(),
+					  audEncoder.getSampleRate());
+		else
+			throw new IOException("Audio files can only be written as WAV or FLAC");
+	}
+
+	private static void writeWAV(String outName, PCMStore pcm, int channels, int sampleRate) throws IOException {
+		AudioFormat f = new AudioFormat(sampleRate, 16, channels, true, false);
+		AudioSystem.write(new AudioInputStream(pcm.asInputStream(), f, pcm.size() / f.getFrameSize()),
+						  AudioFileFormat.Type.WAVE, new File(outName));
+	}
+
+	private static void writeFLAC(String outName, PCMStore pcm, int bitsPerSample, int channels, int sampleRate)
+			throws IOException {
+		try (FLACStreamWriter writer = new FLACStreamWriter(outName, sampleRate, channels, bitsPerSample,
+															FLACPreset.SMALL)) {
+			writePCM(pcm, writer);
+		}
+	}
+
+	/**
+	 * Writes the PCM data in a store to a WAV container.
 	 *
 	 * @param outName    Desired name for the wav file (including audio file extension)
-	 * @param pcm        Array of PCM bytes that are to be written
+	 * @param pcm        Store holding the PCM bytes that are to be written
 	 * @param channels   Number of channels to use for encoding to WAV
 	 * @param sampleRate Sample rate to be used for encoding to WAV
 	 */
-	private static void writePCMToWAV(@NotNull String outName, @NotNull byte[] pcm, int channels, int sampleRate) {
-		AudioFormat f = new AudioFormat(sampleRate, 16, channels, true, false);
+	private static void writePCMToWAV(@NotNull String outName, @NotNull PCMStore pcm, int channels, int sampleRate) {
 		try {
-			AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm), f, pcm.length),
-							  AudioFileFormat.Type.WAVE, new File(outName));
+			writeWAV(outName, pcm, channels, sampleRate);
 
 			Spinner.end();
 			System.out.println("Data encoded successfully into audio file \"" + outName + "\"");
@@ -182,37 +561,17 @@ public class AudioProcessor {
 	}
 
 	/**
-	 * Writes an array of PCM data to a file using the FLAC codec, which provides lossless compression.
+	 * Writes the PCM data in a store to a file using the FLAC codec, which provides lossless compression.
 	 *
 	 * @param outName    Desired name for the flac file (including audio file extension)
-	 * @param pcm        Array of PCM bytes that are to be written
+	 * @param pcm        Store holding the PCM bytes that are to be written
 	 * @param channels   Number of channels to use for encoding the FLAC file
 	 * @param sampleRate Sample rate to be used for encoding to FLAC
 	 */
-	private static void writePCMToFLAC(@NotNull String outName, @NotNull byte[] pcm, int bitsPerSample, int channels,
-									   int sampleRate) {
-		AudioFormat f = new AudioFormat(sampleRate, bitsPerSample, channels, true, false);
-		AudioInputStream ais = new AudioInputStream(new ByteArrayInputStream(pcm), f, pcm.length);
-
+	private static void writePCMToFLAC(@NotNull String outName, @NotNull PCMStore pcm, int bitsPerSample,
+									   int channels, int sampleRate) {
 		try {
-			FLACOutputStream fos = new FLACFileOutputStream(outName);
-
-			// Prepare the configuration so the encoder knows how to encode
-			StreamConfiguration sConf = new StreamConfiguration();
-			sConf.setChannelCount(channels);
-			sConf.setSampleRate(sampleRate);
-			sConf.setBitsPerSample(bitsPerSample);
-
-			FLACEncoder encoder = new FLACEncoder();
-			encoder.setStreamConfiguration(sConf);
-			encoder.setThreadCount(Runtime.getRuntime().availableProcessors());
-
-			encoder.setOutputStream(fos);
-			encoder.openFLACStream();
-
-			// Encode PCM data
-			AudioStreamEncoder.encodeAudioInputStream(ais, 16384 /* Defined in AudioStreamEncoder*/, encoder, true);
-			((FLACFileOutputStream) fos).close();
+			writeFLAC(outName, pcm, bitsPerSample, channels, sampleRate);
 
 			Spinner.end();
 			System.out.println("Data encoded successfully into audio file \"" + outName + "\"");
@@ -220,4 +579,20 @@ public class AudioProcessor {
 			System.err.println("Writing PCM data using FLAC codec failed.");
 		}
 	}
+
+	/**
+	 * Passes all the PCM data in a store to a FLAC writer, in chunks. The writer is not closed.
+	 *
+	 * @param pcm    Store holding the PCM bytes that are to be written
+	 * @param writer Writer to pass the PCM bytes to
+	 * @throws IOException If encoding or writing a frame fails
+	 */
+	public static void writePCM(@NotNull PCMStore pcm, @NotNull FLACStreamWriter writer) throws IOException {
+		byte[] chunk = new byte[WRITE_CHUNK_SIZE];
+		for (long pos = 0; pos < pcm.size(); pos += chunk.length) {
+			int len = (int) Math.min(chunk.length, pcm.size() - pos);
+			pcm.get(pos, chunk, 0, len);
+			writer.writePCM(chunk, 0, len);
+		}
+	}
 }
@@ -0,0 +1,240 @@
+package nsteg.processors;
+
+import javax.imageio.ImageIO;
+import javax.sound.sampled.AudioFormat;
+import javax.validation.constraints.NotNull;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of decoded carriers, which spares processes that encode into the same media file over and over, such as
+ * programs embedding this one, from decoding it every time. Decoding a compressed carrier, like a JPEG image or an MP3
+ * file, takes longer than encoding data into it.
+ * <p><br>
+ * Carriers are cached by path, along with the size and modification time of the file they were decoded from, so a
+ * carrier is decoded again as soon as its file changes. The cache holds decoded carriers up to a total size in bytes,
+ * past which the least recently used ones are evicted, and carriers larger than the whole cache are never cached.
+ * <p><br>
+ * Cached carriers are never handed out, nor written to. Every read returns a private copy of the decoded carrier,
+ * which the caller is free to encode into, so any number of encodes can work on the same carrier at the same time.
+ * Copying a carrier only takes a bulk copy of its pixels or PCM data.
+ */
+public final class CarrierCache {
+	/**
+	 * Default total size of the cached carriers, in bytes.
+	 */
+	public static final long DEFAULT_CAPACITY = 1L << 28;
+
+	private static final Map<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // In access order
+	private static long capacity = DEFAULT_CAPACITY;
+	private static long weight = 0; // Total size of the cached carriers
+	private static long hits = 0, misses = 0;
+
+	private CarrierCache() {
+	}
+
+	/**
+	 * Decodes an image, or copies it from the cache if it was already decoded and its file has not changed since.
+	 *
+	 * @param imageFile Name of the image file to read
+	 * @return Private copy of the decoded image, as ImageIO.read() would return it
+	 * @throws IOException If the file cannot be read, or no ImageIO reader supports it
+	 */
+	public static BufferedImage readImage(@NotNull String imageFile) throws IOException {
+		Path path = Paths.get(imageFile).toAbsolutePath();
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		Object cached = lookup(path, attrs);
+		if (cached != null)
+			return copy((BufferedImage) cached);
+
+		BufferedImage img = ImageIO.read(path.toFile());
+		if (img == null)
+			throw new IOException("Image format not supported");
+
+		DataBuffer data = img.getRaster().getDataBuffer();
+		long size = (long) data.getSize() * data.getNumBanks() * DataBuffer.getDataTypeSize(data.getDataType()) /
+					Byte.SIZE;
+		return store(path, attrs, img, size) ? copy(img) : img;
+	}
+
+	/**
+	 * Decodes the PCM data of an audio file, or copies it from the cache if it was already decoded and its file has
+	 * not changed since. Audio files are decoded by AudioProcessor.decodeAudioFile(), which maps the PCM sidecar
+	 * file of MP3 and FLAC files instead of decoding them again, if a sidecar directory is set.
+	 *
+	 * @param audioFile Name of the audio file to read
+	 * @return Private copy of the decoded PCM data, whose store must be closed once done with
+	 * @throws IOException If the file cannot be read, or is not a supported audio file
+	 */
+	public static DecodedAudio readAudio(@NotNull String audioFile) throws IOException {
+		Path path = Paths.get(audioFile).toAbsolutePath();
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		Object cached = lookup(path, attrs);
+		if (cached != null)
+			return copy((DecodedAudio) cached);
+
+		DecodedAudio audio = AudioProcessor.decodeAudioFile(path.toString());
+		return store(path, attrs, audio, audio.pcm.size()) ? copy(audio) : audio;
+	}
+
+	/*
+	 * Returns the cached carrier decoded from a file, if its file has not changed since, dropping it if it has.
+	 */
+	private static synchronized Object lookup(Path path, BasicFileAttributes attrs) {
+		Entry entry = entries.get(path);
+		if (entry != null && entry.matches(attrs)) {
+			hits++;
+			return entry.carrier;
+		}
+
+		misses++;
+		if (entry != null)
+			evict(entries.remove(path));
+		return null;
+	}
+
+	/*
+	 * Caches a decoded carrier, evicting the least recently used ones to make room for it. Returns false if the
+	 * carrier is larger than the whole cache, in which case it is not cached, and can be handed out as is.
+	 */
+	private static synchronized boolean store(Path path, BasicFileAttributes attrs, Object carrier, long size) {
+		if (size > capacity)
+			return false;
+
+		Entry old = entries.put(path, new Entry(attrs, carrier, size));
+		if (old != null)
+			evict(old);
+		weight += size;
+		trim();
+		return true;
+	}
+
+	/*
+	 * Evicts the least recently used carriers until the cache is no larger than its capacity.
+	 */
+	private static void trim() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (weight > capacity && it.hasNext()) {
+			Entry entry = it.next();
+			it.remove();
+			evict(entry);
+		}
+	}
+
+	private static void evict(Entry entry) {
+		weight -= entry.size;
+		if (entry.carrier instanceof DecodedAudio) {
+			try {
+				((DecodedAudio) entry.carrier).pcm.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	private static BufferedImage copy(BufferedImage img) {
+		ColorModel cm = img.getColorModel();
+		return new BufferedImage(cm, img.copyData(null), cm.isAlphaPremultiplied(), null);
+	}
+
+	private static DecodedAudio copy(DecodedAudio audio) throws IOException {
+		return new DecodedAudio(AudioProcessor.loadPCM(audio.pcm.asInputStream(), audio.pcm.size()), audio.format);
+	}
+
+	/**
+	 * Sets the total size of the carriers the cache can hold, evicting the least recently used ones if they no longer
+	 * fit. A capacity of 0 disables the cache.
+	 *
+	 * @param bytes Total size of the cached carriers, in bytes
+	 */
+	public static synchronized void setCapacity(long bytes) {
+		if (bytes < 0)
+			throw new IllegalArgumentException("Cache capacity cannot be negative");
+		capacity = bytes;
+		trim();
+	}
+
+	/**
+	 * Returns the total size of the carriers the cache can hold.
+	 *
+	 * @return Capacity of the cache, in bytes
+	 */
+	public static synchronized long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the total size of the carriers currently cached.
+	 *
+	 * @return Size of the cached carriers, in bytes
+	 */
+	public static synchronized long getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Returns the number of reads that were served from the cache, and the number of reads that had to decode their
+	 * carrier, since the program started.
+	 *
+	 * @return Array holding the number of hits, then the number of misses
+	 */
+	public static synchronized long[] getStats() {
+		return new long[]{hits, misses};
+	}
+
+	/**
+	 * Evicts every cached carrier.
+	 */
+	public static synchronized void clear() {
+		for (Entry entry : entries.values())
+			evict(entry);
+		entries.clear();
+	}
+
+	/**
+	 * PCM data decoded from an audio file, along with its format.
+	 */
+	public static final class DecodedAudio {
+		/**
+		 * Store holding the signed PCM data.
+		 */
+		public final PCMStore pcm;
+		/**
+		 * Format of the PCM data.
+		 */
+		public final AudioFormat format;
+
+		DecodedAudio(PCMStore pcm, AudioFormat format) {
+			this.pcm = pcm;
+			this.format = format;
+		}
+	}
+
+	/*
+	 * Cached carrier, along with the size and modification time of the file it was decoded from.
+	 */
+	private static final class Entry {
+		private final long fileSize, modified;
+		private final Object carrier;
+		private final long size;
+
+		private Entry(BasicFileAttributes attrs, Object carrier, long size) {
+			this.fileSize = attrs.size();
+			this.modified = attrs.lastModifiedTime().toMillis();
+			this.carrier = carrier;
+			this.size = size;
+		}
+
+		private boolean matches(BasicFileAttributes attrs) {
+			return fileSize == attrs.size() && modified == attrs.lastModifiedTime().toMillis();
+		}
+	}
+}
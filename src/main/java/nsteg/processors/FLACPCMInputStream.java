@@ -0,0 +1,137 @@
+package nsteg.processors;
+
+import org.kc7bfi.jflac.FLACDecoder;
+import org.kc7bfi.jflac.frame.Frame;
+import org.kc7bfi.jflac.metadata.Metadata;
+import org.kc7bfi.jflac.metadata.StreamInfo;
+import org.kc7bfi.jflac.util.ByteData;
+
+import javax.validation.constraints.NotNull;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+
+/**
+ * Stream of the PCM data held in a FLAC file, which is decoded one frame at a time as it is read. The PCM data is laid
+ * out exactly as WavWriter would write it, with interleaved little endian samples, so it can be used in place of the
+ * PCM data loaded by AudioProcessor.
+ * <p><br>
+ * Since frames are only decoded when needed, reading the start of the PCM data costs the same regardless of how long
+ * the FLAC file is, and nothing has to be held in memory beyond the current frame.
+ */
+public class FLACPCMInputStream extends InputStream {
+	/*
+	 * FLACDecoder only keeps the STREAMINFO block when it declares the number of samples, which streamed FLAC files
+	 * leave unknown, but needs it to decode frames that take their sample rate or sample size from it, so it is set
+	 * reflectively.
+	 */
+	private static final Field STREAM_INFO;
+
+	static {
+		try {
+			STREAM_INFO = FLACDecoder.class.getDeclaredField("streamInfo");
+			STREAM_INFO.setAccessible(true);
+		} catch (NoSuchFieldException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private InputStream in;
+	private FLACDecoder decoder;
+	private StreamInfo streamInfo;
+
+	private ByteData pcm; // PCM data of the current frame
+	private int pcmPos = 0;
+	private boolean ended = false;
+
+	/**
+	 * Reads the metadata blocks of a FLAC stream, leaving it ready to decode the first frame.
+	 *
+	 * @param flacStream Stream of the FLAC file to decode
+	 * @throws IOException If the stream cannot be read, or is not a FLAC stream
+	 */
+	public FLACPCMInputStream(@NotNull InputStream flacStream) throws IOException {
+		in = flacStream;
+		decoder = new FLACDecoder(new BufferedInputStream(flacStream, 1 << 16));
+		Metadata[] metadata = decoder.readMetadata();
+		streamInfo = decoder.getStreamInfo();
+		for (int i = 0; streamInfo == null && i < metadata.length; i++)
+			if (metadata[i] instanceof StreamInfo) {
+				streamInfo = (StreamInfo) metadata[i];
+				try {
+					STREAM_INFO.set(decoder, streamInfo);
+				} catch (IllegalAccessException e) {
+					throw new IOException(e);
+				}
+			}
+		if (streamInfo == null) {
+			in.close();
+			throw new IOException("FLAC stream has no STREAMINFO block");
+		}
+	}
+
+	/**
+	 * Returns the STREAMINFO block of the FLAC file, which holds its sample rate, number of channels and bits per
+	 * sample.
+	 *
+	 * @return STREAMINFO block of the FLAC file
+	 */
+	public StreamInfo getStreamInfo() {
+		return streamInfo;
+	}
+
+	/**
+	 * Returns the number of PCM bytes this stream will produce, as declared in the STREAMINFO block. The encoder may
+	 * leave the number of samples unknown, in which case this returns 0.
+	 *
+	 * @return Length of the PCM data in bytes, or 0 if unknown
+	 */
+	public long getPCMLength() {
+		return streamInfo.getTotalSamples() * streamInfo.getChannels() * ((streamInfo.getBitsPerSample() + 7) / 8);
+	}
+
+	/*
+	 * Decodes the next frame that holds samples, returning false once there are no frames left.
+	 */
+	private boolean nextFrame() throws IOException {
+		while (!ended) {
+			Frame frame = decoder.readNextFrame();
+			if (frame == null) {
+				ended = true;
+				break;
+			}
+
+			pcm = decoder.decodeFrame(frame, pcm);
+			pcmPos = 0;
+			if (pcm.getLen() > 0)
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if ((pcm == null || pcmPos >= pcm.getLen()) && !nextFrame())
+			return -1;
+		return pcm.getData(pcmPos++) & 0xff;
+	}
+
+	@Override
+	public int read(@NotNull byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if ((pcm == null || pcmPos >= pcm.getLen()) && !nextFrame())
+			return -1;
+
+		len = Math.min(len, pcm.getLen() - pcmPos);
+		System.arraycopy(pcm.getData(), pcmPos, b, off, len);
+		pcmPos += len;
+		return len;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
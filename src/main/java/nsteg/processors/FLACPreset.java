@@ -0,0 +1,62 @@
+package nsteg.processors;
+
+import net.sourceforge.javaflacencoder.EncodingConfiguration;
+import net.sourceforge.javaflacencoder.EncodingConfiguration.SubframeType;
+
+/**
+ * Encoding presets for FLACStreamWriter, trading encoding speed for file size. FLAC is lossless, so every preset
+ * produces exactly the same audio, and therefore the same encoded data.
+ *
+ * @see FLACStreamWriter
+ */
+public enum FLACPreset {
+	/**
+	 * Only uses fixed predictors, which are very cheap to evaluate, but compress noticeably worse than LPC.
+	 */
+	FAST(4096, SubframeType.FIXED, 1, 1),
+
+	/**
+	 * Uses linear prediction of up to order 8, which gets most of the gains of LPC at a fraction of the cost.
+	 */
+	BALANCED(4096, SubframeType.LPC, 1, 8),
+
+	/**
+	 * Tries every subframe type and LPC orders up to 12 for each subframe, keeping the smallest. These are the
+	 * defaults of the FLAC encoder library, which nsteg has always used.
+	 */
+	SMALL(4096, SubframeType.EXHAUSTIVE, EncodingConfiguration.DEFAULT_MIN_LPC_ORDER,
+		  EncodingConfiguration.DEFAULT_MAX_LPC_ORDER);
+
+	private final int blockSize, minLPCOrder, maxLPCOrder;
+	private final SubframeType subframeType;
+
+	FLACPreset(int blockSize, SubframeType subframeType, int minLPCOrder, int maxLPCOrder) {
+		this.blockSize = blockSize;
+		this.subframeType = subframeType;
+		this.minLPCOrder = minLPCOrder;
+		this.maxLPCOrder = maxLPCOrder;
+	}
+
+	/**
+	 * Returns the number of samples per channel in each FLAC frame.
+	 *
+	 * @return Block size, in samples
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Creates the encoder configuration for this preset, which determines the subframe types and LPC orders that are
+	 * searched when encoding each frame.
+	 *
+	 * @return New encoding configuration
+	 */
+	public EncodingConfiguration getEncodingConfiguration() {
+		EncodingConfiguration ec = new EncodingConfiguration();
+		ec.setSubframeType(subframeType);
+		ec.setMaxLPCOrder(maxLPCOrder);
+		ec.setMinLPCOrder(minLPCOrder);
+		return ec;
+	}
+}
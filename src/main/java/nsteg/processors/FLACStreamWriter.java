@@ -0,0 +1,257 @@
+package nsteg.processors;
+
+import net.sourceforge.javaflacencoder.*;
+import nsteg.threads.WorkerPool;
+
+import javax.validation.constraints.NotNull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Writes PCM data to a FLAC file as it is produced. PCM bytes passed to writePCM() are split into blocks, each block is
+ * encoded into a FLAC frame on the shared WorkerPool, and finished frames are written to the file in order, so the
+ * file is written while the PCM data is still being produced, and only a bounded number of blocks is held in memory.
+ * <p><br>
+ * Frames are encoded by the frame encoder of the FLAC encoder library, configured by a FLACPreset, instead of by
+ * FLACEncoder, which always starts threads of its own. If the library does not allow the frames to be written this way,
+ * the PCM data is encoded sequentially by FLACEncoder instead, which produces the same file without encoding blocks in
+ * parallel.
+ */
+public class FLACStreamWriter implements Closeable {
+	/*
+	 * FLACStreamController needs the number of samples encoded in each block to track the length of the stream, but
+	 * the field holding it can only be set by the library's own thread manager, so it is set reflectively. It is null if
+	 * the field does not exist in the library version on the classpath, or cannot be made accessible, in which case
+	 * blocks are encoded sequentially by FLACEncoder.
+	 */
+	private static final Field ENCODED_SAMPLES = getEncodedSamplesField();
+
+	private static Field getEncodedSamplesField() {
+		try {
+			Field field = BlockEncodeRequest.class.getDeclaredField("encodedSamples");
+			field.setAccessible(true);
+			return field;
+		} catch (NoSuchFieldException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private FLACOutputStream out;
+	private Closeable outCloser; // Closes or flushes the output, once the stream is complete
+	private FLACStreamController controller;
+	private StreamConfiguration streamConfig;
+	private EncodingConfiguration encodingConfig;
+	private FLACEncoder sequential; // Encodes the blocks instead of the WorkerPool, if ENCODED_SAMPLES is null
+	private FLAC_MD5 md5;
+	private ThreadLocal<Frame> frames;
+
+	private int channels, bitsPerSample, bytesPerSample, blockSize;
+
+	private int[] samples; // Interleaved samples of the block being filled
+	private int sampleCount = 0; // Number of samples in the block being filled, counting each channel separately
+	private int partialSample = 0, partialBytes = 0; // Bytes of a sample split between two writePCM() calls
+
+	private ArrayDeque<Block> pending = new ArrayDeque<>();
+
+	/**
+	 * Creates a FLAC file and writes its header, leaving the writer ready to receive PCM data.
+	 *
+	 * @param outName       Name of the FLAC file to write
+	 * @param sampleRate    Sample rate of the PCM data
+	 * @param channels      Number of channels of the PCM data
+	 * @param bitsPerSample Number of bits in each sample of the PCM data
+	 * @param preset        Preset to encode the FLAC frames with
+	 * @throws IOException If the file cannot be created
+	 */
+	public FLACStreamWriter(@NotNull String outName, int sampleRate, int channels, int bitsPerSample,
+							@NotNull FLACPreset preset) throws IOException {
+		init(sampleRate, channels, bitsPerSample, preset);
+
+		FLACFileOutputStream fileOut = new FLACFileOutputStream(outName);
+		out = fileOut;
+		outCloser = fileOut;
+		open();
+	}
+
+	/**
+	 * Writes a FLAC stream to an output stream, leaving the writer ready to receive PCM data. Since the header cannot
+	 * be rewritten once the stream is complete, it does not record the length and checksum of the stream, which FLAC
+	 * decoders accept. The output stream is flushed, but not closed, by close().
+	 *
+	 * @param out           Stream to write the FLAC stream to
+	 * @param sampleRate    Sample rate of the PCM data
+	 * @param channels      Number of channels of the PCM data
+	 * @param bitsPerSample Number of bits in each sample of the PCM data
+	 * @param preset        Preset to encode the FLAC frames with
+	 * @throws IOException If the header cannot be written
+	 */
+	public FLACStreamWriter(@NotNull OutputStream out, int sampleRate, int channels, int bitsPerSample,
+							@NotNull FLACPreset preset) throws IOException {
+		init(sampleRate, channels, bitsPerSample, preset);
+
+		this.out = new FLACStreamOutputStream(out);
+		outCloser = out::flush;
+		open();
+	}
+
+	private void init(int sampleRate, int channels, int bitsPerSample, FLACPreset preset) throws IOException {
+		this.channels = channels;
+		this.bitsPerSample = bitsPerSample;
+		this.bytesPerSample = (bitsPerSample + 7) / 8;
+		this.blockSize = preset.getBlockSize();
+
+		streamConfig = new StreamConfiguration();
+		streamConfig.setChannelCount(channels);
+		streamConfig.setSampleRate(sampleRate);
+		streamConfig.setBitsPerSample(bitsPerSample);
+		streamConfig.setMaxBlockSize(blockSize);
+		streamConfig.setMinBlockSize(blockSize);
+		if (!streamConfig.isValid())
+			throw new IOException("Audio format cannot be encoded as FLAC");
+
+		encodingConfig = preset.getEncodingConfiguration();
+		frames = ThreadLocal.withInitial(() -> {
+			Frame frame = new Frame(streamConfig);
+			frame.registerConfiguration(encodingConfig);
+			return frame;
+		});
+
+		try {
+			md5 = new FLAC_MD5();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		samples = new int[blockSize * channels];
+	}
+
+	private void open() throws IOException {
+		if (ENCODED_SAMPLES == null) {
+			sequential = new FLACEncoder();
+			sequential.setStreamConfiguration(streamConfig);
+			sequential.setEncodingConfiguration(encodingConfig);
+			sequential.setOutputStream(out);
+			sequential.openFLACStream();
+			return;
+		}
+
+		controller = new FLACStreamController(out, streamConfig);
+		controller.openFLACStream();
+	}
+
+	/**
+	 * Adds PCM data to the FLAC file. The data must consist of interleaved, signed, little endian samples, but need
+	 * not end on a sample boundary.
+	 *
+	 * @param pcm Array holding the PCM data
+	 * @param off Offset of the PCM data in the array
+	 * @param len Number of PCM bytes to add
+	 * @throws IOException If encoding or writing a frame fails
+	 */
+	public void writePCM(@NotNull byte[] pcm, int off, int len) throws IOException {
+		for (int i = off; i < off + len; i++) {
+			partialSample |= (pcm[i] & 0xff) << (partialBytes++ * Byte.SIZE);
+			if (partialBytes < bytesPerSample)
+				continue;
+
+			// Sign extend the completed sample
+			int shift = Integer.SIZE - bytesPerSample * Byte.SIZE;
+			samples[sampleCount++] = (partialSample << shift) >> shift;
+			partialSample = partialBytes = 0;
+
+			if (sampleCount == samples.length)
+				submitBlock();
+		}
+	}
+
+	/*
+	 * Queues the block being filled for encoding, writing out finished frames if too many blocks are queued.
+	 */
+	private void submitBlock() throws IOException {
+		if (sequential != null) {
+			sequential.addSamples(samples, sampleCount / channels);
+			sequential.encodeSamples(sampleCount / channels, false);
+			samples = new int[blockSize * channels];
+			sampleCount = 0;
+			return;
+		}
+
+		Block block = new Block();
+		block.samples = samples;
+		block.count = sampleCount / channels;
+		block.request = new BlockEncodeRequest();
+
+		EncodedElement result = new EncodedElement(1, 0);
+		long frameNumber = controller.incrementFrameNumber();
+		block.request.setAll(block.samples, block.count, 0, channels - 1, frameNumber, result);
+		block.task = WorkerPool.submit(
+				() -> frames.get().encodeSamples(block.samples, block.count, 0, channels - 1, result, frameNumber)
+		);
+		pending.add(block);
+
+		samples = new int[blockSize * channels];
+		sampleCount = 0;
+
+		while (pending.size() > WorkerPool.getSize() * 2)
+			writeBlock(pending.remove());
+	}
+
+	/*
+	 * Waits for a block to be encoded, and writes its frame to the file.
+	 */
+	private void writeBlock(Block block) throws IOException {
+		int encodedSamples;
+		try {
+			encodedSamples = WorkerPool.join(block.task);
+			ENCODED_SAMPLES.setInt(block.request, encodedSamples);
+		} catch (ExecutionException | InterruptedException | IllegalAccessException e) {
+			throw new IOException("Encoding FLAC frame failed", e);
+		}
+		if (encodedSamples != block.count)
+			throw new IOException("Encoding FLAC frame failed");
+
+		controller.writeBlock(block.request);
+		md5.addSamplesToMD5(block.samples, block.count, channels, bitsPerSample);
+	}
+
+	/**
+	 * Encodes the remaining PCM data, writes all pending frames, and completes the header of the FLAC file with the
+	 * length and checksum of the stream.
+	 *
+	 * @throws IOException If encoding or writing a frame fails
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (sequential != null) {
+				int count = sampleCount / channels;
+				if (count > 0)
+					sequential.addSamples(samples, count);
+				sequential.encodeSamples(count, true);
+				return;
+			}
+
+			if (sampleCount >= channels)
+				submitBlock();
+			while (!pending.isEmpty())
+				writeBlock(pending.remove());
+
+			controller.closeFLACStream(md5.getMD().digest(), streamConfig);
+		} finally {
+			outCloser.close();
+		}
+	}
+
+	private static class Block {
+		int[] samples;
+		int count;
+		BlockEncodeRequest request;
+		FutureTask<Integer> task;
+	}
+}
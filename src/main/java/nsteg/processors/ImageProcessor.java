@@ -1,12 +1,12 @@
 package nsteg.processors;
 
 import nsteg.nsteg_utils.Spinner;
+import nsteg.processors.png.ParallelPNGWriter;
 
 import javax.imageio.ImageIO;
 import javax.validation.constraints.NotNull;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 
 /**
  * Handles writing images to disk.
@@ -17,18 +17,33 @@ public class ImageProcessor {
 	 * Writes a BufferedImage to a file, using a user specified lossless codec. The codec is determined by looking at
 	 * the file extension on the output name, and is verified in Main before the encoding process begins.
 	 *
+	 * <p><br>
+	 * PNG images are written with a ParallelPNGWriter using its default settings, which compresses the image on all
+	 * available cores.
+	 *
 	 * @param encImg  BufferedImage to be written
 	 * @param outName Desired name for the output file
 	 */
 	public static void writeEncodedImageToDisk(@NotNull BufferedImage encImg, @NotNull String outName) {
+		writeEncodedImageToDisk(encImg, outName, new ParallelPNGWriter());
+	}
+
+	/**
+	 * Writes a BufferedImage to a file, using a user specified lossless codec. PNG images are written with the given
+	 * writer, which allows the compression level, filter strategy and number of threads to be chosen. Images the
+	 * writer does not support, and all other formats, are written with ImageIO.
+	 *
+	 * @param encImg    BufferedImage to be written
+	 * @param outName   Desired name for the output file
+	 * @param pngWriter Writer to use for PNG images
+	 */
+	public static void writeEncodedImageToDisk(@NotNull BufferedImage encImg, @NotNull String outName,
+											   @NotNull ParallelPNGWriter pngWriter) {
 		try {
 			Spinner.end();
 			System.out.println();
 			Spinner.printWithSpinner("Writing encoded image to disk... ");
-			String[] fileNameSplit = outName.split("\\.");
-			String fileExt = fileNameSplit[fileNameSplit.length - 1];
-
-			ImageIO.write(encImg, fileExt, new File(outName));
+			writeImage(encImg, outName, pngWriter);
 
 			Spinner.end();
 			System.out.println("Data encoded successfully into image: \"" + outName + "\"");
@@ -36,4 +51,26 @@ public class ImageProcessor {
 			System.err.println("Writing image to disk failed");
 		}
 	}
+
+	/**
+	 * Writes a BufferedImage to a file like writeEncodedImageToDisk(), but without printing anything, leaving errors to
+	 * the caller.
+	 *
+	 * @param img       BufferedImage to be written
+	 * @param outName   Desired name for the output file, whose extension determines the codec
+	 * @param pngWriter Writer to use for PNG images
+	 * @throws IOException If the image cannot be written
+	 */
+	public static void writeImage(@NotNull BufferedImage img, @NotNull String outName,
+								  @NotNull ParallelPNGWriter pngWriter) throws IOException {
+		String[] fileNameSplit = outName.split("\\.");
+		String fileExt = fileNameSplit[fileNameSplit.length - 1];
+
+		if ("png".equalsIgnoreCase(fileExt) && ParallelPNGWriter.isSupported(img)) {
+			try (OutputStream os = new FileOutputStream(outName)) {
+				pngWriter.write(img, os);
+			}
+		} else
+			ImageIO.write(img, fileExt, new File(outName));
+	}
 }
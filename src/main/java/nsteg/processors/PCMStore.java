@@ -0,0 +1,338 @@
+package nsteg.processors;
+
+import javax.validation.constraints.NotNull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Off-heap storage for PCM data, addressed with long offsets. The data is split into segments of at most 1 GiB, each
+ * of which is either a direct ByteBuffer, or a memory mapped region of a file. This lifts the 2 GiB limit of byte
+ * arrays and single buffers, and keeps the PCM data of long carriers out of the heap, so encoding them neither needs
+ * an oversized heap nor puts pressure on the garbage collector.
+ * <p><br>
+ * File backed stores are either mapped from an existing file, like the data chunk of a WAV file, or backed by a
+ * temporary file that is deleted when the store is closed, which lets the OS page PCM data out instead of keeping it
+ * all in memory.
+ * <p><br>
+ * Nothing in a store is specific to PCM data, so the Encoder also keeps the files it compresses in stores, through
+ * PayloadStore.
+ */
+public class PCMStore implements Closeable {
+	private static final int SEGMENT_SHIFT = 30;
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	/**
+	 * Size of the first segment when loading a stream of unknown length.
+	 */
+	private static final int MIN_SEGMENT_SIZE = 1 << 20;
+
+	/**
+	 * Size of the buffer used to copy data into and out of the store.
+	 */
+	private static final int COPY_BUFFER_SIZE = 1 << 16;
+
+	private ByteBuffer[] segments;
+	private long size;
+
+	private FileChannel channel; // Channel the segments are mapped from, if the store is file backed
+	private Path tempFile; // Temporary file backing the store, deleted on close
+
+	private PCMStore(ByteBuffer[] segments, long size, FileChannel channel, Path tempFile) {
+		this.segments = segments;
+		this.size = size;
+		this.channel = channel;
+		this.tempFile = tempFile;
+	}
+
+	/**
+	 * Allocates a store of the given size in direct memory. The contents are initially zero.
+	 *
+	 * @param size Number of bytes in the store
+	 * @return New store
+	 */
+	public static PCMStore allocate(long size) {
+		ByteBuffer[] segments = new ByteBuffer[numOfSegments(size)];
+		for (int s = 0; s < segments.length; s++)
+			segments[s] = ByteBuffer.allocateDirect(segmentLength(size, s));
+		return new PCMStore(segments, size, null, null);
+	}
+
+	/**
+	 * Maps a region of a file as a store. Changes made to a store mapped for writing are written back to the file,
+	 * once force() or close() are called at the latest. Changes made to a store mapped privately are only ever seen
+	 * by the store. The channel is closed when the store is closed.
+	 *
+	 * @param channel Channel of the file to map
+	 * @param pos     Offset of the region in the file
+	 * @param size    Length of the region
+	 * @param mode    Mode to map the file in, either read-only, read-write or private
+	 * @return Store holding the region of the file
+	 * @throws IOException If the file cannot be mapped
+	 */
+	public static PCMStore map(@NotNull FileChannel channel, long pos, long size, @NotNull FileChannel.MapMode mode)
+			throws IOException {
+		ByteBuffer[] segments = new ByteBuffer[numOfSegments(size)];
+		for (int s = 0; s < segments.length; s++)
+			segments[s] = channel.map(mode, pos + ((long) s << SEGMENT_SHIFT), segmentLength(size, s));
+		return new PCMStore(segments, size, channel, null);
+	}
+
+	/**
+	 * Wraps the remaining bytes of a buffer as a store, without copying them. Changes made to the store are made to
+	 * the buffer, and the other way around.
+	 *
+	 * @param buffer Buffer holding the PCM data
+	 * @return Store holding the remaining bytes of the buffer
+	 */
+	public static PCMStore wrap(@NotNull ByteBuffer buffer) {
+		long size = buffer.remaining();
+		ByteBuffer[] segments = new ByteBuffer[numOfSegments(size)];
+		for (int s = 0; s < segments.length; s++) {
+			ByteBuffer segment = buffer.duplicate();
+			segment.position(buffer.position() + (s << SEGMENT_SHIFT));
+			segment.limit(segment.position() + segmentLength(size, s));
+			segments[s] = segment.slice();
+		}
+		return new PCMStore(segments, size, null, null);
+	}
+
+	/**
+	 * Reads a stream of PCM data into a new store. If the length of the stream is known, segments are sized to fit it
+	 * exactly, otherwise they grow as data is read, and the store ends up as long as the stream. The stream is not
+	 * closed.
+	 *
+	 * @param in             Stream to read the PCM data from
+	 * @param expectedLength Number of bytes the stream is expected to hold, or a value below 1 if unknown
+	 * @param fileBacked     True to store the data in a temporary file, false to store it in direct memory
+	 * @return Store holding all the data in the stream
+	 * @throws IOException If reading the stream fails, or the temporary file cannot be created
+	 */
+	public static PCMStore load(@NotNull InputStream in, long expectedLength, boolean fileBacked) throws IOException {
+		PCMStore store = new PCMStore(new ByteBuffer[0], 0, null, null);
+		if (fileBacked) {
+			store.tempFile = Files.createTempFile("nsteg-pcm", ".raw");
+			store.channel = FileChannel.open(store.tempFile, READ, WRITE, DELETE_ON_CLOSE);
+		}
+
+		try {
+			byte[] buf = new byte[COPY_BUFFER_SIZE];
+			ByteBuffer segment = null;
+			int read;
+			while ((read = in.read(buf)) != -1) {
+				for (int off = 0; off < read; ) {
+					if (segment == null || !segment.hasRemaining())
+						segment = store.addSegment(expectedLength);
+
+					int len = Math.min(read - off, segment.remaining());
+					segment.put(buf, off, len);
+					store.size += len;
+					off += len;
+				}
+			}
+		} catch (IOException e) {
+			store.close();
+			throw e;
+		}
+
+		store.trimLastSegment();
+		return store;
+	}
+
+	/*
+	 * Makes room for more data in load(), and returns the segment to write it to. The new segment is sized to hold the
+	 * rest of the expected data if its length is known. Otherwise segments start small, and are replaced by segments
+	 * twice their size as they fill up, until they reach the maximum segment size.
+	 */
+	private ByteBuffer addSegment(long expectedLength) throws IOException {
+		if (segments.length > 0 && segments[segments.length - 1].capacity() < SEGMENT_SIZE) {
+			ByteBuffer last = segments[segments.length - 1];
+			long start = (long) (segments.length - 1) << SEGMENT_SHIFT;
+			ByteBuffer grown = newSegment(start, (int) Math.min(SEGMENT_SIZE, (long) last.capacity() * 2));
+			if (channel == null) {
+				last.flip();
+				grown.put(last);
+			} else
+				grown.position(last.position()); // Same region of the file, which already holds the data
+
+			segments[segments.length - 1] = grown;
+			return grown;
+		}
+
+		long start = (long) segments.length << SEGMENT_SHIFT;
+		int len = (int) (expectedLength > start ? Math.min(SEGMENT_SIZE, expectedLength - start) : MIN_SEGMENT_SIZE);
+
+		ByteBuffer[] grown = new ByteBuffer[segments.length + 1];
+		System.arraycopy(segments, 0, grown, 0, segments.length);
+		grown[segments.length] = newSegment(start, len);
+		segments = grown;
+		return grown[segments.length - 1];
+	}
+
+	private ByteBuffer newSegment(long start, int len) throws IOException {
+		if (channel != null)
+			return channel.map(FileChannel.MapMode.READ_WRITE, start, len);
+		return ByteBuffer.allocateDirect(len);
+	}
+
+	/*
+	 * Limits the last segment to the data actually stored in it, so that its position is not mistaken for its end.
+	 */
+	private void trimLastSegment() {
+		for (ByteBuffer segment : segments)
+			segment.clear();
+		if (segments.length > 0)
+			segments[segments.length - 1].limit(segmentLength(size, segments.length - 1));
+	}
+
+	private static int numOfSegments(long size) {
+		return (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+	}
+
+	private static int segmentLength(long size, int segment) {
+		return (int) Math.min(SEGMENT_SIZE, size - ((long) segment << SEGMENT_SHIFT));
+	}
+
+	/**
+	 * Returns the number of PCM bytes in the store.
+	 *
+	 * @return Size of the store, in bytes
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Returns the byte at the given offset.
+	 *
+	 * @param pos Offset of the byte
+	 * @return Byte at the offset
+	 */
+	public byte get(long pos) {
+		return segments[(int) (pos >>> SEGMENT_SHIFT)].get((int) (pos & SEGMENT_MASK));
+	}
+
+	/**
+	 * Sets the byte at the given offset.
+	 *
+	 * @param pos   Offset of the byte
+	 * @param value Value to set the byte to
+	 */
+	public void put(long pos, byte value) {
+		segments[(int) (pos >>> SEGMENT_SHIFT)].put((int) (pos & SEGMENT_MASK), value);
+	}
+
+	/**
+	 * Copies bytes out of the store into an array.
+	 *
+	 * @param pos Offset of the first byte to copy
+	 * @param dst Array to copy the bytes to
+	 * @param off Offset in the array to copy the bytes to
+	 * @param len Number of bytes to copy
+	 */
+	public void get(long pos, @NotNull byte[] dst, int off, int len) {
+		while (len > 0) {
+			ByteBuffer segment = segments[(int) (pos >>> SEGMENT_SHIFT)].duplicate();
+			segment.position((int) (pos & SEGMENT_MASK));
+			int n = Math.min(len, segment.remaining());
+			segment.get(dst, off, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Copies bytes from an array into the store.
+	 *
+	 * @param pos Offset in the store to copy the bytes to
+	 * @param src Array holding the bytes to copy
+	 * @param off Offset of the first byte to copy in the array
+	 * @param len Number of bytes to copy
+	 */
+	public void put(long pos, @NotNull byte[] src, int off, int len) {
+		while (len > 0) {
+			ByteBuffer segment = segments[(int) (pos >>> SEGMENT_SHIFT)].duplicate();
+			segment.position((int) (pos & SEGMENT_MASK));
+			int n = Math.min(len, segment.remaining());
+			segment.put(src, off, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Returns a stream that reads the contents of the store from the start, without copying them first.
+	 *
+	 * @return Stream of the PCM data in the store
+	 */
+	public InputStream asInputStream() {
+		return new InputStream() {
+			private long pos = 0;
+
+			@Override
+			public int read() {
+				return pos < size ? get(pos++) & 0xff : -1;
+			}
+
+			@Override
+			public int read(@NotNull byte[] b, int off, int len) {
+				if (len == 0)
+					return 0;
+				if (pos >= size)
+					return -1;
+
+				len = (int) Math.min(len, size - pos);
+				get(pos, b, off, len);
+				pos += len;
+				return len;
+			}
+
+			@Override
+			public long skip(long n) {
+				long skipped = Math.max(0, Math.min(n, size - pos));
+				pos += skipped;
+				return skipped;
+			}
+
+			@Override
+			public int available() {
+				return (int) Math.min(Integer.MAX_VALUE, size - pos);
+			}
+		};
+	}
+
+	/**
+	 * Writes any changes made to a mapped store back to its file. Does nothing for stores in direct memory.
+	 */
+	public void force() {
+		for (ByteBuffer segment : segments)
+			if (segment instanceof MappedByteBuffer && tempFile == null)
+				((MappedByteBuffer) segment).force();
+	}
+
+	/**
+	 * Writes any changes made to a mapped store back to its file, and closes the file. Temporary files backing the
+	 * store are deleted. The store must not be used once closed.
+	 *
+	 * @throws IOException If the file cannot be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel == null)
+			return;
+
+		force();
+		channel.close();
+		channel = null;
+	}
+}
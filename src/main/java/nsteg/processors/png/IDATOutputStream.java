@@ -0,0 +1,51 @@
+package nsteg.processors.png;
+
+import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Splits compressed image data into IDAT chunks of up to IDAT_CHUNK_SIZE bytes, writing each chunk to the underlying
+ * stream as soon as it is full. Calling flush() writes whatever data is buffered as a final, shorter chunk.
+ */
+class IDATOutputStream extends OutputStream {
+	/**
+	 * Maximum number of bytes of compressed image data stored in each IDAT chunk.
+	 */
+	private static final int IDAT_CHUNK_SIZE = 1 << 16;
+
+	private OutputStream out;
+	private byte[] buffer = new byte[IDAT_CHUNK_SIZE];
+	private int len = 0;
+
+	IDATOutputStream(@NotNull OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		buffer[len++] = (byte) b;
+		if (len == buffer.length)
+			flush();
+	}
+
+	@Override
+	public void write(@NotNull byte[] b, int off, int l) throws IOException {
+		while (l > 0) {
+			int toCopy = Math.min(l, buffer.length - len);
+			System.arraycopy(b, off, buffer, len, toCopy);
+			len += toCopy;
+			off += toCopy;
+			l -= toCopy;
+			if (len == buffer.length)
+				flush();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (len > 0)
+			PNGChunk.write(out, "IDAT", buffer, 0, len);
+		len = 0;
+	}
+}
@@ -0,0 +1,46 @@
+package nsteg.processors.png;
+
+import javax.validation.constraints.NotNull;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Holds a single chunk read from a PNG file, so that chunks which nsteg does not modify (palettes, text, colour
+ * profiles...) can be copied over to the encoded image untouched.
+ */
+public class PNGChunk {
+	public String type;
+	public byte[] data;
+
+	PNGChunk(@NotNull String type, @NotNull byte[] data) {
+		this.type = type;
+		this.data = data;
+	}
+
+	/**
+	 * Writes a chunk to a stream, including its length and CRC.
+	 *
+	 * @param out  Stream to write the chunk to
+	 * @param type Four letter chunk type
+	 * @param data Array containing the chunk data
+	 * @param off  Position in the array at which the chunk data starts
+	 * @param len  Length of the chunk data
+	 * @throws IOException If writing to the stream fails
+	 */
+	static void write(@NotNull OutputStream out, @NotNull String type, @NotNull byte[] data, int off, int len)
+			throws IOException {
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, off, len);
+
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.writeInt(len);
+		dos.write(typeBytes);
+		dos.write(data, off, len);
+		dos.writeInt((int) crc.getValue());
+	}
+}
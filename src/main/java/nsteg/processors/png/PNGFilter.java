@@ -0,0 +1,146 @@
+package nsteg.processors.png;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * Implements the five scanline filters defined by the PNG specification. Every scanline in a PNG file is preceded by
+ * a filter type byte, and the bytes that follow are the difference between the raw scanline and a prediction made from
+ * neighbouring bytes. The methods in this class convert between raw and filtered scanlines, working on one row at a
+ * time so that images never need to be held in memory as a whole.
+ * <p><br>
+ * All rows passed to these methods exclude the filter type byte. The previous row must be the raw (unfiltered) row
+ * above the one being processed, or an array of zeros for the first row of the image.
+ */
+public class PNGFilter {
+	public static final int NONE = 0, SUB = 1, UP = 2, AVERAGE = 3, PAETH = 4;
+
+	/**
+	 * Not a filter type defined by the specification, but a filter strategy that picks a different filter for each
+	 * row, using chooseFilter().
+	 */
+	public static final int ADAPTIVE = 5;
+
+	/**
+	 * Reverses the filter applied to a scanline, in place.
+	 *
+	 * @param filterType Filter type byte that preceded the scanline
+	 * @param row        Filtered scanline, which will contain the raw scanline once this method returns
+	 * @param prev       Raw scanline above this one
+	 * @param bpp        Number of bytes per complete pixel, rounded up to one
+	 * @throws IllegalArgumentException If the filter type is not one of the five defined types
+	 */
+	public static void unfilter(int filterType, @NotNull byte[] row, @NotNull byte[] prev, int bpp) {
+		switch (filterType) {
+			case NONE:
+				break;
+			case SUB:
+				for (int i = bpp; i < row.length; i++)
+					row[i] += row[i - bpp];
+				break;
+			case UP:
+				for (int i = 0; i < row.length; i++)
+					row[i] += prev[i];
+				break;
+			case AVERAGE:
+				for (int i = 0; i < row.length; i++) {
+					int left = i >= bpp ? row[i - bpp] & 0xff : 0;
+					row[i] += (left + (prev[i] & 0xff)) >>> 1;
+				}
+				break;
+			case PAETH:
+				for (int i = 0; i < row.length; i++) {
+					int left = i >= bpp ? row[i - bpp] & 0xff : 0;
+					int upLeft = i >= bpp ? prev[i - bpp] & 0xff : 0;
+					row[i] += paeth(left, prev[i] & 0xff, upLeft);
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown PNG filter type " + filterType);
+		}
+	}
+
+	/**
+	 * Applies a filter to a raw scanline, writing the filtered bytes to a separate array.
+	 *
+	 * @param filterType Filter type to apply, which must be written as the filter type byte before the scanline
+	 * @param raw        Raw scanline to filter
+	 * @param prev       Raw scanline above this one
+	 * @param bpp        Number of bytes per complete pixel, rounded up to one
+	 * @param out        Array of the same length as raw, to which the filtered scanline is written
+	 * @throws IllegalArgumentException If the filter type is not one of the five defined types
+	 */
+	public static void filter(int filterType, @NotNull byte[] raw, @NotNull byte[] prev, int bpp,
+							  @NotNull byte[] out) {
+		switch (filterType) {
+			case NONE:
+				System.arraycopy(raw, 0, out, 0, raw.length);
+				break;
+			case SUB:
+				for (int i = 0; i < raw.length; i++)
+					out[i] = (byte) (raw[i] - (i >= bpp ? raw[i - bpp] : 0));
+				break;
+			case UP:
+				for (int i = 0; i < raw.length; i++)
+					out[i] = (byte) (raw[i] - prev[i]);
+				break;
+			case AVERAGE:
+				for (int i = 0; i < raw.length; i++) {
+					int left = i >= bpp ? raw[i - bpp] & 0xff : 0;
+					out[i] = (byte) (raw[i] - ((left + (prev[i] & 0xff)) >>> 1));
+				}
+				break;
+			case PAETH:
+				for (int i = 0; i < raw.length; i++) {
+					int left = i >= bpp ? raw[i - bpp] & 0xff : 0;
+					int upLeft = i >= bpp ? prev[i - bpp] & 0xff : 0;
+					out[i] = (byte) (raw[i] - paeth(left, prev[i] & 0xff, upLeft));
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown PNG filter type " + filterType);
+		}
+	}
+
+	/**
+	 * Filters a raw scanline with every filter type, and keeps the one whose output has the lowest sum of absolute
+	 * values when its bytes are interpreted as signed. This is the heuristic recommended by the PNG specification,
+	 * and usually gives the best compression for photographic images.
+	 *
+	 * @param raw     Raw scanline to filter
+	 * @param prev    Raw scanline above this one
+	 * @param bpp     Number of bytes per complete pixel, rounded up to one
+	 * @param out     Array of the same length as raw, to which the best filtered scanline is written
+	 * @param scratch Array of the same length as raw, used to hold the output of the filter being tried
+	 * @return Filter type that was chosen
+	 */
+	public static int chooseFilter(@NotNull byte[] raw, @NotNull byte[] prev, int bpp, @NotNull byte[] out,
+								   @NotNull byte[] scratch) {
+		int bestType = NONE;
+		long bestSum = Long.MAX_VALUE;
+		for (int type = NONE; type <= PAETH; type++) {
+			filter(type, raw, prev, bpp, scratch);
+			long sum = 0;
+			for (int i = 0; i < scratch.length && sum < bestSum; i++)
+				sum += Math.abs(scratch[i]);
+
+			if (sum < bestSum) {
+				bestSum = sum;
+				bestType = type;
+				System.arraycopy(scratch, 0, out, 0, scratch.length);
+			}
+		}
+		return bestType;
+	}
+
+	/**
+	 * Paeth predictor, as defined by the PNG specification. Chooses whichever of the three neighbouring bytes is
+	 * closest to left + up - upLeft, preferring left, then up, then upLeft when there are ties.
+	 */
+	private static int paeth(int left, int up, int upLeft) {
+		int p = left + up - upLeft;
+		int pa = Math.abs(p - left), pb = Math.abs(p - up), pc = Math.abs(p - upLeft);
+		if (pa <= pb && pa <= pc)
+			return left;
+		return pb <= pc ? up : upLeft;
+	}
+}
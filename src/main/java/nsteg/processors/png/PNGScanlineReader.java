@@ -0,0 +1,266 @@
+package nsteg.processors.png;
+
+import javax.validation.constraints.NotNull;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads a PNG file one scanline at a time. The chunks preceding the image data are parsed when the reader is created,
+ * after which each call to readRow() inflates and unfilters a single row from the IDAT chunks. Only the current and
+ * previous rows are held in memory, so images of any size can be read with a constant amount of memory, and reading
+ * can be stopped at any row without inflating the rest of the image.
+ * <p><br>
+ * Only non-interlaced images are supported by readRow(), since interlaced images store their rows out of order.
+ */
+public class PNGScanlineReader implements Closeable {
+	static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+	private DataInputStream in;
+	private IDATInputStream idatChunks;
+	private DataInputStream idatStream;
+
+	private int width, height, bitDepth, colorType, interlace;
+	private int bpp, rowBytes, rowsRead = 0;
+
+	private List<PNGChunk> headerChunks = new ArrayList<>(); // All chunks preceding the first IDAT chunk
+	private List<PNGChunk> trailingChunks = new ArrayList<>(); // All chunks following the last IDAT chunk
+	private boolean hasTransparencyChunk = false;
+
+	private byte[] prevRow;
+
+	/**
+	 * Parses the PNG signature and all the chunks preceding the image data. Once this constructor returns, the image
+	 * properties are available, and the reader is positioned at the first scanline.
+	 *
+	 * @param pngStream Stream containing a PNG file
+	 * @throws IOException If the stream does not contain a valid PNG file, or if reading from it fails
+	 */
+	public PNGScanlineReader(@NotNull InputStream pngStream) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(pngStream, 1 << 16));
+
+		byte[] sig = new byte[SIGNATURE.length];
+		in.readFully(sig);
+		if (!Arrays.equals(sig, SIGNATURE))
+			throw new IOException("Not a PNG file");
+
+		int idatLen;
+		while (true) {
+			int len = in.readInt();
+			String type = readChunkType();
+			if ("IDAT".equals(type)) {
+				idatLen = len;
+				break;
+			} else if ("IEND".equals(type))
+				throw new IOException("PNG file contains no image data");
+
+			PNGChunk chunk = readChunkData(type, len);
+			if ("IHDR".equals(type))
+				parseHeader(chunk.data);
+			else if ("tRNS".equals(type))
+				hasTransparencyChunk = true;
+			headerChunks.add(chunk);
+		}
+
+		if (width == 0)
+			throw new IOException("PNG file is missing its IHDR chunk");
+
+		int bitsPerPixel = bitDepth * getChannelsForColorType(colorType);
+		bpp = Math.max(1, bitsPerPixel / Byte.SIZE);
+		rowBytes = (int) (((long) width * bitsPerPixel + 7) / Byte.SIZE);
+		prevRow = new byte[rowBytes];
+
+		idatChunks = new IDATInputStream(idatLen);
+		idatStream = new DataInputStream(new InflaterInputStream(idatChunks, new Inflater(), 1 << 16));
+	}
+
+	private void parseHeader(byte[] ihdr) throws IOException {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(ihdr));
+		width = dis.readInt();
+		height = dis.readInt();
+		bitDepth = dis.readUnsignedByte();
+		colorType = dis.readUnsignedByte();
+		dis.readUnsignedByte(); // Compression method, always 0
+		dis.readUnsignedByte(); // Filter method, always 0
+		interlace = dis.readUnsignedByte();
+	}
+
+	private String readChunkType() throws IOException {
+		byte[] type = new byte[4];
+		in.readFully(type);
+		return new String(type, StandardCharsets.US_ASCII);
+	}
+
+	private PNGChunk readChunkData(String type, int len) throws IOException {
+		byte[] data = new byte[len];
+		in.readFully(data);
+		in.readInt(); // CRC
+		return new PNGChunk(type, data);
+	}
+
+	/**
+	 * Returns the number of samples that make up one pixel, for the given PNG colour type.
+	 *
+	 * @param colorType Colour type, as stored in the IHDR chunk
+	 * @return Number of samples per pixel
+	 */
+	static int getChannelsForColorType(int colorType) {
+		switch (colorType) {
+			case 2:
+				return 3; // Truecolour
+			case 4:
+				return 2; // Greyscale with alpha
+			case 6:
+				return 4; // Truecolour with alpha
+			default:
+				return 1; // Greyscale or indexed
+		}
+	}
+
+	/**
+	 * Inflates and unfilters the next scanline of the image.
+	 *
+	 * @param dst Array of getRowBytes() length, to which the raw scanline is written
+	 * @return Filter type that was used for this scanline in the original file
+	 * @throws IOException If the image data is corrupt or there are no more rows to read
+	 */
+	public int readRow(@NotNull byte[] dst) throws IOException {
+		if (interlace != 0)
+			throw new IOException("Interlaced PNG files cannot be read one scanline at a time");
+		if (rowsRead == height)
+			throw new EOFException("All rows have already been read");
+
+		int filterType = idatStream.readUnsignedByte();
+		idatStream.readFully(dst, 0, rowBytes);
+		PNGFilter.unfilter(filterType, dst, prevRow, bpp);
+		System.arraycopy(dst, 0, prevRow, 0, rowBytes);
+		rowsRead++;
+
+		return filterType;
+	}
+
+	/**
+	 * Reads the chunks that follow the image data. Should only be called once all the rows have been read.
+	 *
+	 * @return List containing all chunks after the last IDAT chunk, except IEND
+	 * @throws IOException If reading from the underlying stream fails
+	 */
+	public List<PNGChunk> readTrailingChunks() throws IOException {
+		// Skip any remaining image data, so that the stream is positioned after the last IDAT chunk
+		byte[] skip = new byte[1 << 12];
+		while (idatChunks.read(skip, 0, skip.length) != -1)
+			;
+
+		while (trailingChunks.isEmpty() || !"IEND".equals(trailingChunks.get(trailingChunks.size() - 1).type)) {
+			int len = in.readInt();
+			trailingChunks.add(readChunkData(readChunkType(), len));
+		}
+
+		return trailingChunks.subList(0, trailingChunks.size() - 1);
+	}
+
+	public List<PNGChunk> getHeaderChunks() {
+		return headerChunks;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	public int getColorType() {
+		return colorType;
+	}
+
+	public boolean isInterlaced() {
+		return interlace != 0;
+	}
+
+	/**
+	 * Returns whether a tRNS chunk was found before the image data. Images with this chunk are read as having an
+	 * alpha channel by ImageIO, even if their colour type does not include one.
+	 *
+	 * @return True if the image has a tRNS chunk, false otherwise
+	 */
+	public boolean hasTransparencyChunk() {
+		return hasTransparencyChunk;
+	}
+
+	public int getRowBytes() {
+		return rowBytes;
+	}
+
+	/**
+	 * Returns the number of bytes in one complete pixel, rounded up to one, which is the distance used by the filters.
+	 *
+	 * @return Bytes per pixel
+	 */
+	public int getBytesPerPixel() {
+		return bpp;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/*
+	 * Presents the data of consecutive IDAT chunks as one continuous stream, which is what the zlib stream they
+	 * contain requires. Once a chunk of any other type is found, it is stored as a trailing chunk and the stream ends.
+	 */
+	private class IDATInputStream extends InputStream {
+		private int remaining;
+		private boolean finished = false;
+
+		IDATInputStream(int firstChunkLen) {
+			remaining = firstChunkLen;
+		}
+
+		private boolean nextChunk() throws IOException {
+			while (remaining == 0 && !finished) {
+				in.readInt(); // CRC of the previous IDAT chunk
+				int len = in.readInt();
+				String type = readChunkType();
+				if ("IDAT".equals(type))
+					remaining = len;
+				else {
+					trailingChunks.add(readChunkData(type, len));
+					finished = true;
+				}
+			}
+			return !finished;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!nextChunk())
+				return -1;
+			remaining--;
+			return in.read();
+		}
+
+		@Override
+		public int read(@NotNull byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!nextChunk())
+				return -1;
+			int read = in.read(b, off, Math.min(len, remaining));
+			if (read == -1)
+				throw new EOFException("PNG image data ends prematurely");
+			remaining -= read;
+			return read;
+		}
+	}
+}
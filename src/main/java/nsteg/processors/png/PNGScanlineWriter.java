@@ -0,0 +1,84 @@
+package nsteg.processors.png;
+
+import javax.validation.constraints.NotNull;
+import java.io.*;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a PNG file one scanline at a time. Each row passed to writeRow() is filtered and deflated straight into the
+ * IDAT chunks of the output, so, like PNGScanlineReader, only the current and previous rows are held in memory.
+ * Chunks read from another PNG file can be written before and after the image data, so that all ancillary
+ * information from a carrier image is preserved.
+ */
+public class PNGScanlineWriter implements Closeable {
+	private OutputStream out;
+	private DeflaterOutputStream idatStream;
+	private Deflater deflater;
+
+	private int rowBytes, bpp;
+	private byte[] prevRow, filteredRow;
+
+	/**
+	 * Writes the PNG signature and the header chunks, leaving the writer ready to receive the first scanline.
+	 *
+	 * @param pngStream        Stream to write the PNG file to
+	 * @param headerChunks     Chunks to write before the image data, the first of which must be IHDR
+	 * @param rowBytes         Number of bytes in each raw scanline, excluding the filter type byte
+	 * @param bpp              Number of bytes per complete pixel, rounded up to one
+	 * @param compressionLevel Deflate compression level to use, from 0 to 9
+	 * @throws IOException If writing to the stream fails
+	 */
+	public PNGScanlineWriter(@NotNull OutputStream pngStream, @NotNull List<PNGChunk> headerChunks, int rowBytes,
+							 int bpp, int compressionLevel) throws IOException {
+		out = new BufferedOutputStream(pngStream, 1 << 16);
+		this.rowBytes = rowBytes;
+		this.bpp = bpp;
+		prevRow = new byte[rowBytes];
+		filteredRow = new byte[rowBytes];
+
+		out.write(PNGScanlineReader.SIGNATURE);
+		for (PNGChunk chunk : headerChunks)
+			PNGChunk.write(out, chunk.type, chunk.data, 0, chunk.data.length);
+
+		deflater = new Deflater(compressionLevel);
+		idatStream = new DeflaterOutputStream(new IDATOutputStream(out), deflater, 1 << 16);
+	}
+
+	/**
+	 * Filters a raw scanline and adds it to the compressed image data.
+	 *
+	 * @param filterType Filter type to use for this scanline
+	 * @param row        Raw scanline, excluding the filter type byte
+	 * @throws IOException If writing to the stream fails
+	 */
+	public void writeRow(int filterType, @NotNull byte[] row) throws IOException {
+		PNGFilter.filter(filterType, row, prevRow, bpp, filteredRow);
+		idatStream.write(filterType);
+		idatStream.write(filteredRow, 0, rowBytes);
+		System.arraycopy(row, 0, prevRow, 0, rowBytes);
+	}
+
+	/**
+	 * Finishes the compressed image data, and writes the trailing chunks followed by the IEND chunk.
+	 *
+	 * @param trailingChunks Chunks to write after the image data, not including IEND
+	 * @throws IOException If writing to the stream fails
+	 */
+	public void finish(@NotNull List<PNGChunk> trailingChunks) throws IOException {
+		idatStream.finish();
+		idatStream.flush();
+		deflater.end();
+
+		for (PNGChunk chunk : trailingChunks)
+			PNGChunk.write(out, chunk.type, chunk.data, 0, chunk.data.length);
+		PNGChunk.write(out, "IEND", new byte[0], 0, 0);
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
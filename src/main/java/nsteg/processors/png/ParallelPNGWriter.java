@@ -0,0 +1,312 @@
+package nsteg.processors.png;
+
+import nsteg.threads.WorkerPool;
+
+import javax.validation.constraints.NotNull;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a BufferedImage to a PNG file, compressing the image data on multiple threads. The rows of the image are
+ * split into bands, and each band is filtered and deflated independently on the shared WorkerPool. All bands but the
+ * last end with a sync flush, which leaves the deflate stream byte aligned, so the compressed bands can simply be
+ * concatenated into one zlib stream. The checksum of the whole stream is combined from the checksums of the bands.
+ * <p><br>
+ * To keep the compression ratio close to that of a single threaded writer, each band is given the last 32 KiB of
+ * filtered data from the band before it as a preset dictionary, which is the same data a single deflate stream would
+ * have been able to refer back to.
+ */
+public class ParallelPNGWriter {
+	/**
+	 * Minimum number of raw image bytes in each band. Smaller bands compress worse, and cost more to coordinate.
+	 */
+	private static final int MIN_BAND_BYTES = 1 << 18;
+
+	/**
+	 * Size of the deflate window, and therefore of the preset dictionary given to each band.
+	 */
+	private static final int DICTIONARY_SIZE = 1 << 15;
+
+	private int compressionLevel, filterStrategy, threads;
+
+	/**
+	 * Creates a writer that uses the default deflate compression level, adaptive filtering and as many threads as
+	 * the WorkerPool has.
+	 */
+	public ParallelPNGWriter() {
+		this(Deflater.DEFAULT_COMPRESSION, PNGFilter.ADAPTIVE, WorkerPool.getSize());
+	}
+
+	/**
+	 * Creates a writer with the given settings.
+	 *
+	 * @param compressionLevel Deflate compression level, from 0 (no compression) to 9 (best compression), or -1
+	 *                         (Deflater.DEFAULT_COMPRESSION) for the default level of deflate
+	 * @param filterStrategy   Filter type to use for every row, as defined in PNGFilter, or PNGFilter.ADAPTIVE to pick
+	 *                         the filter for each row individually
+	 * @param threads          Maximum number of bands to compress at the same time, which is also limited by the size
+	 *                         of the WorkerPool
+	 */
+	public ParallelPNGWriter(int compressionLevel, int filterStrategy, int threads) {
+		if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Compression level must be -1 (default) or 0 to 9");
+		if (filterStrategy < PNGFilter.NONE || filterStrategy > PNGFilter.ADAPTIVE)
+			throw new IllegalArgumentException("Unknown filter strategy " + filterStrategy);
+
+		this.compressionLevel = compressionLevel;
+		this.filterStrategy = filterStrategy;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Determines whether an image can be written by this class without any loss. Only images with 8 bit RGB or ARGB
+	 * pixels are supported, since those are the ones that ImgEncoder writes to. Other images should be written with
+	 * ImageIO, which keeps their original pixel format.
+	 *
+	 * @param img Image to check
+	 * @return True if the image can be written by this class, false otherwise
+	 */
+	public static boolean isSupported(@NotNull BufferedImage img) {
+		switch (img.getType()) {
+			case BufferedImage.TYPE_INT_RGB:
+			case BufferedImage.TYPE_INT_ARGB:
+			case BufferedImage.TYPE_INT_BGR:
+			case BufferedImage.TYPE_3BYTE_BGR:
+			case BufferedImage.TYPE_4BYTE_ABGR:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Writes an image to a stream in PNG format. The stream is not closed.
+	 *
+	 * @param img Image to write, which must be supported as per isSupported()
+	 * @param out Stream to write the PNG file to
+	 * @throws IOException If writing to the stream fails
+	 */
+	public void write(@NotNull BufferedImage img, @NotNull OutputStream out) throws IOException {
+		int width = img.getWidth(), height = img.getHeight();
+		int numOfChannels = img.getColorModel().hasAlpha() ? 4 : 3;
+		int rowBytes = width * numOfChannels;
+		int rowsPerBand = Math.max(1, MIN_BAND_BYTES / rowBytes);
+
+		ByteArrayOutputStream ihdr = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(ihdr);
+		dos.writeInt(width);
+		dos.writeInt(height);
+		dos.writeByte(8); // Bit depth
+		dos.writeByte(numOfChannels == 4 ? 6 : 2); // Colour type
+		dos.writeByte(0); // Compression method
+		dos.writeByte(0); // Filter method
+		dos.writeByte(0); // No interlacing
+
+		BufferedOutputStream bos = new BufferedOutputStream(out, 1 << 16);
+		bos.write(PNGScanlineReader.SIGNATURE);
+		PNGChunk.write(bos, "IHDR", ihdr.toByteArray(), 0, ihdr.size());
+
+		IDATOutputStream idat = new IDATOutputStream(bos);
+		idat.write(0x78); // zlib header: deflate with a 32 KiB window
+		idat.write(getZlibFlags());
+
+		// Bands are submitted ahead of the one being written, but never too far ahead, to bound memory use
+		ArrayDeque<FutureTask<Band>> pending = new ArrayDeque<>();
+		try {
+			long adler = 1;
+			int nextBandRow = 0;
+			while (nextBandRow < height || !pending.isEmpty()) {
+				while (nextBandRow < height && pending.size() < threads) {
+					int start = nextBandRow, end = Math.min(height, start + rowsPerBand);
+					pending.add(WorkerPool.submit(() -> compressBand(img, numOfChannels, start, end, end == height)));
+					nextBandRow = end;
+				}
+
+				Band band = WorkerPool.join(pending.remove());
+				idat.write(band.compressed, 0, band.compressed.length);
+				adler = combineAdler32(adler, band.adler, band.uncompressedLen);
+			}
+
+			dos = new DataOutputStream(idat);
+			dos.writeInt((int) adler);
+			idat.flush();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException("Compressing image data failed", e);
+		} finally {
+			for (FutureTask<Band> band : pending)
+				band.cancel(false);
+		}
+
+		PNGChunk.write(bos, "IEND", new byte[0], 0, 0);
+		bos.flush();
+	}
+
+	/*
+	 * Returns the second byte of the zlib header, which holds the compression level and makes the first two bytes of
+	 * the stream a multiple of 31.
+	 */
+	private int getZlibFlags() {
+		int level;
+		if (compressionLevel == Deflater.DEFAULT_COMPRESSION || compressionLevel == 6)
+			level = 2;
+		else if (compressionLevel < 2)
+			level = 0;
+		else if (compressionLevel < 6)
+			level = 1;
+		else
+			level = 3;
+
+		int flags = level << 6;
+		return flags + (31 - ((0x78 << 8) + flags) % 31);
+	}
+
+	/*
+	 * Filters and deflates a band of rows. The deflate stream for the band is left unfinished unless it is the last
+	 * band, so that it can be followed by the next band.
+	 */
+	private Band compressBand(BufferedImage img, int numOfChannels, int startRow, int endRow, boolean last) {
+		int rowBytes = img.getWidth() * numOfChannels;
+		int[] argb = new int[img.getWidth()];
+		byte[] raw = new byte[rowBytes], prev = new byte[rowBytes];
+		byte[] line = new byte[rowBytes + 1], filtered = new byte[rowBytes], scratch = new byte[rowBytes];
+
+		Deflater deflater = new Deflater(compressionLevel, true);
+		if (startRow > 0)
+			deflater.setDictionary(getDictionary(img, numOfChannels, startRow));
+
+		if (startRow > 0)
+			getRawRow(img, startRow - 1, numOfChannels, argb, prev);
+
+		Adler32 adler = new Adler32();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1 << 16];
+
+		for (int y = startRow; y < endRow; y++) {
+			getRawRow(img, y, numOfChannels, argb, raw);
+			filterRow(raw, prev, numOfChannels, line, filtered, scratch);
+			adler.update(line);
+
+			deflater.setInput(line);
+			while (!deflater.needsInput())
+				compressed.write(buffer, 0, deflater.deflate(buffer));
+
+			byte[] tmp = prev;
+			prev = raw;
+			raw = tmp;
+		}
+
+		if (last) {
+			deflater.finish();
+			while (!deflater.finished())
+				compressed.write(buffer, 0, deflater.deflate(buffer));
+		} else {
+			int len;
+			do {
+				len = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+				compressed.write(buffer, 0, len);
+			} while (len == buffer.length);
+		}
+		deflater.end();
+
+		Band band = new Band();
+		band.compressed = compressed.toByteArray();
+		band.adler = adler.getValue();
+		band.uncompressedLen = (long) (endRow - startRow) * line.length;
+		return band;
+	}
+
+	/*
+	 * Recreates the last DICTIONARY_SIZE bytes of filtered data that precede a band. Filtering only depends on the raw
+	 * rows, so the result is identical to what the thread compressing the previous band produced.
+	 */
+	private byte[] getDictionary(BufferedImage img, int numOfChannels, int bandStartRow) {
+		int rowBytes = img.getWidth() * numOfChannels;
+		int rows = Math.min(bandStartRow, (DICTIONARY_SIZE + rowBytes) / (rowBytes + 1));
+		int[] argb = new int[img.getWidth()];
+		byte[] raw = new byte[rowBytes], prev = new byte[rowBytes];
+		byte[] line = new byte[rowBytes + 1], filtered = new byte[rowBytes], scratch = new byte[rowBytes];
+
+		int firstRow = bandStartRow - rows;
+		if (firstRow > 0)
+			getRawRow(img, firstRow - 1, numOfChannels, argb, prev);
+
+		byte[] dictionary = new byte[rows * line.length];
+		for (int y = firstRow; y < bandStartRow; y++) {
+			getRawRow(img, y, numOfChannels, argb, raw);
+			filterRow(raw, prev, numOfChannels, line, filtered, scratch);
+			System.arraycopy(line, 0, dictionary, (y - firstRow) * line.length, line.length);
+
+			byte[] tmp = prev;
+			prev = raw;
+			raw = tmp;
+		}
+
+		if (dictionary.length <= DICTIONARY_SIZE)
+			return dictionary;
+		return Arrays.copyOfRange(dictionary, dictionary.length - DICTIONARY_SIZE, dictionary.length);
+	}
+
+	/*
+	 * Filters a raw row using the configured strategy, writing the filter type byte followed by the filtered row.
+	 */
+	private void filterRow(byte[] raw, byte[] prev, int bpp, byte[] line, byte[] filtered, byte[] scratch) {
+		if (filterStrategy == PNGFilter.ADAPTIVE)
+			line[0] = (byte) PNGFilter.chooseFilter(raw, prev, bpp, filtered, scratch);
+		else {
+			line[0] = (byte) filterStrategy;
+			PNGFilter.filter(filterStrategy, raw, prev, bpp, filtered);
+		}
+		System.arraycopy(filtered, 0, line, 1, raw.length);
+	}
+
+	/*
+	 * Converts a row of the image into the byte order used by PNG, which is RGB or RGBA.
+	 */
+	private static void getRawRow(BufferedImage img, int y, int numOfChannels, int[] argb, byte[] raw) {
+		img.getRGB(0, y, argb.length, 1, argb, 0, argb.length);
+		for (int x = 0, i = 0; x < argb.length; x++) {
+			raw[i++] = (byte) (argb[x] >> 16);
+			raw[i++] = (byte) (argb[x] >> 8);
+			raw[i++] = (byte) argb[x];
+			if (numOfChannels == 4)
+				raw[i++] = (byte) (argb[x] >>> 24);
+		}
+	}
+
+	/**
+	 * Combines the Adler-32 checksums of two consecutive blocks of data into the checksum of both blocks, as done by
+	 * zlib's adler32_combine().
+	 *
+	 * @param adler1 Checksum of the first block
+	 * @param adler2 Checksum of the second block
+	 * @param len2   Length of the second block
+	 * @return Checksum of the first block followed by the second block
+	 */
+	static long combineAdler32(long adler1, long adler2, long len2) {
+		final long BASE = 65521;
+		long rem = len2 % BASE;
+		long sum1 = adler1 & 0xffff;
+		long sum2 = (rem * sum1) % BASE;
+		sum1 += (adler2 & 0xffff) + BASE - 1;
+		sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + BASE - rem;
+		if (sum1 >= BASE)
+			sum1 -= BASE;
+		if (sum1 >= BASE)
+			sum1 -= BASE;
+		if (sum2 >= (BASE << 1))
+			sum2 -= (BASE << 1);
+		if (sum2 >= BASE)
+			sum2 -= BASE;
+		return sum1 | (sum2 << 16);
+	}
+
+	private static class Band {
+		byte[] compressed;
+		long adler, uncompressedLen;
+	}
+}
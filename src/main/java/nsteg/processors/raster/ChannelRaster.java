@@ -0,0 +1,91 @@
+package nsteg.processors.raster;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Abstracts the storage of a carrier as a sequence of pixels, each made up of a fixed number of 8 bit channels. This
+ * allows RasterEncoder and RasterDecoder to embed and extract data directly in whatever representation a carrier has
+ * on disk (scanlines streamed from a PNG file, pixels in a memory mapped file...), without first decoding the whole
+ * carrier into a BufferedImage.
+ * <p><br>
+ * Pixels are numbered in the order they are encoded in, left to right and top to bottom for images. Channels are
+ * numbered in the order ImgEncoder writes them, which is red, green, blue and then alpha, if present.
+ *
+ * @see nsteg.encoders.RasterEncoder
+ * @see nsteg.decoders.RasterDecoder
+ */
+public abstract class ChannelRaster implements Closeable {
+
+	/**
+	 * Returns the number of channels each pixel has. This is the number of channels data is encoded in.
+	 *
+	 * @return Number of channels per pixel
+	 */
+	public abstract int getNumOfChannels();
+
+	/**
+	 * Returns the total number of pixels in this raster.
+	 *
+	 * @return Number of pixels
+	 */
+	public abstract long getPixelCount();
+
+	/**
+	 * Returns the value of one channel of a pixel.
+	 *
+	 * @param px   Index of the pixel
+	 * @param chan Index of the channel, 0 to getNumOfChannels() - 1
+	 * @return Unsigned 8 bit value of the channel
+	 */
+	public abstract int getChannel(long px, int chan);
+
+	/**
+	 * Sets the value of one channel of a pixel. Read-only rasters, which are used for decoding, need not support this.
+	 *
+	 * @param px    Index of the pixel
+	 * @param chan  Index of the channel, 0 to getNumOfChannels() - 1
+	 * @param value Unsigned 8 bit value to set the channel to
+	 */
+	public abstract void setChannel(long px, int chan, int value);
+
+	/**
+	 * Returns whether pixels can be accessed in any order, which scattering data across the raster requires. True by
+	 * default, rasters that can only be accessed in increasing order, or that are slow to access out of order, must
+	 * return false.
+	 *
+	 * @return True if pixels can be accessed in any order, false otherwise
+	 */
+	public boolean isRandomAccess() {
+		return true;
+	}
+
+	/**
+	 * Hints that the given range of pixels is about to be accessed, so that rasters which decode their carrier in
+	 * chunks can decode the whole range at once. Does nothing by default.
+	 *
+	 * @param fromPx Index of the first pixel that will be accessed
+	 * @param toPx   Index of the pixel after the last one that will be accessed
+	 */
+	public void prefetch(long fromPx, long toPx) {
+	}
+
+	/**
+	 * Releases the resources used by this raster. For rasters that are written to, this must be called once all data
+	 * has been encoded, and the carrier containing the data is only guaranteed to be complete once it returns.
+	 *
+	 * @throws IOException If the carrier could not be read or written
+	 */
+	@Override
+	public abstract void close() throws IOException;
+
+	/**
+	 * Releases the resources used by this raster without completing the carrier being written, deleting any partial
+	 * output. Used when the data will not be encoded after all. Read-only rasters simply close.
+	 *
+	 * @throws IOException If the raster could not be released
+	 */
+	public void discard() throws IOException {
+		close();
+	}
+}
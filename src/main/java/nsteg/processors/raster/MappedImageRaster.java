@@ -0,0 +1,325 @@
+package nsteg.processors.raster;
+
+import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Raster backed by a memory mapped BMP or uncompressed TIFF file. The pixels of these formats are stored in the file
+ * as they are, so instead of decoding the image and writing it back out, the carrier is copied to the output file by
+ * the OS, and only the bytes that hold encoded data are modified, directly at their offset in the mapped file. The cost
+ * of encoding and decoding therefore depends on the size of the data, not the size of the image.
+ * <p><br>
+ * Only layouts that ImageIO reads as 8 bit RGB or ARGB images are supported, so that carriers encoded through this
+ * class can also be decoded by ImgDecoder, and vice versa, see isMappable().
+ */
+public class MappedImageRaster extends ChannelRaster {
+	private static final int BMP_FILE_HEADER_SIZE = 14, BMP_INFO_HEADER_SIZE = 40;
+
+	private static final int TIFF_IMAGE_WIDTH = 256, TIFF_IMAGE_LENGTH = 257, TIFF_BITS_PER_SAMPLE = 258,
+			TIFF_COMPRESSION = 259, TIFF_PHOTOMETRIC = 262, TIFF_STRIP_OFFSETS = 273, TIFF_SAMPLES_PER_PIXEL = 277,
+			TIFF_ROWS_PER_STRIP = 278, TIFF_STRIP_BYTE_COUNTS = 279, TIFF_PLANAR_CONFIG = 284, TIFF_TILE_WIDTH = 322,
+			TIFF_EXTRA_SAMPLES = 338;
+
+	private FileChannel channel;
+	private MappedByteBuffer pixels;
+	private String outFile;
+	private boolean writable;
+
+	private Layout layout;
+
+	/**
+	 * Maps a BMP or TIFF file for reading only, for use when decoding.
+	 *
+	 * @param inFile Image file to read pixels from
+	 * @throws IOException If the file cannot be mapped or its layout is not supported
+	 */
+	public MappedImageRaster(@NotNull String inFile) throws IOException {
+		this(inFile, false);
+	}
+
+	/**
+	 * Maps a BMP or TIFF file for reading only, or for writing in place, in which case nothing is copied and only the
+	 * bytes written to are modified, for appending files to a carrier. Files mapped for writing are not deleted by
+	 * discard().
+	 *
+	 * @param file     Image file to map
+	 * @param writable True to map the file for writing, false to map it for reading only
+	 * @throws IOException If the file cannot be mapped or its layout is not supported
+	 */
+	public MappedImageRaster(@NotNull String file, boolean writable) throws IOException {
+		this.writable = writable;
+		channel = FileChannel.open(Paths.get(file), writable ? new StandardOpenOption[]{READ, WRITE} :
+													new StandardOpenOption[]{READ});
+		try {
+			layout = readLayout(channel);
+			pixels = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+								 layout.regionStart, layout.regionLength);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Copies a BMP or TIFF file to the output file, and maps the pixels of the copy so that data can be encoded into
+	 * it in place.
+	 *
+	 * @param inFile  Image file to use as the carrier
+	 * @param outFile File to copy the carrier to, which will hold the encoded data
+	 * @throws IOException If either file cannot be opened, or the layout of the input file is not supported
+	 */
+	public MappedImageRaster(@NotNull String inFile, @NotNull String outFile) throws IOException {
+		this.outFile = outFile;
+		this.writable = true;
+		Path in = Paths.get(inFile), out = Paths.get(outFile);
+		if (Files.exists(out) && Files.isSameFile(in, out))
+			throw new IOException("Output file must be different from the carrier");
+
+		try (FileChannel src = FileChannel.open(in, READ)) {
+			layout = readLayout(src);
+
+			channel = FileChannel.open(out, CREATE, TRUNCATE_EXISTING, READ, WRITE);
+			long pos = 0, size = src.size();
+			while (pos < size)
+				pos += src.transferTo(pos, size - pos, channel);
+			pixels = channel.map(FileChannel.MapMode.READ_WRITE, layout.regionStart, layout.regionLength);
+		} catch (IOException e) {
+			if (channel != null)
+				discard();
+			throw e;
+		}
+	}
+
+	/**
+	 * Determines whether an image file can be mapped by this class. Supported files are 24 bit uncompressed BMP
+	 * images, and uncompressed, strip based TIFF images with 8 bit RGB samples stored contiguously, optionally
+	 * followed by an unassociated alpha sample.
+	 *
+	 * @param file Image file to check
+	 * @return True if the file can be mapped, false otherwise
+	 */
+	public static boolean isMappable(@NotNull String file) {
+		try (FileChannel ch = FileChannel.open(Paths.get(file), READ)) {
+			readLayout(ch);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public int getNumOfChannels() {
+		return layout.numOfChannels;
+	}
+
+	@Override
+	public long getPixelCount() {
+		return (long) layout.width * layout.height;
+	}
+
+	@Override
+	public int getChannel(long px, int chan) {
+		return pixels.get(getOffset(px, chan)) & 0xff;
+	}
+
+	@Override
+	public void setChannel(long px, int chan, int value) {
+		pixels.put(getOffset(px, chan), (byte) value);
+	}
+
+	private int getOffset(long px, int chan) {
+		int y = (int) (px / layout.width), x = (int) (px % layout.width);
+		return layout.rowOffsets[y] + x * layout.bytesPerPixel + layout.chanOffsets[chan];
+	}
+
+	/**
+	 * Writes any modified pixels back to the output file, and closes it.
+	 *
+	 * @throws IOException If the output file could not be written
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel == null)
+			return;
+		try {
+			if (writable)
+				pixels.force();
+		} finally {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	@Override
+	public void discard() throws IOException {
+		if (channel != null)
+			channel.close();
+		channel = null;
+		if (outFile != null)
+			Files.deleteIfExists(Paths.get(outFile));
+	}
+
+	/*
+	 * Reads the header of a BMP or TIFF file, and determines where each pixel is stored in it.
+	 */
+	private static Layout readLayout(FileChannel ch) throws IOException {
+		ByteBuffer magic = read(ch, 0, 2, ByteOrder.LITTLE_ENDIAN);
+		if (magic.get(0) == 'B' && magic.get(1) == 'M')
+			return readBMPLayout(ch);
+		if ((magic.get(0) == 'I' && magic.get(1) == 'I') || (magic.get(0) == 'M' && magic.get(1) == 'M'))
+			return readTIFFLayout(ch, magic.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		throw new IOException("Not a BMP or TIFF file");
+	}
+
+	private static Layout readBMPLayout(FileChannel ch) throws IOException {
+		ByteBuffer header = read(ch, 0, BMP_FILE_HEADER_SIZE + BMP_INFO_HEADER_SIZE, ByteOrder.LITTLE_ENDIAN);
+		long dataOffset = header.getInt(10) & 0xffffffffL;
+		int infoHeaderSize = header.getInt(14), width = header.getInt(18), height = header.getInt(22);
+		int bitCount = header.getShort(28), compression = header.getInt(30);
+
+		if (infoHeaderSize < BMP_INFO_HEADER_SIZE || bitCount != 24 || compression != 0 || width <= 0 || height == 0)
+			throw new IOException("Only uncompressed 24 bit BMP images are supported");
+
+		boolean bottomUp = height > 0;
+		height = Math.abs(height);
+		long stride = ((long) width * 3 + 3) & ~3L;
+		if (stride * height > Integer.MAX_VALUE || dataOffset + stride * height > ch.size())
+			throw new IOException("BMP pixel data is too large or truncated");
+
+		Layout layout = new Layout(width, height, 3, 3, new int[]{2, 1, 0}); // Stored as BGR
+		layout.regionStart = dataOffset;
+		layout.regionLength = stride * height;
+		for (int y = 0; y < height; y++)
+			layout.rowOffsets[y] = (int) ((bottomUp ? height - 1 - y : y) * stride);
+		return layout;
+	}
+
+	private static Layout readTIFFLayout(FileChannel ch, ByteOrder order) throws IOException {
+		ByteBuffer header = read(ch, 0, 8, order);
+		if (header.getShort(2) != 42)
+			throw new IOException("Only baseline TIFF files are supported");
+
+		long ifdOffset = header.getInt(4) & 0xffffffffL;
+		int entries = read(ch, ifdOffset, 2, order).getShort(0) & 0xffff;
+		ByteBuffer ifd = read(ch, ifdOffset + 2, entries * 12, order);
+
+		long width = 0, height = 0, compression = 1, photometric = -1, samplesPerPixel = 1, planarConfig = 1;
+		long rowsPerStrip = 0xffffffffL, extraSamples = -1;
+		long[] bitsPerSample = {1}, stripOffsets = null, stripByteCounts = null;
+		for (int e = 0; e < entries; e++) {
+			int entry = e * 12;
+			long[] values = readValues(ch, ifd, entry, order);
+			switch (ifd.getShort(entry) & 0xffff) {
+				case TIFF_IMAGE_WIDTH: width = values[0]; break;
+				case TIFF_IMAGE_LENGTH: height = values[0]; break;
+				case TIFF_BITS_PER_SAMPLE: bitsPerSample = values; break;
+				case TIFF_COMPRESSION: compression = values[0]; break;
+				case TIFF_PHOTOMETRIC: photometric = values[0]; break;
+				case TIFF_STRIP_OFFSETS: stripOffsets = values; break;
+				case TIFF_SAMPLES_PER_PIXEL: samplesPerPixel = values[0]; break;
+				case TIFF_ROWS_PER_STRIP: rowsPerStrip = values[0]; break;
+				case TIFF_STRIP_BYTE_COUNTS: stripByteCounts = values; break;
+				case TIFF_PLANAR_CONFIG: planarConfig = values[0]; break;
+				case TIFF_TILE_WIDTH: throw new IOException("Tiled TIFF images are not supported");
+				case TIFF_EXTRA_SAMPLES: extraSamples = values[0]; break;
+			}
+		}
+
+		boolean rgb = samplesPerPixel == 3 && extraSamples == -1;
+		boolean rgba = samplesPerPixel == 4 && extraSamples == 2; // Unassociated alpha, as ImageIO writes it
+		if (compression != 1 || photometric != 2 || planarConfig != 1 || !(rgb || rgba) || stripOffsets == null ||
+			stripByteCounts == null || width <= 0 || height <= 0 || width * height > Integer.MAX_VALUE)
+			throw new IOException("Only uncompressed 8 bit RGB(A) TIFF images are supported");
+		for (long bits : bitsPerSample)
+			if (bits != 8)
+				throw new IOException("Only uncompressed 8 bit RGB(A) TIFF images are supported");
+
+		int numOfChannels = (int) samplesPerPixel;
+		long rowBytes = width * numOfChannels;
+		rowsPerStrip = Math.min(rowsPerStrip, height);
+		long strips = (height + rowsPerStrip - 1) / rowsPerStrip;
+		if (stripOffsets.length < strips || stripByteCounts.length < strips)
+			throw new IOException("TIFF strips are missing");
+
+		// Map a single region spanning all the strips, which are usually contiguous
+		long regionStart = Long.MAX_VALUE, regionEnd = 0;
+		for (int s = 0; s < strips; s++) {
+			long rows = Math.min(rowsPerStrip, height - s * rowsPerStrip);
+			if (stripByteCounts[s] < rows * rowBytes)
+				throw new IOException("TIFF strip is truncated");
+			regionStart = Math.min(regionStart, stripOffsets[s]);
+			regionEnd = Math.max(regionEnd, stripOffsets[s] + rows * rowBytes);
+		}
+		if (regionEnd - regionStart > Integer.MAX_VALUE || regionEnd > ch.size())
+			throw new IOException("TIFF pixel data is too large or truncated");
+
+		Layout layout = new Layout((int) width, (int) height, numOfChannels, numOfChannels, new int[]{0, 1, 2, 3});
+		layout.regionStart = regionStart;
+		layout.regionLength = regionEnd - regionStart;
+		for (int y = 0; y < height; y++)
+			layout.rowOffsets[y] = (int) (stripOffsets[(int) (y / rowsPerStrip)] - regionStart +
+										  (y % rowsPerStrip) * rowBytes);
+		return layout;
+	}
+
+	/*
+	 * Reads the values of a TIFF IFD entry, which are stored in the entry itself if they fit in four bytes, or at the
+	 * offset it contains otherwise. Only the unsigned integer types are supported.
+	 */
+	private static long[] readValues(FileChannel ch, ByteBuffer ifd, int entry, ByteOrder order) throws IOException {
+		int type = ifd.getShort(entry + 2);
+		long count = ifd.getInt(entry + 4) & 0xffffffffL;
+		int size = type == 1 ? 1 : type == 3 ? 2 : type == 4 ? 4 : 0;
+		if (size == 0 || count == 0 || count > Integer.MAX_VALUE / 4)
+			return new long[]{-1};
+
+		ByteBuffer data = size * count <= 4 ? ifd :
+						  read(ch, ifd.getInt(entry + 8) & 0xffffffffL, (int) (size * count), order);
+		int base = data == ifd ? entry + 8 : 0;
+
+		long[] values = new long[(int) count];
+		for (int i = 0; i < count; i++) {
+			int pos = base + i * size;
+			values[i] = size == 1 ? data.get(pos) & 0xff :
+						size == 2 ? data.getShort(pos) & 0xffff : data.getInt(pos) & 0xffffffffL;
+		}
+		return values;
+	}
+
+	private static ByteBuffer read(FileChannel ch, long pos, int len, ByteOrder order) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(len).order(order);
+		while (buf.hasRemaining())
+			if (ch.read(buf, pos + buf.position()) < 0)
+				throw new IOException("Unexpected end of file");
+		return buf;
+	}
+
+	/*
+	 * Location of the pixels of an image within its file.
+	 */
+	private static class Layout {
+		int width, height, numOfChannels, bytesPerPixel;
+		int[] chanOffsets; // Offset of each channel within a pixel, in R, G, B, A order
+		int[] rowOffsets; // Offset of each row, relative to the start of the mapped region
+		long regionStart, regionLength;
+
+		Layout(int width, int height, int numOfChannels, int bytesPerPixel, int[] chanOffsets) {
+			this.width = width;
+			this.height = height;
+			this.numOfChannels = numOfChannels;
+			this.bytesPerPixel = bytesPerPixel;
+			this.chanOffsets = chanOffsets;
+			rowOffsets = new int[height];
+		}
+	}
+}
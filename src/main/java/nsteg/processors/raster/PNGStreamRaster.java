@@ -0,0 +1,319 @@
+package nsteg.processors.raster;
+
+import nsteg.processors.png.PNGChunk;
+import nsteg.processors.png.PNGScanlineReader;
+import nsteg.processors.png.PNGScanlineWriter;
+
+import javax.validation.constraints.NotNull;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Raster backed by a PNG file that is streamed one scanline at a time. A reader thread inflates and unfilters the
+ * scanlines of the carrier image, and, when encoding, a writer thread filters and deflates the modified scanlines into
+ * the output image. The thread using the raster only ever works on the current scanline, so decoding, embedding and
+ * encoding all happen at the same time on different cores, and only a bounded number of rows is held in memory.
+ * <p><br>
+ * Since the image is streamed, pixels must be accessed in increasing order, which is the order the encoders and
+ * decoders work in. Only 8 bit, non-interlaced RGB and RGBA images are supported, see isStreamable().
+ */
+public class PNGStreamRaster extends ChannelRaster {
+	/**
+	 * Maximum number of rows waiting in each queue between the pipeline stages.
+	 */
+	private static final int QUEUE_ROWS = 64;
+
+	private static final Row END_OF_IMAGE = new Row(0, null);
+
+	private PNGScanlineReader reader;
+	private PNGScanlineWriter writer;
+	private String outFile;
+
+	private int width, height, numOfChannels, rowBytes;
+
+	private BlockingQueue<Row> readQueue = new ArrayBlockingQueue<>(QUEUE_ROWS);
+	private BlockingQueue<Row> writeQueue;
+	private Thread readThread, writeThread;
+
+	private Row currRow;
+	private long currRowIdx = -1;
+	private boolean readEnded = false;
+
+	private volatile List<PNGChunk> trailingChunks = Collections.emptyList();
+	private volatile IOException failure;
+
+	/**
+	 * Opens a PNG file for reading only, for use when decoding.
+	 *
+	 * @param inFile PNG file to read scanlines from
+	 * @throws IOException If the file cannot be opened or is not supported
+	 */
+	public PNGStreamRaster(@NotNull String inFile) throws IOException {
+		this(inFile, null);
+	}
+
+	/**
+	 * Opens a PNG file for reading, and if an output file is given, creates it and starts writing the scanlines of
+	 * the input image to it as they are modified.
+	 *
+	 * @param inFile  PNG file to read scanlines from
+	 * @param outFile PNG file to write the modified scanlines to, or null if the raster is only read from
+	 * @throws IOException If either file cannot be opened, or the input file is not supported
+	 */
+	public PNGStreamRaster(@NotNull String inFile, String outFile) throws IOException {
+		reader = new PNGScanlineReader(new FileInputStream(inFile));
+		if (!isStreamable(reader)) {
+			reader.close();
+			throw new IOException("PNG file cannot be streamed, only 8 bit non-interlaced RGB(A) images are supported");
+		}
+
+		width = reader.getWidth();
+		height = reader.getHeight();
+		numOfChannels = reader.getBytesPerPixel();
+		rowBytes = reader.getRowBytes();
+
+		if (outFile != null) {
+			this.outFile = outFile;
+			writer = new PNGScanlineWriter(new FileOutputStream(outFile), reader.getHeaderChunks(), rowBytes,
+										   numOfChannels, Deflater.DEFAULT_COMPRESSION);
+			writeQueue = new ArrayBlockingQueue<>(QUEUE_ROWS);
+			writeThread = new Thread(this::writeRows);
+			writeThread.setDaemon(true);
+			writeThread.start();
+		}
+
+		readThread = new Thread(this::readRows);
+		readThread.setDaemon(true);
+		readThread.start();
+	}
+
+	/**
+	 * Determines whether a PNG file can be streamed by this class, which requires it to be a non-interlaced 8 bit RGB
+	 * or RGBA image. RGB images with a tRNS chunk are also excluded, since ImageIO reads them as having four channels.
+	 *
+	 * @param file PNG file to check
+	 * @return True if the file can be streamed, false otherwise
+	 */
+	public static boolean isStreamable(@NotNull String file) {
+		try (PNGScanlineReader r = new PNGScanlineReader(new FileInputStream(file))) {
+			return isStreamable(r);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static boolean isStreamable(PNGScanlineReader r) {
+		return r.getBitDepth() == 8 && !r.isInterlaced() &&
+			   (r.getColorType() == 6 || (r.getColorType() == 2 && !r.hasTransparencyChunk()));
+	}
+
+	/*
+	 * Reader thread. Inflates and unfilters every row of the carrier image, and queues them for the thread using
+	 * the raster.
+	 */
+	private void readRows() {
+		try {
+			for (int y = 0; y < height; y++) {
+				byte[] data = new byte[rowBytes];
+				int filterType = reader.readRow(data);
+				readQueue.put(new Row(filterType, data));
+			}
+			if (writer != null)
+				trailingChunks = reader.readTrailingChunks();
+		} catch (IOException e) {
+			failure = e;
+		} catch (InterruptedException e) {
+			return; // Raster was closed before the whole image was read
+		}
+
+		try {
+			readQueue.put(END_OF_IMAGE);
+		} catch (InterruptedException ignored) {
+		}
+	}
+
+	/*
+	 * Writer thread. Refilters and deflates the modified rows into the output image, using the same filter type each
+	 * row had in the carrier image.
+	 */
+	private void writeRows() {
+		// Rows keep being taken after a failure, so that the thread using the raster never blocks on a full queue
+		for (Row row = take(writeQueue); row != END_OF_IMAGE; row = take(writeQueue)) {
+			try {
+				if (failure == null)
+					writer.writeRow(row.filterType, row.data);
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		try {
+			if (failure == null)
+				writer.finish(trailingChunks);
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	/**
+	 * Returns the row containing the requested pixel, handing the rows before it to the writer thread, if there is
+	 * one. Rows that are not available due to a read error are replaced by empty rows, and the error is reported
+	 * when the raster is closed.
+	 */
+	private byte[] getRow(long px) {
+		long y = px / width;
+		if (y < currRowIdx)
+			throw new IllegalStateException("PNG rows can only be accessed in increasing order");
+
+		while (currRowIdx < y) {
+			if (currRow != null && writeQueue != null)
+				put(writeQueue, currRow);
+
+			currRow = readEnded ? END_OF_IMAGE : take(readQueue);
+			if (currRow == END_OF_IMAGE) {
+				readEnded = true;
+				currRow = new Row(0, new byte[rowBytes]);
+				if (failure == null)
+					failure = new EOFException("Pixel " + px + " is out of the bounds of the image");
+			}
+			currRowIdx++;
+		}
+
+		return currRow.data;
+	}
+
+	private static void put(BlockingQueue<Row> queue, Row row) {
+		while (true) {
+			try {
+				queue.put(row);
+				return;
+			} catch (InterruptedException ignored) {
+			}
+		}
+	}
+
+	private static Row take(BlockingQueue<Row> queue) {
+		while (true) {
+			try {
+				return queue.take();
+			} catch (InterruptedException ignored) {
+			}
+		}
+	}
+
+	@Override
+	public int getNumOfChannels() {
+		return numOfChannels;
+	}
+
+	@Override
+	public long getPixelCount() {
+		return (long) width * height;
+	}
+
+	// Rows are streamed, so they can only be accessed in increasing order
+	@Override
+	public boolean isRandomAccess() {
+		return false;
+	}
+
+	@Override
+	public int getChannel(long px, int chan) {
+		return getRow(px)[(int) (px % width) * numOfChannels + chan] & 0xff;
+	}
+
+	@Override
+	public void setChannel(long px, int chan, int value) {
+		getRow(px)[(int) (px % width) * numOfChannels + chan] = (byte) value;
+	}
+
+	/**
+	 * When encoding, passes all remaining rows on to the writer thread unmodified, and waits for the output image
+	 * to be complete. When decoding, stops reading the image, without inflating the rows that were not accessed.
+	 *
+	 * @throws IOException If the carrier image could not be read, or the output image could not be written. In this
+	 *                     case, the incomplete output image is deleted
+	 */
+	@Override
+	public void close() throws IOException {
+		if (writer != null) {
+			if (height > 0)
+				getRow(getPixelCount() - 1);
+
+			// The reader queues the end of the image only once it has read the chunks after the image data, so that
+			// they, and any error reading them, are known before the writer finishes the output image
+			while (!readEnded && take(readQueue) != END_OF_IMAGE)
+				;
+			readEnded = true;
+			try {
+				readThread.join();
+			} catch (InterruptedException ignored) {
+			}
+
+			if (currRow != null)
+				put(writeQueue, currRow);
+			put(writeQueue, END_OF_IMAGE);
+			try {
+				writeThread.join();
+			} catch (InterruptedException ignored) {
+			}
+			writer.close();
+		} else {
+			readThread.interrupt();
+			try {
+				readThread.join();
+			} catch (InterruptedException ignored) {
+			}
+		}
+
+		reader.close();
+
+		if (failure != null) {
+			if (outFile != null)
+				Files.deleteIfExists(Paths.get(outFile));
+			throw failure;
+		}
+	}
+
+	/**
+	 * Stops both pipeline threads without writing the remaining rows, and deletes the incomplete output image.
+	 *
+	 * @throws IOException If the files could not be closed or the output image could not be deleted
+	 */
+	@Override
+	public void discard() throws IOException {
+		if (writer == null) {
+			close();
+			return;
+		}
+
+		failure = new IOException("Encoding was discarded");
+		readThread.interrupt();
+		put(writeQueue, END_OF_IMAGE);
+		try {
+			readThread.join();
+			writeThread.join();
+		} catch (InterruptedException ignored) {
+		}
+
+		writer.close();
+		reader.close();
+		Files.deleteIfExists(Paths.get(outFile));
+	}
+
+	private static class Row {
+		int filterType;
+		byte[] data;
+
+		Row(int filterType, byte[] data) {
+			this.filterType = filterType;
+			this.data = data;
+		}
+	}
+}
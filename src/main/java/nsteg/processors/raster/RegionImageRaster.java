@@ -0,0 +1,175 @@
+package nsteg.processors.raster;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.validation.constraints.NotNull;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Read-only raster backed by an ImageIO reader, for images that can neither be streamed nor memory mapped. Instead of
+ * decoding the whole image, bands of rows are decoded on demand through ImageReadParam.setSourceRegion(), so only the
+ * rows holding encoded data are decoded, as long as the reader for the format can skip the rest of the image. The TIFF
+ * reader only decodes the strips or tiles overlapping the region, and the BMP reader seeks past the rows above it. The
+ * PNG reader still inflates the whole image data, but 8 bit RGB(A) PNG files are streamed by PNGStreamRaster instead.
+ * <p><br>
+ * Some readers have to decode every row above the requested region again for each band, so bands grow geometrically,
+ * which bounds the number of rows decoded to a small multiple of the rows actually needed. Once the decoder knows the
+ * size of the data, it can pass the pixel range it is about to read to prefetch(), which is then decoded in a single
+ * band.
+ * <p><br>
+ * Pixels are read through BufferedImage.getRGB(), in the same way as ImgDecoder, so carriers that ImgDecoder can
+ * decode are decoded identically by this class.
+ */
+public class RegionImageRaster extends ChannelRaster {
+	/**
+	 * Minimum number of pixels in the first band, which is enough for the header of most carriers.
+	 */
+	private static final int MIN_BAND_PIXELS = 1 << 16;
+
+	/**
+	 * Maximum number of pixels in a band, to bound the memory used by a single band.
+	 */
+	private static final int MAX_BAND_PIXELS = 1 << 24;
+
+	private ImageInputStream input;
+	private ImageReader reader;
+	private int width, height, numOfChannels;
+
+	private int[] band; // ARGB values of the rows in the current band
+	private int bandStart = 0, bandEnd = 0; // Rows in the current band
+	private int nextBandRows; // Number of rows to decode in the next band
+	private int prefetchEnd = 0; // Row the next band must reach, as hinted by prefetch()
+
+	private IOException failure;
+
+	/**
+	 * Opens an image file for reading only, for use when decoding.
+	 *
+	 * @param inFile Image file to read pixels from
+	 * @throws IOException If the file cannot be opened, or no ImageIO reader supports it
+	 */
+	public RegionImageRaster(@NotNull String inFile) throws IOException {
+		input = ImageIO.createImageInputStream(new File(inFile));
+		if (input == null)
+			throw new IOException("Cannot open image file " + inFile);
+
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext())
+				throw new IOException("Image format not supported");
+			reader = readers.next();
+			reader.setInput(input, true, true);
+
+			width = reader.getWidth(0);
+			height = reader.getHeight(0);
+
+			// Same image type ImageIO.read() would decode the image to, which determines the channels ImgDecoder uses
+			ImageTypeSpecifier type = reader.getImageTypes(0).next();
+			numOfChannels = type.getColorModel().hasAlpha() ? 4 : 3;
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e instanceof IOException ? (IOException) e : new IOException(e);
+		}
+
+		nextBandRows = Math.max(1, MIN_BAND_PIXELS / Math.max(1, width));
+	}
+
+	@Override
+	public int getNumOfChannels() {
+		return numOfChannels;
+	}
+
+	@Override
+	public long getPixelCount() {
+		return (long) width * height;
+	}
+
+	// Rows are decoded in bands, which pixels scattered over the whole image would have decoded over and over again
+	@Override
+	public boolean isRandomAccess() {
+		return false;
+	}
+
+	@Override
+	public int getChannel(long px, int chan) {
+		int y = (int) (px / width), x = (int) (px % width);
+		if (y < bandStart || y >= bandEnd)
+			loadBand(y);
+		if (band == null)
+			return 0;
+
+		int argb = band[(y - bandStart) * width + x];
+		return chan == 3 ? argb >>> 24 : (argb >> (16 - chan * Byte.SIZE)) & 0xff;
+	}
+
+	/**
+	 * Not supported, since this raster is only used for decoding.
+	 *
+	 * @throws UnsupportedOperationException Always
+	 */
+	@Override
+	public void setChannel(long px, int chan, int value) {
+		throw new UnsupportedOperationException("RegionImageRaster is read-only");
+	}
+
+	@Override
+	public void prefetch(long fromPx, long toPx) {
+		prefetchEnd = (int) Math.min(height, (toPx + width - 1) / width);
+	}
+
+	/*
+	 * Decodes the band of rows starting at the given row. Failures are stored and thrown by close(), like in
+	 * PNGStreamRaster, since the decoders cannot handle exceptions while reading bits.
+	 */
+	private void loadBand(int y) {
+		band = null;
+		bandStart = bandEnd = y;
+		if (failure != null)
+			return;
+		if (y >= height) {
+			failure = new IOException("Pixel row " + y + " is out of the bounds of the image");
+			return;
+		}
+
+		int maxRows = Math.max(1, MAX_BAND_PIXELS / width);
+		int rows = Math.min(maxRows, Math.max(nextBandRows, prefetchEnd - y));
+		rows = Math.min(rows, height - y);
+		nextBandRows = Math.min(maxRows, rows * 2);
+
+		try {
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceRegion(new Rectangle(0, y, width, rows));
+			BufferedImage img = reader.read(0, param);
+			band = img.getRGB(0, 0, width, rows, null, 0, width);
+			bandEnd = y + rows;
+		} catch (IOException | RuntimeException e) {
+			failure = e instanceof IOException ? (IOException) e : new IOException(e);
+		}
+	}
+
+	/**
+	 * Releases the reader and closes the image file.
+	 *
+	 * @throws IOException If any band of the image could not be decoded
+	 */
+	@Override
+	public void close() throws IOException {
+		if (reader != null)
+			reader.dispose();
+		reader = null;
+		if (input != null)
+			input.close();
+		input = null;
+		band = null;
+
+		if (failure != null)
+			throw failure;
+	}
+}
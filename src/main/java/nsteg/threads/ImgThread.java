@@ -1,6 +1,7 @@
 package nsteg.threads;
 
 import nsteg.encoders.img.ImgEndState;
+import nsteg.nsteg_utils.EmbeddingOrder;
 
 import javax.validation.constraints.NotNull;
 import java.awt.image.BufferedImage;
@@ -18,6 +19,9 @@ public class ImgThread extends nStegThread {
 
 	protected int sx, sy, currByte, endByte;
 
+	// Order the pixels are worked on in, set while the thread is idle
+	protected volatile EmbeddingOrder order = EmbeddingOrder.SEQUENTIAL;
+
 	/**
 	 * Superclass constructor for the image encoding/decoding threads. Assigns and sets up the image that will be used.
 	 *
@@ -32,4 +36,14 @@ public class ImgThread extends nStegThread {
 
 		this.setDaemon(true);
 	}
+
+	/**
+	 * Sets the order the pixels of the image are worked on in. Jobs keep being submitted with sequential coordinates,
+	 * which are mapped to the pixel actually holding their data. Must only be called while the thread is not active.
+	 *
+	 * @param order Order to work on the pixels in
+	 */
+	public void setOrder(@NotNull EmbeddingOrder order) {
+		this.order = order;
+	}
 }
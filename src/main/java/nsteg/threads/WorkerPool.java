@@ -0,0 +1,66 @@
+package nsteg.threads;
+
+import javax.validation.constraints.NotNull;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of worker threads shared by every stage that splits its work into independent tasks, such as compressing PNG
+ * bands or encoding FLAC frames, so that running several such stages at once does not oversubscribe the CPU. The pool
+ * has one thread per available core, and its threads are daemons, so it never has to be shut down.
+ * <p><br>
+ * Tasks should be submitted with submit() and waited on with join(), which runs the task on the waiting thread if no
+ * worker has started it yet. This way a task waiting on other tasks can never deadlock the pool, even when it is
+ * itself running on a worker thread.
+ */
+public class WorkerPool {
+	private static final int SIZE = Runtime.getRuntime().availableProcessors();
+
+	private static final ExecutorService pool = Executors.newFixedThreadPool(SIZE, new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(@NotNull Runnable r) {
+			Thread t = new Thread(r, "nsteg-worker-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * Returns the number of threads in the pool, which is the number of tasks that can run at the same time.
+	 *
+	 * @return Number of worker threads
+	 */
+	public static int getSize() {
+		return SIZE;
+	}
+
+	/**
+	 * Queues a task to be run by a worker thread.
+	 *
+	 * @param task Task to run
+	 * @param <T>  Type of the result of the task
+	 * @return Task that can be passed to join() to wait for its result
+	 */
+	public static <T> FutureTask<T> submit(@NotNull Callable<T> task) {
+		FutureTask<T> future = new FutureTask<>(task);
+		pool.execute(future);
+		return future;
+	}
+
+	/**
+	 * Waits for a task submitted with submit() to complete, running it on the current thread if no worker thread has
+	 * started it yet.
+	 *
+	 * @param task Task to wait for
+	 * @param <T>  Type of the result of the task
+	 * @return Result of the task
+	 * @throws ExecutionException   If the task threw an exception
+	 * @throws InterruptedException If the current thread was interrupted while waiting
+	 */
+	public static <T> T join(@NotNull FutureTask<T> task) throws ExecutionException, InterruptedException {
+		task.run(); // Does nothing if the task has already been started by a worker
+		return task.get();
+	}
+}
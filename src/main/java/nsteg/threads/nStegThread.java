@@ -4,7 +4,7 @@ package nsteg.threads;
  * Superclass for all encoder/decoder thread classes.
  */
 public class nStegThread extends Thread {
-	protected boolean running = true, active = false;
+	protected volatile boolean running = true, active = false;
 	protected int LSBsToUse = 1;
 
 	/**
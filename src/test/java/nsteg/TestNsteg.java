@@ -1,22 +1,78 @@
 package nsteg;
 
+import nsteg.api.AsyncNsteg;
+import nsteg.api.EncodeOptions;
+import nsteg.api.Nsteg;
+import nsteg.api.NstegException;
+import nsteg.api.Payload;
 import nsteg.decoders.Decoder;
+import nsteg.decoders.RasterDecoder;
 import nsteg.decoders.aud.AudDecoder;
 import nsteg.decoders.img.ImgDecoder;
+import nsteg.encoders.CarrierCatalog;
 import nsteg.encoders.Encoder;
+import nsteg.encoders.RasterEncoder;
 import nsteg.encoders.aud.AudEncoder;
 import nsteg.encoders.img.ImgEncoder;
+import nsteg.encoders.img.ImgEncoderThread;
+import nsteg.main.Main;
 import nsteg.nsteg_utils.BitByteConv;
+import nsteg.nsteg_utils.Compressor;
+import nsteg.nsteg_utils.Crypto;
+import nsteg.nsteg_utils.EmbeddingOrder;
+import nsteg.nsteg_utils.FileType;
+import nsteg.processors.AudioProcessor;
+import nsteg.processors.CarrierCache;
+import nsteg.processors.FLACPreset;
+import nsteg.processors.FLACStreamWriter;
+import nsteg.processors.PCMStore;
+import nsteg.processors.png.PNGFilter;
+import nsteg.processors.png.ParallelPNGWriter;
+import nsteg.processors.raster.MappedImageRaster;
+import nsteg.processors.raster.PNGStreamRaster;
+import nsteg.processors.raster.RegionImageRaster;
 import org.junit.Test;
 
+import javax.imageio.ImageIO;
+import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestNsteg {
 	private boolean output = true;
@@ -29,6 +85,54 @@ public class TestNsteg {
 		return data;
 	}
 
+	private long countImgEncoderThreads() {
+		return Thread.getAllStackTraces().keySet().stream()
+					 .filter(thread -> thread instanceof ImgEncoderThread && thread.isAlive()).count();
+	}
+
+	/*
+	 * Runs the command line interface in this JVM, with standard input and output redirected, returning what was
+	 * written to standard output.
+	 */
+	private byte[] runCLI(byte[] stdin, String... args) {
+		InputStream in = System.in;
+		PrintStream out = System.out;
+		ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+		System.setIn(new ByteArrayInputStream(stdin));
+		System.setOut(new PrintStream(stdout));
+		try {
+			Main.main(args);
+		} finally {
+			System.setIn(in);
+			System.setOut(out);
+		}
+		return stdout.toByteArray();
+	}
+
+	/*
+	 * Runs the command line interface in a separate JVM, since it exits on errors, returning its exit code and adding
+	 * what it wrote to standard output to stdout.
+	 */
+	private int runCLIProcess(byte[] stdin, ByteArrayOutputStream stdout, String... args)
+			throws IOException, InterruptedException {
+		Path in = Files.createTempFile("nsteg-stdin", ".bin"), out = Files.createTempFile("nsteg-stdout", ".bin");
+		try {
+			Files.write(in, stdin);
+			List<String> command = new ArrayList<>(Arrays.asList(
+					Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp",
+					System.getProperty("java.class.path"), Main.class.getName()));
+			command.addAll(Arrays.asList(args));
+			Process process = new ProcessBuilder(command).redirectInput(in.toFile()).redirectOutput(out.toFile())
+														 .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+			int exitCode = process.waitFor();
+			stdout.write(Files.readAllBytes(out));
+			return exitCode;
+		} finally {
+			Files.delete(in);
+			Files.delete(out);
+		}
+	}
+
 	/**
 	 * Displays a visual comparison of two byte arrays at a bit level between a start point and an endpoint. Useful for
 	 * looking at file reassembly when debugging a failing encoder or decoder.
@@ -131,6 +235,1407 @@ public class TestNsteg {
 			System.out.println();
 	}
 
+	@Test
+	// Runs image and audio jobs with different channel counts and bpc at the same time, to check that encoders and
+	// decoders running in parallel do not share any state
+	public void testConcurrentEncDec() throws InterruptedException, ExecutionException {
+		ExecutorService jobs = Executors.newFixedThreadPool(8);
+		List<Future<Void>> results = new ArrayList<>();
+		try {
+			for (int job = 0; job < 48; job++) {
+				int bpc = job % 8 + 1, kind = job % 3;
+				Random rand = new Random(job);
+				results.add(jobs.submit(() -> {
+					byte[] data = new byte[(1 << 12) + rand.nextInt(1 << 12)];
+					rand.nextBytes(data);
+
+					Encoder enc;
+					Decoder dec;
+					if (kind < 2) {
+						BufferedImage img = new BufferedImage(
+								500, 500, kind == 0 ? BufferedImage.TYPE_3BYTE_BGR : BufferedImage.TYPE_4BYTE_ABGR
+						);
+						enc = new ImgEncoder(img, bpc);
+						enc.encodeBits(BitByteConv.intToBitArray(data.length, 32));
+						enc.encodeBytes(data);
+						enc.stopThreads();
+						dec = new ImgDecoder(img);
+					} else {
+						byte[] audData = new byte[1 << 18];
+						rand.nextBytes(audData);
+						AudioFormat af = new AudioFormat(44100, 16, 2, true, false);
+						enc = new AudEncoder(
+								new AudioInputStream(new ByteArrayInputStream(audData), af, audData.length / 4), bpc
+						);
+						enc.encodeBits(BitByteConv.intToBitArray(data.length, 32));
+						enc.encodeBytes(data);
+						enc.stopThreads();
+
+						byte[] encData = ((AudEncoder) enc).getEncodedPCM();
+						dec = new AudDecoder(
+								new AudioInputStream(new ByteArrayInputStream(encData), af, encData.length / 4)
+						);
+					}
+
+					int bytesToRead = BitByteConv.bitArrayToInt(dec.readBits(32), false);
+					byte[] decData = dec.readBytes(bytesToRead);
+					dec.stopThreads();
+
+					assertArrayEquals("Job with bpc " + bpc + " and kind " + kind + " failed", data, decData);
+					return null;
+				}));
+			}
+
+			for (Future<Void> result : results)
+				result.get();
+		} finally {
+			jobs.shutdownNow();
+		}
+
+		if (output)
+			System.out.println("Passed " + results.size() + " concurrent encoding/decoding jobs\n");
+	}
+
+	@Test
+	public void testLibraryAPI() throws IOException, NstegException {
+		List<Payload> payloads = Arrays.asList(new Payload("a.bin", genRandData(1 << 14)),
+											   new Payload("dir/b.txt", "Hello".getBytes()), new Payload("c", new byte[0]));
+		char[] password = "secret".toCharArray();
+
+		// Image, with encryption
+		BufferedImage img = new BufferedImage(300, 200, BufferedImage.TYPE_4BYTE_ABGR);
+		Nsteg.encode(img, payloads, new EncodeOptions().setLSBsToUse(3).setPassword(password));
+		assertPayloadsEqual(payloads, Nsteg.decode(img, password));
+
+		// PCM buffer, encoded in place
+		AudioFormat af = new AudioFormat(44100, 16, 2, true, false);
+		ByteBuffer pcm = ByteBuffer.wrap(genRandData(1 << 18));
+		Nsteg.encode(pcm, af, payloads, new EncodeOptions().setLSBsToUse(2));
+		assertPayloadsEqual(payloads, Nsteg.decode(pcm, null));
+
+		// Image streams, written as PNG and BMP
+		ByteArrayOutputStream carrier = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(200, 200, BufferedImage.TYPE_3BYTE_BGR), "png", carrier);
+		for (String format : new String[]{"png", "bmp"}) {
+			ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+			Nsteg.encode(new ByteArrayInputStream(carrier.toByteArray()), payloads,
+						 new EncodeOptions().setLSBsToUse(4).setFormat(format), encoded);
+			assertPayloadsEqual(payloads, Nsteg.decode(new ByteArrayInputStream(encoded.toByteArray()), null));
+		}
+
+		// Audio streams, written as WAV and FLAC
+		carrier.reset();
+		byte[] audData = genRandData(1 << 18);
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(audData), af, audData.length / 4),
+						  AudioFileFormat.Type.WAVE, carrier);
+		for (String format : new String[]{"wav", "flac"}) {
+			ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+			Nsteg.encode(new ByteArrayInputStream(carrier.toByteArray()), payloads,
+						 new EncodeOptions().setLSBsToUse(2).setFormat(format).setFLACPreset(FLACPreset.FAST), encoded);
+			assertPayloadsEqual(payloads, Nsteg.decode(new ByteArrayInputStream(encoded.toByteArray()), null));
+		}
+
+		// Errors are thrown to the caller
+		try {
+			Nsteg.encode(new BufferedImage(10, 10, BufferedImage.TYPE_3BYTE_BGR), payloads, new EncodeOptions());
+			fail("Payloads should not fit");
+		} catch (NstegException ignored) {
+		}
+		try {
+			Nsteg.decode(new BufferedImage(100, 100, BufferedImage.TYPE_3BYTE_BGR), null);
+			fail("Blank image should hold no payloads");
+		} catch (NstegException ignored) {
+		}
+		try {
+			Nsteg.decode(img, "wrong".toCharArray());
+			fail("Wrong password should not decrypt");
+		} catch (NstegException ignored) {
+		}
+
+		if (output)
+			System.out.println("Passed library API encoding/decoding\n");
+	}
+
+	private void assertPayloadsEqual(List<Payload> expected, List<Payload> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getName(), actual.get(i).getName());
+			assertArrayEquals(expected.get(i).getData(), actual.get(i).getData());
+		}
+	}
+
+	@Test
+	public void testAsyncAPI() throws Exception {
+		if (output)
+			System.out.println("Testing asynchronous API:");
+
+		List<Payload> payloads = Arrays.asList(new Payload("a.bin", genRandData(1 << 12)),
+											   new Payload("b.txt", "Hello".getBytes()));
+
+		// Jobs encode and decode in parallel
+		AsyncNsteg async = new AsyncNsteg(8);
+		List<CompletableFuture<BufferedImage>> encoded = new ArrayList<>();
+		for (int i = 0; i < 8; i++)
+			encoded.add(async.encode(new BufferedImage(200, 100, BufferedImage.TYPE_INT_RGB), payloads,
+									 new EncodeOptions().setLSBsToUse(i + 1), AsyncNsteg.Priority.BULK, 0,
+									 TimeUnit.SECONDS));
+		List<CompletableFuture<List<Payload>>> decoded = new ArrayList<>();
+		for (CompletableFuture<BufferedImage> future : encoded)
+			decoded.add(async.decode(future.get(), null, AsyncNsteg.Priority.INTERACTIVE, 0, TimeUnit.SECONDS));
+		for (CompletableFuture<List<Payload>> future : decoded)
+			assertPayloadsEqual(payloads, future.get());
+
+		// A single job thread, blocked until the queue has been filled
+		AsyncNsteg single = new AsyncNsteg(3, 1);
+		CountDownLatch blocked = new CountDownLatch(1), started = new CountDownLatch(1);
+		List<String> order = Collections.synchronizedList(new ArrayList<>());
+		single.submit(() -> {
+			started.countDown();
+			blocked.await();
+			return null;
+		}, AsyncNsteg.Priority.BULK, 0, TimeUnit.SECONDS);
+		started.await();
+
+		CompletableFuture<Boolean> bulk = single.submit(() -> order.add("bulk"), AsyncNsteg.Priority.BULK, 0,
+														TimeUnit.SECONDS);
+		CompletableFuture<Boolean> cancelled = single.submit(() -> order.add("cancelled"),
+															 AsyncNsteg.Priority.INTERACTIVE, 0, TimeUnit.SECONDS);
+		CompletableFuture<Boolean> interactive = single.submit(() -> order.add("interactive"),
+															   AsyncNsteg.Priority.INTERACTIVE, 0, TimeUnit.SECONDS);
+		try {
+			single.trySubmit(() -> null, AsyncNsteg.Priority.INTERACTIVE, 0, TimeUnit.SECONDS);
+			fail("Full queue should reject jobs");
+		} catch (RejectedExecutionException ignored) {
+		}
+		assertTrue(cancelled.cancel(false));
+		// Cancelling a queued job frees its place in the queue
+		single.trySubmit(() -> null, AsyncNsteg.Priority.INTERACTIVE, 0, TimeUnit.SECONDS);
+
+		blocked.countDown();
+		bulk.get();
+		assertTrue(interactive.isDone());
+		assertEquals(Arrays.asList("interactive", "bulk"), order);
+
+		// Jobs still queued at their deadline are never run
+		CountDownLatch blockedAgain = new CountDownLatch(1), startedAgain = new CountDownLatch(1);
+		single.submit(() -> {
+			startedAgain.countDown();
+			return blockedAgain.await(10, TimeUnit.SECONDS);
+		}, AsyncNsteg.Priority.BULK, 0, TimeUnit.SECONDS);
+		startedAgain.await();
+		CompletableFuture<Boolean> late = single.submit(() -> order.add("late"), AsyncNsteg.Priority.INTERACTIVE, 10,
+														TimeUnit.MILLISECONDS);
+		try {
+			late.get();
+			fail("Job should miss its deadline");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		blockedAgain.countDown();
+		single.submit(() -> null, AsyncNsteg.Priority.BULK, 0, TimeUnit.SECONDS).get();
+		assertEquals(Arrays.asList("interactive", "bulk"), order);
+
+		// Jobs queued before a shutdown still run, after which the job threads exit
+		CountDownLatch blockedLast = new CountDownLatch(1);
+		single.submit(() -> blockedLast.await(10, TimeUnit.SECONDS), AsyncNsteg.Priority.BULK, 0, TimeUnit.SECONDS);
+		CompletableFuture<Boolean> queued = single.submit(() -> order.add("queued"), AsyncNsteg.Priority.BULK, 0,
+														  TimeUnit.SECONDS);
+		single.shutdown();
+		async.shutdown();
+		try {
+			single.submit(() -> null, AsyncNsteg.Priority.INTERACTIVE, 0, TimeUnit.SECONDS);
+			fail("Shut down instance should reject jobs");
+		} catch (RejectedExecutionException ignored) {
+		}
+		blockedLast.countDown();
+		assertTrue(queued.get());
+		long end = System.currentTimeMillis() + 10000;
+		while (Thread.getAllStackTraces().keySet().stream().anyMatch(t -> t.getName().matches("nsteg-job-\\d+")))
+			assertTrue("Job threads should exit after shutdown", System.currentTimeMillis() < end);
+
+		if (output)
+			System.out.println("Passed asynchronous API\n");
+	}
+
+	@Test
+	public void testTOCExtract() throws IOException, NstegException {
+		if (output)
+			System.out.println("Testing table of contents and single file extraction:");
+
+		// Decoders skip to any bit, including ones in the middle of a pixel or PCM byte
+		byte[] data = genRandData(1 << 12);
+		AudioFormat af = new AudioFormat(44100, 16, 2, true, false);
+		byte[] audData = genRandData(1 << 20);
+		File carrier = File.createTempFile("nsteg-carrier", ".png");
+		File encoded = File.createTempFile("nsteg-encoded", ".png");
+		carrier.deleteOnExit();
+		encoded.deleteOnExit();
+		ImageIO.write(new BufferedImage(300, 200, BufferedImage.TYPE_3BYTE_BGR), "png", carrier);
+		for (int bpc : new int[]{1, 3, 7}) {
+			ImgEncoder ie = new ImgEncoder(new BufferedImage(300, 200, BufferedImage.TYPE_INT_ARGB), bpc);
+			ie.encodeBytes(data);
+			ie.stopThreads();
+
+			Encoder re = new RasterEncoder(new PNGStreamRaster(carrier.getPath(), encoded.getPath()), bpc);
+			re.encodeBytes(data);
+			re.stopThreads();
+
+			AudEncoder ae = new AudEncoder(new AudioInputStream(new ByteArrayInputStream(audData), af,
+															   audData.length / 4), bpc);
+			ae.encodeBytes(data);
+			ae.stopThreads();
+
+			Decoder[] decoders = {new ImgDecoder(ie.getImg()), new RasterDecoder(new PNGStreamRaster(encoded.getPath())),
+								  new AudDecoder(new AudioInputStream(new ByteArrayInputStream(ae.getEncodedPCM()), af,
+																	  audData.length / 4))};
+			for (Decoder decoder : decoders) {
+				decoder.readBits(3);
+				decoder.skipBits(1000 * Byte.SIZE - 3);
+				assertArrayEquals(Arrays.copyOfRange(data, 1000, 1100), decoder.readBytes(100));
+				decoder.skipBits(2000 * Byte.SIZE);
+				assertArrayEquals(Arrays.copyOfRange(data, 3100, 3200), decoder.readBytes(100));
+				decoder.stopThreads();
+			}
+		}
+
+		// Single payloads are extracted from images and PCM data, with and without encryption
+		List<Payload> payloads = Arrays.asList(new Payload("a.bin", genRandData(1 << 13)),
+											   new Payload("b.txt", "Hello".getBytes()),
+											   new Payload("c.bin", genRandData(1 << 12)));
+		char[] password = "password".toCharArray();
+		BufferedImage img = new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB);
+		Nsteg.encode(img, payloads, new EncodeOptions().setLSBsToUse(2).setPassword(password));
+		assertEquals(Arrays.asList("a.bin", "b.txt", "c.bin"), Nsteg.list(img));
+		assertPayloadsEqual(payloads.subList(1, 2), Collections.singletonList(Nsteg.extract(img, "b.txt", password)));
+		assertPayloadsEqual(payloads, Nsteg.decode(img, password));
+		try {
+			Nsteg.extract(img, "d.bin", password);
+			fail("Missing payload should not be extracted");
+		} catch (NstegException ignored) {
+		}
+
+		ByteBuffer pcm = ByteBuffer.wrap(genRandData(1 << 18));
+		Nsteg.encode(pcm, af, payloads, new EncodeOptions());
+		assertPayloadsEqual(payloads.subList(2, 3), Collections.singletonList(Nsteg.extract(pcm, "c.bin", null)));
+
+		// Legacy carriers, holding all the files in a single array, are still decoded
+		ImgEncoder ie = new ImgEncoder(new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB), 1);
+		ie.encodeBits(BitByteConv.intToBitArray(payloads.size(), 32));
+		for (Payload payload : payloads) {
+			ie.encodeBits(BitByteConv.intToBitArray(payload.getName().length(), 32));
+			ie.encodeBytes(payload.getName().getBytes());
+		}
+		int uncompSize = 0;
+		for (Payload payload : payloads) {
+			ie.encodeBits(BitByteConv.intToBitArray(payload.getData().length, 32));
+			uncompSize += payload.getData().length;
+		}
+		ie.encodeBits(BitByteConv.intToBitArray(uncompSize, 32)); // Stored uncompressed
+		for (Payload payload : payloads)
+			ie.encodeBytes(payload.getData());
+		ie.stopThreads();
+		assertPayloadsEqual(payloads, Nsteg.decode(ie.getImg(), null));
+		assertPayloadsEqual(payloads.subList(1, 2),
+							Collections.singletonList(Nsteg.extract(ie.getImg(), "b.txt", null)));
+
+		if (output)
+			System.out.println("Passed table of contents and single file extraction\n");
+	}
+
+	@Test
+	public void testStripedEncDec() throws IOException, NstegException {
+		if (output)
+			System.out.println("Testing striping across several carriers:");
+
+		// A payload too large for any of the carriers is striped across an image, a mapped image and an audio file
+		File png = File.createTempFile("nsteg-carrier", ".png"), bmp = File.createTempFile("nsteg-carrier", ".bmp");
+		File wav = File.createTempFile("nsteg-carrier", ".wav");
+		File[] outs = {File.createTempFile("nsteg-encoded", ".png"), File.createTempFile("nsteg-encoded", ".bmp"),
+					   File.createTempFile("nsteg-encoded", ".wav")};
+		ImageIO.write(new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB), "png", png);
+		ImageIO.write(new BufferedImage(300, 200, BufferedImage.TYPE_3BYTE_BGR), "bmp", bmp);
+		byte[] audData = genRandData(1 << 17);
+		AudioFormat af = new AudioFormat(44100, 16, 2, true, false);
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(audData), af, audData.length / 4),
+						  AudioFileFormat.Type.WAVE, wav);
+		File[] files = {File.createTempFile("nsteg-payload", ".bin"), File.createTempFile("nsteg-payload", ".txt")};
+		byte[][] data = {genRandData(45000), "Hello".getBytes()};
+		for (File file : new File[]{png, bmp, wav, outs[0], outs[1], outs[2], files[0], files[1]})
+			file.deleteOnExit();
+
+		String[] carriers = {png.getPath(), bmp.getPath(), wav.getPath()};
+		String[] outNames = {outs[0].getPath(), outs[1].getPath(), outs[2].getPath()};
+		String[] fileNames = {files[0].getPath(), files[1].getPath()};
+		Decoder.setOutputDirectory(files[0].toPath().getParent());
+		for (boolean encrypt : new boolean[]{true, false}) {
+			for (int i = 0; i < files.length; i++)
+				Files.write(files[i].toPath(), data[i]);
+			Encoder.encodeStriped(carriers, fileNames, outNames, 1, encrypt, "password", false);
+			for (File file : files)
+				assertTrue(file.delete());
+
+			// Carriers may be given in any order, and files are written back under their names, in the output directory
+			String[] shuffled = {outNames[2], outNames[0], outNames[1]};
+			if (encrypt)
+				Decoder.extractStriped(shuffled, null, "password");
+			else
+				Decoder.extractStriped(shuffled, files[1].getName(), null);
+			for (int i = encrypt ? 0 : 1; i < files.length; i++)
+				assertArrayEquals(data[i], Files.readAllBytes(files[i].toPath()));
+			assertEquals(encrypt, files[0].exists());
+		}
+
+		// All the carriers are needed, and none of them can be decoded on its own
+		assertTrue(files[1].delete());
+		Decoder.extractStriped(Arrays.copyOf(outNames, 2), null, null);
+		assertTrue(!files[1].exists());
+		Decoder.setOutputDirectory(null);
+		try {
+			Nsteg.decode(ImageIO.read(outs[0]), null);
+			fail("A striped carrier should not be decoded on its own");
+		} catch (NstegException ignored) {
+		}
+
+		if (output)
+			System.out.println("Passed striping across several carriers\n");
+	}
+
+	@Test
+	public void testScatteredEncDec() throws IOException, GeneralSecurityException, NstegException {
+		if (output)
+			System.out.println("Testing scattered embedding order:");
+
+		// The order permutes the units of its range among themselves, and leaves the others in place
+		byte[] key = Crypto.deriveSubkey(genRandData(32), Encoder.ORDER_KEY_PURPOSE);
+		for (long end : new long[]{6, 7, 1000, 4099}) {
+			EmbeddingOrder order = new EmbeddingOrder(key, 5, end);
+			boolean[] seen = new boolean[(int) end];
+			for (long unit = 0; unit < end + 10; unit++) {
+				long mapped = order.map(unit);
+				if (unit < 5 || unit >= end)
+					assertEquals(unit, mapped);
+				else {
+					assertTrue(mapped >= 5 && mapped < end && !seen[(int) mapped]);
+					seen[(int) mapped] = true;
+				}
+			}
+		}
+		assertTrue(EmbeddingOrder.SEQUENTIAL.isSequential());
+
+		// Payloads are scattered over images and audio, and only found again with the password
+		List<Payload> payloads = Arrays.asList(new Payload("a.bin", genRandData(3000)),
+											   new Payload("b.txt", "Hello".getBytes()));
+		char[] password = "password".toCharArray();
+		BufferedImage img = new BufferedImage(200, 200, BufferedImage.TYPE_INT_RGB);
+		Nsteg.encode(img, payloads, new EncodeOptions().setLSBsToUse(1).setPassword(password).setScattered(true));
+		assertPayloadsEqual(payloads, Nsteg.decode(img, password));
+		try {
+			Nsteg.decode(img, "wrong".toCharArray());
+			fail("Scattered payloads should not be decoded with the wrong password");
+		} catch (NstegException ignored) {
+		}
+
+		// Unlike sequential encoding, the bits past the table of contents are spread to the end of the carrier
+		AudioFormat af = new AudioFormat(44100, 16, 2, true, false);
+		for (boolean scatter : new boolean[]{false, true}) {
+			ByteBuffer pcm = ByteBuffer.wrap(new byte[1 << 18]);
+			Nsteg.encode(pcm, af, payloads, new EncodeOptions().setLSBsToUse(2).setPassword(password)
+															   .setScattered(scatter));
+			assertPayloadsEqual(payloads, Nsteg.decode(pcm, password));
+			boolean lastQuarterUsed = false;
+			for (int i = pcm.capacity() * 3 / 4; i < pcm.capacity(); i++)
+				lastQuarterUsed |= pcm.get(i) != 0;
+			assertEquals(scatter, lastQuarterUsed);
+		}
+		try {
+			Nsteg.encode(img, payloads, new EncodeOptions().setScattered(true));
+			fail("Unencrypted payloads should not be scattered");
+		} catch (NstegException ignored) {
+		}
+
+		// Carriers read as streams are reopened for random access when their payloads are scattered
+		File file = File.createTempFile("nsteg-payload", ".bin");
+		file.deleteOnExit();
+		byte[] data = genRandData(5000);
+		Decoder.setOutputDirectory(file.toPath().getParent());
+		for (String format : new String[]{"png", "bmp", "wav"}) {
+			File carrier = File.createTempFile("nsteg-carrier", "." + format);
+			File encoded = File.createTempFile("nsteg-encoded", "." + format);
+			carrier.deleteOnExit();
+			encoded.deleteOnExit();
+			if ("wav".equals(format)) {
+				byte[] audData = genRandData(1 << 17);
+				AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(audData), af, audData.length / 4),
+								  AudioFileFormat.Type.WAVE, carrier);
+			} else
+				ImageIO.write(new BufferedImage(150, 150, BufferedImage.TYPE_3BYTE_BGR), format, carrier);
+
+			Files.write(file.toPath(), data);
+			Encoder.encode(carrier.getPath(), new String[]{file.getPath()}, encoded.getPath(), 1, true, "password",
+						   true);
+			assertTrue(file.delete());
+			Decoder.decode(encoded.getPath(), true, "password");
+			assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+		}
+		Decoder.setOutputDirectory(null);
+
+		if (output)
+			System.out.println("Passed scattered embedding order\n");
+	}
+
+	@Test
+	public void testAlignedEncDec() throws NstegException {
+		if (output)
+			System.out.println("Testing aligned segments and lock-free parallel encoding:");
+
+		// Bytes are split into whole pixels or PCM bytes, whatever the position they start at and their number
+		AudioFormat af = new AudioFormat(44100, 16, 2, true, false);
+		byte[] head = genRandData(5), body = genRandData(20001), tail = genRandData(777), last = genRandData(1000);
+		for (int bpc = 1; bpc <= 8; bpc++) {
+			Encoder[] encoders = {new ImgEncoder(new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB), bpc),
+								  new ImgEncoder(new BufferedImage(300, 200, BufferedImage.TYPE_INT_ARGB), bpc),
+								  new AudEncoder(PCMStore.wrap(ByteBuffer.wrap(genRandData(1 << 19))), af, bpc)};
+			for (Encoder encoder : encoders) {
+				encoder.encodeBytes(head);
+				encoder.encodeBytes(body);
+				encoder.encodeBits(BitByteConv.intToBitArray(0x5A, 7));
+				encoder.encodeBytes(tail);
+				encoder.align();
+				encoder.encodeBytes(last);
+				encoder.stopThreads();
+
+				Decoder decoder = encoder instanceof ImgEncoder ? new ImgDecoder(((ImgEncoder) encoder).getImg()) :
+								  new AudDecoder(((AudEncoder) encoder).getPCMStore());
+				assertArrayEquals(head, decoder.readBytes(head.length));
+				assertArrayEquals(body, decoder.readBytes(body.length));
+				assertEquals(0x5A, BitByteConv.bitArrayToInt(decoder.readBits(7), false));
+				assertArrayEquals(tail, decoder.readBytes(tail.length));
+				decoder.align();
+				assertArrayEquals(last, decoder.readBytes(last.length));
+				decoder.stopThreads();
+			}
+		}
+
+		// Carriers are written in the aligned version of the format
+		List<Payload> payloads = Arrays.asList(new Payload("odd-name.bin", genRandData(5000)),
+											   new Payload("b.txt", "Hello".getBytes()));
+		BufferedImage img = new BufferedImage(200, 200, BufferedImage.TYPE_INT_RGB);
+		Nsteg.encode(img, payloads, new EncodeOptions().setLSBsToUse(3));
+		Decoder decoder = new ImgDecoder(img);
+		assertEquals(Encoder.FORMAT_MAGIC | Encoder.FORMAT_VERSION,
+					 BitByteConv.bitArrayToInt(decoder.readBits(Integer.SIZE), true));
+		decoder.stopThreads();
+		assertPayloadsEqual(payloads, Nsteg.decode(img, null));
+
+		// Carriers of the previous version, whose segments directly follow the table of contents, are still decoded
+		ImgEncoder ie = new ImgEncoder(new BufferedImage(200, 200, BufferedImage.TYPE_INT_RGB), 3);
+		ie.encodeBits(BitByteConv.intToBitArray(Encoder.FORMAT_MAGIC | Encoder.FORMAT_VERSION_UNALIGNED,
+												Integer.SIZE));
+		ie.encodeBits(BitByteConv.intToBitArray(0, Encoder.FLAGS_BITS_COUNT));
+		Encoder.encodeVarint(ie, payloads.size());
+		byte[][] segments = new byte[payloads.size()][];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = Compressor.deflate(payloads.get(i).getData());
+			Encoder.encodeVarint(ie, payloads.get(i).getName().length());
+			ie.encodeBytes(payloads.get(i).getName().getBytes());
+			Encoder.encodeVarint(ie, payloads.get(i).getData().length);
+			Encoder.encodeVarint(ie, segments[i].length);
+		}
+		for (byte[] segment : segments)
+			ie.encodeBytes(segment);
+		ie.stopThreads();
+		assertPayloadsEqual(payloads, Nsteg.decode(ie.getImg(), null));
+		assertPayloadsEqual(payloads.subList(1, 2),
+							Collections.singletonList(Nsteg.extract(ie.getImg(), "b.txt", null)));
+
+		if (output)
+			System.out.println("Passed aligned segments and lock-free parallel encoding\n");
+	}
+
+	@Test
+	public void testProbeAndScan() throws IOException, NstegException {
+		if (output)
+			System.out.println("Testing carrier probing and directory scanning:");
+
+		// A directory tree of carriers, media files holding no data, and other files
+		Path dir = Files.createTempDirectory("nsteg-scan");
+		Path sub = Files.createDirectory(dir.resolve("sub"));
+		List<Payload> payloads = Arrays.asList(new Payload("a.bin", genRandData(3000)),
+											   new Payload("b.txt", "Hello".getBytes()));
+		BufferedImage img = new BufferedImage(200, 200, BufferedImage.TYPE_3BYTE_BGR);
+		Nsteg.encode(img, payloads, new EncodeOptions().setLSBsToUse(2).setPassword("password".toCharArray()));
+		File png = dir.resolve("carrier.png").toFile(), bmp = sub.resolve("carrier.bmp").toFile();
+		ImageIO.write(img, "png", png);
+		ImageIO.write(img, "bmp", bmp);
+
+		AudioFormat af = new AudioFormat(44100, 16, 2, true, false);
+		ByteBuffer pcm = ByteBuffer.wrap(genRandData(1 << 18));
+		Nsteg.encode(pcm, af, payloads.subList(1, 2), new EncodeOptions());
+		File wav = sub.resolve("carrier.wav").toFile();
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm.array()), af, pcm.capacity() / 4),
+						  AudioFileFormat.Type.WAVE, wav);
+
+		BufferedImage noise = new BufferedImage(100, 100, BufferedImage.TYPE_INT_RGB);
+		for (int x = 0; x < 100; x++)
+			for (int y = 0; y < 100; y++)
+				noise.setRGB(x, y, new Random(x * 100 + y).nextInt());
+		File[] others = {dir.resolve("noise.png").toFile(), dir.resolve("blank.bmp").toFile(),
+						 sub.resolve("tiny.png").toFile(), dir.resolve("notes.txt").toFile()};
+		ImageIO.write(noise, "png", others[0]);
+		ImageIO.write(new BufferedImage(50, 50, BufferedImage.TYPE_3BYTE_BGR), "bmp", others[1]);
+		ImageIO.write(new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB), "png", others[2]);
+		Files.write(others[3].toPath(), genRandData(100));
+
+		// Probing reads the header alone, and recognizes only the carriers
+		for (File carrier : new File[]{png, bmp}) {
+			Decoder.Header header = Decoder.probe(carrier.getPath());
+			assertArrayEquals(new String[]{"a.bin", "b.txt"}, header.fileNames);
+			assertEquals(3005, header.uncompSize);
+			assertTrue(header.salt != null);
+		}
+		Decoder.Header header = Decoder.probe(wav.getPath());
+		assertArrayEquals(new String[]{"b.txt"}, header.fileNames);
+		assertEquals(5, header.fileSizes[0]);
+		for (File other : others)
+			assertEquals(null, Decoder.probe(other.getPath()));
+
+		// Scanning probes the whole tree, and counts the carriers found
+		assertEquals(3, Decoder.scan(dir.toString()));
+		assertEquals(-1, Decoder.scan(dir.resolve("missing").toString()));
+
+		for (File file : new File[]{png, bmp, wav, others[0], others[1], others[2], others[3]})
+			assertTrue(file.delete());
+		Files.delete(sub);
+		Files.delete(dir);
+
+		if (output)
+			System.out.println("Passed carrier probing and directory scanning\n");
+	}
+
+	@Test
+	public void testCarrierCatalog() throws IOException {
+		if (output)
+			System.out.println("Testing the carrier catalog:");
+
+		// A directory tree of carriers of different sizes, and other files
+		Path dir = Files.createTempDirectory("nsteg-catalog");
+		Path sub = Files.createDirectory(dir.resolve("sub"));
+		File small = dir.resolve("small.png").toFile(), large = dir.resolve("large.bmp").toFile();
+		File alpha = sub.resolve("alpha.png").toFile(), wav = sub.resolve("clip.wav").toFile();
+		ImageIO.write(new BufferedImage(100, 100, BufferedImage.TYPE_INT_RGB), "png", small);
+		ImageIO.write(new BufferedImage(300, 200, BufferedImage.TYPE_3BYTE_BGR), "bmp", large);
+		ImageIO.write(new BufferedImage(150, 150, BufferedImage.TYPE_INT_ARGB), "png", alpha);
+		AudioFormat af = new AudioFormat(44100, 16, 2, true, false);
+		byte[] pcm = genRandData(1 << 18);
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm), af, pcm.length / 4),
+						  AudioFileFormat.Type.WAVE, wav);
+		Files.write(dir.resolve("notes.txt"), genRandData(100));
+
+		// Every carrier is measured, and its capacities match the ones its encoder reports
+		CarrierCatalog catalog = CarrierCatalog.update(dir.toString());
+		assertEquals(4, catalog.getEntries().size());
+		assertEquals(4, catalog.getMeasuredCount());
+		for (CarrierCatalog.Entry entry : catalog.getEntries()) {
+			File file = catalog.resolve(entry).toFile();
+			for (int LSBs = 1; LSBs <= 8; LSBs++) {
+				Encoder encoder = entry.type == FileType.IMAGE ? new ImgEncoder(ImageIO.read(file), LSBs) :
+								  new AudEncoder(file.getPath(), LSBs);
+				assertEquals(encoder.getCapacity(LSBs), entry.getCapacity(LSBs));
+			}
+		}
+		CarrierCatalog.Entry entry = catalog.getEntries().get(0);
+		assertEquals("large.bmp", entry.name);
+		assertEquals(300, entry.width);
+		assertEquals(200, entry.height);
+		assertEquals(3, entry.channels);
+		assertEquals(4, catalog.getEntries().get(2).channels);
+		assertEquals(pcm.length / 4, catalog.getEntries().get(3).frames);
+
+		// The smallest carrier that fits is picked
+		long smallBits = catalog.getEntries().get(1).getCapacity(2);
+		assertEquals("small.png", catalog.select(smallBits, 2).name);
+		assertEquals("sub/alpha.png", catalog.select(smallBits + 1, 2).name);
+		assertEquals("sub/clip.wav", catalog.select(catalog.getEntries().get(2).getCapacity(1) + 1, 1).name);
+		assertEquals("large.bmp", catalog.select(catalog.getEntries().get(3).getCapacity(1) + 1, 1).name);
+		assertEquals(null, catalog.select(Long.MAX_VALUE, 8));
+
+		// Only new or changed carriers are measured again, and removed ones are dropped
+		assertEquals(0, CarrierCatalog.update(dir.toString()).getMeasuredCount());
+		ImageIO.write(new BufferedImage(120, 120, BufferedImage.TYPE_INT_RGB), "png", small);
+		assertTrue(alpha.delete());
+		catalog = CarrierCatalog.update(dir.toString());
+		assertEquals(1, catalog.getMeasuredCount());
+		assertEquals(3, catalog.getEntries().size());
+		assertEquals(120, catalog.getEntries().get(1).width);
+		assertEquals(0, CarrierCatalog.update(dir.toString()).getMeasuredCount());
+
+		try {
+			CarrierCatalog.update(dir.resolve("missing").toString());
+			fail("A missing directory was cataloged");
+		} catch (IOException ignored) {
+		}
+
+		Files.walk(dir).sorted(Collections.reverseOrder()).forEach(path -> path.toFile().delete());
+
+		if (output)
+			System.out.println("Passed the carrier catalog\n");
+	}
+
+	@Test
+	public void testCarrierCache() throws IOException, NstegException {
+		if (output)
+			System.out.println("Testing the decoded carrier cache:");
+
+		Path dir = Files.createTempDirectory("nsteg-cache");
+		File png = dir.resolve("cover.png").toFile(), wav = dir.resolve("track.wav").toFile();
+		BufferedImage noise = new BufferedImage(120, 80, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(46);
+		for (int x = 0; x < noise.getWidth(); x++)
+			for (int y = 0; y < noise.getHeight(); y++)
+				noise.setRGB(x, y, random.nextInt());
+		ImageIO.write(noise, "png", png);
+		AudioFormat af = new AudioFormat(44100, 16, 2, true, false);
+		byte[] pcm = genRandData(1 << 16);
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm), af, pcm.length / 4),
+						  AudioFileFormat.Type.WAVE, wav);
+		CarrierCache.clear();
+
+		// Reading a carrier again is served from the cache, and every read is a private copy
+		long[] stats = CarrierCache.getStats();
+		BufferedImage first = CarrierCache.readImage(png.getPath()), second = CarrierCache.readImage(png.getPath());
+		assertEquals(stats[0] + 1, CarrierCache.getStats()[0]);
+		assertEquals(stats[1] + 1, CarrierCache.getStats()[1]);
+		assertTrue(first != second);
+		first.setRGB(0, 0, ~first.getRGB(0, 0));
+		assertEquals(noise.getRGB(0, 0), second.getRGB(0, 0));
+		assertEquals(noise.getRGB(0, 0), CarrierCache.readImage(png.getPath()).getRGB(0, 0));
+
+		CarrierCache.DecodedAudio audio = CarrierCache.readAudio(wav.getPath());
+		audio.pcm.put(0, (byte) ~pcm[0]);
+		byte[] copy = new byte[pcm.length];
+		CarrierCache.readAudio(wav.getPath()).pcm.get(0, copy, 0, copy.length);
+		assertArrayEquals(pcm, copy);
+		assertEquals(noise.getWidth() * noise.getHeight() * 3 + pcm.length, CarrierCache.getWeight()); // Decoded as 3BYTE_BGR
+
+		// Encoding through the cache leaves the cached carrier untouched
+		List<Payload> payloads = Collections.singletonList(new Payload("a.bin", genRandData(2000)));
+		for (File carrier : new File[]{png, png, wav}) {
+			ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+			Nsteg.encode(carrier.getPath(), payloads, new EncodeOptions().setLSBsToUse(2), encoded);
+			assertPayloadsEqual(payloads, Nsteg.decode(new ByteArrayInputStream(encoded.toByteArray()), null));
+		}
+		assertEquals(noise.getRGB(5, 0), CarrierCache.readImage(png.getPath()).getRGB(5, 0));
+
+		// A changed file is decoded again
+		ImageIO.write(new BufferedImage(60, 60, BufferedImage.TYPE_INT_RGB), "png", png);
+		stats = CarrierCache.getStats();
+		assertEquals(60, CarrierCache.readImage(png.getPath()).getWidth());
+		assertEquals(stats[1] + 1, CarrierCache.getStats()[1]);
+
+		// Least recently used carriers are evicted past the capacity, and a capacity of 0 disables the cache
+		CarrierCache.readAudio(wav.getPath()).pcm.close();
+		CarrierCache.setCapacity(pcm.length);
+		assertEquals(pcm.length, CarrierCache.getWeight());
+		CarrierCache.setCapacity(0);
+		assertEquals(0, CarrierCache.getWeight());
+		assertEquals(60, CarrierCache.readImage(png.getPath()).getHeight());
+		assertEquals(0, CarrierCache.getWeight());
+		CarrierCache.setCapacity(CarrierCache.DEFAULT_CAPACITY);
+
+		assertTrue(png.delete());
+		assertTrue(wav.delete());
+		Files.delete(dir);
+
+		if (output)
+			System.out.println("Passed the decoded carrier cache\n");
+	}
+
+	@Test
+	public void testPCMSidecar() throws IOException, NstegException {
+		if (output)
+			System.out.println("Testing decoded PCM sidecar files:");
+
+		Path dir = Files.createTempDirectory("nsteg-sidecar");
+		Path sidecars = dir.resolve("pcm");
+		File flac = dir.resolve("track.flac").toFile(), copy = dir.resolve("copy.flac").toFile();
+		byte[] pcm = genRandData(1 << 17);
+		try (FLACStreamWriter writer = new FLACStreamWriter(flac.getPath(), 44100, 2, 16, FLACPreset.FAST)) {
+			writer.writePCM(pcm, 0, pcm.length);
+		}
+		AudioProcessor.setSidecarDirectory(sidecars);
+
+		// The first decode writes a sidecar file, which is mapped from then on, even for a copy of the file
+		byte[] decoded = new byte[pcm.length];
+		CarrierCache.DecodedAudio audio = AudioProcessor.decodeAudioFile(flac.getPath());
+		audio.pcm.get(0, decoded, 0, decoded.length);
+		assertArrayEquals(pcm, decoded);
+		assertEquals(1, sidecars.toFile().list().length);
+		audio.pcm.put(0, (byte) ~pcm[0]);
+		audio.pcm.close();
+
+		Files.copy(flac.toPath(), copy.toPath());
+		audio = AudioProcessor.decodeAudioFile(copy.getPath());
+		assertEquals(1, sidecars.toFile().list().length);
+		assertEquals(44100, (int) audio.format.getSampleRate());
+		assertEquals(2, audio.format.getChannels());
+		audio.pcm.get(0, decoded, 0, decoded.length);
+		assertArrayEquals(pcm, decoded); // Sidecars are mapped privately, so changes never reach them
+		audio.pcm.close();
+
+		// A truncated sidecar file is decoded again
+		File sidecar = sidecars.toFile().listFiles()[0];
+		Files.write(sidecar.toPath(), Arrays.copyOf(Files.readAllBytes(sidecar.toPath()),
+																   1000));
+		audio = AudioProcessor.decodeAudioFile(flac.getPath());
+		audio.pcm.get(0, decoded, 0, decoded.length);
+		assertArrayEquals(pcm, decoded);
+		audio.pcm.close();
+		assertEquals(pcm.length + 40, sidecar.length());
+
+		// Encoding from a mapped sidecar
+		List<Payload> payloads = Collections.singletonList(new Payload("a.bin", genRandData(3000)));
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		Nsteg.encode(copy.getPath(), payloads, new EncodeOptions().setLSBsToUse(3), encoded);
+		assertPayloadsEqual(payloads, Nsteg.decode(new ByteArrayInputStream(encoded.toByteArray()), null));
+
+		AudioProcessor.setSidecarDirectory(null);
+		CarrierCache.clear();
+		Files.walk(dir).sorted(Collections.reverseOrder()).forEach(path -> path.toFile().delete());
+
+		if (output)
+			System.out.println("Passed decoded PCM sidecar files\n");
+	}
+
+	@Test
+	public void testAppend() throws IOException, NstegException {
+		if (output)
+			System.out.println("Testing appending files to encoded carriers:");
+
+		// Mapped carriers are appended to in place, and loaded ones are written out again, both of them twice
+		AudioFormat af = new AudioFormat(44100, 16, 2, true, false);
+		File[] files = {File.createTempFile("nsteg-payload", ".bin"), File.createTempFile("nsteg-payload", ".txt"),
+						File.createTempFile("nsteg-payload", ".dat")};
+		byte[][] data = {genRandData(3000), "Hello".getBytes(), genRandData(1234)};
+		for (File file : files)
+			file.deleteOnExit();
+		for (String format : new String[]{"bmp", "png", "wav"}) {
+			for (boolean encrypt : new boolean[]{true, false}) {
+				File carrier = File.createTempFile("nsteg-carrier", "." + format);
+				File encoded = File.createTempFile("nsteg-encoded", "." + format);
+				carrier.deleteOnExit();
+				encoded.deleteOnExit();
+				if ("wav".equals(format)) {
+					byte[] audData = genRandData(1 << 17);
+					AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(audData), af, audData.length / 4),
+									  AudioFileFormat.Type.WAVE, carrier);
+				} else
+					ImageIO.write(new BufferedImage(150, 150, BufferedImage.TYPE_3BYTE_BGR), format, carrier);
+				for (int i = 0; i < files.length; i++)
+					Files.write(files[i].toPath(), data[i]);
+
+				String pass = encrypt ? "password" : null;
+				Encoder.encode(carrier.getPath(), new String[]{files[0].getPath()}, encoded.getPath(), 1, encrypt,
+							   pass, false);
+				Encoder.append(encoded.getPath(), new String[]{files[1].getPath()}, pass);
+				Encoder.append(encoded.getPath(), new String[]{files[2].getPath()}, pass);
+				// Loaded carriers are replaced by the temporary file they were written to, which is not left behind
+				assertEquals(1, encoded.getParentFile().list((dir, name) -> name.startsWith(encoded.getName())).length);
+
+				// The main block tells files were appended after it, and the last block lists every file
+				assertTrue(Decoder.probe(encoded.getPath()).appended);
+				Decoder.Header header = Decoder.probeBlocks(encoded.getPath());
+				assertTrue(header != null && !header.appended);
+				assertEquals(files.length, header.fileNames.length);
+				List<Payload> payloads = Nsteg.decode(Files.newInputStream(encoded.toPath()),
+													  encrypt ? "password".toCharArray() : null);
+				assertEquals(files.length, payloads.size());
+				for (int i = 0; i < files.length; i++) {
+					assertEquals(files[i].getName(), payloads.get(i).getName());
+					assertArrayEquals(data[i], payloads.get(i).getData());
+				}
+				assertEquals(Arrays.asList(header.fileNames),
+							 Nsteg.list(Files.newInputStream(encoded.toPath())));
+
+				// Files are still extracted one by one, wherever the block holding them is
+				assertTrue(files[1].delete());
+				Decoder.setOutputDirectory(files[1].toPath().getParent());
+				Decoder.extract(encoded.getPath(), files[1].getName(), encrypt, pass);
+				Decoder.setOutputDirectory(null);
+				assertArrayEquals(data[1], Files.readAllBytes(files[1].toPath()));
+
+				// Neither a file already encoded nor a wrong password changes the carrier
+				byte[] before = Files.readAllBytes(encoded.toPath());
+				Encoder.append(encoded.getPath(), new String[]{files[0].getPath()}, pass);
+				if (encrypt) {
+					File extra = File.createTempFile("nsteg-payload", ".bin");
+					extra.deleteOnExit();
+					Encoder.append(encoded.getPath(), new String[]{extra.getPath()}, "wrong");
+				}
+				assertArrayEquals(before, Files.readAllBytes(encoded.toPath()));
+			}
+		}
+
+		if (output)
+			System.out.println("Passed appending files to encoded carriers\n");
+	}
+
+	@Test
+	public void testConcurrentEncodeSetup() throws IOException, NstegException {
+		if (output)
+			System.out.println("Testing carrier loading alongside payload preparation:");
+
+		// Mapped and streamed outputs are created while the files are loaded, and removed if anything fails
+		File file = File.createTempFile("nsteg-payload", ".bin"), missing = new File(file.getPath() + ".missing");
+		file.deleteOnExit();
+		byte[] data = genRandData(200000);
+		for (String format : new String[]{"bmp", "png"}) {
+			File carrier = File.createTempFile("nsteg-carrier", "." + format);
+			File encoded = File.createTempFile("nsteg-encoded", "." + format);
+			carrier.deleteOnExit();
+			encoded.deleteOnExit();
+			ImageIO.write(new BufferedImage(100, 100, BufferedImage.TYPE_3BYTE_BGR), format, carrier);
+			Files.write(file.toPath(), data);
+
+			assertTrue(encoded.delete());
+			Encoder.encode(carrier.getPath(), new String[]{missing.getPath()}, encoded.getPath(), 1, true, "password");
+			assertTrue(!encoded.exists());
+			Encoder.encode(carrier.getPath(), new String[]{file.getPath()}, encoded.getPath(), 1, true, "password");
+			assertTrue(!encoded.exists());
+
+			// Once everything is ready, the files are encoded with the key derived alongside
+			Files.write(file.toPath(), "Hello".getBytes());
+			Encoder.encode(carrier.getPath(), new String[]{file.getPath()}, encoded.getPath(), 1, true, "password");
+			List<Payload> payloads = Nsteg.decode(Files.newInputStream(encoded.toPath()),
+												  "password".toCharArray());
+			assertEquals(1, payloads.size());
+			assertArrayEquals("Hello".getBytes(), payloads.get(0).getData());
+		}
+
+		// Loaded carriers are given up on too, and leave none of their threads running
+		File jpg = File.createTempFile("nsteg-carrier", ".jpg"), encoded = File.createTempFile("nsteg-encoded", ".png");
+		jpg.deleteOnExit();
+		encoded.deleteOnExit();
+		ImageIO.write(new BufferedImage(100, 100, BufferedImage.TYPE_3BYTE_BGR), "jpg", jpg);
+		Files.write(file.toPath(), data);
+		long threads = countImgEncoderThreads();
+		Encoder.encode(jpg.getPath(), new String[]{missing.getPath()}, encoded.getPath(), 1, true, "password");
+		Encoder.encode(jpg.getPath(), new String[]{file.getPath()}, encoded.getPath(), 1, false, null);
+		Encoder.encodeStriped(new String[]{jpg.getPath(), jpg.getPath()}, new String[]{file.getPath()},
+							  new String[]{encoded.getPath(), encoded.getPath()}, 1, false, null, false);
+		assertEquals(threads, countImgEncoderThreads());
+
+		if (output)
+			System.out.println("Passed carrier loading alongside payload preparation\n");
+	}
+
+	@Test
+	public void testDirectoryEncDec() throws IOException, NstegException {
+		if (output)
+			System.out.println("Testing encoding directories of small files:");
+
+		// Every file of the tree is loaded in parallel, and named by its path relative to the parent of the directory
+		Path dir = Files.createTempDirectory("nsteg-dir");
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			Path file = dir.resolve("sub" + i % 7).resolve(i % 3 == 0 ? "deep" : "").resolve(i + ".bin");
+			Files.createDirectories(file.getParent());
+			Files.write(file, i % 2 == 0 ? genRandData(i) : ("File " + i).getBytes());
+			names.add(dir.getFileName() + "/" + dir.relativize(file).toString().replace(File.separatorChar, '/'));
+		}
+		Collections.sort(names);
+		List<byte[]> data = new ArrayList<>();
+		for (String name : names)
+			data.add(Files.readAllBytes(dir.getParent().resolve(name)));
+		List<String> expanded = new ArrayList<>();
+		String[] paths = Encoder.expandDirectories(new String[]{dir.toString()}, expanded);
+		assertEquals(names, expanded);
+		for (int i = 0; i < paths.length; i++)
+			assertEquals(dir.getParent().resolve(names.get(i)), Paths.get(paths[i]));
+
+		File carrier = File.createTempFile("nsteg-carrier", ".png"), encoded = File.createTempFile("nsteg-encoded",
+																								 ".png");
+		carrier.deleteOnExit();
+		encoded.deleteOnExit();
+		ImageIO.write(new BufferedImage(600, 600, BufferedImage.TYPE_INT_RGB), "png", carrier);
+		Encoder.encode(carrier.getPath(), new String[]{dir.toString()}, encoded.getPath(), 2, false, null);
+		List<Payload> payloads = Nsteg.decode(Files.newInputStream(encoded.toPath()), null);
+		assertEquals(names.size(), payloads.size());
+		for (int i = 0; i < names.size(); i++) {
+			assertEquals(names.get(i), payloads.get(i).getName());
+			assertArrayEquals(data.get(i), payloads.get(i).getData());
+		}
+
+		// Decoding to disk recreates the tree in the output directory
+		Path out = Files.createTempDirectory("nsteg-out");
+		Decoder.setOutputDirectory(out);
+		try {
+			Decoder.decode(encoded.getPath(), false, null);
+			for (int i = 0; i < names.size(); i++)
+				assertArrayEquals(data.get(i), Files.readAllBytes(out.resolve(names.get(i))));
+
+			// Names that are absolute or lead out of the output directory are skipped, and the other files written
+			Path inner = Files.createDirectories(out.resolve("inner"));
+			Path escaped = out.resolve("escaped.bin"), absolute = out.resolve("absolute.bin");
+			BufferedImage img = new BufferedImage(300, 300, BufferedImage.TYPE_INT_RGB);
+			Nsteg.encode(img, Arrays.asList(new Payload("../escaped.bin", "Out".getBytes()),
+											new Payload(absolute.toString(), "Abs".getBytes()),
+											new Payload("sub/../kept.txt", "Kept".getBytes())),
+						 new EncodeOptions().setLSBsToUse(1));
+			ImageIO.write(img, "png", encoded);
+			Decoder.setOutputDirectory(inner);
+			Decoder.decode(encoded.getPath(), false, null);
+			assertTrue(!Files.exists(escaped));
+			assertTrue(!Files.exists(absolute));
+			assertArrayEquals("Kept".getBytes(), Files.readAllBytes(inner.resolve("kept.txt")));
+			assertTrue(Decoder.resolveOutput("a/../../b") == null && Decoder.resolveOutput("") == null);
+		} finally {
+			Decoder.setOutputDirectory(null);
+			for (Path root : new Path[]{dir, out})
+				Files.walk(root).sorted(Collections.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+
+		if (output)
+			System.out.println("Passed encoding directories of small files\n");
+	}
+
+	@Test
+	public void testCLIStreams() throws IOException, InterruptedException, NstegException {
+		if (output)
+			System.out.println("Testing command line standard input and output:");
+
+		Path dir = Files.createTempDirectory("nsteg-cli");
+		Path carrier = dir.resolve("carrier.png"), encoded = dir.resolve("encoded.png");
+		ImageIO.write(new BufferedImage(300, 300, BufferedImage.TYPE_INT_RGB), "png", carrier.toFile());
+		byte[] data = genRandData(1 << 14), carrierData = Files.readAllBytes(carrier);
+		Files.write(dir.resolve("file.bin"), data);
+		byte[] iend = {0, 0, 0, 0, 'I', 'E', 'N', 'D', (byte) 0xae, 0x42, 0x60, (byte) 0x82};
+		Decoder.setOutputDirectory(dir.resolve("out"));
+		try {
+			// A file read from standard input, under the name given by --name, into a carrier written to standard
+			// output, which holds nothing but the encoded PNG
+			byte[] stdout = runCLI(data, "-e", "--mif", carrier.toString(), "--hf", "-", "--name", "piped.bin",
+								   "--mof", "-", "--lsb", "2");
+			assertArrayEquals(iend, Arrays.copyOfRange(stdout, stdout.length - iend.length, stdout.length));
+			assertPayloadsEqual(Collections.singletonList(new Payload("piped.bin", data)),
+								Nsteg.decode(new ByteArrayInputStream(stdout), null));
+
+			// A carrier read from standard input, written to standard output in the format given by --fmt
+			stdout = runCLI(carrierData, "-e", "--mif", "-", "--hf", dir.resolve("file.bin").toString(), "--mof", "-",
+							"--fmt", "bmp", "--lsb", "3", "--enc", "true", "--pass", "secret");
+			assertTrue(stdout[0] == 'B' && stdout[1] == 'M');
+			assertPayloadsEqual(Collections.singletonList(new Payload("file.bin", data)),
+								Nsteg.decode(new ByteArrayInputStream(stdout), "secret".toCharArray()));
+			Files.write(encoded, stdout);
+
+			// A file decoded to standard output, which holds nothing but its data
+			assertArrayEquals(data, runCLI(stdout, "-d", "--mif", "-", "--stdout", "file.bin", "--enc", "true",
+										   "--pass", "secret"));
+			assertArrayEquals(data, runCLI(new byte[0], "-d", "--mif", encoded.toString(), "--stdout", "file.bin",
+										   "--enc", "true", "--pass", "secret"));
+
+			// A file extracted from standard input to disk, without writing to standard output
+			assertEquals(0, runCLI(stdout, "-x", "--mif", "-", "--name", "file.bin", "--enc", "true", "--pass",
+								   "secret").length);
+			assertArrayEquals(data, Files.readAllBytes(dir.resolve("out").resolve("file.bin")));
+
+			// Errors exit with their own code, without writing to standard output
+			String[][] failing = {
+					// Passphrase missing, since it cannot be asked for
+					{"-e", "--mif", carrier.toString(), "--hf", "-", "--mof", "-", "--lsb", "2", "--enc", "true"},
+					// Standard input used twice
+					{"-e", "--mif", "-", "--hf", "-", "--mof", dir.resolve("o.png").toString(), "--lsb", "2"},
+					// Output file cannot be written
+					{"-e", "--mif", carrier.toString(), "--hf", "-", "--mof",
+					 dir.resolve("missing").resolve("o.png").toString(), "--lsb", "2"},
+					// Carrier holding no files
+					{"-d", "--mif", "-", "--stdout", "file.bin"},
+					// Striped carriers written to standard output
+					{"-d", "--mif", carrier + "," + carrier, "--stdout", "file.bin"}
+			};
+			int[] exitCodes = {12, 13, 14, 15, 17};
+			for (int i = 0; i < failing.length; i++) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				assertEquals(exitCodes[i], runCLIProcess(carrierData, out, failing[i]));
+				assertEquals(0, out.size());
+			}
+		} finally {
+			Decoder.setOutputDirectory(null);
+			Files.walk(dir).sorted(Collections.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+
+		if (output)
+			System.out.println("Passed command line standard input and output\n");
+	}
+
+	@Test
+	public void testLargeSizes() throws IOException, GeneralSecurityException, NstegException {
+		if (output)
+			System.out.println("Testing varint sizes and chunked segments:");
+
+		// Varints hold any size, and varints longer than any encoder writes are rejected
+		long[] values = {0, 127, 128, 1L << 31, (1L << 40) + 5, Long.MAX_VALUE};
+		ImgEncoder ie = new ImgEncoder(new BufferedImage(100, 100, BufferedImage.TYPE_INT_ARGB), 1);
+		for (long value : values)
+			Encoder.encodeVarint(ie, value);
+		for (int b = 0; b < Encoder.VARINT_MAX_BYTES; b++)
+			ie.encodeBits(BitByteConv.intToBitArray(0xFF, Byte.SIZE));
+		ie.stopThreads();
+		Decoder id = new ImgDecoder(ie.getImg());
+		for (long value : values)
+			assertEquals(value, Decoder.readVarint(id));
+		assertEquals(-1, Decoder.readVarint(id));
+		id.stopThreads();
+		assertEquals(1, Encoder.getVarintSize(127));
+		assertEquals(2, Encoder.getVarintSize(128));
+		assertEquals(Encoder.VARINT_MAX_BYTES, Encoder.getVarintSize(Long.MAX_VALUE));
+
+		// Encrypted segments grow by the IV and authentication tag of every chunk, even past 4 GiB
+		int chunkSize = Encoder.SEGMENT_CHUNK_SIZE, overhead = Encoder.SEGMENT_CRYPTO_OVERHEAD;
+		for (long compSize : new long[]{0, 1, chunkSize, chunkSize + 1, 3L * chunkSize, 5L << 32}) {
+			assertEquals(compSize, Encoder.getSegmentSize(compSize, false));
+			assertEquals(compSize, Encoder.getCompressedSize(Encoder.getSegmentSize(compSize, true), true));
+		}
+		assertEquals(overhead, Encoder.getSegmentSize(0, true));
+		assertEquals(chunkSize + 1 + 2 * overhead, Encoder.getSegmentSize(chunkSize + 1, true));
+
+		// Payloads spanning several chunks are decoded, whether they are encrypted or compressible or not
+		List<Payload> payloads = Arrays.asList(new Payload("random.bin", genRandData(chunkSize * 2 + 100)),
+											   new Payload("zeros.bin", new byte[chunkSize * 3]),
+											   new Payload("empty.bin", new byte[0]));
+		char[] password = "password".toCharArray();
+		AudioFormat af = new AudioFormat(44100, 16, 2, true, false);
+		ByteBuffer pcm = ByteBuffer.wrap(genRandData(12 << 20));
+		Nsteg.encode(pcm, af, payloads, new EncodeOptions().setLSBsToUse(4).setPassword(password));
+		assertPayloadsEqual(payloads, Nsteg.decode(pcm, password));
+		Nsteg.encode(pcm, af, payloads, new EncodeOptions().setLSBsToUse(4));
+		assertPayloadsEqual(payloads.subList(1, 2), Collections.singletonList(Nsteg.extract(pcm, "zeros.bin", null)));
+
+		// Files are compressed, encrypted, decrypted and decompressed as streams, as the command line interface does
+		byte[] file = new byte[chunkSize * 2];
+		System.arraycopy(genRandData(chunkSize), 0, file, 0, chunkSize);
+		PCMStore compFile;
+		try (InputStream in = Compressor.deflating(new ByteArrayInputStream(file))) {
+			compFile = PCMStore.load(in, file.length, true);
+		}
+		byte[] salt = Crypto.genSalt(), key = Crypto.deriveKey(password, salt);
+		byte[] audData = genRandData(8 << 20);
+		AudEncoder ae = new AudEncoder(new AudioInputStream(new ByteArrayInputStream(audData), af,
+														   audData.length / 4), 4);
+		Encoder.encodeTOC(ae, new String[]{"file.bin"}, new long[]{file.length},
+						  new long[]{Encoder.getSegmentSize(compFile.size(), true)}, salt);
+		Encoder.encodeSegment(ae, 0, 0, file.length, compFile.asInputStream(), compFile.size(), key);
+		ae.stopThreads();
+		compFile.close();
+
+		Decoder ad = new AudDecoder(new AudioInputStream(new ByteArrayInputStream(ae.getEncodedPCM()), af,
+														 audData.length / 4));
+		Decoder.Header header = Decoder.readHeader(ad);
+		assertEquals(file.length, header.fileSizes[0]);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Decoder.readSegment(ad, header, 0, key, out);
+		ad.stopThreads();
+		assertArrayEquals(file, out.toByteArray());
+
+		if (output)
+			System.out.println("Passed varint sizes and chunked segments\n");
+	}
+
+	@Test
+	public void testLazyAudDec() throws IOException {
+		byte[] audData = genRandData(1 << 23);
+		AudioFormat af = new AudioFormat(44100, 16, 2, true, false);
+
+		byte[] data = genRandData(1 << 13);
+		AudEncoder ae = new AudEncoder(new AudioInputStream(new ByteArrayInputStream(audData), af, audData.length / 4),
+									   2);
+		ae.encodeBits(BitByteConv.intToBitArray(data.length, 32));
+		ae.encodeBytes(data);
+		ae.stopThreads();
+
+		// Only the start of the PCM data holds encoded data, so the decoder must not read much further than that
+		ByteArrayInputStream pcm = new ByteArrayInputStream(ae.getEncodedPCM());
+		Decoder ad = new AudDecoder(new AudioInputStream(pcm, af, audData.length / 4));
+		byte[] decData = ad.readBytes(BitByteConv.bitArrayToInt(ad.readBits(32), false));
+		ad.stopThreads();
+		assertArrayEquals(data, decData);
+		assertTrue(audData.length - pcm.available() < 1 << 18);
+	}
+
+	@Test
+	public void testPCMStore() throws IOException {
+		byte[] pcm = genRandData((3 << 20) + 6);
+
+		// Stores must hold exactly the stream, whether its length is unknown, right, or too short
+		long[] expectedLengths = {0, pcm.length, 1 << 10};
+		for (long expectedLength : expectedLengths) {
+			for (int fileBacked = 0; fileBacked < 2; fileBacked++) {
+				PCMStore store = PCMStore.load(new ByteArrayInputStream(pcm), expectedLength, fileBacked == 1);
+				assertEquals(pcm.length, store.size());
+
+				byte[] copy = new byte[pcm.length];
+				store.get(0, copy, 0, copy.length);
+				assertArrayEquals(pcm, copy);
+
+				store.put(pcm.length - 1, (byte) ~pcm[pcm.length - 1]);
+				assertEquals((byte) ~pcm[pcm.length - 1], store.get(pcm.length - 1));
+				store.put(pcm.length - 1, pcm[pcm.length - 1]);
+
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				InputStream in = store.asInputStream();
+				byte[] buf = new byte[4096];
+				for (int read; (read = in.read(buf)) != -1; )
+					out.write(buf, 0, read);
+				assertArrayEquals(pcm, out.toByteArray());
+				store.close();
+			}
+		}
+	}
+
+	@Test
+	public void testMappedWAVEncDec() throws IOException, UnsupportedAudioFileException {
+		byte[] audData = genRandData(1 << 18);
+		AudioFormat af = new AudioFormat(44100, 16, 2, true, false);
+
+		File carrier = File.createTempFile("nsteg-carrier", ".wav");
+		File encoded = File.createTempFile("nsteg-encoded", ".wav");
+		carrier.deleteOnExit();
+		encoded.deleteOnExit();
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(audData), af, audData.length / 4),
+						  AudioFileFormat.Type.WAVE, carrier);
+
+		for (int bpc = 1; bpc < 9; bpc++) {
+			byte[] data = genRandData(1 << 13);
+
+			Encoder ae = new AudEncoder(carrier.getPath(), encoded.getPath(), bpc);
+			ae.encodeBits(BitByteConv.intToBitArray(data.length, 32));
+			ae.encodeBytes(data);
+			ae.stopThreads();
+
+			// Mapped output must decode the same from the PCM stream read by AudioSystem as from the mapped file
+			Decoder ad = new AudDecoder(AudioSystem.getAudioInputStream(encoded));
+			byte[] decData = ad.readBytes(BitByteConv.bitArrayToInt(ad.readBits(32), false));
+			ad.stopThreads();
+			assertArrayEquals(data, decData);
+
+			ad = new AudDecoder(encoded.getPath());
+			decData = ad.readBytes(BitByteConv.bitArrayToInt(ad.readBits(32), false));
+			ad.stopThreads();
+			assertArrayEquals(data, decData);
+		}
+	}
+
+	@Test
+	public void testFLACEncDec() throws IOException {
+		byte[] audData = genRandData(1 << 18);
+		AudioFormat af = new AudioFormat(44100, 16, 2, true, false);
+
+		File encoded = File.createTempFile("nsteg-encoded", ".flac");
+		encoded.deleteOnExit();
+
+		byte[] data = genRandData(1 << 13);
+		AudEncoder ae = new AudEncoder(new AudioInputStream(new ByteArrayInputStream(audData), af, audData.length / 4),
+									   2);
+		ae.encodeBits(BitByteConv.intToBitArray(data.length, 32));
+		ae.encodeBytes(data);
+		ae.stopThreads();
+		AudioProcessor.writePCMToDisk(encoded.getPath(), ae);
+
+		// PCM data loaded in one go must match what was encoded, and lazy decoding must find the same data
+		assertArrayEquals(ae.getEncodedPCM(), AudioProcessor.loadFLACFile(encoded.getPath()).pcm);
+
+		Decoder ad = new AudDecoder(encoded.getPath());
+		byte[] decData = ad.readBytes(BitByteConv.bitArrayToInt(ad.readBits(32), false));
+		ad.stopThreads();
+		assertArrayEquals(data, decData);
+	}
+
+	@Test
+	public void testFLACStreamEncDec() throws IOException {
+		byte[] audData = genRandData(3 << 20); // Long enough for the PCM data to be written in several chunks
+		AudioFormat af = new AudioFormat(44100, 16, 2, true, false);
+
+		File encoded = File.createTempFile("nsteg-encoded", ".flac");
+		encoded.deleteOnExit();
+
+		for (FLACPreset preset : FLACPreset.values()) {
+			byte[] data = genRandData(1 << 19);
+			AudEncoder ae = new AudEncoder(new AudioInputStream(new ByteArrayInputStream(audData), af,
+																audData.length / 4), 4);
+			ae.streamTo(encoded.getPath(), preset);
+			ae.encodeBits(BitByteConv.intToBitArray(data.length, 32));
+			ae.encodeBytes(data);
+			ae.stopThreads();
+			assertTrue(ae.isStreamed() && !ae.hasFailed());
+
+			assertArrayEquals(ae.getEncodedPCM(), AudioProcessor.loadFLACFile(encoded.getPath()).pcm);
+
+			Decoder ad = new AudDecoder(encoded.getPath());
+			byte[] decData = ad.readBytes(BitByteConv.bitArrayToInt(ad.readBits(32), false));
+			ad.stopThreads();
+			assertArrayEquals(data, decData);
+		}
+	}
+
+	@Test
+	public void testPNGStreamEncDec() throws IOException {
+		for (int i = 0; i < 2; i++) {
+			int imgType = (i == 0 ? BufferedImage.TYPE_3BYTE_BGR : BufferedImage.TYPE_4BYTE_ABGR);
+			BufferedImage img = new BufferedImage(300, 200, imgType);
+			Random rand = new Random(0);
+			for (int y = 0; y < img.getHeight(); y++)
+				for (int x = 0; x < img.getWidth(); x++)
+					img.setRGB(x, y, rand.nextInt());
+
+			File carrier = File.createTempFile("nsteg-carrier", ".png");
+			File encoded = File.createTempFile("nsteg-encoded", ".png");
+			carrier.deleteOnExit();
+			encoded.deleteOnExit();
+			ImageIO.write(img, "png", carrier);
+
+			for (int bpc = 1; bpc < 9; bpc++) {
+				byte[] data = genRandData(1 << 12);
+
+				Encoder re = new RasterEncoder(new PNGStreamRaster(carrier.getPath(), encoded.getPath()), bpc);
+				re.encodeBits(BitByteConv.intToBitArray(data.length, 32));
+				re.encodeBytes(data);
+				re.stopThreads();
+
+				// Streamed output must be decodable by the ImageIO based decoder, and vice versa
+				Decoder id = new ImgDecoder(ImageIO.read(encoded));
+				byte[] decData = id.readBytes(BitByteConv.bitArrayToInt(id.readBits(32), false));
+				id.stopThreads();
+				assertArrayEquals(data, decData);
+
+				Decoder rd = new RasterDecoder(new PNGStreamRaster(encoded.getPath()));
+				decData = rd.readBytes(BitByteConv.bitArrayToInt(rd.readBits(32), false));
+				rd.stopThreads();
+				assertArrayEquals(data, decData);
+			}
+		}
+
+		// Chunks after the image data are read before the output image is finished, and copied to it
+		BufferedImage img = new BufferedImage(300, 200, BufferedImage.TYPE_3BYTE_BGR);
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		ImageIO.write(img, "png", png);
+		byte[] pngBytes = png.toByteArray(), comment = "Comment\0Kept after the image data".getBytes();
+		byte[] text = Arrays.copyOf(comment, 1 << 23); // Takes a while to read, after the last row has been handed out
+		ByteBuffer chunk = ByteBuffer.allocate(12 + text.length).putInt(text.length).put("tEXt".getBytes()).put(text);
+		CRC32 crc = new CRC32();
+		crc.update(chunk.array(), 4, 4 + text.length);
+		chunk.putInt((int) crc.getValue());
+		File carrier = File.createTempFile("nsteg-carrier", ".png"), encoded = File.createTempFile("nsteg-encoded",
+																								 ".png");
+		carrier.deleteOnExit();
+		encoded.deleteOnExit();
+		try (OutputStream out = Files.newOutputStream(carrier.toPath())) {
+			out.write(pngBytes, 0, pngBytes.length - 12); // IEND comes last
+			out.write(chunk.array());
+			out.write(pngBytes, pngBytes.length - 12, 12);
+		}
+		for (int run = 0; run < 3; run++) {
+			Encoder re = new RasterEncoder(new PNGStreamRaster(carrier.getPath(), encoded.getPath()), 1);
+			re.encodeBytes(genRandData(1000));
+			re.stopThreads();
+			String written = new String(Files.readAllBytes(encoded.toPath()), StandardCharsets.ISO_8859_1);
+			assertTrue(written.indexOf("tEXtComment") > written.lastIndexOf("IDAT"));
+			assertTrue(written.contains("Kept after the image data"));
+		}
+	}
+
+	@Test
+	public void testMappedImageEncDec() throws IOException {
+		String[] formats = {"bmp", "tif", "tif"};
+		int[] imgTypes = {BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_ARGB};
+		for (int i = 0; i < formats.length; i++) {
+			BufferedImage img = new BufferedImage(301, 200, imgTypes[i]); // Odd width, so BMP rows are padded
+			Random rand = new Random(0);
+			for (int y = 0; y < img.getHeight(); y++)
+				for (int x = 0; x < img.getWidth(); x++)
+					img.setRGB(x, y, rand.nextInt());
+
+			File carrier = File.createTempFile("nsteg-carrier", "." + formats[i]);
+			File encoded = File.createTempFile("nsteg-encoded", "." + formats[i]);
+			carrier.deleteOnExit();
+			encoded.deleteOnExit();
+			ImageIO.write(img, formats[i], carrier);
+			assertTrue(MappedImageRaster.isMappable(carrier.getPath()));
+
+			for (int bpc = 1; bpc < 9; bpc++) {
+				byte[] data = genRandData(1 << 12);
+
+				Encoder re = new RasterEncoder(new MappedImageRaster(carrier.getPath(), encoded.getPath()), bpc);
+				re.encodeBits(BitByteConv.intToBitArray(data.length, 32));
+				re.encodeBytes(data);
+				re.stopThreads();
+
+				// Mapped output must be decodable by the ImageIO based decoder, and vice versa
+				Decoder id = new ImgDecoder(ImageIO.read(encoded));
+				byte[] decData = id.readBytes(BitByteConv.bitArrayToInt(id.readBits(32), false));
+				id.stopThreads();
+				assertArrayEquals(data, decData);
+
+				Decoder rd = new RasterDecoder(new MappedImageRaster(encoded.getPath()));
+				decData = rd.readBytes(BitByteConv.bitArrayToInt(rd.readBits(32), false));
+				rd.stopThreads();
+				assertArrayEquals(data, decData);
+			}
+		}
+	}
+
+	@Test
+	public void testRegionImageDec() throws IOException {
+		String[] formats = {"png", "png", "bmp"};
+		int[] imgTypes = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR};
+		for (int i = 0; i < formats.length; i++) {
+			for (int bpc = 1; bpc < 9; bpc += 3) {
+				BufferedImage img = new BufferedImage(1000, 1000, imgTypes[i]);
+				// Large enough for the data to span several bands, and to be read both with and without a prefetch
+				byte[] data = genRandData(1 << 16);
+				boolean prefetch = bpc % 2 == 0;
+
+				Encoder ie = new ImgEncoder(img, bpc);
+				ie.encodeBits(BitByteConv.intToBitArray(data.length, 32));
+				ie.encodeBytes(data);
+				ie.stopThreads();
+
+				File encoded = File.createTempFile("nsteg-encoded", "." + formats[i]);
+				encoded.deleteOnExit();
+				ImageIO.write(img, formats[i], encoded);
+
+				Decoder rd = new RasterDecoder(new RegionImageRaster(encoded.getPath()));
+				int dataLen = BitByteConv.bitArrayToInt(rd.readBits(32), false);
+				if (prefetch)
+					rd.prepareToRead((long) dataLen * Byte.SIZE);
+				byte[] decData = rd.readBytes(dataLen);
+				rd.stopThreads();
+				assertArrayEquals(data, decData);
+			}
+		}
+	}
+
+	@Test
+	public void testParallelPNGWriter() throws IOException {
+		for (int i = 0; i < 2; i++) {
+			int imgType = (i == 0 ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+			// Large enough to be split into several bands, with smooth areas so that back references are used
+			BufferedImage img = new BufferedImage(640, 480, imgType);
+			Random rand = new Random(0);
+			for (int y = 0; y < img.getHeight(); y++)
+				for (int x = 0; x < img.getWidth(); x++)
+					img.setRGB(x, y, x % 64 < 32 ? rand.nextInt() : (x * y) | (y << 24));
+
+			for (int filter = PNGFilter.NONE; filter <= PNGFilter.ADAPTIVE; filter++) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				new ParallelPNGWriter(filter % 2 == 0 ? 9 : 1, filter, 4).write(img, out);
+
+				BufferedImage read = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+				for (int y = 0; y < img.getHeight(); y++)
+					for (int x = 0; x < img.getWidth(); x++)
+						assertEquals(img.getRGB(x, y), read.getRGB(x, y));
+			}
+		}
+	}
+
 	@Test
 	public void testBitByteConv() {
 		for (int i = Integer.MAX_VALUE - 1000000; i < Integer.MAX_VALUE; i++) {